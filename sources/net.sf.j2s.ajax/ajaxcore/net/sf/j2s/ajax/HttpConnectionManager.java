@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Manager of Java side asynchronous HTTP requests.
+ * 
+ * Requests are run by a shared executor with limited threads. Requests to
+ * the same host are limited, so a limited number of HTTP/1.1 keep-alive
+ * connections are kept and reused by HttpURLConnection, and the rest
+ * requests are queued until connections are released. Each worker thread
+ * reuses its reading buffer.
+ * 
+ * Comet connections are not limited, as they are kept open for long time.
+ */
+@J2SIgnore
+public class HttpConnectionManager {
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+	
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	
+	static final int BUFFER_SIZE = 10240;
+	
+	private static HttpConnectionManager defaultManager;
+	
+	private static ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+	
+	private static class HostQueue {
+		
+		int active;
+		
+		LinkedList<Runnable> pending = new LinkedList<Runnable>();
+		
+	}
+	
+	private final int maxConnectionsPerHost;
+	
+	private final int maxConnections;
+	
+	private Executor executor;
+	
+	private final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+	
+	public HttpConnectionManager() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS);
+	}
+	
+	/**
+	 * @param maxConnectionsPerHost maximum concurrent requests to a host
+	 * @param maxConnections maximum concurrent requests, or threads of the
+	 * default executor
+	 */
+	public HttpConnectionManager(int maxConnectionsPerHost, int maxConnections) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost > 0 ? maxConnectionsPerHost : 1;
+		this.maxConnections = maxConnections > 0 ? maxConnections : 1;
+	}
+	
+	public static HttpConnectionManager getDefault() {
+		HttpConnectionManager manager = defaultManager;
+		if (manager == null) {
+			synchronized (HttpConnectionManager.class) {
+				if (defaultManager == null) {
+					defaultManager = new HttpConnectionManager();
+				}
+				manager = defaultManager;
+			}
+		}
+		return manager;
+	}
+	
+	public static void setDefault(HttpConnectionManager manager) {
+		defaultManager = manager;
+	}
+	
+	/**
+	 * Let HttpURLConnection keep the given number of idle connections per
+	 * host, instead of 5 by default. It sets the JVM wide system property
+	 * "http.maxConnections", so it is left to the application. The property
+	 * is read once by the JDK, so call it before the first HTTP request.
+	 * 
+	 * @param connections
+	 * @return false if the property is already set and is kept
+	 */
+	public static boolean setKeepAliveConnections(int connections) {
+		if (System.getProperty("http.maxConnections") != null) {
+			return false;
+		}
+		System.setProperty("http.maxConnections", String.valueOf(connections > 0 ? connections : 1));
+		return true;
+	}
+	
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+	
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	
+	/**
+	 * Set executor for running requests. By default, a pool of daemon
+	 * threads, which is limited to maximum connections, is used.
+	 * 
+	 * @param executor
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	public synchronized Executor getExecutor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnections, maxConnections,
+					60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Java2Script HTTP Request Worker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+	
+	/**
+	 * @param url
+	 * @return "protocol://host:port" of the given URL
+	 */
+	static String hostOf(String url) {
+		try {
+			URL u = new URL(url);
+			int port = u.getPort();
+			if (port == -1) {
+				port = u.getDefaultPort();
+			}
+			return u.getProtocol() + "://" + u.getHost() + ":" + port;
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+	
+	/**
+	 * Run the given request task, if number of running requests to the host
+	 * of given URL does not reach the limit. Otherwise, the task is queued
+	 * and will be run after other requests to the host are completed.
+	 * 
+	 * @param url
+	 * @param task
+	 */
+	public void execute(String url, final Runnable task) {
+		final String host = hostOf(url);
+		synchronized (hosts) {
+			HostQueue queue = hosts.get(host);
+			if (queue == null) {
+				queue = new HostQueue();
+				hosts.put(host, queue);
+			}
+			if (queue.active >= maxConnectionsPerHost) {
+				queue.pending.add(task);
+				return;
+			}
+			queue.active++;
+		}
+		submit(host, task);
+	}
+	
+	private void submit(final String host, final Runnable task) {
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						release(host);
+					}
+				}
+			});
+		} catch (RuntimeException e) { // rejected
+			e.printStackTrace();
+			release(host);
+		}
+	}
+	
+	private void release(String host) {
+		Runnable next = null;
+		synchronized (hosts) {
+			HostQueue queue = hosts.get(host);
+			if (queue == null) {
+				return;
+			}
+			next = queue.pending.poll();
+			if (next == null) {
+				queue.active--;
+				if (queue.active <= 0) {
+					hosts.remove(host);
+				}
+				return;
+			}
+		}
+		submit(host, next);
+	}
+	
+	/**
+	 * @param url
+	 * @return number of running requests to the host of given URL
+	 */
+	public int getActiveCount(String url) {
+		synchronized (hosts) {
+			HostQueue queue = hosts.get(hostOf(url));
+			return queue != null ? queue.active : 0;
+		}
+	}
+	
+	/**
+	 * @param url
+	 * @return number of queued requests to the host of given URL
+	 */
+	public int getPendingCount(String url) {
+		synchronized (hosts) {
+			HostQueue queue = hosts.get(hostOf(url));
+			return queue != null ? queue.pending.size() : 0;
+		}
+	}
+	
+	/**
+	 * @return reading buffer of current thread. Data in buffer should be
+	 * consumed before next reading.
+	 */
+	static byte[] getBuffer() {
+		return buffers.get();
+	}
+	
+}
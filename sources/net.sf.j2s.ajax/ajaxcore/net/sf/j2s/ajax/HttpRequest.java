@@ -27,6 +27,8 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -171,6 +173,8 @@ public class HttpRequest {
 	
 	protected boolean isCometConnection = false;
 	
+	protected HttpConnectionManager connectionManager;
+	
 	/**
 	 * Return read state of XMLHttpRequest.
 	 * @return int ready state
@@ -466,13 +470,18 @@ public class HttpRequest {
 	public void send(String str) {
 		content = str;
 		if (asynchronous) {
-			SimpleThreadHelper.runTask(new Runnable() {
+			Runnable task = new Runnable() {
 				public void run() {
 					if (!toAbort) {
 						request();
 					}
 				}
-			}, "Java2Script HTTP Request Worker");
+			};
+			if (isCometConnection) { // long connection, not limited
+				SimpleThreadHelper.runTask(task, "Java2Script HTTP Request Worker");
+			} else {
+				getConnectionManager().execute(url, task);
+			}
 		} else {
 			request();
 		}
@@ -538,6 +547,10 @@ public class HttpRequest {
 				String key = (String) iter.next();
 				connection.setRequestProperty(key, (String) headers.get(key));
 			}
+			if (connection.getRequestProperty("Accept-Encoding") == null) {
+				// response is decompressed transparently
+				connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+			}
 			connection.setUseCaches(false);
 			if (checkAbort()) return; // not yet send out a byte
 			if ("post".equalsIgnoreCase(method)) {
@@ -559,6 +572,7 @@ public class HttpRequest {
 				if (checkAbort()) return; // exception caused by abort action
 				//e.printStackTrace();
 				status = connection.getResponseCode();
+				releaseErrorStream(connection);
 				if (readyState != 4) {
 					readyState = 4;
 					if (onreadystatechange != null) {
@@ -585,6 +599,17 @@ public class HttpRequest {
 				}
 			}
 			
+			String encoding = connection.getContentEncoding();
+			if (encoding != null && connection.getContentLength() != 0) {
+				if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+					is = new GZIPInputStream(is);
+					activeIS = is;
+				} else if ("deflate".equalsIgnoreCase(encoding)) {
+					is = new InflaterInputStream(is);
+					activeIS = is;
+				}
+			}
+			
 			receiving = initializeReceivingMonitor();
 			
 			int bufferSize = connection.getContentLength();
@@ -595,7 +620,7 @@ public class HttpRequest {
 			}
 			ByteArrayOutputStream baos = new ByteArrayOutputStream(bufferSize);
 			responseBAOS = baos;
-			byte[] buffer = new byte[Math.min(bufferSize, 10240)];
+			byte[] buffer = HttpConnectionManager.getBuffer(); // data is consumed before next reading
 			int read;
 			while (!toAbort && (read = is.read(buffer)) != -1) {
 				if (checkAbort()) return; // stop receiving anything
@@ -622,7 +647,8 @@ public class HttpRequest {
 			if (onreadystatechange != null) {
 				onreadystatechange.onLoaded();
 			}
-			connection.disconnect();
+			// Not disconnect, so the connection is kept alive for later requests
+			connection = null;
 			readyState = 0;
 			/*
 			if (onreadystatechange != null) {
@@ -646,6 +672,41 @@ public class HttpRequest {
 		}
 	}
 	
+	/*
+	 * Read and close error stream, so the connection can be reused.
+	 */
+	private static void releaseErrorStream(HttpURLConnection connection) {
+		InputStream es = connection.getErrorStream();
+		if (es == null) {
+			return;
+		}
+		try {
+			byte[] buffer = HttpConnectionManager.getBuffer();
+			while (es.read(buffer) != -1) {
+				// discard
+			}
+			es.close();
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Set manager for limiting and running asynchronous requests.
+	 * @param manager
+	 */
+	public void setConnectionManager(HttpConnectionManager manager) {
+		this.connectionManager = manager;
+	}
+	
+	/**
+	 * @return manager of this request, default manager if not set
+	 */
+	public HttpConnectionManager getConnectionManager() {
+		HttpConnectionManager manager = connectionManager;
+		return manager != null ? manager : HttpConnectionManager.getDefault();
+	}
+	
 	/**
 	 * Enabling Comet mode for HTTP request connection.
 	 * Comet connection is used on Java level to provide SimplePipe connection.
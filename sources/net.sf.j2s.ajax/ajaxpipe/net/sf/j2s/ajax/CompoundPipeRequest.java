@@ -1,8 +1,15 @@
 package net.sf.j2s.ajax;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
 public class CompoundPipeRequest extends SimplePipeRequest {
 
-	static CompoundPipeRunnable[] pipes = new CompoundPipeRunnable[3];
+	// allPipes is for JavaScript, as pipes is for Java
+	@J2SIgnore
+	private static ConcurrentMap<String, CompoundPipeRunnable> pipes = new ConcurrentHashMap<String, CompoundPipeRunnable>();
 	
 	public static void weave(String id, CompoundPipeSession p) {
 		final CompoundPipeRunnable pipe = retrievePipe(id, true);
@@ -72,21 +79,11 @@ public class CompoundPipeRequest extends SimplePipeRequest {
 	}
 	
 	static CompoundPipeRunnable retrievePipe(String id, boolean createNew) {
-		CompoundPipeRunnable[] allPipes = pipes;
-		synchronized (allPipes) {
-			for (int i = 0; i < allPipes.length; i++) {
-				if (allPipes[i] != null && allPipes[i].id.equals(id)) {
-					return allPipes[i];
-				}
-			}
-			if (!createNew) {
-				return null;
-			}
-			
-			CompoundPipeRunnable pipe = createPipe(id);
-			addPipe(pipe);
+		CompoundPipeRunnable pipe = getPipe(id);
+		if (pipe != null || !createNew) {
 			return pipe;
 		}
+		return addPipe(id, createPipe(id));
 	}
 
 	private static CompoundPipeRunnable createPipe(String id) {
@@ -121,46 +118,61 @@ public class CompoundPipeRequest extends SimplePipeRequest {
 		return pipe;
 	}
 
-	private static void addPipe(CompoundPipeRunnable pipe) {
-		CompoundPipeRunnable[] allPipes = pipes;
-		for (int i = 0; i < allPipes.length; i++) {
-			if (allPipes[i] == null) {
-				allPipes[i] = pipe;
-				return;
-			}
+	/**
+	 * @j2sNative
+var ps = net.sf.j2s.ajax.CompoundPipeRequest.allPipes;
+if (ps == null || id == null) {
+	return null;
+}
+var pipe = ps[id];
+return pipe == null ? null : pipe;
+	 */
+	private static CompoundPipeRunnable getPipe(String id) {
+		if (id == null) {
+			return null;
 		}
-		CompoundPipeRunnable[] newPipes = new CompoundPipeRunnable[allPipes.length + 100];
-		System.arraycopy(allPipes, 0, newPipes, 0, allPipes.length);
-		newPipes[allPipes.length] = pipe;
-		pipes = newPipes;
+		return pipes.get(id);
+	}
+	
+	/**
+	 * @return existed pipe of the given id, or the given pipe if it is added
+	 * 
+	 * @j2sNative
+var cpr = net.sf.j2s.ajax.CompoundPipeRequest;
+if (cpr.allPipes == null) {
+	cpr.allPipes = new Object ();
+}
+var existed = cpr.allPipes[id];
+if (existed != null) {
+	return existed;
+}
+cpr.allPipes[id] = pipe;
+return pipe;
+	 */
+	private static CompoundPipeRunnable addPipe(String id, CompoundPipeRunnable pipe) {
+		CompoundPipeRunnable existed = pipes.putIfAbsent(id, pipe);
+		return existed != null ? existed : pipe;
 	}
 	
 	static CompoundPipeRunnable registerPipe(CompoundPipeRunnable pipe) {
 		if (pipe == null) return null;
-		String id = pipe.id;
-		CompoundPipeRunnable[] allPipes = pipes;
-		synchronized (allPipes) {
-			for (int i = 0; i < allPipes.length; i++) {
-				if (allPipes[i] != null && allPipes[i].id.equals(id)) {
-					return allPipes[i];
-				}
-			}
-			addPipe(pipe);
-			return pipe;
-		}
+		return addPipe(pipe.id, pipe);
 	}
 	
+	/**
+	 * @j2sNative
+var ps = net.sf.j2s.ajax.CompoundPipeRequest.allPipes;
+if (ps == null || id == null) {
+	return null;
+}
+var pipe = ps[id];
+delete ps[id];
+return pipe == null ? null : pipe;
+	 */
 	static CompoundPipeRunnable unregisterPipe(String id) {
-		CompoundPipeRunnable[] allPipes = pipes;
-		synchronized (allPipes) {
-			for (int i = 0; i < allPipes.length; i++) {
-				if (allPipes[i] != null && allPipes[i].id.equals(id)) {
-					CompoundPipeRunnable pipe = allPipes[i];
-					allPipes[i] = null;
-					return pipe;
-				}
-			}
+		if (id == null) {
 			return null;
 		}
+		return pipes.remove(id);
 	}
 }
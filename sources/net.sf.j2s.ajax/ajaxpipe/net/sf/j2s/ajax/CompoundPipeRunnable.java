@@ -1,5 +1,10 @@
 package net.sf.j2s.ajax;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
 public class CompoundPipeRunnable extends SimplePipeRunnable {
 
 	/**
@@ -21,8 +26,18 @@ return key;
 		return keyBuilder.toString();
 	}
 	
+	/*
+	 * Woven pipe sessions are kept in pipes[0, sessionCount), and the slot
+	 * of the last session is moved into the removed slot on unweaving.
+	 */
 	CompoundPipeSession[] pipes;
 
+	int sessionCount;
+	
+	// sessionSlots is for Java, as JavaScript scans pipes
+	@J2SIgnore
+	private Map<String, Integer> sessionSlots = new ConcurrentHashMap<String, Integer>();
+
 	int status;
 	
 	String id; // id for CompoundPipeRequest
@@ -38,6 +53,7 @@ return key;
 	
 	public CompoundPipeRunnable() {
 		pipes = new CompoundPipeSession[4];
+		sessionCount = 0;
 		status = 0; // starting
 		setupFailedRetries = 0;
 		lastSetupRetried = 0;
@@ -52,14 +68,110 @@ return key;
 		if (session == null) {
 			return null;
 		}
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null && session.equals(pipes[i].session)) {
-				return pipes[i];
+		int index = indexOf(session);
+		CompoundPipeSession[] ps = pipes;
+		if (index >= 0 && index < ps.length) {
+			CompoundPipeSession p = ps[index];
+			if (p != null && session.equals(p.session)) {
+				return p;
+			}
+		}
+		/**
+		 * @j2sNative
+		 */
+		{
+			if (index >= 0) { // session is being moved by unweaving
+				synchronized (sessionSlots) {
+					index = indexOf(session);
+					return index >= 0 ? pipes[index] : null;
+				}
 			}
 		}
 		return null;
 	}
 	
+	/**
+	 * @return slot of the given session key in pipes, or -1 if not woven
+	 * 
+	 * @j2sNative
+if (session == null) {
+	return -1;
+}
+for (var i = 0; i < this.pipes.length; i++) {
+	if (this.pipes[i] != null && session == this.pipes[i].session) {
+		return i;
+	}
+}
+return -1;
+	 */
+	private int indexOf(String session) {
+		if (session == null) {
+			return -1;
+		}
+		Integer index = sessionSlots.get(session);
+		return index == null ? -1 : index.intValue();
+	}
+	
+	/*
+	 * Should be called with sessionSlots locked.
+	 */
+	private void removeSessionAt(int index) {
+		CompoundPipeSession removed = pipes[index];
+		int last = sessionCount - 1;
+		CompoundPipeSession moved = pipes[last];
+		pipes[last] = null;
+		sessionCount = last;
+		if (index != last) {
+			pipes[index] = moved;
+		}
+		/**
+		 * @j2sNative
+		 */
+		{
+			if (index != last && moved != null && moved.session != null) {
+				sessionSlots.put(moved.session, Integer.valueOf(index));
+			}
+			if (removed != null && removed.session != null) {
+				sessionSlots.remove(removed.session);
+			}
+		}
+	}
+	
+	/*
+	 * Should be called with sessionSlots locked.
+	 * 
+	 * @return all sessions before clearing
+	 */
+	private CompoundPipeSession[] clearSessions() {
+		CompoundPipeSession[] ps = pipes;
+		pipes = new CompoundPipeSession[ps.length];
+		sessionCount = 0;
+		/**
+		 * @j2sNative
+		 */
+		{
+			sessionSlots.clear();
+		}
+		return ps;
+	}
+	
+	/**
+	 * Remove pipe session of the given session key without notifying it.
+	 * 
+	 * @return removed pipe session, or null if no such session
+	 */
+	CompoundPipeSession removeSession(String session) {
+		synchronized (sessionSlots) {
+			int index = indexOf(session);
+			if (index < 0) {
+				return null;
+			}
+			CompoundPipeSession p = pipes[index];
+			removeSessionAt(index);
+			return p;
+		}
+	}
+	
 	@Override
 	public boolean pipeDestroy() {
 		for (int i = 0; i < pipes.length; i++) {
@@ -107,14 +219,17 @@ return key;
 
 	@Override
 	public void pipeClosed() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				if (pipes[i].closer != null) {
-					pipes[i].closer.helpClosing(pipes[i]);
+		CompoundPipeSession[] ps = null;
+		synchronized (sessionSlots) {
+			ps = clearSessions();
+		}
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				if (ps[i].closer != null) {
+					ps[i].closer.helpClosing(ps[i]);
 				} else {
-					pipes[i].pipeClosed();
+					ps[i].pipeClosed();
 				}
-				pipes[i] = null;
 			}
 		}
 		super.pipeClosed();
@@ -122,10 +237,13 @@ return key;
 
 	@Override
 	public void pipeLost() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				pipes[i].pipeLost();
-				pipes[i] = null;
+		CompoundPipeSession[] ps = null;
+		synchronized (sessionSlots) {
+			ps = clearSessions();
+		}
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				ps[i].pipeLost();
 			}
 		}
 		super.pipeLost();
@@ -152,101 +270,98 @@ return key;
 
 	public boolean weave(CompoundPipeSession pipe) {
 		pipe.pipeReset();
-		synchronized (pipes) {
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipe == pipes[i]) {
+		synchronized (sessionSlots) {
+			int index = indexOf(pipe.session);
+			if (index < 0 && pipe.session == null) {
+				index = identityIndexOf(pipe);
+			}
+			if (index >= 0) {
+				if (pipe == pipes[index]) {
 					pipe.pipeKey = this.pipeKey;
 					pipe.parent = this;
 					initPipeSession(pipe);
 					return false;
 				}
-			}
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipe.session != null && pipes[i] != null
-						&& pipe.session.equals(pipes[i].session)) {
-					if (pipes[i].isPipeLive()) {
-						System.out.println("pipe session " + pipes[i].session + " is still live!!");
-					}
-					pipes[i] = pipe; // replace it!!!
-					lastSetup = System.currentTimeMillis();
-					pipe.pipeKey = this.pipeKey;
-					pipe.parent = this;
-					return true;
-				}
-			}
-			boolean added = false;
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipes[i] == null) {
-					pipes[i] = pipe;
-					added = true;
-					break;
+				if (pipes[index].isPipeLive()) {
+					System.out.println("pipe session " + pipes[index].session + " is still live!!");
 				}
+				pipes[index] = pipe; // replace it!!!
+				lastSetup = System.currentTimeMillis();
+				pipe.pipeKey = this.pipeKey;
+				pipe.parent = this;
+				return true;
 			}
-			if (!added) {
-				CompoundPipeSession[] newPipes = new CompoundPipeSession[pipes.length + 4];
+			if (sessionCount == pipes.length) {
+				CompoundPipeSession[] newPipes = new CompoundPipeSession[pipes.length * 2];
 				System.arraycopy(pipes, 0, newPipes, 0, pipes.length);
-				newPipes[pipes.length] = pipe;
+				pipes = newPipes;
 				lastSetup = System.currentTimeMillis();
 			}
+			pipe.pipeKey = this.pipeKey;
+			pipe.parent = this;
+			initPipeSession(pipe);
+			index = sessionCount;
+			pipes[index] = pipe;
+			sessionCount = index + 1;
+			/**
+			 * @j2sNative
+			 */
+			{
+				sessionSlots.put(pipe.session, Integer.valueOf(index));
+			}
 		}
-		pipe.pipeKey = this.pipeKey;
-		pipe.parent = this;
-		initPipeSession(pipe);
 		return true;
 	}
 
+	/*
+	 * Should be called with sessionSlots locked.
+	 */
 	private void initPipeSession(CompoundPipeSession pipe) {
 		while (pipe.session == null) {
 			String key = nextSessionKey();
-			boolean isKeyOK = true;
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipes[i] != null && key.equals(pipes[i].session)) {
-					isKeyOK = false;
-					break;
-				}
-			}
-			if (isKeyOK) {
+			if (indexOf(key) < 0) {
 				pipe.session = key;
 				break;
 			}
 		}
 	}
 
+	private int identityIndexOf(CompoundPipeSession pipe) {
+		for (int i = 0; i < sessionCount; i++) {
+			if (pipe == pipes[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	public boolean unweave(CompoundPipeSession pipe) {
 		/*
 		if (pipeKey == null || !pipeKey.equals(pipe.pipeKey)) {
 			return false;
 		}
 		//*/
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipe == pipes[i] || (pipe.session != null && pipes[i] != null
-					&& pipe.session.equals(pipes[i].session))) {
-				pipes[i] = null;
-				lastSetup = System.currentTimeMillis();
-				pipe.pipeKey = null;
-				return true;
+		synchronized (sessionSlots) {
+			int index = indexOf(pipe.session);
+			if (index < 0 && pipe.session == null) {
+				index = identityIndexOf(pipe);
 			}
+			if (index < 0) {
+				return false;
+			}
+			removeSessionAt(index);
+			lastSetup = System.currentTimeMillis();
+			pipe.pipeKey = null;
+			return true;
 		}
-		return false;
 	}
 	
 	public int getActivePipeSessionCount() {
-		int count = 0;
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				count++;
-			}
-		}
-		return count;
+		return sessionCount;
 	}
 	
 	public boolean isEmpty() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				return false;
-			}
-		}
-		return true;
+		return sessionCount == 0;
 	}
 	
 	@Override
@@ -277,13 +392,9 @@ return key;
 			if ("net.sf.j2s.ajax.CompoundSerializable".equals(clazz.getName())) {
 				return true; // seldom or never reach this branch, just ignore
 			}
-			for (int i = 0; i < pipes.length; i++) {
-				CompoundPipeSession p = pipes[i];
-				if (p != null && p.session != null 
-						&& p.session.equals(cs.session) 
-						&& p.deal(cs)) {
-					return true;
-				}
+			CompoundPipeSession p = getSession(cs.session);
+			if (p != null && p.deal(cs)) {
+				return true;
 			}
 		}
 		return false;
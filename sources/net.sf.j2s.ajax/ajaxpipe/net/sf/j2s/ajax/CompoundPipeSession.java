@@ -155,16 +155,7 @@ public abstract class CompoundPipeSession extends SimplePipeRunnable {
 			pipe = this.parent;
 		}
 		if (pipe instanceof CompoundPipeRunnable) {
-			CompoundPipeRunnable p = (CompoundPipeRunnable) pipe;
-			if (p.pipes != null) {
-				for (int i = 0; i < p.pipes.length; i++) {
-					CompoundPipeSession s = p.pipes[i];
-					if (s != null && s.session.equals(evt.session)) {
-						p.pipes[i] = null;
-						break;
-					}
-				}
-			}
+			((CompoundPipeRunnable) pipe).removeSession(evt.session);
 		}
 		
 		if (pipe != null && !pipe.isPipeLive()) {
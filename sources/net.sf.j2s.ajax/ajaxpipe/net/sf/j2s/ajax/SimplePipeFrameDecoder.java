@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Resumable decoder of pipe data frames received in chunks.
+ * 
+ * Each frame is a pipe key followed by either a status character or a
+ * serialized object "WLL202ClassName#NNNNNNNN$...". The decoder keeps its
+ * scanning position and the end of the current frame across chunks, so each
+ * received byte is scanned once and an object is parsed only once, after
+ * all its bytes are received. Bytes of decoded frames are discarded by
+ * compacting the buffer when more room is needed.
+ */
+@J2SIgnore
+public class SimplePipeFrameDecoder {
+
+	/**
+	 * Not enough data for next frame.
+	 */
+	public static final int NEED_MORE = 0;
+	
+	/**
+	 * A status frame is decoded, see #getStatus.
+	 */
+	public static final int FRAME_STATUS = 1;
+	
+	/**
+	 * An object frame is decoded, see #getObject.
+	 */
+	public static final int FRAME_OBJECT = 2;
+	
+	/**
+	 * Invalid data. Decoder should not be used any more.
+	 */
+	public static final int FRAME_ERROR = -1;
+	
+	/*
+	 * Size of "WLL202ClassName#NNNNNNNN$" should be less than this.
+	 */
+	private static final int MAX_HEADER_LENGTH = 1024;
+	
+	private SimpleFilter filter;
+	
+	private byte[] buffer;
+	
+	private int readIndex;
+	
+	private int writeIndex;
+	
+	/*
+	 * Scanning position of current frame's header.
+	 */
+	private int scanIndex;
+	
+	private int hashIndex = -1;
+	
+	/*
+	 * End of current object frame, or -1 if header is not completed.
+	 */
+	private int frameEnd = -1;
+	
+	private boolean error;
+	
+	private String key;
+	
+	private char status;
+	
+	private SimpleSerializable object;
+	
+	public SimplePipeFrameDecoder() {
+		this(null, 4096);
+	}
+	
+	/**
+	 * @param filter Filter of classes, null for all classes
+	 * @param initialCapacity
+	 */
+	public SimplePipeFrameDecoder(SimpleFilter filter, int initialCapacity) {
+		this.filter = filter;
+		buffer = new byte[initialCapacity > 64 ? initialCapacity : 64];
+	}
+	
+	/**
+	 * Append received bytes.
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (writeIndex + len > buffer.length) {
+			int pending = writeIndex - readIndex;
+			byte[] target = buffer;
+			if (pending + len > buffer.length) {
+				int capacity = buffer.length << 1;
+				while (capacity < pending + len) {
+					capacity <<= 1;
+				}
+				target = new byte[capacity];
+			}
+			// discard decoded frames
+			System.arraycopy(buffer, readIndex, target, 0, pending);
+			buffer = target;
+			scanIndex -= readIndex;
+			if (hashIndex != -1) {
+				hashIndex -= readIndex;
+			}
+			if (frameEnd != -1) {
+				frameEnd -= readIndex;
+			}
+			writeIndex = pending;
+			readIndex = 0;
+		}
+		System.arraycopy(b, off, buffer, writeIndex, len);
+		writeIndex += len;
+	}
+	
+	/**
+	 * Decode next frame from received bytes.
+	 * 
+	 * @return #NEED_MORE, #FRAME_STATUS, #FRAME_OBJECT or #FRAME_ERROR
+	 */
+	public int decode() {
+		key = null;
+		status = 0;
+		object = null;
+		if (error) {
+			return FRAME_ERROR;
+		}
+		int keyEnd = readIndex + SimplePipeRequest.PIPE_KEY_LENGTH;
+		if (writeIndex <= keyEnd) {
+			return NEED_MORE;
+		}
+		if (frameEnd == -1) {
+			byte b = buffer[keyEnd];
+			if (b == SimplePipeRequest.PIPE_STATUS_OK || b == SimplePipeRequest.PIPE_STATUS_DESTROYED
+					|| b == SimplePipeRequest.PIPE_STATUS_CONTINUE) {
+				key = new String(buffer, readIndex, SimplePipeRequest.PIPE_KEY_LENGTH);
+				status = (char) b;
+				nextFrame(keyEnd + 1);
+				return FRAME_STATUS;
+			}
+			if (!parseHeader(keyEnd)) {
+				return error ? FRAME_ERROR : NEED_MORE;
+			}
+		}
+		if (writeIndex < frameEnd) {
+			return NEED_MORE;
+		}
+		key = new String(buffer, readIndex, SimplePipeRequest.PIPE_KEY_LENGTH);
+		SimpleSerializable ss = null;
+		try {
+			ss = SimpleSerializable.parseInstance(buffer, keyEnd, filter);
+			if (ss == SimpleSerializable.ERROR
+					|| (ss != null && ss != SimpleSerializable.UNKNOWN && !ss.deserializeBytes(buffer, keyEnd))) {
+				error = true;
+				return FRAME_ERROR;
+			}
+		} catch (RuntimeException e) { // invalid simple format, array size too large
+			error = true;
+			return FRAME_ERROR;
+		}
+		object = ss != null ? ss : SimpleSerializable.UNKNOWN; // null for filtered classes
+		nextFrame(frameEnd);
+		return FRAME_OBJECT;
+	}
+	
+	/*
+	 * Scan for "#NNNNNNNN$" from last scanning position.
+	 */
+	private boolean parseHeader(int start) {
+		if (scanIndex < start) {
+			scanIndex = start;
+		}
+		int limit = start + MAX_HEADER_LENGTH;
+		if (hashIndex == -1) {
+			if (scanIndex < start + 3 && writeIndex >= start + 3
+					&& (buffer[start] != 'W' || buffer[start + 1] != 'L' || buffer[start + 2] != 'L')) {
+				error = true;
+				return false;
+			}
+			while (scanIndex < writeIndex && buffer[scanIndex] != '#') {
+				scanIndex++;
+			}
+			if (scanIndex == writeIndex) {
+				error = scanIndex >= limit;
+				return false;
+			}
+			hashIndex = scanIndex++;
+		}
+		int size = 0;
+		for (int i = hashIndex + 1; i < scanIndex; i++) {
+			size = size * 10 + (buffer[i] - '0');
+		}
+		while (scanIndex < writeIndex) {
+			byte b = buffer[scanIndex];
+			if (b == '$') {
+				break;
+			}
+			if (b < '0' || b > '9' || size > (Integer.MAX_VALUE - 9) / 10) {
+				error = true;
+				return false;
+			}
+			size = size * 10 + (b - '0');
+			scanIndex++;
+		}
+		if (scanIndex == writeIndex) {
+			error = scanIndex >= limit;
+			return false;
+		}
+		frameEnd = scanIndex + 1 + size;
+		return true;
+	}
+	
+	private void nextFrame(int index) {
+		readIndex = index;
+		scanIndex = index;
+		hashIndex = -1;
+		frameEnd = -1;
+		if (readIndex == writeIndex) {
+			readIndex = 0;
+			writeIndex = 0;
+			scanIndex = 0;
+		}
+	}
+	
+	/**
+	 * @return pipe key of the decoded frame
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * @return status of the decoded status frame, or 0 for object frame
+	 */
+	public char getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return object of the decoded object frame. It is
+	 * SimpleSerializable#UNKNOWN for unknown or filtered classes. 
+	 */
+	public SimpleSerializable getObject() {
+		return object;
+	}
+	
+	/**
+	 * @return number of received bytes not decoded yet
+	 */
+	public int getPendingSize() {
+		return writeIndex - readIndex;
+	}
+	
+	/**
+	 * @param max
+	 * @return leading bytes not decoded yet as string, for logging
+	 */
+	public String getPendingData(int max) {
+		return new String(buffer, readIndex, Math.min(max, writeIndex - readIndex));
+	}
+
+}
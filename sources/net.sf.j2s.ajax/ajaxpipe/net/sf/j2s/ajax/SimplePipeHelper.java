@@ -11,14 +11,13 @@
 package net.sf.j2s.ajax;
 
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -40,6 +39,28 @@ public class SimplePipeHelper {
 		public void helpClosing(SimplePipeRunnable pipe);
 	}
 	
+	/**
+	 * Pipe connection which is not waiting on pipe's monitor, e.g.
+	 * asynchronous HTTP connection, will be woken up on pipe data or
+	 * pipe's removal.
+	 */
+	public static interface IPipeWaking {
+		public void helpWaking(SimplePipeRunnable pipe);
+	}
+	
+	/**
+	 * Transport of pipe data between nodes of a cluster. Pipe data for a
+	 * pipe owned by another node is forwarded to the owner node by the
+	 * transport, and the owner node pipes data in by
+	 * {@link SimplePipeHelper#pipeIn(String, SimpleSerializable[])}.
+	 */
+	public static interface IPipeTransport {
+		/**
+		 * @return whether pipe data is forwarded or not
+		 */
+		public boolean helpForwarding(String node, String key, SimpleSerializable[] objs);
+	}
+	
 	@J2SIgnore
 	public static int MAX_ITEMS_PER_QUERY = 100;
 	
@@ -47,7 +68,17 @@ public class SimplePipeHelper {
 //	private static Map<String, List<SimpleSerializable>> pipeMap = null;
 	
 	@J2SIgnore
-	private static boolean monitored = false;
+	private static volatile boolean monitored = false;
+	
+	/*
+	 * Node ID of this server in a cluster, as prefix of all pipe keys
+	 * generated by this server. Null for single server.
+	 */
+	@J2SIgnore
+	private static volatile String localNode = null;
+	
+	@J2SIgnore
+	private static volatile IPipeTransport pipeTransport = null;
 	
 	@J2SIgnore
 	private static long monitoringInterval = 10000; // 10s
@@ -56,11 +87,24 @@ public class SimplePipeHelper {
 	static Object allPipes = null;
 	
 	@J2SIgnore
-	private static Map<String, SimplePipeRunnable> pipes = new ConcurrentHashMap<String, SimplePipeRunnable>(50);
+	private static SimplePipeRegistry pipes = new SimplePipeRegistry(16);
 
 	@J2SIgnore
 	private static BlockingQueue<SimplePipeRunnable> toBeDestroyedPipes = new LinkedBlockingQueue<SimplePipeRunnable>();
 	
+	// Pipes in toBeDestroyedPipes, avoiding O(n) BlockingQueue#contains
+	@J2SIgnore
+	private static Set<SimplePipeRunnable> destroyingPipes = Collections.newSetFromMap(new ConcurrentHashMap<SimplePipeRunnable, Boolean>());
+	
+	@J2SIgnore
+	private static SimplePipeTimerWheel monitorWheel = new SimplePipeTimerWheel(100, 512, new SimplePipeTimerWheel.IPipeChecking() {
+		
+		public long check(SimplePipeRunnable pipe, long now) {
+			return checkPipeStatus(pipe, now);
+		}
+		
+	});
+	
 	@J2SIgnore
 	private SimplePipeHelper() {
 		//
@@ -86,16 +130,15 @@ public class SimplePipeHelper {
 	 * Server side
 	 */
 	@J2SIgnore
-	synchronized static String registerPipe(SimplePipeRunnable pipe) {
+	static String registerPipe(SimplePipeRunnable pipe) {
 		if (pipe.pipeKey != null) {
 			System.out.println("ERROR!!! pipeKey should be null here! " + pipe.pipeKey);
 		}
 		// if (pipe == null) return null; // should never register null pipe!
 		String key = nextPipeKey();
-		while (pipes.get(key) != null) {
+		while (pipes.putIfAbsent(key, pipe) != null) {
 			key = nextPipeKey();
 		}
-		pipes.put(key, pipe); // FIXME: In rare case, it will override another pipe
 		
 //		if (pipeMap == null) {
 //			pipeMap = new ConcurrentHashMap<String, List<SimpleSerializable>>();
@@ -107,7 +150,7 @@ public class SimplePipeHelper {
 //		}
 		
 		if (pipe.pipeData == null) {
-			pipe.pipeData = new LinkedList<SimpleSerializable>();
+			pipe.pipeData = new SimplePipeQueue();
 		}
 		return key;
 	}
@@ -118,7 +161,11 @@ public class SimplePipeHelper {
 	@J2SIgnore
 	static String nextPipeKey() {
 		StringBuilder builder = new StringBuilder(SimplePipeRequest.PIPE_KEY_LENGTH);
-		for (int i = 0; i < SimplePipeRequest.PIPE_KEY_LENGTH; i++) {
+		String node = localNode;
+		if (node != null) {
+			builder.append(node);
+		}
+		for (int i = builder.length(); i < SimplePipeRequest.PIPE_KEY_LENGTH; i++) {
 			int r = (int) Math.floor(Math.random() * 62); // 0..61, total 62 numbers
 			if (r < 10) {
 				builder.append((char) (r + '0'));
@@ -131,6 +178,51 @@ public class SimplePipeHelper {
 		return builder.toString();
 	}
 	
+	/**
+	 * Join a cluster of servers. Pipe keys generated by this server will be
+	 * prefixed with the given node ID, and pipe data for pipes of other
+	 * nodes will be forwarded by the given transport. All nodes of a
+	 * cluster should have node IDs of the same length.
+	 * 
+	 * @param node 1 or 2 characters of [0-9a-zA-Z], or null to leave
+	 * the cluster
+	 * @param transport
+	 */
+	@J2SIgnore
+	public static void setPipeTransport(String node, IPipeTransport transport) {
+		if (node != null) {
+			if (node.length() == 0 || node.length() > 2) {
+				throw new IllegalArgumentException("Node ID should be 1 or 2 characters: " + node);
+			}
+			for (int i = 0; i < node.length(); i++) {
+				char c = node.charAt(i);
+				if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+					throw new IllegalArgumentException("Invalid node ID: " + node);
+				}
+			}
+		}
+		localNode = node;
+		pipeTransport = node != null ? transport : null;
+	}
+	
+	@J2SIgnore
+	public static String getLocalNode() {
+		return localNode;
+	}
+	
+	/**
+	 * @return node ID of the server owning the pipe of given key, or null
+	 * if this server is not in a cluster
+	 */
+	@J2SIgnore
+	public static String getPipeNode(String key) {
+		String node = localNode;
+		if (node == null || key == null || key.length() < node.length()) {
+			return null;
+		}
+		return key.substring(0, node.length());
+	}
+	
 	@J2SNative({
 		"var sph = net.sf.j2s.ajax.SimplePipeHelper;",
 		"if (sph.allPipes != null) {",
@@ -150,6 +242,7 @@ public class SimplePipeHelper {
 			synchronized (pipe) {
 				pipe.notifyAll();
 			}
+			helpWaking(pipe);
 		}
 //		if (pipeMap != null) {
 //			if (pipeMap.remove(key) != null && pipe != null) {
@@ -195,71 +288,43 @@ public class SimplePipeHelper {
 	@J2SIgnore
 	public static void pipeIn(String key, SimpleSerializable[] ss) {
 		SimplePipeRunnable pipe = getPipe(key);
-		List<SimpleSerializable> list = pipe != null ? pipe.pipeData : null; //getPipeDataList(key);
-		if (pipe == null || list == null) {
+		if (pipe == null) {
+			IPipeTransport transport = pipeTransport;
+			String node = getPipeNode(key);
+			if (transport != null && node != null && !node.equals(localNode)) {
+				if (!transport.helpForwarding(node, key, ss)) {
+					System.out.println("Failed to forward pipe data to node " + node + "!");
+				}
+				return;
+			}
+		}
+		SimplePipeQueue queue = pipe != null ? pipe.pipeData : null; //getPipeDataList(key);
+		if (pipe == null || queue == null) {
 			System.out.println("There are no pipe listening?!!!!");
 			return; // throw exception?
 		}
 		int v = pipe.getSimpleVersion();
-		synchronized (list) {
-			boolean hasNewPriority = false;
-			for (int i = 0; i < ss.length; i++) {
-				SimpleSerializable s = ss[i];
-				if (v >= 202) {
-					s.setSimpleVersion(v);
-				}
-				if (s instanceof ISimpleCacheable) {
-					ISimpleCacheable c = (ISimpleCacheable) s;
-					if (c.isCached()) {
-						// in buffer and not sent yet
-						continue;
-					} else {
-						int idx = list.indexOf(s);
-						if (idx != -1 && idx >= pipe.getLastBufferedIndex()) {
-							// same object but with updated properties maybe!
-							SimpleSerializable existed = list.get(idx);
-							if (existed instanceof ISimpleCacheable) {
-								ISimpleCacheable ec = (ISimpleCacheable) existed;
-								ec.synchronizeFrom(c);
-							}
-							continue;
-						}
-					}
-					c.setCached(true);
-				}
-				list.add(s);
-				if (!hasNewPriority && s instanceof ISimplePipePriority) {
-					hasNewPriority = true;
-				}
+		int bufferedIndex = pipe.getLastBufferedIndex();
+		boolean hasNewPriority = false;
+		for (int i = 0; i < ss.length; i++) {
+			SimpleSerializable s = ss[i];
+			if (v >= 202) {
+				s.setSimpleVersion(v);
 			}
-			if (hasNewPriority && ss.length > MAX_ITEMS_PER_QUERY) { // 100 by default
-				// sort list!
-				Collections.sort(list, new Comparator<SimpleSerializable>() {
-					
-					public int compare(SimpleSerializable o1, SimpleSerializable o2) {
-						boolean v1 = o1 instanceof ISimplePipePriority;
-						boolean v2 = o2 instanceof ISimplePipePriority;
-						if (v1 && v2) {
-							ISimplePipePriority sp1 = (ISimplePipePriority) o1;
-							ISimplePipePriority sp2 = (ISimplePipePriority) o2;
-							return sp2.getPriority() - sp1.getPriority();
-						} else if (v1) {
-							ISimplePipePriority sp1 = (ISimplePipePriority) o1;
-							return ISimplePipePriority.IMPORTANT - sp1.getPriority();
-						} else if (v2) {
-							ISimplePipePriority sp2 = (ISimplePipePriority) o2;
-							return sp2.getPriority() - ISimplePipePriority.IMPORTANT;
-						}
-						return 0;
-					}
-					
-				});
+			// cached objects are merged by queue
+			if (queue.offer(s, bufferedIndex) && !hasNewPriority && s instanceof ISimplePipePriority) {
+				hasNewPriority = true;
 			}
 		}
+		if (hasNewPriority && ss.length > MAX_ITEMS_PER_QUERY) { // 100 by default
+			// only large prioritized batches are sorted, other data keep piping order
+			queue.sortByPriority();
+		}
 		synchronized (pipe) {
 			// Notify pipe in!
 			pipe.notify();
 		}
+		helpWaking(pipe);
 	}
 
 	@J2SIgnore
@@ -281,6 +346,39 @@ public class SimplePipeHelper {
 		return false;
 	}
 
+	@J2SIgnore
+	static void helpWaking(SimplePipeRunnable pipe) {
+		Set<IPipeWaking> wakers = pipe.wakers;
+		if (wakers != null) {
+			for (Iterator<IPipeWaking> itr = wakers.iterator(); itr.hasNext();) {
+				itr.next().helpWaking(pipe);
+			}
+		}
+	}
+
+	/**
+	 * Add waker of an asynchronous pipe connection. A pipe may have more
+	 * than one connection at the same time, e.g. a new query arrives before
+	 * the last one is closed, and all of them are woken up.
+	 */
+	@J2SIgnore
+	static void addWaking(SimplePipeRunnable pipe, IPipeWaking waker) {
+		synchronized (pipe) {
+			if (pipe.wakers == null) {
+				pipe.wakers = new CopyOnWriteArraySet<IPipeWaking>();
+			}
+		}
+		pipe.wakers.add(waker);
+	}
+
+	@J2SIgnore
+	static void removeWaking(SimplePipeRunnable pipe, IPipeWaking waker) {
+		Set<IPipeWaking> wakers = pipe.wakers;
+		if (wakers != null) {
+			wakers.remove(waker);
+		}
+	}
+
 	@J2SIgnore
 	static void helpClosing(SimplePipeRunnable pipe) {
 		if (pipe.closer != null) {
@@ -295,6 +393,7 @@ public class SimplePipeHelper {
 		StringBuilder builder = new StringBuilder();
 		builder.append("Pipe monitor<br />\r\n");
 		builder.append("Totoal pipe count: " + pipes.size() + "<br />\r\n");
+		builder.append("Expiry lag: " + getExpiryLag() + "ms, destroy queue depth: " + getDestroyQueueDepth() + "<br />\r\n");
 //		buffer.append("Total pipe map count: " + pipeMap.size() + "<br />\r\n");
 		int i = 0;
 		for (Iterator<SimplePipeRunnable> itr = pipes.values().iterator(); itr.hasNext();) {
@@ -328,6 +427,7 @@ public class SimplePipeHelper {
 		StringBuilder builder = new StringBuilder();
 		builder.append("Pipe monitor<br />\r\n");
 		builder.append("Totoal pipe count: " + pipes.size() + "<br />\r\n");
+		builder.append("Expiry lag: " + getExpiryLag() + "ms, destroy queue depth: " + getDestroyQueueDepth() + "<br />\r\n");
 //		buffer.append("Total pipe map count: " + pipeMap.size() + "<br />\r\n");
 		int i = 0;
 		for (Iterator<SimplePipeRunnable> itr = pipes.values().iterator(); itr.hasNext();) {
@@ -362,54 +462,53 @@ public class SimplePipeHelper {
 		SimplePipeHelper.monitoringInterval = monitoringInterval;
 	}
 
+	/*
+	 * Check the given pipe's live status, it is called by monitor wheel when
+	 * the pipe is due.
+	 * Return milliseconds to next checking, or -1 if pipe is removed.
+	 */
 	@J2SIgnore
-	private static void monitoringAllPipes() {
-		while (true) {
-			try {
-				Thread.sleep(monitoringInterval);
-			} catch (InterruptedException e) {
+	private static long checkPipeStatus(SimplePipeRunnable pipe, long now) {
+		String key = pipe.pipeKey;
+		if (key == null || pipes.get(key) != pipe) {
+			pipe.pipeScheduled.set(false);
+			return -1; // removed or destroyed
+		}
+		if (!pipe.pipeManaged) {
+			return monitoringInterval;
+		}
+		if (!pipe.isPipeLive() || (pipe instanceof CompoundPipeRunnable
+				&& ((CompoundPipeRunnable) pipe).isEmpty()
+				&& now - ((CompoundPipeRunnable) pipe).lastSetup > 30000)) {
+			//System.out.println("Pipe " + pipe.pipeKey + " live status is " + pipe.isPipeLive());
+			long closing = pipe.lastLiveDetected + pipe.pipeWaitClosingInterval() - now;
+			if (closing < 0) {
+				asyncDestroyPipe(pipe);
+				if (key.length() > 0) {
+					removePipe(key);
+				}
+				pipe.pipeScheduled.set(false);
+				return -1;
 			}
-			Object[] allPipes = pipes.values().toArray();
-			for (int i = 0; i < allPipes.length; i++) {
-			    final SimplePipeRunnable pipe = (SimplePipeRunnable) allPipes[i];
-			    if (!pipe.pipeManaged) {
-			    	continue;
-			    }
-				long now = System.currentTimeMillis();
-			    try {
-					if (!pipe.isPipeLive() || (pipe instanceof CompoundPipeRunnable
-							&& ((CompoundPipeRunnable) pipe).isEmpty()
-							&& now - ((CompoundPipeRunnable) pipe).lastSetup > 30000)) {
-						//System.out.println("Pipe " + pipe.pipeKey + " live status is " + pipe.isPipeLive());
-                        if (now - pipe.lastLiveDetected > pipe.pipeWaitClosingInterval()) {
-                        	String pipeKey = pipe.pipeKey;
-                        	asyncDestroyPipe(pipe);
-                        	if (pipeKey != null && pipeKey.length() > 0) {
-                        		removePipe(pipeKey);
-                        	}
-                        }
-					} else {
-						if (pipe instanceof CompoundPipeRunnable) {
-							CompoundPipeRunnable cp = (CompoundPipeRunnable) pipe;
-							for (int j = 0; j < cp.pipes.length; j++) {
-								CompoundPipeSession ps = cp.pipes[j];
-								if (ps == null) {
-									continue;
-								}
-								if (ps.isPipeLive()) {
-									ps.lastLiveDetected = now;
-								} else if (now - ps.lastLiveDetected > SimplePipeRequest.pipeLiveNotifyInterval * 3 + monitoringInterval + ps.pipeWaitClosingInterval()) {
-		                        	asyncDestroyPipe(ps);
-								}
-							}
-						}
-					    pipe.lastLiveDetected = now;
-					}
-            	} catch (Throwable e) {
-            		e.printStackTrace();
-            	}
+			// check again when it is time to close the pipe
+			return Math.min(monitoringInterval, closing + 1);
+		}
+		if (pipe instanceof CompoundPipeRunnable) {
+			CompoundPipeRunnable cp = (CompoundPipeRunnable) pipe;
+			for (int j = 0; j < cp.pipes.length; j++) {
+				CompoundPipeSession ps = cp.pipes[j];
+				if (ps == null) {
+					continue;
+				}
+				if (ps.isPipeLive()) {
+					ps.lastLiveDetected = now;
+				} else if (now - ps.lastLiveDetected > SimplePipeRequest.pipeLiveNotifyInterval * 3 + monitoringInterval + ps.pipeWaitClosingInterval()) {
+					asyncDestroyPipe(ps);
+				}
 			}
 		}
+		pipe.lastLiveDetected = now;
+		return monitoringInterval;
 	}
 	
 	@J2SIgnore
@@ -422,6 +521,7 @@ public class SimplePipeHelper {
 				e1.printStackTrace();
 			}
 			if (pipe != null) {
+				destroyingPipes.remove(pipe);
 				//System.out.println("Killing pipe " + pipe + " :// " + System.currentTimeMillis());
     			try {
     				if (pipe.closer != null) {
@@ -442,7 +542,7 @@ public class SimplePipeHelper {
 	@J2SIgnore
 	static void asyncDestroyPipe(final SimplePipeRunnable pipe) {
 		//System.out.println("To destroy pipe " + pipe);
-		if (!toBeDestroyedPipes.contains(pipe)) {
+		if (destroyingPipes.add(pipe)) {
 			toBeDestroyedPipes.offer(pipe);
 		}
 		/*
@@ -467,14 +567,23 @@ public class SimplePipeHelper {
 	static void monitoringPipe(SimplePipeRunnable pipe) {
 		long now = System.currentTimeMillis();
 		pipe.lastLiveDetected = now;
+		// only the caller which sets it schedules, so the pipe is in the wheel once
+		if (pipe.pipeScheduled.compareAndSet(false, true)) {
+			monitorWheel.schedule(pipe, monitoringInterval);
+		}
 		if (monitored) {
 			return;
 		}
-		monitored = true;
+		synchronized (SimplePipeHelper.class) {
+			if (monitored) {
+				return;
+			}
+			monitored = true;
+		}
 		
 		Thread monitorThread = new Thread(new Runnable() {
 			public void run() {
-				monitoringAllPipes();
+				monitorWheel.run();
 			}
 		}, "Simple Pipe Managed Session Monitor");
 		monitorThread.setDaemon(true);
@@ -489,4 +598,29 @@ public class SimplePipeHelper {
 		killThread.start();
 	}
 	
+	/**
+	 * @return number of registered pipes
+	 */
+	@J2SIgnore
+	public static int getPipeCount() {
+		return pipes.size();
+	}
+	
+	/**
+	 * @return the maximum lag in milliseconds between pipes' due time of
+	 * live status checking and the actual checking, of the last monitor tick
+	 */
+	@J2SIgnore
+	public static long getExpiryLag() {
+		return monitorWheel.getExpiryLag();
+	}
+	
+	/**
+	 * @return number of pipes waiting to be destroyed
+	 */
+	@J2SIgnore
+	public static int getDestroyQueueDepth() {
+		return toBeDestroyedPipes.size();
+	}
+	
 }
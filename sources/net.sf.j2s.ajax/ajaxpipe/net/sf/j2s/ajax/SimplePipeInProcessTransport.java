@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Pipe transport between nodes in the same process, mainly for testing.
+ * 
+ * Pipe data is serialized and deserialized as if it is sent over network,
+ * so nodes never share pipe data objects.
+ */
+@J2SIgnore
+public class SimplePipeInProcessTransport implements SimplePipeHelper.IPipeTransport {
+
+	private Map<String, SimplePipeHelper.IPipeTransport> nodes = new ConcurrentHashMap<String, SimplePipeHelper.IPipeTransport>();
+	
+	/**
+	 * Add a node, whose pipe data is received by the given receiver. 
+	 * Receiver of a real node should pipe data in by
+	 * {@link SimplePipeHelper#pipeIn(String, SimpleSerializable[])}.
+	 */
+	public void addNode(String node, SimplePipeHelper.IPipeTransport receiver) {
+		nodes.put(node, receiver);
+	}
+	
+	public void removeNode(String node) {
+		nodes.remove(node);
+	}
+	
+	public boolean helpForwarding(String node, String key, SimpleSerializable[] objs) {
+		SimplePipeHelper.IPipeTransport receiver = nodes.get(node);
+		if (receiver == null) {
+			return false;
+		}
+		SimpleSerializable[] copies = new SimpleSerializable[objs.length];
+		for (int i = 0; i < objs.length; i++) {
+			byte[] bytes = objs[i].serializeBytes();
+			SimpleSerializable ss = SimpleSerializable.parseInstance(bytes);
+			if (ss == null || ss == SimpleSerializable.UNKNOWN || ss == SimpleSerializable.ERROR
+					|| !ss.deserializeBytes(bytes)) {
+				return false;
+			}
+			copies[i] = ss;
+		}
+		return receiver.helpForwarding(node, key, copies);
+	}
+
+}
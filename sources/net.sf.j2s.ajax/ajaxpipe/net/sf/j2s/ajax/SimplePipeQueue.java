@@ -0,0 +1,415 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Queue of pipe data waiting to be sent to client.
+ *
+ * Pipe data used to be kept in a LinkedList, which was locked by both
+ * SimplePipeHelper#pipeIn and the pipe servlet. Each ISimpleCacheable object
+ * was looked up by List#indexOf.
+ *
+ * This queue is a lock-free FIFO queue, so producers never block each other
+ * or the pipe writer. Objects are polled in piping order, unless the queue
+ * is sorted by #sortByPriority. Queued ISimpleCacheable objects are indexed
+ * together with their positions in the queue, so an updated object is
+ * merged into the queued one in O(1).
+ *
+ * Queue also implements List for existing codes. #get(0) and #remove(0) are
+ * O(1), other methods with index need to walk through the queue.
+ */
+@J2SIgnore
+public class SimplePipeQueue extends AbstractList<SimpleSerializable> {
+
+	private static class Node {
+
+		final SimpleSerializable ss;
+
+		/**
+		 * Piping sequence of this node, assigned on appending.
+		 */
+		volatile long sequence = Long.MAX_VALUE;
+
+		/**
+		 * Set, with the node locked, once the node is polled or removed.
+		 * Queued object is only synchronized with the node locked and not
+		 * polled yet, so a synchronized update is always sent.
+		 */
+		boolean polled;
+
+		Node(SimpleSerializable ss) {
+			this.ss = ss;
+		}
+
+	}
+
+	private static Comparator<Node> priorityComparator = new Comparator<Node>() {
+
+		public int compare(Node n1, Node n2) {
+			return priorityOf(n2.ss) - priorityOf(n1.ss);
+		}
+
+	};
+
+	private volatile ConcurrentLinkedQueue<Node> nodes = new ConcurrentLinkedQueue<Node>();
+
+	/**
+	 * Shared by piping and polling, exclusive for sorting.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Sequence of next appended node.
+	 */
+	private final AtomicLong appended = new AtomicLong();
+
+	/**
+	 * Number of removed nodes. Position of a queued node is its sequence
+	 * minus this number.
+	 */
+	private final AtomicLong removed = new AtomicLong();
+
+	/**
+	 * Queued ISimpleCacheable objects, by equality, the same as List#indexOf.
+	 */
+	private final ConcurrentHashMap<SimpleSerializable, Node> cacheables = new ConcurrentHashMap<SimpleSerializable, Node>();
+
+	static int priorityOf(SimpleSerializable ss) {
+		if (ss instanceof ISimplePipePriority) {
+			return ((ISimplePipePriority) ss).getPriority();
+		}
+		return ISimplePipePriority.IMPORTANT;
+	}
+
+	/**
+	 * Pipe given object into queue.
+	 *
+	 * An ISimpleCacheable object which is already queued and not sent yet is
+	 * skipped. If there is another queued object equal to given one, given
+	 * object is synchronized into the queued one instead.
+	 *
+	 * @param ss
+	 * @return whether given object is queued or not
+	 */
+	public boolean offer(SimpleSerializable ss) {
+		return offer(ss, 0);
+	}
+
+	/**
+	 * Pipe given object into queue.
+	 *
+	 * @param ss
+	 * @param bufferedIndex objects before this index are buffered and sent,
+	 * and will not be synchronized from given object
+	 * @return whether given object is queued or not
+	 * @see SimplePipeRunnable#getLastBufferedIndex()
+	 */
+	public boolean offer(SimpleSerializable ss, int bufferedIndex) {
+		if (ss == null) {
+			return false;
+		}
+		Node node = new Node(ss);
+		if (ss instanceof ISimpleCacheable) {
+			ISimpleCacheable c = (ISimpleCacheable) ss;
+			if (c.isCached()) {
+				// in buffer and not sent yet
+				return false;
+			}
+			while (true) {
+				Node existed = cacheables.putIfAbsent(ss, node);
+				if (existed == null) {
+					break;
+				}
+				synchronized (existed) {
+					if (!existed.polled) {
+						if (existed.ss == ss) {
+							return false; // queued by another thread
+						}
+						if (bufferedIndex > 0 && existed.sequence - removed.get() < bufferedIndex) {
+							if (cacheables.replace(ss, existed, node)) {
+								break;
+							}
+							continue;
+						}
+						// same object but with updated properties maybe!
+						if (existed.ss instanceof ISimpleCacheable) {
+							ISimpleCacheable ec = (ISimpleCacheable) existed.ss;
+							ec.synchronizeFrom(c);
+						}
+						return false;
+					}
+				}
+				// existed object is polled out, append given object again
+				cacheables.remove(ss, existed);
+			}
+			c.setCached(true);
+		}
+		append(node);
+		return true;
+	}
+
+	/**
+	 * Poll head object.
+	 *
+	 * @return head object, or null if queue is empty
+	 */
+	public SimpleSerializable poll() {
+		Node node;
+		lock.readLock().lock();
+		try {
+			node = nodes.poll();
+			if (node == null) {
+				return null;
+			}
+			removed.incrementAndGet();
+			count.decrementAndGet();
+			uncache(node);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return node.ss;
+	}
+
+	/**
+	 * Peek head object.
+	 *
+	 * @return head object, or null if queue is empty
+	 */
+	public SimpleSerializable peek() {
+		Node node = nodes.peek();
+		return node != null ? node.ss : null;
+	}
+
+	/**
+	 * Sort queued objects by their priorities, higher priority first, keeping
+	 * piping order of objects of the same priority. Objects not implementing
+	 * ISimplePipePriority are of ISimplePipePriority#IMPORTANT.
+	 *
+	 * Piping and polling wait until sorting is done.
+	 */
+	public void sortByPriority() {
+		lock.writeLock().lock();
+		try {
+			List<Node> list = new ArrayList<Node>(nodes);
+			Collections.sort(list, priorityComparator);
+			ConcurrentLinkedQueue<Node> sorted = new ConcurrentLinkedQueue<Node>();
+			long sequence = removed.get();
+			for (Iterator<Node> itr = list.iterator(); itr.hasNext();) {
+				Node node = itr.next();
+				node.sequence = sequence++;
+				sorted.offer(node);
+			}
+			appended.set(sequence);
+			nodes = sorted;
+			modCount++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Append node to the tail, without checking cached status.
+	 */
+	private void append(Node node) {
+		lock.readLock().lock();
+		try {
+			node.sequence = appended.getAndIncrement();
+			nodes.offer(node);
+			count.incrementAndGet();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void uncache(Node node) {
+		synchronized (node) {
+			node.polled = true;
+		}
+		if (node.ss instanceof ISimpleCacheable) {
+			cacheables.remove(node.ss, node);
+			((ISimpleCacheable) node.ss).setCached(false);
+		}
+	}
+
+	/**
+	 * Append given object without checking ISimpleCacheable status.
+	 * Use #offer for piping.
+	 */
+	@Override
+	public boolean add(SimpleSerializable ss) {
+		if (ss == null) {
+			return false;
+		}
+		Node node = new Node(ss);
+		if (ss instanceof ISimpleCacheable) {
+			cacheables.put(ss, node);
+		}
+		append(node);
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public SimpleSerializable get(int index) {
+		if (index == 0) {
+			SimpleSerializable ss = peek();
+			if (ss != null) {
+				return ss;
+			}
+		} else if (index > 0) {
+			int i = 0;
+			for (Iterator<SimpleSerializable> itr = iterator(); itr.hasNext();) {
+				SimpleSerializable ss = itr.next();
+				if (i++ == index) {
+					return ss;
+				}
+			}
+		}
+		throw new IndexOutOfBoundsException("Index: " + index);
+	}
+
+	@Override
+	public SimpleSerializable remove(int index) {
+		if (index == 0) {
+			SimpleSerializable ss = poll();
+			if (ss != null) {
+				modCount++;
+				return ss;
+			}
+		} else if (index > 0) {
+			int i = 0;
+			for (Iterator<SimpleSerializable> itr = iterator(); itr.hasNext();) {
+				SimpleSerializable ss = itr.next();
+				if (i++ == index) {
+					itr.remove();
+					return ss;
+				}
+			}
+		}
+		throw new IndexOutOfBoundsException("Index: " + index);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		int i = 0;
+		for (Iterator<SimpleSerializable> itr = iterator(); itr.hasNext();) {
+			SimpleSerializable ss = itr.next();
+			if (o == null ? ss == null : o.equals(ss)) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (o instanceof ISimpleCacheable) {
+			return cacheables.containsKey(o);
+		}
+		return indexOf(o) != -1;
+	}
+
+	@Override
+	public void clear() {
+		while (poll() != null) {
+			// polled objects are uncached
+		}
+		modCount++;
+	}
+
+	/**
+	 * Size may be approximate while other threads are piping or polling.
+	 */
+	@Override
+	public int size() {
+		int size = count.get();
+		return size < 0 ? 0 : size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	/**
+	 * Iterator is weakly consistent, in polling order.
+	 */
+	@Override
+	public Iterator<SimpleSerializable> iterator() {
+		return new Iterator<SimpleSerializable>() {
+
+			private ConcurrentLinkedQueue<Node> queue = nodes;
+
+			private Iterator<Node> current = queue.iterator();
+
+			private Node last;
+
+			public boolean hasNext() {
+				return current.hasNext();
+			}
+
+			public SimpleSerializable next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				last = current.next();
+				return last.ss;
+			}
+
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				lock.readLock().lock();
+				try {
+					if (queue != nodes) {
+						throw new ConcurrentModificationException();
+					}
+					if (!queue.remove(last)) {
+						last = null;
+						return; // polled by another thread
+					}
+					// objects before removed one are counted one position closer
+					// to head, so they may be taken as buffered but never as not
+					removed.incrementAndGet();
+					count.decrementAndGet();
+					uncache(last);
+				} finally {
+					lock.readLock().unlock();
+				}
+				last = null;
+				modCount++;
+			}
+
+		};
+	}
+
+}
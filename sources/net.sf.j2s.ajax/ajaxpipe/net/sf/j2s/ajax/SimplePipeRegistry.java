@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Server side registry of pipes by pipe key.
+ *
+ * Pipes are kept in shards of maps, so registering, removing and looking
+ * up pipes of different shards never contend, and the count of pipes is
+ * kept without summing up all maps.
+ */
+@J2SIgnore
+final class SimplePipeRegistry {
+
+	private final List<ConcurrentHashMap<String, SimplePipeRunnable>> shards;
+
+	private final int mask;
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param shardCount will be rounded up to power of 2
+	 */
+	SimplePipeRegistry(int shardCount) {
+		int n = 1;
+		while (n < shardCount) {
+			n <<= 1;
+		}
+		shards = new ArrayList<ConcurrentHashMap<String, SimplePipeRunnable>>(n);
+		for (int i = 0; i < n; i++) {
+			shards.add(new ConcurrentHashMap<String, SimplePipeRunnable>(16));
+		}
+		mask = n - 1;
+	}
+
+	private ConcurrentHashMap<String, SimplePipeRunnable> shardOf(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return shards.get(h & mask);
+	}
+
+	SimplePipeRunnable get(String key) {
+		return shardOf(key).get(key);
+	}
+
+	SimplePipeRunnable put(String key, SimplePipeRunnable pipe) {
+		SimplePipeRunnable old = shardOf(key).put(key, pipe);
+		if (old == null) {
+			count.incrementAndGet();
+		}
+		return old;
+	}
+
+	/**
+	 * @return existed pipe of the given key, or null if given pipe is put
+	 */
+	SimplePipeRunnable putIfAbsent(String key, SimplePipeRunnable pipe) {
+		SimplePipeRunnable old = shardOf(key).putIfAbsent(key, pipe);
+		if (old == null) {
+			count.incrementAndGet();
+		}
+		return old;
+	}
+
+	SimplePipeRunnable remove(String key) {
+		SimplePipeRunnable old = shardOf(key).remove(key);
+		if (old != null) {
+			count.decrementAndGet();
+		}
+		return old;
+	}
+
+	int size() {
+		return count.get();
+	}
+
+	/**
+	 * @return snapshot of all pipes
+	 */
+	List<SimplePipeRunnable> values() {
+		List<SimplePipeRunnable> all = new ArrayList<SimplePipeRunnable>(size() + 16);
+		for (int i = 0; i < shards.size(); i++) {
+			all.addAll(shards.get(i).values());
+		}
+		return all;
+	}
+
+}
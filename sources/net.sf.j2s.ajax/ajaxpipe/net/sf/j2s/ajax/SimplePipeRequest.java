@@ -947,32 +947,24 @@ window.setTimeout (fun, spr.pipeLiveNotifyInterval);
 	 */
 	static void pipeContinuum(final SimplePipeRunnable runnable) {
 		final String pipeKey = runnable.pipeKey;
+		final SimplePipeFrameDecoder decoder = new SimplePipeFrameDecoder();
 		HttpRequest pipeRequest = getRequestWithMonitor(new HttpRequest.IXHRReceiving() {
 			public boolean receiving(ByteArrayOutputStream baos, byte b[], int off, int len) {
 				runnable.updateStatus(true);
 				
-				baos.write(b, off, len);
-				byte[] bytes = baos.toByteArray();
-				int resetIndex = 0;
-				try {
-					resetIndex = parseReceivedBytes(bytes);
-				} catch (RuntimeException e) { // not enough data, invalid simple format, array size too large
-					if (SimpleSerializable.EXCEPTION_NOT_ENOUGH_DATA.equals(e.getMessage())) {
-						return true;
-					}
-					int length = bytes.length;
-					if (length < 1024) {
-						System.out.println("[ERROR]: " + new String(bytes));
-					} else {
-						System.out.println("[ERROR]: " + new String(bytes, 0, 1024) + " ...");
-					}
-					throw e;
-				}
-				if (resetIndex > 0) {
-					baos.reset();
-					if (resetIndex < bytes.length) {
-						baos.write(bytes, resetIndex, bytes.length - resetIndex);
+				// Received bytes are kept by decoder, not by given baos
+				decoder.write(b, off, len);
+				int frame = SimplePipeFrameDecoder.NEED_MORE;
+				while ((frame = decoder.decode()) != SimplePipeFrameDecoder.NEED_MORE) {
+					if (frame == SimplePipeFrameDecoder.FRAME_ERROR) { // invalid simple format, array size too large
+						if (decoder.getPendingSize() < 1024) {
+							System.out.println("[ERROR]: " + decoder.getPendingData(1024));
+						} else {
+							System.out.println("[ERROR]: " + decoder.getPendingData(1024) + " ...");
+						}
+						throw new RuntimeException(SimpleSerializable.EXCEPTION_INVALID_SIMPLE_FORMAT);
 					}
+					dealReceivedFrame(decoder);
 				}
 				return true;
 			}
@@ -1269,6 +1261,42 @@ for (var i = 0; i < iframes.length; i++) {
 		return 0;
 	}
 
+	/**
+	 * Deal the frame decoded by the given decoder, in the same way as
+	 * {@link #parseReceivedBytes(byte[])} does.
+	 * 
+	 * @param decoder
+	 */
+	@J2SIgnore
+	static void dealReceivedFrame(SimplePipeFrameDecoder decoder) {
+		String key = decoder.getKey();
+		SimplePipeRunnable runnable = SimplePipeHelper.getPipe(key);
+		if (runnable == null) { // should not happen
+			return;
+		}
+		if (PIPE_STATUS_DESTROYED == decoder.getStatus()) {
+			if (key.equals(runnable.pipeKey)) {
+				runnable.pipeAlive = false;
+				runnable.pipeClosed();
+			}
+			SimplePipeHelper.removePipe(key);
+			return;
+		}
+		runnable.lastPipeDataReceived = System.currentTimeMillis();
+		SimpleSerializable ss = decoder.getObject();
+		if (ss == null || ss == SimpleSerializable.UNKNOWN) {
+			return;
+		}
+		if (ss instanceof SimplePipeSequence) {
+			long sequence = ((SimplePipeSequence) ss).sequence;
+			if (sequence > runnable.pipeSequence) {
+				runnable.pipeSequence = sequence;
+			}
+		} else {
+			runnable.deal(ss);
+		}
+	}
+
 	/*
 	 * Return the string index from beginning of next SimpleSerializable
 	 * instance.
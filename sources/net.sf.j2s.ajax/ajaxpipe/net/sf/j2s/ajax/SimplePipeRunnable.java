@@ -13,9 +13,9 @@ package net.sf.j2s.ajax;
 import java.lang.reflect.Method;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.sf.j2s.ajax.SimpleRPCRunnable;
 import net.sf.j2s.ajax.SimpleSerializable;
@@ -43,6 +43,9 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 	@J2SIgnore
 	SimplePipeHelper.IPipeClosing closer; // For Java server side
 	
+	@J2SIgnore
+	volatile Set<SimplePipeHelper.IPipeWaking> wakers; // For Java server side's asynchronous pipe connections
+	
 	boolean destroyed;
 	
 	int queryFailedRetries; // >=3 will mark pipe broken
@@ -54,6 +57,9 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 	@J2SIgnore
 	boolean pipeManaged; // For Java server side's monitoring thread
 	
+	@J2SIgnore
+	final AtomicBoolean pipeScheduled = new AtomicBoolean(); // For Java server side's monitoring wheel
+	
 	@J2SIgnore
 	long lastLiveDetected;
 	
@@ -74,7 +80,7 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 	int bufferedIndex; // Index of last buffered object in pipeData, data before this object is sent 
 	
 	@J2SIgnore
-	List<SimpleSerializable> pipeData;
+	SimplePipeQueue pipeData;
 	
 	@J2SIgnore
 	int pipeMode;
@@ -246,34 +252,36 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 		if (anotherPipe == this) {
 			return;
 		}
-		if (anotherPipe != null && anotherPipe.pipeData != null && anotherPipe.pipeData.size() > 0) {
+		SimplePipeQueue anotherData = anotherPipe != null ? anotherPipe.pipeData : null;
+		if (anotherData != null && !anotherData.isEmpty()) {
 			if (pipeData == null) {
-				List<SimpleSerializable> data = new LinkedList<SimpleSerializable>();
+				SimplePipeQueue data = new SimplePipeQueue();
 				synchronized (this) {
 					if (pipeData == null) {
 						pipeData = data;
 					}
 				}
 			}
-			synchronized (pipeData) {
-				synchronized (anotherPipe.pipeData) {
-					for (Iterator<SimpleSerializable> itr = anotherPipe.pipeData.iterator(); itr.hasNext();) {
-						SimpleSerializable event = (SimpleSerializable) itr.next();
-						if (event instanceof SimplePipeSequence) {
-							continue;
-						}
-						if (filter != null && filter.accept(event.getClass().getName())) {
-							pipeData.add(event);
-						}
-					}
-					if (clearOriginalData) {
-						anotherPipe.pipeData.clear();
-					}
+			SimplePipeQueue data = pipeData;
+			if (data == null) {
+				return; // cleared already
+			}
+			for (Iterator<SimpleSerializable> itr = anotherData.iterator(); itr.hasNext();) {
+				SimpleSerializable event = (SimpleSerializable) itr.next();
+				if (event instanceof SimplePipeSequence) {
+					continue;
 				}
+				if (filter != null && filter.accept(event.getClass().getName())) {
+					data.add(event);
+				}
+			}
+			if (clearOriginalData) {
+				anotherData.clear();
 			}
 			synchronized (this) {
 				this.notifyAll();
 			}
+			SimplePipeHelper.helpWaking(this);
 		}
 	}
 	
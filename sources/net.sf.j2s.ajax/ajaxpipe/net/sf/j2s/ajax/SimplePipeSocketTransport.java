@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Pipe transport over sockets. Each node listens on a port, and pipe data
+ * is sent to other nodes over persistent connections.
+ * 
+ * Each frame of pipe data is: pipe key in modified UTF-8, count of objects
+ * and each object's serialized bytes prefixed with its length. Received
+ * pipe data is piped in by {@link SimplePipeHelper#pipeIn(String, SimpleSerializable[])}.
+ */
+@J2SIgnore
+public class SimplePipeSocketTransport implements SimplePipeHelper.IPipeTransport {
+
+	public static int MAX_OBJECTS_PER_FRAME = 10000;
+	
+	public static int MAX_OBJECT_SIZE = 0x1000000; // 16M
+	
+	private static class Peer {
+		
+		InetSocketAddress address;
+		
+		Socket socket;
+		
+		DataOutputStream out;
+		
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+		
+		void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+				socket = null;
+				out = null;
+			}
+		}
+		
+	}
+	
+	private SimpleFilter filter;
+	
+	private Map<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+	
+	private ServerSocket serverSocket;
+	
+	private List<Socket> acceptedSockets = new ArrayList<Socket>();
+	
+	private volatile boolean closed;
+	
+	/**
+	 * @param filter Filter of received classes, null for all classes
+	 */
+	public SimplePipeSocketTransport(SimpleFilter filter) {
+		this.filter = filter;
+	}
+	
+	public void addNode(String node, String host, int port) {
+		Peer old = peers.put(node, new Peer(new InetSocketAddress(host, port)));
+		if (old != null) {
+			synchronized (old) {
+				old.close();
+			}
+		}
+	}
+	
+	public void removeNode(String node) {
+		Peer old = peers.remove(node);
+		if (old != null) {
+			synchronized (old) {
+				old.close();
+			}
+		}
+	}
+	
+	/**
+	 * Listen on the loopback address for pipe data from other nodes.
+	 * 
+	 * @param port 0 for any free port
+	 * @return port listened on
+	 * @throws IOException
+	 */
+	public int listen(int port) throws IOException {
+		return listen(InetAddress.getByName(null), port);
+	}
+	
+	/**
+	 * Listen on the given address for pipe data from other nodes. Only
+	 * nodes of the cluster should be able to connect to this address.
+	 * 
+	 * @param address
+	 * @param port 0 for any free port
+	 * @return port listened on
+	 * @throws IOException
+	 */
+	public synchronized int listen(InetAddress address, int port) throws IOException {
+		if (serverSocket != null) {
+			throw new IllegalStateException("Transport is already listening on port " + serverSocket.getLocalPort());
+		}
+		final ServerSocket server = new ServerSocket(port, 50, address);
+		serverSocket = server;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				while (!closed) {
+					try {
+						final Socket socket = server.accept();
+						synchronized (acceptedSockets) {
+							acceptedSockets.add(socket);
+						}
+						Thread receiver = new Thread(new Runnable() {
+							public void run() {
+								receiving(socket);
+							}
+						}, "Simple Pipe Transport Receiver");
+						receiver.setDaemon(true);
+						receiver.start();
+					} catch (IOException e) {
+						if (!closed) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		}, "Simple Pipe Transport Acceptor");
+		thread.setDaemon(true);
+		thread.start();
+		return server.getLocalPort();
+	}
+	
+	private void receiving(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+			while (!closed) {
+				String key = in.readUTF();
+				int count = in.readInt();
+				if (count < 0 || count > MAX_OBJECTS_PER_FRAME) {
+					throw new IOException("Invalid pipe data count: " + count);
+				}
+				SimpleSerializable[] objs = new SimpleSerializable[count];
+				int received = 0;
+				for (int i = 0; i < count; i++) {
+					int length = in.readInt();
+					if (length <= 0 || length > MAX_OBJECT_SIZE) {
+						throw new IOException("Invalid pipe data size: " + length);
+					}
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					SimpleSerializable ss = SimpleSerializable.parseInstance(bytes, filter);
+					if (ss == null || ss == SimpleSerializable.UNKNOWN || ss == SimpleSerializable.ERROR
+							|| !ss.deserializeBytes(bytes)) {
+						System.out.println("Invalid pipe data for pipe " + key + " is dropped!");
+						continue;
+					}
+					objs[received++] = ss;
+				}
+				if (received < count) {
+					SimpleSerializable[] validObjs = new SimpleSerializable[received];
+					System.arraycopy(objs, 0, validObjs, 0, received);
+					objs = validObjs;
+				}
+				if (received > 0) {
+					SimplePipeHelper.pipeIn(key, objs);
+				}
+			}
+		} catch (EOFException e) {
+			// peer is closed
+		} catch (IOException e) {
+			if (!closed) {
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+			synchronized (acceptedSockets) {
+				acceptedSockets.remove(socket);
+			}
+		}
+	}
+	
+	public boolean helpForwarding(String node, String key, SimpleSerializable[] objs) {
+		Peer peer = peers.get(node);
+		if (peer == null || closed) {
+			return false;
+		}
+		byte[][] frame = new byte[objs.length][];
+		for (int i = 0; i < objs.length; i++) {
+			frame[i] = objs[i].serializeBytes();
+		}
+		synchronized (peer) {
+			// retry once with a new connection if the old one is broken
+			for (int i = 0; i < 2; i++) {
+				try {
+					if (peer.socket == null) {
+						Socket socket = new Socket();
+						socket.setTcpNoDelay(true);
+						socket.connect(peer.address, 5000);
+						peer.socket = socket;
+						peer.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+					}
+					DataOutputStream out = peer.out;
+					out.writeUTF(key);
+					out.writeInt(frame.length);
+					for (int j = 0; j < frame.length; j++) {
+						out.writeInt(frame[j].length);
+						out.write(frame[j]);
+					}
+					out.flush();
+					return true;
+				} catch (IOException e) {
+					peer.close();
+					if (i > 0) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Stop listening and close all connections.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (serverSocket != null) {
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+			}
+		}
+		synchronized (acceptedSockets) {
+			for (int i = 0; i < acceptedSockets.size(); i++) {
+				try {
+					acceptedSockets.get(i).close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+			}
+			acceptedSockets.clear();
+		}
+		for (Peer peer : peers.values()) {
+			synchronized (peer) {
+				peer.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Hashed wheel timer for checking pipes' live status.
+ *
+ * Each pipe is checked at its own due time, instead of checking all pipes
+ * every monitoring interval. Each tick only visits the bucket of pipes
+ * hashed into that tick, so the cost of a tick is proportional to the pipes
+ * which are due, and checks are spread over the interval.
+ */
+@J2SIgnore
+final class SimplePipeTimerWheel {
+
+	static interface IPipeChecking {
+		/**
+		 * @return milliseconds to next checking, or -1 to stop checking
+		 */
+		public long check(SimplePipeRunnable pipe, long now);
+	}
+
+	private static class Timeout {
+
+		final SimplePipeRunnable pipe;
+
+		final long deadline;
+
+		Timeout(SimplePipeRunnable pipe, long deadline) {
+			this.pipe = pipe;
+			this.deadline = deadline;
+		}
+
+	}
+
+	private final long tickDuration;
+
+	private final List<Queue<Timeout>> buckets;
+
+	private final int mask;
+
+	private final IPipeChecking checker;
+
+	private volatile long tick;
+
+	private volatile long expiryLag;
+
+	private volatile int expiredCount;
+
+	/**
+	 * @param tickDuration milliseconds of a tick
+	 * @param ticksPerWheel will be rounded up to power of 2
+	 * @param checker
+	 */
+	SimplePipeTimerWheel(long tickDuration, int ticksPerWheel, IPipeChecking checker) {
+		int n = 1;
+		while (n < ticksPerWheel) {
+			n <<= 1;
+		}
+		buckets = new ArrayList<Queue<Timeout>>(n);
+		for (int i = 0; i < n; i++) {
+			buckets.add(new ConcurrentLinkedQueue<Timeout>());
+		}
+		mask = n - 1;
+		this.tickDuration = tickDuration;
+		this.checker = checker;
+	}
+
+	/**
+	 * Schedule checking of given pipe after given delay. It is safe to be
+	 * called from any thread.
+	 */
+	void schedule(SimplePipeRunnable pipe, long delay) {
+		long deadline = System.currentTimeMillis() + (delay > 0 ? delay : 0);
+		// round up, so pipe is never checked before its deadline
+		long t = (deadline + tickDuration - 1) / tickDuration;
+		Timeout timeout = new Timeout(pipe, deadline);
+		while (true) {
+			long next = tick + 1;
+			if (t < next) {
+				t = next; // the current tick's bucket may be visited already
+			}
+			Queue<Timeout> bucket = buckets.get((int) (t & mask));
+			bucket.offer(timeout);
+			if (tick < t || !bucket.remove(timeout)) {
+				// bucket will be visited after offering, or is being visited
+				return;
+			}
+			// wheel ticks into the bucket while offering, try next tick
+			// instead of waiting for a whole round of the wheel
+		}
+	}
+
+	/**
+	 * Run ticks forever. Should be run in a dedicated thread.
+	 */
+	void run() {
+		tick = System.currentTimeMillis() / tickDuration;
+		List<Timeout> expired = new ArrayList<Timeout>();
+		List<Timeout> later = new ArrayList<Timeout>();
+		while (true) {
+			long tickTime = (tick + 1) * tickDuration;
+			long sleeping = tickTime - System.currentTimeMillis();
+			if (sleeping > 0) {
+				try {
+					Thread.sleep(sleeping);
+				} catch (InterruptedException e) {
+				}
+				continue;
+			}
+			tick++;
+			Queue<Timeout> bucket = buckets.get((int) (tick & mask));
+			Timeout timeout = null;
+			while ((timeout = bucket.poll()) != null) {
+				if (timeout.deadline <= tickTime) {
+					expired.add(timeout);
+				} else {
+					later.add(timeout); // in later rounds
+				}
+			}
+			for (int i = 0; i < later.size(); i++) {
+				bucket.offer(later.get(i));
+			}
+			later.clear();
+			long now = System.currentTimeMillis();
+			long lag = 0;
+			for (int i = 0; i < expired.size(); i++) {
+				timeout = expired.get(i);
+				if (now - timeout.deadline > lag) {
+					lag = now - timeout.deadline;
+				}
+				long next = -1;
+				try {
+					next = checker.check(timeout.pipe, now);
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+				if (next >= 0) {
+					schedule(timeout.pipe, next);
+				}
+			}
+			expiredCount = expired.size();
+			expiryLag = lag;
+			expired.clear();
+		}
+	}
+
+	/**
+	 * @return the maximum lag in milliseconds between pipes' deadlines and
+	 * their checkings, of the last tick
+	 */
+	long getExpiryLag() {
+		return expiryLag;
+	}
+
+	/**
+	 * @return number of pipes checked in the last tick
+	 */
+	int getExpiredCount() {
+		return expiredCount;
+	}
+
+}
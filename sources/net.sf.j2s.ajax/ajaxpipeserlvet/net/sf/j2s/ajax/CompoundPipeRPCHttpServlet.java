@@ -11,8 +11,8 @@ public class CompoundPipeRPCHttpServlet extends SimplePipeRPCHttpServlet {
 	private static final long serialVersionUID = 1605715722698968061L;
 
 	@Override
-	protected SimpleRPCRunnable getRunnableByRequest(String request) {
-		SimpleRPCRunnable runnable = super.getRunnableByRequest(request);
+	protected SimpleRPCRunnable prepareRunnable(SimpleRPCRunnable runnable) {
+		runnable = super.prepareRunnable(runnable);
 		if (runnable instanceof CompoundPipeSession) {
 			CompoundPipeSession session = (CompoundPipeSession) runnable;
 			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(session.pipeKey);
@@ -12,9 +12,22 @@ package net.sf.j2s.ajax;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -36,6 +49,48 @@ public class SimplePipeHttpServlet extends HttpServlet {
 	protected long pipeScriptBreakout = 1200000; // 20 minutes
 
 	protected int pipeMaxItemsPerQuery = -1; // infinite
+	
+	/*
+	 * Compress pipe data if client accepts. Continuum pipes are flushed
+	 * in compressed stream after each pumping.
+	 */
+	protected boolean pipeCompressing = false;
+
+	/*
+	 * Pipe connections without pipe data are checked in this interval.
+	 */
+	static final long PIPE_LIVE_CHECKING_INTERVAL = 1000;
+
+	static final int MAX_POOLED_BUFFER_SIZE = 65536;
+
+	/*
+	 * Buffers are borrowed by pumping pipe connections only, so there are
+	 * buffers no more than concurrent pumpings.
+	 */
+	private Queue<PipeBuffer> bufferPool = new ConcurrentLinkedQueue<PipeBuffer>();
+
+	/*
+	 * For asynchronous mode, null if asynchronous mode is not enabled.
+	 */
+	protected ExecutorService pipeExecutor;
+
+	protected ScheduledExecutorService pipeTimer;
+
+	/*
+	 * Request of current #doGet, for #doPipe(HttpServletResponse, String,
+	 * char, String), which is still the entry point for subclasses.
+	 */
+	private static ThreadLocal<HttpServletRequest> pipeRequest = new ThreadLocal<HttpServletRequest>();
+
+	private static boolean asyncChecked;
+
+	private static Method isAsyncSupportedMethod;
+
+	private static Method startAsyncMethod;
+
+	private static Method setTimeoutMethod;
+
+	private static Method completeMethod;
 
 	/*
 	 * Example of web.xml:
@@ -54,6 +109,19 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			<param-name>simple.pipe.max.items.per.query</param-name>
 			<param-value>60</param-value>
 		</init-param>
+		<init-param>
+			<param-name>simple.pipe.async</param-name>
+			<param-value>true</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.pipe.async.threads</param-name>
+			<param-value>4</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.pipe.compress</param-name>
+			<param-value>true</param-value>
+		</init-param>
+		<async-supported>true</async-supported>
     </servlet>
     <servlet-mapping>
         <servlet-name>simplepipe</servlet-name>
@@ -103,6 +171,50 @@ public class SimplePipeHttpServlet extends HttpServlet {
 				e.printStackTrace();
 			}
 		}
+		pipeCompressing = "true".equals(getInitParameter("simple.pipe.compress"));
+		if ("true".equals(getInitParameter("simple.pipe.async"))) {
+			int threads = 4;
+			String threadsStr = getInitParameter("simple.pipe.async.threads");
+			if (threadsStr != null) {
+				try {
+					threads = Integer.parseInt(threadsStr);
+					if (threads <= 0) {
+						threads = 4;
+					}
+				} catch (NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+			int queueSize = 10000;
+			String queueStr = getInitParameter("simple.pipe.async.queue");
+			if (queueStr != null) {
+				try {
+					queueSize = Integer.parseInt(queueStr);
+					if (queueSize <= 0) {
+						queueSize = 10000;
+					}
+				} catch (NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+			// no more than the given threads, wakings beyond the queue are rejected and close their connections
+			pipeExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Simple Pipe Async Worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.AbortPolicy());
+			((ThreadPoolExecutor) pipeExecutor).allowCoreThreadTimeOut(true);
+			pipeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Simple Pipe Async Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 		super.init();
 	}
 
@@ -120,7 +232,12 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			type = typeStr.charAt(0);
 		}
 		String domain = req.getParameter(String.valueOf(SimplePipeRequest.FORM_PIPE_DOMAIN));
-		doPipe(resp, key, type, domain);
+		pipeRequest.set(req);
+		try {
+			doPipe(resp, key, type, domain);
+		} finally {
+			pipeRequest.remove();
+		}
 	}
 
 	/**
@@ -144,6 +261,104 @@ public class SimplePipeHttpServlet extends HttpServlet {
 	 */ 
 	protected void doPipe(final HttpServletResponse resp, String key, char type, String domain)
 			throws IOException {
+		doPipe(pipeRequest.get(), resp, key, type, domain);
+	}
+
+	/**
+	 * Pipe with response compressed if request accepts, in asynchronous mode
+	 * if it is enabled and supported by the container, or in blocking mode.
+	 * 
+	 * @see #doPipe(HttpServletResponse, String, char, String)
+	 */
+	protected void doPipe(HttpServletRequest req, final HttpServletResponse resp, String key, char type, String domain)
+			throws IOException {
+		if (req != null && pipeExecutor != null && isAsyncSupported(req)) {
+			doAsyncPipe(req, resp, key, type, domain);
+			return;
+		}
+		PrintWriter writer = startPipe(req, resp, key, type, domain);
+		if (writer == null) {
+			return;
+		}
+		PipeConnection conn = new PipeConnection(key, type, writer);
+		if (SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
+			waitPipe(conn);
+		} // else pips is already closed or in other statuses
+		conn.finish();
+	}
+
+	/*
+	 * Pump pipe data in current thread, waiting for pipe data or time out
+	 * between two pumpings.
+	 */
+	private void waitPipe(PipeConnection conn) {
+		long waiting = -1;
+		while ((waiting = conn.pump()) > 0) {
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(conn.key);
+			if (pipe == null) {
+				continue; // next pumping will break out
+			}
+			synchronized (pipe) {
+				// pipeIn notifies pipe after data is queued, check queue to avoid missing it
+				SimplePipeQueue queue = pipe.pipeData;
+				if (queue != null && queue.isEmpty()) {
+					try {
+						pipe.wait(waiting);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		} // end of while
+	}
+
+	/**
+	 * Pipe in Servlet 3.0's asynchronous mode. Container's thread is returned
+	 * after the first pumping. Pipe data will be written by the pipe executor
+	 * when #pipeIn wakes up the pipe, and heart beats, timeouts and live
+	 * status checking are scheduled by the shared pipe timer, so there is no
+	 * thread waiting for each pipe connection.
+	 * 
+	 * The executor has "simple.pipe.async.threads" threads at most, 4 by
+	 * default. Writing to the response still blocks on slow clients, so
+	 * pumpings of other pipes wait in the executor's queue meanwhile. A waking
+	 * rejected by a full queue, "simple.pipe.async.queue" 10000 by default,
+	 * closes its connection and the client connects again.
+	 * 
+	 * Responses are the same as #doPipe for all pipe types.
+	 */
+	protected void doAsyncPipe(HttpServletRequest req, final HttpServletResponse resp, String key, char type, String domain)
+			throws IOException {
+		PrintWriter writer = startPipe(req, resp, key, type, domain);
+		if (writer == null) {
+			return;
+		}
+		PipeConnection conn = new PipeConnection(key, type, writer);
+		if (!SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
+			conn.finish();
+			return;
+		}
+		Object asyncContext = startAsync(req);
+		if (asyncContext == null) {
+			// fall back to blocking mode
+			waitPipe(conn);
+			conn.finish();
+			return;
+		}
+		conn.asyncContext = asyncContext;
+		SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+		if (pipe != null) {
+			SimplePipeHelper.addWaking(pipe, conn);
+		}
+		conn.start();
+	}
+
+	/*
+	 * Write response headers and leading contents for given pipe type.
+	 * Return null if the request is already responded, e.g. notify requests.
+	 */
+	protected PrintWriter startPipe(HttpServletRequest req, final HttpServletResponse resp, String key, char type, String domain)
+			throws IOException {
 		PrintWriter writer = null;
 		resp.setHeader("Pragma", "no-cache");
 		resp.setHeader("Cache-Control", "no-cache");
@@ -161,7 +376,7 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			writer.write("\", \"");
 			writer.write(updated ? SimplePipeRequest.PIPE_STATUS_OK : SimplePipeRequest.PIPE_STATUS_LOST);
 			writer.write("\");");
-			return;
+			return null;
 		}
 		if (SimplePipeRequest.PIPE_TYPE_SUBDOMAIN_QUERY == type) { // subdomain query
 			resp.setContentType("text/html; charset=UTF-8");
@@ -190,7 +405,7 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			builder.append("</script>\r\n");
 			builder.append("</body></html>\r\n");
 			writer.write(builder.toString());
-			return;
+			return null;
 		}
 		boolean isContinuum = SimplePipeRequest.PIPE_TYPE_CONTINUUM == type;
 		if (isContinuum) {
@@ -199,7 +414,7 @@ public class SimplePipeHttpServlet extends HttpServlet {
 		boolean isScripting = SimplePipeRequest.PIPE_TYPE_SCRIPT == type;
 		if (isScripting) { // iframe
 			resp.setContentType("text/html; charset=UTF-8");
-			writer = resp.getWriter();
+			writer = getPipeWriter(req, resp);
 			StringBuilder builder = new StringBuilder();
 			builder.append("<html><head><title></title></head><body>\r\n");
 			builder.append("<script type=\"text/javascript\">");
@@ -219,136 +434,384 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			} else {
 				resp.setContentType("text/javascript; charset=UTF-8");
 			}
-			writer = resp.getWriter();
+			writer = getPipeWriter(req, resp);
 		}
+		return writer;
+	}
 
+	private PrintWriter getPipeWriter(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String encoding = pipeCompressing && req != null ? SimpleHttpCompression.negotiate(req) : null;
+		if (encoding != null) {
+			return SimpleHttpCompression.getWriter(resp, encoding);
+		}
+		return resp.getWriter();
+	}
+
+	/**
+	 * Buffer for serializing pipe data of one pumping.
+	 */
+	static class PipeBuffer {
+		
+		StringBuilder builder = new StringBuilder(4096);
+		
+		char[] chars = new char[4096];
+		
+		void writeTo(PrintWriter writer) {
+			int length = builder.length();
+			for (int offset = 0; offset < length; offset += chars.length) {
+				int count = Math.min(chars.length, length - offset);
+				builder.getChars(offset, offset + count, chars, 0);
+				writer.write(chars, 0, count);
+			}
+		}
+		
+	}
+	
+	PipeBuffer borrowBuffer() {
+		PipeBuffer buffer = bufferPool.poll();
+		return buffer != null ? buffer : new PipeBuffer();
+	}
+	
+	void releaseBuffer(PipeBuffer buffer) {
+		if (buffer.builder.capacity() > MAX_POOLED_BUFFER_SIZE) {
+			return; // do not keep large buffers
+		}
+		buffer.builder.setLength(0);
+		bufferPool.offer(buffer);
+	}
+	
+	/**
+	 * State of a pipe connection. Each #pump writes out queued pipe data,
+	 * heart beats, and decides whether the connection is kept or not.
+	 */
+	class PipeConnection implements Runnable, SimplePipeHelper.IPipeWaking {
+		
+		String key;
+		
+		char type;
+		
+		PrintWriter writer;
+		
+		boolean isContinuum;
+		
+		boolean isScripting;
+		
 		long lastPipeDataWritten = -1;
+		
 		long beforeLoop = System.currentTimeMillis();
+		
+		long lastLiveDetected = System.currentTimeMillis();
+		
 		int items = 0;
-		if (SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
-			List<SimpleSerializable> list = null;
-			int priority = 0;
-	        long lastLiveDetected = System.currentTimeMillis();
-	        SimplePipeRunnable pipe = null;
-			while ((pipe = SimplePipeHelper.getPipe(key)) != null && (list = pipe.getPipeData()) != null
-					/* && SimplePipeHelper.isPipeLive(key) */ // check it!
-					&& !writer.checkError()) {
-				StringBuilder builder = new StringBuilder();
-				synchronized (list) {
-					int size = list.size();
-					if (size > 0) {
-						boolean live = SimplePipeHelper.isPipeLive(key);
-						for (int i = 0; i < size; i++) {
-							SimpleSerializable ss = null;
-							ss = list.remove(0);
-							if (ss == null) break; // terminating signal
-							if (ss instanceof ISimpleCacheable) {
-								ISimpleCacheable sc = (ISimpleCacheable) ss;
-								sc.setCached(false);
-							}
-							builder.append(output(type, key, ss.serialize()));
-							items++;
-							if (live && pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery
-									&& !isContinuum) {
-								break;
-							}
-							lastPipeDataWritten = System.currentTimeMillis();
-							if (ss instanceof ISimplePipePriority) {
-								ISimplePipePriority spp = (ISimplePipePriority) ss;
-								int p = spp.getPriority();
-								if (p <= 0) {
-									p = ISimplePipePriority.IMPORTANT;
-								}
-								priority += p;
-							} else {
-								priority += ISimplePipePriority.IMPORTANT;
-							}
+		
+		int priority = 0;
+		
+		/*
+		 * For asynchronous mode only
+		 */
+		Object asyncContext;
+		
+		private AtomicInteger wakings = new AtomicInteger();
+		
+		private volatile boolean closed;
+		
+		private ScheduledFuture<?> timeout;
+		
+		PipeConnection(String key, char type, PrintWriter writer) {
+			this.key = key;
+			this.type = type;
+			this.writer = writer;
+			isContinuum = SimplePipeRequest.PIPE_TYPE_CONTINUUM == type;
+			isScripting = SimplePipeRequest.PIPE_TYPE_SCRIPT == type;
+		}
+		
+		/**
+		 * Write out pipe data and heart beat.
+		 * 
+		 * @return milliseconds to wait before next pumping, or -1 if pipe
+		 * connection should be closed
+		 */
+		long pump() {
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+			SimplePipeQueue queue = pipe != null ? pipe.pipeData : null;
+			if (queue == null /* || !SimplePipeHelper.isPipeLive(key) */ // check it!
+					|| writer.checkError()) {
+				return -1;
+			}
+			PipeBuffer buffer = null;
+			int size = queue.size();
+			if (size > 0) {
+				// all items are serialized into one pooled buffer, without strings for each item
+				buffer = borrowBuffer();
+				boolean live = SimplePipeHelper.isPipeLive(key);
+				for (int i = 0; i < size; i++) {
+					// polling does not block producers, cached status is reset by queue
+					SimpleSerializable ss = queue.poll();
+					if (ss == null) break; // drained by others
+					output(buffer.builder, type, key, ss);
+					items++;
+					if (live && pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery
+							&& !isContinuum) {
+						break;
+					}
+					lastPipeDataWritten = System.currentTimeMillis();
+					if (ss instanceof ISimplePipePriority) {
+						ISimplePipePriority spp = (ISimplePipePriority) ss;
+						int p = spp.getPriority();
+						if (p <= 0) {
+							p = ISimplePipePriority.IMPORTANT;
 						}
+						priority += p;
+					} else {
+						priority += ISimplePipePriority.IMPORTANT;
 					}
 				}
-				if (builder.length() > 0) {
-					writer.write(builder.toString());
+			}
+			if (buffer != null) {
+				buffer.writeTo(writer);
+				releaseBuffer(buffer);
+			}
+			writer.flush();
+			if (!SimplePipeHelper.isPipeLive(key)) {
+				long waitClosingInterval = pipe.pipeWaitClosingInterval();
+				if (System.currentTimeMillis() - lastLiveDetected > waitClosingInterval) {
+					// break out so pipe connection will be closed
+					return -1;
 				}
-				writer.flush();
-				if (!SimplePipeHelper.isPipeLive(key)) {
-			        long waitClosingInterval = pipe == null ? 5000 : pipe.pipeWaitClosingInterval();
-					if (System.currentTimeMillis() - lastLiveDetected > waitClosingInterval) {
-						// break out while loop so pipe connection will be closed
-						break;
-					} else { // sleep 1s and continue to check pipe status again
-						try {
-							Thread.sleep(1000);
-						} catch (InterruptedException e) {
-						}
-						continue;
-					}
-				} else {
-					lastLiveDetected = System.currentTimeMillis();
+				return PIPE_LIVE_CHECKING_INTERVAL; // check pipe status again
+			}
+			lastLiveDetected = System.currentTimeMillis();
+			// Client should send in "notify" request to simulate the following #notifyPipeStatus
+			// SimplePipeHelper.notifyPipeStatus(key, true);
+			
+			long now = System.currentTimeMillis();
+			if ((lastPipeDataWritten == -1 && now - beforeLoop >= pipeQueryTimeout)
+					|| (lastPipeDataWritten > 0
+							&& now - lastPipeDataWritten >= pipeQueryTimeout
+							&& (isContinuum || isScripting))) {
+				writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
+				lastPipeDataWritten = System.currentTimeMillis();
+			}
+			
+			now = System.currentTimeMillis();
+			if (pipe.getPipeData() != null // may be broken down already!!
+					&& (pipeMaxItemsPerQuery <= 0 || items < pipeMaxItemsPerQuery || isContinuum)
+					&& (isContinuum || (isScripting && now - beforeLoop < pipeScriptBreakout)
+					|| (priority < ISimplePipePriority.IMPORTANT && now - beforeLoop < pipeQueryTimeout))) {
+				// wait for pipe data, or for next heart beat or time out
+				long waiting = PIPE_LIVE_CHECKING_INTERVAL;
+				long deadline = lastPipeDataWritten == -1 ? beforeLoop : lastPipeDataWritten;
+				deadline += pipeQueryTimeout;
+				if (deadline - now < waiting) {
+					waiting = deadline - now;
+				}
+				if (isScripting && beforeLoop + pipeScriptBreakout - now < waiting) {
+					waiting = beforeLoop + pipeScriptBreakout - now;
+				}
+				return waiting > 0 ? waiting : 1;
+			}
+			return -1;
+		}
+		
+		/**
+		 * Write out closing status and trailing contents.
+		 */
+		void finish() {
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+			if (pipe == null || pipe.getPipeData() /*SimplePipeHelper.getPipeDataList(key)*/ == null
+					|| !pipe.isPipeLive() /*!SimplePipeHelper.isPipeLive(key)*/) { // pipe is tore down!
+				//SimplePipeHelper.notifyPipeStatus(key, false); // Leave for pipe monitor to destroy it
+				SimplePipeHelper.removePipe(key);
+				try {
+					writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_DESTROYED));
+					lastPipeDataWritten = System.currentTimeMillis();
+				} catch (Exception e) {
+					// HTTP connection may be closed already!
 				}
-				// Client should send in "notify" request to simulate the following #notifyPipeStatus
-				// SimplePipeHelper.notifyPipeStatus(key, true);
-				
-				long now = System.currentTimeMillis();
-				if ((lastPipeDataWritten == -1 && now - beforeLoop >= pipeQueryTimeout)
-						|| (lastPipeDataWritten > 0
-								&& now - lastPipeDataWritten >= pipeQueryTimeout
-								&& (isContinuum || isScripting))) {
-					writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
+			} else if (isScripting
+					&& (System.currentTimeMillis() - beforeLoop >= pipeScriptBreakout
+							|| (pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery))) {
+				try {
+					writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_CONTINUE));
 					lastPipeDataWritten = System.currentTimeMillis();
+				} catch (Exception e) {
+					// HTTP connection may be closed already!
+				}
+			}
+			if (lastPipeDataWritten == -1) {
+				writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
+			}
+			if (isScripting) { // iframe
+				try {
+					writer.write("</body></html>\r\n");
+				} catch (Exception e) {
+					// HTTP connection may be closed already!
+				}
+			}
+			if (SimpleHttpCompression.isCompressed(writer)) {
+				writer.close(); // write out trailer of compressed data
+			}
+		}
+		
+		/**
+		 * Asynchronous mode: pipe data arrived or timer is up.
+		 */
+		public void helpWaking(SimplePipeRunnable pipe) {
+			wake();
+		}
+		
+		/**
+		 * First pumping, in container's thread.
+		 */
+		void start() {
+			if (wakings.getAndIncrement() == 0) {
+				run();
+			}
+		}
+		
+		void wake() {
+			if (!closed && wakings.getAndIncrement() == 0) {
+				try {
+					pipeExecutor.execute(this);
+				} catch (RejectedExecutionException e) {
+					close(); // servlet is destroyed or executor is overloaded
 				}
-				
-				now = System.currentTimeMillis();
-				if (pipe != null && pipe.getPipeData()/*SimplePipeHelper.getPipeDataList(key)*/ != null // may be broken down already!!
-						&& (pipeMaxItemsPerQuery <= 0 || items < pipeMaxItemsPerQuery || isContinuum)
-						&& (isContinuum || (isScripting && now - beforeLoop < pipeScriptBreakout)
-						|| (priority < ISimplePipePriority.IMPORTANT && now - beforeLoop < pipeQueryTimeout))) {
-					synchronized (pipe) {
+			}
+		}
+		
+		/**
+		 * Asynchronous mode: pump pipe data in executor's thread. Wakings
+		 * during pumping are merged into one more pumping.
+		 */
+		public void run() {
+			while (!closed) {
+				int count = wakings.get();
+				long waiting = -1;
+				try {
+					waiting = pump();
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+				if (waiting <= 0) {
+					close();
+					return;
+				}
+				if (wakings.addAndGet(-count) == 0) {
+					synchronized (this) {
+						if (timeout != null) {
+							timeout.cancel(false);
+						}
 						try {
-							pipe.wait(1000);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
+							timeout = pipeTimer.schedule(new Runnable() {
+								public void run() {
+									wake();
+								}
+							}, waiting, TimeUnit.MILLISECONDS);
+						} catch (RejectedExecutionException e) {
+							timeout = null; // servlet is destroyed
 						}
 					}
-				} else {
-					break;
+					if (timeout == null) {
+						close();
+					}
+					return;
 				}
-			} // end of while
-		} // else pips is already closed or in other statuses
-		SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
-		if (pipe == null || pipe.getPipeData() /*SimplePipeHelper.getPipeDataList(key)*/ == null
-				|| !pipe.isPipeLive() /*!SimplePipeHelper.isPipeLive(key)*/) { // pipe is tore down!
-			//SimplePipeHelper.notifyPipeStatus(key, false); // Leave for pipe monitor to destroy it
-			SimplePipeHelper.removePipe(key);
-			try {
-				writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_DESTROYED));
-				lastPipeDataWritten = System.currentTimeMillis();
-			} catch (Exception e) {
-				// HTTP connection may be closed already!
 			}
-		} else if (isScripting
-				&& (System.currentTimeMillis() - beforeLoop >= pipeScriptBreakout
-						|| (pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery))) {
+		}
+		
+		private void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			synchronized (this) {
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+			}
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+			if (pipe != null) {
+				SimplePipeHelper.removeWaking(pipe, this);
+			}
 			try {
-				writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_CONTINUE));
-				lastPipeDataWritten = System.currentTimeMillis();
-			} catch (Exception e) {
-				// HTTP connection may be closed already!
+				finish();
+			} catch (Throwable e) {
+				e.printStackTrace();
 			}
+			completeAsync(asyncContext);
 		}
-		if (lastPipeDataWritten == -1) {
-			writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
-		}
-		if (isScripting) { // iframe
+		
+	}
+
+	/*
+	 * Servlet 3.0's asynchronous API, through reflection as this servlet is
+	 * built against Servlet 2.5.
+	 */
+	protected boolean isAsyncSupported(HttpServletRequest req) {
+		if (!asyncChecked) {
 			try {
-				writer.write("</body></html>\r\n");
-			} catch (Exception e) {
-				// HTTP connection may be closed already!
+				isAsyncSupportedMethod = ServletRequest.class.getMethod("isAsyncSupported");
+				startAsyncMethod = ServletRequest.class.getMethod("startAsync");
+				Class<?> asyncClass = startAsyncMethod.getReturnType();
+				setTimeoutMethod = asyncClass.getMethod("setTimeout", long.class);
+				completeMethod = asyncClass.getMethod("complete");
+			} catch (Throwable e) {
+				isAsyncSupportedMethod = null; // Servlet 2.5 or earlier containers
 			}
+			asyncChecked = true;
+		}
+		if (isAsyncSupportedMethod == null) {
+			return false;
+		}
+		try {
+			return ((Boolean) isAsyncSupportedMethod.invoke(req)).booleanValue();
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Start asynchronous mode without container's time out.
+	 * @return AsyncContext object, or null if it is not supported.
+	 */
+	protected Object startAsync(HttpServletRequest req) {
+		try {
+			Object asyncContext = startAsyncMethod.invoke(req);
+			setTimeoutMethod.invoke(asyncContext, Long.valueOf(0));
+			return asyncContext;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return null;
 		}
 	}
 
+	protected void completeAsync(Object asyncContext) {
+		if (asyncContext == null) {
+			return;
+		}
+		try {
+			completeMethod.invoke(asyncContext);
+		} catch (Throwable e) {
+			// HTTP connection may be closed already!
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (pipeExecutor != null) {
+			pipeExecutor.shutdown();
+			pipeTimer.shutdown();
+		}
+		super.destroy();
+	}
+
 	protected static String output(char type, String key, char evt) {
 		StringBuilder builder = new StringBuilder();
+		output(builder, type, key, evt);
+		return builder.toString();
+	}
+	
+	protected static void output(StringBuilder builder, char type, String key, char evt) {
 		if (SimplePipeRequest.PIPE_TYPE_SCRIPT == type) { 
 			// iframe, so $ is a safe method identifier
 			builder.append("<script type=\"text/javascript\">$ (\"");
@@ -362,7 +825,79 @@ public class SimplePipeHttpServlet extends HttpServlet {
 		} else if (SimplePipeRequest.PIPE_TYPE_XSS == type) {
 			builder.append("\");\r\n");
 		}
-		return builder.toString();
+	}
+	
+	/**
+	 * Serialize given object into given builder. It is the same as
+	 * #output(char, String, String) with serialized string.
+	 */
+	protected static void output(StringBuilder builder, char type, String key, SimpleSerializable ss) {
+		if (SimplePipeRequest.PIPE_TYPE_SCRIPT == type) { 
+			// iframe, so $ is a safe method identifier
+			builder.append("<script type=\"text/javascript\">$ (\"");
+		} else if (SimplePipeRequest.PIPE_TYPE_XSS == type) {
+			builder.append("$p1p3p$ (\""); // $p1p3p$
+		}
+		builder.append(key);
+		int start = builder.length();
+		ss.serializeTo(builder);
+		if (SimplePipeRequest.PIPE_TYPE_SCRIPT == type 
+				|| SimplePipeRequest.PIPE_TYPE_XSS == type) {
+			escape(builder, start, SimplePipeRequest.PIPE_TYPE_SCRIPT == type);
+		}
+		if (SimplePipeRequest.PIPE_TYPE_SCRIPT == type) { // iframe
+			builder.append("\");</script>\r\n");
+		} else if (SimplePipeRequest.PIPE_TYPE_XSS == type) {
+			builder.append("\");\r\n");
+		}
+	}
+	
+	/*
+	 * Escape characters after start in place for JavaScript string, the same
+	 * as replacing in #output(char, String, String).
+	 */
+	private static void escape(StringBuilder builder, int start, boolean scripting) {
+		int length = builder.length();
+		int i = start;
+		while (i < length) {
+			char c = builder.charAt(i);
+			if (c == '\\' || c == '\r' || c == '\n' || c == '"' || (scripting && c == '<')) {
+				break;
+			}
+			i++;
+		}
+		if (i == length) {
+			return; // nothing to escape
+		}
+		String str = builder.substring(i);
+		builder.setLength(i);
+		for (int j = 0; j < str.length(); j++) {
+			char c = str.charAt(j);
+			switch (c) {
+			case '\\':
+				builder.append("\\\\");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '"':
+				builder.append("\\\"");
+				break;
+			case '<':
+				if (scripting && str.startsWith("</script>", j)) {
+					builder.append("</scr\" + \"ipt>");
+					j += 8;
+					break;
+				}
+				builder.append(c);
+				break;
+			default:
+				builder.append(c);
+			}
+		}
 	}
 	
 	protected static String output(char type, String key, String str) {
@@ -25,8 +25,8 @@ public class SimplePipeRPCHttpServlet extends SimpleRPCHttpServlet {
 	private static final long serialVersionUID = 3141977053834098092L;
 
 	@Override
-	protected SimpleRPCRunnable getRunnableByRequest(String request) {
-		SimpleRPCRunnable runnable = super.getRunnableByRequest(request);
+	protected SimpleRPCRunnable prepareRunnable(SimpleRPCRunnable runnable) {
+		runnable = super.prepareRunnable(runnable);
 		if (runnable instanceof SimplePipeRunnable) {
 			SimplePipeRunnable pipeRunnable = (SimplePipeRunnable) runnable;
 			pipeRunnable.setPipeHelper(new SimplePipeHelper.IPipeThrough() {
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Batching of asynchronous Simple RPC requests for Java clients.
+ * 
+ * Runnables requested to the same URL within the batching window, or until
+ * the batch size limit is reached, are sent in one POST request. Request
+ * data is the concatenation of serialized runnables, with header
+ * "X-Simple-RPC-Batch" of runnable count. Response data is a result for each
+ * runnable in order, either 'o' followed by serialized runnable, or 'f' for
+ * failure. #ajaxOut or #ajaxFail is called for each runnable.
+ * 
+ * @see SimpleRPCRequest#setBatch(SimpleRPCBatch)
+ */
+@J2SIgnore
+public class SimpleRPCBatch {
+
+	public static final String BATCH_HEADER = "X-Simple-RPC-Batch";
+	
+	public static final byte RESULT_OK = 'o';
+	
+	public static final byte RESULT_FAILED = 'f';
+	
+	private static ScheduledExecutorService batchTimer;
+	
+	private static class Batch {
+		
+		String url;
+		
+		List<SimpleRPCRunnable> runnables = new ArrayList<SimpleRPCRunnable>();
+		
+		Batch(String url) {
+			this.url = url;
+		}
+		
+	}
+	
+	private final long window;
+	
+	private final int maxSize;
+	
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+	
+	/**
+	 * @param window milliseconds of waiting for more runnables
+	 * @param maxSize maximum runnables of a batch
+	 */
+	public SimpleRPCBatch(long window, int maxSize) {
+		this.window = window > 0 ? window : 0;
+		this.maxSize = maxSize > 0 ? maxSize : 1;
+	}
+	
+	public long getWindow() {
+		return window;
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (batchTimer == null) {
+			batchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Simple RPC Batch Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return batchTimer;
+	}
+	
+	/**
+	 * Return whether the given runnable can be batched or not. Only POST
+	 * requests to absolute URLs are batched.
+	 * 
+	 * @param runnable
+	 * @return
+	 */
+	public boolean accept(SimpleRPCRunnable runnable) {
+		String url = runnable.getHttpURL();
+		String method = runnable.getHttpMethod();
+		return url != null && url.length() > 0 && (method == null || "POST".equalsIgnoreCase(method));
+	}
+	
+	/**
+	 * Queue the given runnable into batch of its URL.
+	 * 
+	 * @param runnable
+	 */
+	public void queue(SimpleRPCRunnable runnable) {
+		String url = runnable.getHttpURL();
+		Batch full = null;
+		Batch created = null;
+		synchronized (batches) {
+			Batch batch = batches.get(url);
+			if (batch == null) {
+				batch = new Batch(url);
+				batches.put(url, batch);
+				created = batch;
+			}
+			batch.runnables.add(runnable);
+			if (batch.runnables.size() >= maxSize) {
+				batches.remove(url);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			send(full.url, full.runnables);
+		} else if (created != null) {
+			final Batch batch = created;
+			getTimer().schedule(new Runnable() {
+				public void run() {
+					flush(batch);
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void flush(Batch batch) {
+		synchronized (batches) {
+			if (batches.get(batch.url) != batch) {
+				return; // already sent
+			}
+			batches.remove(batch.url);
+		}
+		send(batch.url, batch.runnables);
+	}
+	
+	/**
+	 * Send all queued runnables now.
+	 */
+	public void flush() {
+		List<Batch> all = null;
+		synchronized (batches) {
+			all = new ArrayList<Batch>(batches.values());
+			batches.clear();
+		}
+		for (int i = 0; i < all.size(); i++) {
+			Batch batch = all.get(i);
+			send(batch.url, batch.runnables);
+		}
+	}
+	
+	protected void send(String url, final List<SimpleRPCRunnable> runnables) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < runnables.size(); i++) {
+			builder.append(runnables.get(i).serialize());
+		}
+		final HttpRequest request = SimpleRPCRequest.getRequest();
+		request.setRequestHeader(BATCH_HEADER, String.valueOf(runnables.size()));
+		request.open("POST", url, true);
+		request.registerOnReadyStateChange(new XHRCallbackAdapter() {
+			private boolean dispatched;
+			public void onLoaded() {
+				if (dispatched) {
+					return; // HttpRequest may call it again on errors
+				}
+				dispatched = true;
+				dispatch(runnables, request.getStatus() == 200 ? request.getResponseBytes() : null);
+			}
+		});
+		request.send(builder.toString());
+	}
+	
+	/**
+	 * Deserialize results of the batch into runnables, and call #ajaxOut or
+	 * #ajaxFail of each runnable, exactly once.
+	 * 
+	 * @param runnables
+	 * @param bytes response data, may be null
+	 */
+	static void dispatch(List<SimpleRPCRunnable> runnables, byte[] bytes) {
+		int length = bytes == null ? 0 : bytes.length;
+		int index = 0;
+		for (int i = 0; i < runnables.size(); i++) {
+			SimpleRPCRunnable runnable = runnables.get(i);
+			boolean ok = false;
+			if (index < length && bytes[index] == RESULT_OK) {
+				int end = segmentEnd(bytes, index + 1, length);
+				try {
+					ok = end != -1 && runnable.deserializeBytes(bytes, index + 1);
+				} catch (RuntimeException e) {
+					ok = false; // invalid simple format
+				}
+				index = ok ? end : length; // broken response, fail the rest
+			} else if (index < length && bytes[index] == RESULT_FAILED) {
+				index++;
+			} else {
+				index = length;
+			}
+			try {
+				if (ok) {
+					runnable.ajaxOut();
+				} else {
+					runnable.ajaxFail();
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace(); // still dispatch the rest
+			}
+		}
+	}
+	
+	/**
+	 * Return end of the serialized object "WLL202ClassName#NNNNNNNN$..."
+	 * starting at the given index.
+	 * 
+	 * @param bytes
+	 * @param start
+	 * @param end end of available bytes
+	 * @return end index of the object, or -1 if bytes are not enough or
+	 * invalid.
+	 */
+	public static int segmentEnd(byte[] bytes, int start, int end) {
+		if (end - start < 8 || bytes[start] != 'W' || bytes[start + 1] != 'L' || bytes[start + 2] != 'L') {
+			return -1;
+		}
+		int index = start + 6;
+		while (index < end && bytes[index] != '#') {
+			index++;
+		}
+		long size = 0;
+		for (index++; index < end && bytes[index] != '$'; index++) {
+			int b = bytes[index];
+			if (b < '0' || b > '9' || size > Integer.MAX_VALUE) {
+				return -1;
+			}
+			size = size * 10 + (b - '0');
+		}
+		if (index >= end || index + 1 + size > end) {
+			return -1;
+		}
+		return index + 1 + (int) size;
+	}
+	
+}
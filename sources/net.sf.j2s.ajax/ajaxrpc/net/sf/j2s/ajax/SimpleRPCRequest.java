@@ -39,6 +39,9 @@ public class SimpleRPCRequest {
 	
 	protected static IHttpRequestFactory requestFactory;
 	
+	@J2SIgnore
+	private static SimpleRPCBatch batch;
+	
 //	static {
 //		boolean ajax = false;
 //		/**
@@ -100,7 +103,12 @@ public class SimpleRPCRequest {
 				runnable.ajaxOut();
 			}
 		} else {
-			ajaxRequest(runnable, async);
+			SimpleRPCBatch b = batch;
+			if (async && b != null && b.accept(runnable)) {
+				b.queue(runnable);
+			} else {
+				ajaxRequest(runnable, async);
+			}
 		}
 	}
 	
@@ -144,6 +152,24 @@ public class SimpleRPCRequest {
 		requestFactory = factory;
 	}
 
+	/**
+	 * Set batching of asynchronous requests. For Java mode only.
+	 * @param b batching of requests, or null to disable batching
+	 */
+	@J2SIgnore
+	public static void setBatch(SimpleRPCBatch b) {
+		SimpleRPCBatch old = batch;
+		batch = b;
+		if (old != null && old != b) {
+			old.flush();
+		}
+	}
+
+	@J2SIgnore
+	public static SimpleRPCBatch getBatch() {
+		return batch;
+	}
+
 	@J2SNative("return new net.sf.j2s.ajax.HttpRequest ();")
 	public static HttpRequest getRequest() {
 		if (requestFactory != null) {
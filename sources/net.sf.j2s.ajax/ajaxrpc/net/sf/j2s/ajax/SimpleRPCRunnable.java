@@ -11,6 +11,9 @@
 
 package net.sf.j2s.ajax;
 
+import net.sf.j2s.annotation.J2SIgnore;
+import net.sf.j2s.annotation.J2SNative;
+
 /**
  * @author zhou renjian
  *
@@ -18,6 +21,12 @@ package net.sf.j2s.ajax;
  */
 public abstract class SimpleRPCRunnable extends SimpleSerializable {
 	
+	/*
+	 * Bits of modified fields, indexed by field index of the class's codec.
+	 */
+	@J2SIgnore
+	private long[] dirtyBits;
+	
 	public String getHttpURL() {
 		return "simplerpc"; // url is relative to the servlet!
 	}
@@ -60,6 +69,81 @@ public abstract class SimpleRPCRunnable extends SimpleSerializable {
 		return true;
 	}
 	
+	/**
+	 * Whether fields modified by #ajaxRun are tracked by #markDirty or not.
+	 * If tracked, delta response only contains those marked fields, and
+	 * server will not clone this object and compare all its fields.
+	 * 
+	 * This method will be called by server side, and will only be called
+	 * if delta response is supported.
+	 * 
+	 * @return supported
+	 */
+	public boolean supportsDirtyTracking() {
+		return false;
+	}
+	
+	/**
+	 * Mark the given field as modified, so it will be in delta response.
+	 * Fields of #fieldDiffIgnored are never marked.
+	 * 
+	 * @param fieldName
+	 */
+	@J2SNative("")
+	protected void markDirty(String fieldName) {
+		SimpleSerializableCodec codec = SimpleSerializableCodec.getCodec(getClass());
+		SimpleSerializableCodec.FieldCodec fc = codec.fieldMap.get(fieldName);
+		if (fc == null) {
+			return;
+		}
+		String[] ignoredFields = fieldDiffIgnored();
+		if (ignoredFields != null) {
+			for (int i = 0; i < ignoredFields.length; i++) {
+				if (fieldName.equals(ignoredFields[i])) {
+					return;
+				}
+			}
+		}
+		long[] bits = dirtyBits;
+		if (bits == null) {
+			bits = new long[(codec.fields.length + 63) >> 6];
+			dirtyBits = bits;
+		}
+		bits[fc.index >> 6] |= 1L << (fc.index & 63);
+	}
+	
+	/**
+	 * @param fieldName
+	 * @return whether the given field is marked as modified or not
+	 */
+	@J2SIgnore
+	public boolean isDirty(String fieldName) {
+		long[] bits = dirtyBits;
+		if (bits == null) {
+			return false;
+		}
+		SimpleSerializableCodec.FieldCodec fc = SimpleSerializableCodec.getCodec(getClass()).fieldMap.get(fieldName);
+		return fc != null && (bits[fc.index >> 6] & (1L << (fc.index & 63))) != 0;
+	}
+	
+	/**
+	 * Clear all fields' modified marks.
+	 */
+	@J2SNative("")
+	public void clearDirty() {
+		dirtyBits = null;
+	}
+	
+	@J2SIgnore
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		SimpleRPCRunnable clone = (SimpleRPCRunnable) super.clone();
+		if (dirtyBits != null) {
+			clone.dirtyBits = dirtyBits.clone();
+		}
+		return clone;
+	}
+	
 	/**
 	 * Whether sending out response in GZip encoding or not. Supporting GZip
 	 * encoding will save connection bandwidth but increase the CPU usage.
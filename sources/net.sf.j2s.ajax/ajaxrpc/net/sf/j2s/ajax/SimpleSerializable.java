@@ -14,11 +14,14 @@ package net.sf.j2s.ajax;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -70,6 +73,15 @@ public class SimpleSerializable implements Cloneable {
 	@J2SIgnore
 	private static Object classMutex = new Object();
 	
+	/*
+	 * Per thread buffers for the fields of #serializeBytes(OutputStream, ...),
+	 * kept unless they grew larger than MAX_POOLED_BUFFER_SIZE.
+	 */
+	@J2SIgnore
+	private static ThreadLocal<ByteArrayOutputStream> fieldsBuffers = new ThreadLocal<ByteArrayOutputStream>();
+	@J2SIgnore
+	private static final int MAX_POOLED_BUFFER_SIZE = 0x40000; // 256k
+	
 	private static Map<String, String> classNameMappings;
 	private static Map<String, String> classAliasMappings;
 	private static Set<String> classMissed;
@@ -408,14 +420,14 @@ strBuf = strBuf.substring (0, headSize - sizeStr.length - 1) + sizeStr + strBuf.
 return strBuf;
 	 */
 	public String serialize() {
-    	List<SimpleSerializable> objects = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> objects = newReferenceList();
     	objects.add(this);
 		return serialize(null, objects, true);
     }
     
     @J2SIgnore
 	public byte[] serializeBytes() {
-    	List<SimpleSerializable> objects = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> objects = newReferenceList();
     	objects.add(this);
 		try {
 			return serializeBytes(null, objects, true);
@@ -427,14 +439,14 @@ return strBuf;
     
     @J2SIgnore
 	public String serialize(SimpleFilter filter) {
-    	List<SimpleSerializable> objects = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> objects = newReferenceList();
     	objects.add(this);
 		return serialize(filter, objects, true);
 	}
 
     @J2SIgnore
 	public byte[] serializeBytes(SimpleFilter filter) {
-    	List<SimpleSerializable> objects = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> objects = newReferenceList();
     	objects.add(this);
 		try {
 			return serializeBytes(filter, objects, true);
@@ -446,14 +458,14 @@ return strBuf;
     
     @J2SIgnore
 	public String serialize(SimpleFilter filter, boolean supportsCompactBytes) {
-    	List<SimpleSerializable> objects = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> objects = newReferenceList();
     	objects.add(this);
 		return serialize(filter, objects, supportsCompactBytes);
 	}
 
     @J2SIgnore
 	public byte[] serializeBytes(SimpleFilter filter, boolean supportsCompactBytes) {
-    	List<SimpleSerializable> objects = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> objects = newReferenceList();
     	objects.add(this);
 		try {
 			return serializeBytes(filter, objects, supportsCompactBytes);
@@ -463,6 +475,15 @@ return strBuf;
 		}
 	}
 
+    /**
+     * Create list for objects already serialized or deserialized, which are
+     * referred by index in 'o' fields.
+     */
+    @J2SIgnore
+    private static List<SimpleSerializable> newReferenceList() {
+    	return new SimpleSerializableCodec.ReferenceList();
+    }
+
     @J2SIgnore
     static boolean isSubclassOf(Class<?> type, Class<?> superClass) {
     	if (type == null || superClass == null) {
@@ -542,8 +563,32 @@ return strBuf;
      */
     @J2SIgnore
 	protected String serialize(SimpleFilter filter, List<SimpleSerializable> ssObjs, boolean supportsCompactBytes) {
-		char baseChar = 'B';
 		StringBuilder builder = new StringBuilder(1024);
+		serializeTo(builder, filter, ssObjs, supportsCompactBytes);
+		return builder.toString();
+	}
+
+	/**
+	 * Serialize and append to the given builder, without creating a string
+	 * for this object. It is the same as appending #serialize().
+	 * 
+	 * @param builder
+	 */
+	@J2SIgnore
+	public void serializeTo(StringBuilder builder) {
+		if (SimpleSerializableCodec.getCodec(this.getClass()).serializeOverridden) {
+			builder.append(serialize());
+			return;
+		}
+		List<SimpleSerializable> objects = newReferenceList();
+		objects.add(this);
+		serializeTo(builder, null, objects, true);
+	}
+
+	@J2SIgnore
+	private void serializeTo(StringBuilder builder, SimpleFilter filter, List<SimpleSerializable> ssObjs, boolean supportsCompactBytes) {
+		char baseChar = 'B';
+		int start = builder.length();
 		/*
 		 * "WLL" is used to mark Simple RPC, 100 is version 3.1.1, 
 		 * # is used to mark the the beginning of serialized data  
@@ -579,15 +624,16 @@ return strBuf;
 		builder.append("#00000000$"); // later the number of size will be updated!
 		int headSize = builder.length();
 
-		Map<String, Field> fields = getSerializableFields(clazzName, this.getClass());
+		SimpleSerializableCodec codec = SimpleSerializableCodec.getCodec(this.getClass());
 		boolean ignoring = (filter == null || filter.ignoreDefaultFields());
 		String[] fMap = fieldMapping();
 		Map<String, String> fieldNameMap = getSimpleVersion() >= 202 ? fieldNameMapping() : null;
 		try {
-			for (Iterator<Entry<String, Field>> itr = fields.entrySet().iterator(); itr.hasNext();) {
-				Entry<String, Field> entry = (Entry<String, Field>) itr.next();
-				String name = entry.getKey();
-				Field field = entry.getValue();
+			SimpleSerializableCodec.FieldCodec[] fcs = codec.fields;
+			for (int i = 0; i < fcs.length; i++) {
+				SimpleSerializableCodec.FieldCodec fc = fcs[i];
+				String name = fc.name;
+				Field field = fc.field;
 				if (filter != null && !filter.accept(name)) continue;
 				if (fieldNameMap != null) {
 					String alias = fieldNameMap.get(name);
@@ -605,18 +651,17 @@ return strBuf;
 						}
 					}
 				}
-				if (field == null) {
-					continue;
-				}
 				//String nameStr = (char)(baseChar + name.length()) + name;
-				Class<?> type = field.getType();
-				if (type == String.class) {
+				switch (fc.type) {
+				case SimpleSerializableCodec.TYPE_STRING: {
 					String s = (String) field.get(this);
 					if (s == null && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
 					builder.append(name);
 					serializeString(builder, s);
-				} else if (type == int.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_INT: {
 					int n = field.getInt(this);
 					if (n == 0 && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -625,13 +670,17 @@ return strBuf;
 					String value = String.valueOf(n);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
-				} else if (isSubclassOf(type, SimpleSerializable.class) || type == SimpleSerializable.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_OBJECT: {
 					SimpleSerializable ssObj = (SimpleSerializable) field.get(this);
 					if (ssObj == null && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
 					builder.append(name);
 					serializeObject(builder, ssObj, ssObjs, supportsCompactBytes);
-				} else if (type == long.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_LONG: {
 					long l = field.getLong(this);
 					if (l == 0L && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -640,7 +689,9 @@ return strBuf;
 					String value = String.valueOf(l);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
-				} else if (type == boolean.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BOOLEAN: {
 					boolean b = field.getBoolean(this);
 					if (b == false && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -648,189 +699,197 @@ return strBuf;
 					builder.append('b');
 					builder.append('C'); // ((char) (baseChar + 1));
 					builder.append(b ? '1' : '0');
-				} else if (type.isArray()) { // Array ...
-					if (type == byte[].class) {
-						byte [] bs = (byte []) field.get(this);
-						if (bs == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append(!bytesCompactMode() || !supportsCompactBytes ? "AB" : "A8");
-						if (bs == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, bs.length);
-							if (!bytesCompactMode() || !supportsCompactBytes) {
-								for (int j = 0; j < bs.length; j++) {
-									String value = String.valueOf(bs[j]);
-									builder.append((char) (baseChar + value.length()));
-									builder.append(value);
-								}
-							} else {
-								builder.append(new String(bs, ISO_8859_1));
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BYTE_ARRAY: {
+					byte [] bs = (byte []) field.get(this);
+					if (bs == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append(!bytesCompactMode() || !supportsCompactBytes ? "AB" : "A8");
+					if (bs == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, bs.length);
+						if (!bytesCompactMode() || !supportsCompactBytes) {
+							for (int j = 0; j < bs.length; j++) {
+								String value = String.valueOf(bs[j]);
+								builder.append((char) (baseChar + value.length()));
+								builder.append(value);
 							}
-						}
-					} else if (type == String[].class) {
-						String[] ss = (String []) field.get(this);
-						if (ss == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AX"); // special
-						if (ss == null) {
-							builder.append('A'); // (char) (baseChar - 1));
 						} else {
-							serializeLength(builder, ss.length);
-							for (int j = 0; j < ss.length; j++) {
-								String s = ss[j];
-								serializeString(builder, s);
-							}
+							builder.append(new String(bs, ISO_8859_1));
 						}
-					} else if (isSubclassOf(type, SimpleSerializable[].class) || type == SimpleSerializable[].class) {
-						SimpleSerializable[] ss = (SimpleSerializable []) field.get(this);
-						if (ss == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AO"); // special
-						if (ss == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, ss.length);
-							for (int j = 0; j < ss.length; j++) {
-								SimpleSerializable s = ss[j];
-								serializeObject(builder, s, ssObjs, supportsCompactBytes);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_STRING_ARRAY: {
+					String[] ss = (String []) field.get(this);
+					if (ss == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AX"); // special
+					if (ss == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, ss.length);
+						for (int j = 0; j < ss.length; j++) {
+							String s = ss[j];
+							serializeString(builder, s);
 						}
-					} else if (type == int[].class) {
-						int [] ns = (int []) field.get(this);
-						if (ns == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AI");
-						if (ns == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, ns.length);
-							for (int j = 0; j < ns.length; j++) {
-								String value = String.valueOf(ns[j]);
-								builder.append((char) (baseChar + value.length()));
-								builder.append(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_OBJECT_ARRAY: {
+					SimpleSerializable[] ss = (SimpleSerializable []) field.get(this);
+					if (ss == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AO"); // special
+					if (ss == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, ss.length);
+						for (int j = 0; j < ss.length; j++) {
+							SimpleSerializable s = ss[j];
+							serializeObject(builder, s, ssObjs, supportsCompactBytes);
 						}
-					} else if (type == long[].class) {
-						long [] ls = (long []) field.get(this);
-						if (ls == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AL");
-						if (ls == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, ls.length);
-							for (int j = 0; j < ls.length; j++) {
-								String value = String.valueOf(ls[j]);
-								builder.append((char) (baseChar + value.length()));
-								builder.append(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_INT_ARRAY: {
+					int [] ns = (int []) field.get(this);
+					if (ns == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AI");
+					if (ns == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, ns.length);
+						for (int j = 0; j < ns.length; j++) {
+							String value = String.valueOf(ns[j]);
+							builder.append((char) (baseChar + value.length()));
+							builder.append(value);
 						}
-					} else if (type == boolean[].class) {
-						boolean [] bs = (boolean []) field.get(this);
-						if (bs == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("Ab");
-						if (bs == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, bs.length);
-							for (int j = 0; j < bs.length; j++) {
-								builder.append('C'); // (char) (baseChar + 1));
-								builder.append(bs[j] ? '1' : '0');
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_LONG_ARRAY: {
+					long [] ls = (long []) field.get(this);
+					if (ls == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AL");
+					if (ls == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, ls.length);
+						for (int j = 0; j < ls.length; j++) {
+							String value = String.valueOf(ls[j]);
+							builder.append((char) (baseChar + value.length()));
+							builder.append(value);
 						}
-					} else if (type == float[].class) {
-						float[] fs = (float[]) field.get(this);
-						if (fs == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AF");
-						if (fs == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, fs.length);
-							for (int j = 0; j < fs.length; j++) {
-								String value = String.valueOf(fs[j]);
-								builder.append((char) (baseChar + value.length()));
-								builder.append(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BOOLEAN_ARRAY: {
+					boolean [] bs = (boolean []) field.get(this);
+					if (bs == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("Ab");
+					if (bs == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, bs.length);
+						for (int j = 0; j < bs.length; j++) {
+							builder.append('C'); // (char) (baseChar + 1));
+							builder.append(bs[j] ? '1' : '0');
 						}
-					} else if (type == double[].class) {
-						double [] ds = (double []) field.get(this);
-						if (ds == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AD");
-						if (ds == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, ds.length);
-							for (int j = 0; j < ds.length; j++) {
-								String value = String.valueOf(ds[j]);
-								builder.append((char) (baseChar + value.length()));
-								builder.append(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_FLOAT_ARRAY: {
+					float[] fs = (float[]) field.get(this);
+					if (fs == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AF");
+					if (fs == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, fs.length);
+						for (int j = 0; j < fs.length; j++) {
+							String value = String.valueOf(fs[j]);
+							builder.append((char) (baseChar + value.length()));
+							builder.append(value);
 						}
-					} else if (type == short[].class) {
-						short [] ss = (short []) field.get(this);
-						if (ss == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AS");
-						if (ss == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, ss.length);
-							for (int j = 0; j < ss.length; j++) {
-								String value = String.valueOf(ss[j]);
-								builder.append((char) (baseChar + value.length()));
-								builder.append(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_DOUBLE_ARRAY: {
+					double [] ds = (double []) field.get(this);
+					if (ds == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AD");
+					if (ds == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, ds.length);
+						for (int j = 0; j < ds.length; j++) {
+							String value = String.valueOf(ds[j]);
+							builder.append((char) (baseChar + value.length()));
+							builder.append(value);
 						}
-					} else if (type == char[].class) {
-						char [] cs = (char []) field.get(this);
-						if (cs == null && ignoring) continue;
-						builder.append((char)(baseChar + name.length()));
-						builder.append(name);
-						builder.append("AC");
-						if (cs == null) {
-							builder.append('A'); // (char) (baseChar - 1));
-						} else {
-							serializeLength(builder, cs.length);
-							for (int j = 0; j < cs.length; j++) {
-								int c = cs[j];
-								String value = Integer.toString(c, 10);
-								builder.append((char) (baseChar + value.length()));
-								builder.append(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_SHORT_ARRAY: {
+					short [] ss = (short []) field.get(this);
+					if (ss == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AS");
+					if (ss == null) {
+						builder.append('A'); // (char) (baseChar - 1));
+					} else {
+						serializeLength(builder, ss.length);
+						for (int j = 0; j < ss.length; j++) {
+							String value = String.valueOf(ss[j]);
+							builder.append((char) (baseChar + value.length()));
+							builder.append(value);
 						}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_CHAR_ARRAY: {
+					char [] cs = (char []) field.get(this);
+					if (cs == null && ignoring) continue;
+					builder.append((char)(baseChar + name.length()));
+					builder.append(name);
+					builder.append("AC");
+					if (cs == null) {
+						builder.append('A'); // (char) (baseChar - 1));
 					} else {
-						continue; // just ignore it
-						// others unknown or unsupported types!
-						// throw new RuntimeException("Unsupported data type in Java2Script Simple RPC!");
+						serializeLength(builder, cs.length);
+						for (int j = 0; j < cs.length; j++) {
+							int c = cs[j];
+							String value = Integer.toString(c, 10);
+							builder.append((char) (baseChar + value.length()));
+							builder.append(value);
+						}
 					}
-				} else if (isSubInterfaceOf(type, Collection.class)) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_COLLECTION: {
 					Collection<?> collection = (Collection<?>)field.get(this);
 					if (collection == null && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
 					builder.append(name);
 					builder.append('Z');
-					if (isSubInterfaceOf(type, List.class)) {
-						builder.append('Z');
-					} else if (isSubInterfaceOf(type, Set.class)) {
-						builder.append('Y');
-					} else if (isSubInterfaceOf(type, Queue.class)) {
-						builder.append('Q');
-					} else {
-						builder.append('W'); // Other collections
-					}
+					builder.append(fc.collectionType); // 'Z', 'Y', 'Q' or 'W' for other collections
 					if (collection == null) {
 						builder.append('A'); // (char) (baseChar - 1));
 					} else {
@@ -845,7 +904,9 @@ return strBuf;
 							}
 						}
 					}
-				} else if (isSubInterfaceOf(type, Map.class)) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_MAP: {
 					Map<?, ?> map = (Map<?, ?>)field.get(this);
 					if (map == null && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -871,7 +932,9 @@ return strBuf;
 							}
 						}
 					}
-				} else if (type.isEnum()) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_ENUM: {
 					Enum<?> e = (Enum<?>)field.get(this);
 					if (e == null && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -884,7 +947,9 @@ return strBuf;
 						builder.append((char) (baseChar + value.length()));
 						builder.append(value);
 					}
-				} else if (type == float.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_FLOAT: {
 					float f = field.getFloat(this);
 					if (f == 0.0 && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -893,7 +958,9 @@ return strBuf;
 					String value = String.valueOf(f);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
-				} else if (type == double.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_DOUBLE: {
 					double d = field.getDouble(this);
 					if (d == 0.0d && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -902,7 +969,9 @@ return strBuf;
 					String value = String.valueOf(d);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
-				} else if (type == short.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_SHORT: {
 					short s = field.getShort(this);
 					if (s == 0 && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -911,7 +980,9 @@ return strBuf;
 					String value = String.valueOf(s);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
-				} else if (type == byte.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BYTE: {
 					byte b = field.getByte(this);
 					if (b == 0 && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -920,7 +991,9 @@ return strBuf;
 					String value = String.valueOf(b);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
-				} else if (type == char.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_CHAR: {
 					int c = 0 + field.getChar(this);
 					if (c == 0 && ignoring) continue;
 					builder.append((char)(baseChar + name.length()));
@@ -929,18 +1002,19 @@ return strBuf;
 					String value = Integer.toString(c, 10);
 					builder.append((char) (baseChar + value.length()));
 					builder.append(value);
+					break;
+				}
 				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		int size = builder.length();
-		if (size > 0x1000000) { // 16 * 1024 * 1024
+		if (size - start > 0x1000000) { // 16 * 1024 * 1024
 			throw new RuntimeException(EXCEPTION_DATA_SIZE_TOO_LARGE);
 		}
 		String sizeStr = String.valueOf(size - headSize);
 		builder.replace(headSize - sizeStr.length() - 1, headSize - 1, sizeStr); // update size!
-		return builder.toString();
 	}
 
     /**
@@ -954,9 +1028,99 @@ return strBuf;
      */
     @J2SIgnore
 	protected byte[] serializeBytes(SimpleFilter filter, List<SimpleSerializable> ssObjs, boolean supportsCompactBytes) throws IOException {
-		char baseChar = 'B';
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
 		DataOutputStream dos = new DataOutputStream(baos);
+		serializeBytesHeader(dos);
+		dos.writeBytes("#00000000$"); // later the number of size will be updated!
+		int headSize = dos.size();
+
+		serializeBytesFields(dos, filter, ssObjs, supportsCompactBytes);
+		int size = dos.size();
+		if (size > 0x1000000) { // 16 * 1024 * 1024
+			throw new RuntimeException(EXCEPTION_DATA_SIZE_TOO_LARGE);
+		}
+		// update size!
+		String sizeStr = String.valueOf(size - headSize);
+		int sizeLength = sizeStr.length();
+		byte[] bytes = baos.toByteArray();
+		for (int i = 0; i < sizeLength; i++) {
+			bytes[headSize - sizeLength - 1 + i] = (byte) sizeStr.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Serialize this object into the given stream, without copying whole
+	 * serialized data into a new array.
+	 * 
+	 * This is not fully streaming. The size of all fields is written before
+	 * the first field, and the object may change while it is serialized, so
+	 * fields are serialized once into a buffer kept for the current thread.
+	 * Only the fields are buffered: the header is written directly to the
+	 * given stream, followed by the size, and then the buffer is written
+	 * from its own array. Nested objects are serialized into strings, as
+	 * for #serialize(). Data are the same as those of
+	 * #serializeBytes(SimpleFilter, boolean). The stream is flushed but not
+	 * closed.
+	 * 
+	 * @param os
+	 * @param filter
+	 * @param supportsCompactBytes
+	 * @throws IOException
+	 */
+    @J2SIgnore
+	public void serializeBytes(OutputStream os, SimpleFilter filter, boolean supportsCompactBytes) throws IOException {
+		ByteArrayOutputStream fields = fieldsBuffers.get();
+		if (fields == null) {
+			fields = new ByteArrayOutputStream(1024);
+		} else {
+			fieldsBuffers.set(null); // in case serializing gets back here
+			fields.reset();
+		}
+		try {
+			List<SimpleSerializable> objects = newReferenceList();
+			objects.add(this);
+			serializeBytesFields(new DataOutputStream(fields), filter, objects, supportsCompactBytes);
+			int size = fields.size();
+			// nothing is written if the fields are too large, header is < 256
+			if (size > 0x1000000 - 256) { // 16 * 1024 * 1024
+				throw new RuntimeException(EXCEPTION_DATA_SIZE_TOO_LARGE);
+			}
+			DataOutputStream dos = new DataOutputStream(os);
+			serializeBytesHeader(dos);
+			String sizeStr = String.valueOf(size);
+			dos.writeByte('#');
+			for (int i = sizeStr.length(); i < 8; i++) {
+				dos.writeByte('0');
+			}
+			dos.writeBytes(sizeStr);
+			dos.writeByte('$');
+			fields.writeTo(os);
+			os.flush();
+		} finally {
+			if (fields.size() <= MAX_POOLED_BUFFER_SIZE) {
+				fieldsBuffers.set(fields);
+			}
+		}
+	}
+
+    @J2SIgnore
+	public void serializeBytes(OutputStream os) throws IOException {
+		serializeBytes(os, null, true);
+	}
+
+	/**
+	 * Serialize this object into the given channel directly.
+	 * 
+	 * @see #serializeBytes(OutputStream, SimpleFilter, boolean)
+	 */
+    @J2SIgnore
+	public void serializeBytes(WritableByteChannel channel, SimpleFilter filter, boolean supportsCompactBytes) throws IOException {
+		serializeBytes(Channels.newOutputStream(channel), filter, supportsCompactBytes);
+	}
+
+    @J2SIgnore
+	private void serializeBytesHeader(DataOutputStream dos) throws IOException {
 		/*
 		 * "WLL" is used to mark Simple RPC, 100 is version 3.1.1, 
 		 * # is used to mark the the beginning of serialized data  
@@ -989,18 +1153,21 @@ return strBuf;
 		} else {
 			dos.writeBytes(clazzName);
 		}
-		dos.writeBytes("#00000000$"); // later the number of size will be updated!
-		int headSize = dos.size();
+	}
 
-		Map<String, Field> fields = getSerializableFields(clazzName, this.getClass());
+    @J2SIgnore
+	private void serializeBytesFields(DataOutputStream dos, SimpleFilter filter, List<SimpleSerializable> ssObjs, boolean supportsCompactBytes) throws IOException {
+		char baseChar = 'B';
+		SimpleSerializableCodec codec = SimpleSerializableCodec.getCodec(this.getClass());
 		boolean ignoring = (filter == null || filter.ignoreDefaultFields());
 		Map<String, String> fieldNameMap = getSimpleVersion() >= 202 ? fieldNameMapping() : null;
 		String[] fMap = fieldNameMap == null ? fieldMapping() : null;
 		try {
-			for (Iterator<Entry<String, Field>> itr = fields.entrySet().iterator(); itr.hasNext();) {
-				Entry<String, Field> entry = (Entry<String, Field>) itr.next();
-				String name = entry.getKey();
-				Field field = entry.getValue();
+			SimpleSerializableCodec.FieldCodec[] fcs = codec.fields;
+			for (int i = 0; i < fcs.length; i++) {
+				SimpleSerializableCodec.FieldCodec fc = fcs[i];
+				String name = fc.name;
+				Field field = fc.field;
 				if (filter != null && !filter.accept(name)) continue;
 				if (fieldNameMap != null) {
 					String alias = fieldNameMap.get(name);
@@ -1019,14 +1186,16 @@ return strBuf;
 					}
 				}
 				//String nameStr = (char)(baseChar + name.length()) + name;
-				Class<?> type = field.getType();
-				if (type == String.class) {
+				switch (fc.type) {
+				case SimpleSerializableCodec.TYPE_STRING: {
 					String s = (String) field.get(this);
 					if (s == null && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
 					dos.writeBytes(name);
 					serializeBytesString(dos, s);
-				} else if (type == int.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_INT: {
 					int n = field.getInt(this);
 					if (n == 0 && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1035,13 +1204,17 @@ return strBuf;
 					String value = String.valueOf(n);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
-				} else if (isSubclassOf(type, SimpleSerializable.class) || type == SimpleSerializable.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_OBJECT: {
 					SimpleSerializable ssObj = (SimpleSerializable) field.get(this);
 					if (ssObj == null && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
 					dos.writeBytes(name);
 					serializeBytesObject(dos, ssObj, ssObjs, supportsCompactBytes);
-				} else if (type == long.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_LONG: {
 					long l = field.getLong(this);
 					if (l == 0L && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1050,7 +1223,9 @@ return strBuf;
 					String value = String.valueOf(l);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
-				} else if (type == boolean.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BOOLEAN: {
 					boolean b = field.getBoolean(this);
 					if (b == false && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1058,189 +1233,197 @@ return strBuf;
 					dos.writeByte('b');
 					dos.writeByte('C'); // ((char) (baseChar + 1));
 					dos.writeByte(b ? '1' : '0');
-				} else if (type.isArray()) { // Array ...
-					if (type == byte[].class) {
-						byte [] bs = (byte []) field.get(this);
-						if (bs == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes(!bytesCompactMode() || !supportsCompactBytes ? "AB" : "A8");
-						if (bs == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, bs.length);
-							if (!bytesCompactMode() || !supportsCompactBytes) {
-								for (int j = 0; j < bs.length; j++) {
-									String value = String.valueOf(bs[j]);
-									dos.writeByte(baseChar + value.length());
-									dos.writeBytes(value);
-								}
-							} else {
-								dos.write(bs);
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BYTE_ARRAY: {
+					byte [] bs = (byte []) field.get(this);
+					if (bs == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes(!bytesCompactMode() || !supportsCompactBytes ? "AB" : "A8");
+					if (bs == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, bs.length);
+						if (!bytesCompactMode() || !supportsCompactBytes) {
+							for (int j = 0; j < bs.length; j++) {
+								String value = String.valueOf(bs[j]);
+								dos.writeByte(baseChar + value.length());
+								dos.writeBytes(value);
 							}
-						}
-					} else if (type == String[].class) {
-						String[] ss = (String []) field.get(this);
-						if (ss == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AX"); // special
-						if (ss == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
 						} else {
-							serializeBytesLength(dos, ss.length);
-							for (int j = 0; j < ss.length; j++) {
-								String s = ss[j];
-								serializeBytesString(dos, s);
-							}
+							dos.write(bs);
 						}
-					} else if (isSubclassOf(type, SimpleSerializable[].class) || type == SimpleSerializable[].class) {
-						SimpleSerializable[] ss = (SimpleSerializable []) field.get(this);
-						if (ss == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AO"); // special
-						if (ss == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, ss.length);
-							for (int j = 0; j < ss.length; j++) {
-								SimpleSerializable s = ss[j];
-								serializeBytesObject(dos, s, ssObjs, supportsCompactBytes);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_STRING_ARRAY: {
+					String[] ss = (String []) field.get(this);
+					if (ss == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AX"); // special
+					if (ss == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, ss.length);
+						for (int j = 0; j < ss.length; j++) {
+							String s = ss[j];
+							serializeBytesString(dos, s);
 						}
-					} else if (type == int[].class) {
-						int [] ns = (int []) field.get(this);
-						if (ns == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AI");
-						if (ns == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, ns.length);
-							for (int j = 0; j < ns.length; j++) {
-								String value = String.valueOf(ns[j]);
-								dos.writeByte(baseChar + value.length());
-								dos.writeBytes(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_OBJECT_ARRAY: {
+					SimpleSerializable[] ss = (SimpleSerializable []) field.get(this);
+					if (ss == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AO"); // special
+					if (ss == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, ss.length);
+						for (int j = 0; j < ss.length; j++) {
+							SimpleSerializable s = ss[j];
+							serializeBytesObject(dos, s, ssObjs, supportsCompactBytes);
 						}
-					} else if (type == long[].class) {
-						long [] ls = (long []) field.get(this);
-						if (ls == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AL");
-						if (ls == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, ls.length);
-							for (int j = 0; j < ls.length; j++) {
-								String value = String.valueOf(ls[j]);
-								dos.writeByte(baseChar + value.length());
-								dos.writeBytes(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_INT_ARRAY: {
+					int [] ns = (int []) field.get(this);
+					if (ns == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AI");
+					if (ns == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, ns.length);
+						for (int j = 0; j < ns.length; j++) {
+							String value = String.valueOf(ns[j]);
+							dos.writeByte(baseChar + value.length());
+							dos.writeBytes(value);
 						}
-					} else if (type == boolean[].class) {
-						boolean [] bs = (boolean []) field.get(this);
-						if (bs == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("Ab");
-						if (bs == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, bs.length);
-							for (int j = 0; j < bs.length; j++) {
-								dos.writeByte('C'); // (char) (baseChar + 1));
-								dos.writeByte(bs[j] ? '1' : '0');
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_LONG_ARRAY: {
+					long [] ls = (long []) field.get(this);
+					if (ls == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AL");
+					if (ls == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, ls.length);
+						for (int j = 0; j < ls.length; j++) {
+							String value = String.valueOf(ls[j]);
+							dos.writeByte(baseChar + value.length());
+							dos.writeBytes(value);
 						}
-					} else if (type == float[].class) {
-						float[] fs = (float[]) field.get(this);
-						if (fs == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AF");
-						if (fs == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, fs.length);
-							for (int j = 0; j < fs.length; j++) {
-								String value = String.valueOf(fs[j]);
-								dos.writeByte(baseChar + value.length());
-								dos.writeBytes(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BOOLEAN_ARRAY: {
+					boolean [] bs = (boolean []) field.get(this);
+					if (bs == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("Ab");
+					if (bs == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, bs.length);
+						for (int j = 0; j < bs.length; j++) {
+							dos.writeByte('C'); // (char) (baseChar + 1));
+							dos.writeByte(bs[j] ? '1' : '0');
 						}
-					} else if (type == double[].class) {
-						double [] ds = (double []) field.get(this);
-						if (ds == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AD");
-						if (ds == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, ds.length);
-							for (int j = 0; j < ds.length; j++) {
-								String value = String.valueOf(ds[j]);
-								dos.writeByte(baseChar + value.length());
-								dos.writeBytes(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_FLOAT_ARRAY: {
+					float[] fs = (float[]) field.get(this);
+					if (fs == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AF");
+					if (fs == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, fs.length);
+						for (int j = 0; j < fs.length; j++) {
+							String value = String.valueOf(fs[j]);
+							dos.writeByte(baseChar + value.length());
+							dos.writeBytes(value);
 						}
-					} else if (type == short[].class) {
-						short [] ss = (short []) field.get(this);
-						if (ss == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AS");
-						if (ss == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, ss.length);
-							for (int j = 0; j < ss.length; j++) {
-								String value = String.valueOf(ss[j]);
-								dos.writeByte(baseChar + value.length());
-								dos.writeBytes(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_DOUBLE_ARRAY: {
+					double [] ds = (double []) field.get(this);
+					if (ds == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AD");
+					if (ds == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, ds.length);
+						for (int j = 0; j < ds.length; j++) {
+							String value = String.valueOf(ds[j]);
+							dos.writeByte(baseChar + value.length());
+							dos.writeBytes(value);
 						}
-					} else if (type == char[].class) {
-						char [] cs = (char []) field.get(this);
-						if (cs == null && ignoring) continue;
-						dos.writeByte(baseChar + name.length());
-						dos.writeBytes(name);
-						dos.writeBytes("AC");
-						if (cs == null) {
-							dos.writeByte('A'); // (char) (baseChar - 1));
-						} else {
-							serializeBytesLength(dos, cs.length);
-							for (int j = 0; j < cs.length; j++) {
-								int c = cs[j];
-								String value = Integer.toString(c, 10);
-								dos.writeByte(baseChar + value.length());
-								dos.writeBytes(value);
-							}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_SHORT_ARRAY: {
+					short [] ss = (short []) field.get(this);
+					if (ss == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AS");
+					if (ss == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
+					} else {
+						serializeBytesLength(dos, ss.length);
+						for (int j = 0; j < ss.length; j++) {
+							String value = String.valueOf(ss[j]);
+							dos.writeByte(baseChar + value.length());
+							dos.writeBytes(value);
 						}
+					}
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_CHAR_ARRAY: {
+					char [] cs = (char []) field.get(this);
+					if (cs == null && ignoring) continue;
+					dos.writeByte(baseChar + name.length());
+					dos.writeBytes(name);
+					dos.writeBytes("AC");
+					if (cs == null) {
+						dos.writeByte('A'); // (char) (baseChar - 1));
 					} else {
-						continue; // just ignore it
-						// others unknown or unsupported types!
-						// throw new RuntimeException("Unsupported data type in Java2Script Simple RPC!");
+						serializeBytesLength(dos, cs.length);
+						for (int j = 0; j < cs.length; j++) {
+							int c = cs[j];
+							String value = Integer.toString(c, 10);
+							dos.writeByte(baseChar + value.length());
+							dos.writeBytes(value);
+						}
 					}
-				} else if (isSubInterfaceOf(type, Collection.class)) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_COLLECTION: {
 					Collection<?> collection = (Collection<?>)field.get(this);
 					if (collection == null && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
 					dos.writeBytes(name);
 					dos.writeByte('Z');
-					if (isSubInterfaceOf(type, List.class)) {
-						dos.writeByte('Z');
-					} else if (isSubInterfaceOf(type, Set.class)) {
-						dos.writeByte('Y');
-					} else if (isSubInterfaceOf(type, Queue.class)) {
-						dos.writeByte('Q');
-					} else {
-						dos.writeByte('W');
-					}
+					dos.writeByte(fc.collectionType); // 'Z', 'Y', 'Q' or 'W' for other collections
 					if (collection == null) {
 						dos.writeByte('A'); // (char) (baseChar - 1));
 					} else {
@@ -1255,7 +1438,9 @@ return strBuf;
 							}
 						}
 					}
-				} else if (isSubInterfaceOf(type, Map.class)) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_MAP: {
 					Map<?, ?> map = (Map<?, ?>)field.get(this);
 					if (map == null && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1281,7 +1466,9 @@ return strBuf;
 							}
 						}
 					}
-				} else if (type.isEnum()) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_ENUM: {
 					Enum<?> e = (Enum<?>)field.get(this);
 					if (e == null && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1294,7 +1481,9 @@ return strBuf;
 						dos.writeByte(baseChar + value.length());
 						dos.writeBytes(value);
 					}
-				} else if (type == float.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_FLOAT: {
 					float f = field.getFloat(this);
 					if (f == 0.0 && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1303,7 +1492,9 @@ return strBuf;
 					String value = String.valueOf(f);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
-				} else if (type == double.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_DOUBLE: {
 					double d = field.getDouble(this);
 					if (d == 0.0d && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1312,7 +1503,9 @@ return strBuf;
 					String value = String.valueOf(d);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
-				} else if (type == short.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_SHORT: {
 					short s = field.getShort(this);
 					if (s == 0 && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1321,7 +1514,9 @@ return strBuf;
 					String value = String.valueOf(s);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
-				} else if (type == byte.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_BYTE: {
 					byte b = field.getByte(this);
 					if (b == 0 && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1330,7 +1525,9 @@ return strBuf;
 					String value = String.valueOf(b);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
-				} else if (type == char.class) {
+					break;
+				}
+				case SimpleSerializableCodec.TYPE_CHAR: {
 					int c = 0 + field.getChar(this);
 					if (c == 0 && ignoring) continue;
 					dos.writeByte(baseChar + name.length());
@@ -1339,23 +1536,15 @@ return strBuf;
 					String value = Integer.toString(c, 10);
 					dos.writeByte(baseChar + value.length());
 					dos.writeBytes(value);
+					break;
+				}
 				}
 			}
+		} catch (IOException e) {
+			throw e; // broken stream
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		int size = dos.size();
-		if (size > 0x1000000) { // 16 * 1024 * 1024
-			throw new RuntimeException(EXCEPTION_DATA_SIZE_TOO_LARGE);
-		}
-		// update size!
-		String sizeStr = String.valueOf(size - headSize);
-		int sizeLength = sizeStr.length();
-		byte[] bytes = baos.toByteArray();
-		for (int i = 0; i < sizeLength; i++) {
-			bytes[headSize - sizeLength - 1 + i] = (byte) sizeStr.charAt(i);
-		}
-		return bytes;
 	}
 
     @J2SIgnore
@@ -1908,6 +2097,20 @@ return strBuf;
 		}
 	}
 	
+    /**
+     * Same as DataOutputStream#writeBytes, but writes all bytes in one call
+     * instead of one synchronized write for each character.
+     */
+    @J2SIgnore
+	private static void writeLatin1Bytes(DataOutputStream dos, String s) throws IOException {
+		int length = s.length();
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		dos.write(bytes, 0, length);
+	}
+
 	/**
 	 * @param builder
 	 * @param s
@@ -2007,7 +2210,7 @@ if (s == null) {
 			} else {
 				dos.writeByte(baseChar + l4);
 			}
-			dos.writeBytes(s);
+			writeLatin1Bytes(dos, s);
 		} else {
 			dos.writeByte('s');
 			dos.writeByte('A'); // (char) (baseChar - 1));
@@ -2116,7 +2319,7 @@ if (ss != null) {
 			} else {
 				dos.writeByte(baseChar + l4);
 			}
-			dos.writeBytes(s);
+			writeLatin1Bytes(dos, s);
 		} else {
 			dos.writeByte('A'); // (char) (baseChar - 1));
 		}
@@ -2872,28 +3075,28 @@ while (index < end && index < objectEnd) {
 return true;
 	 */
 	public boolean deserialize(String str) {
-    	List<SimpleSerializable> ssObjs = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> ssObjs = newReferenceList();
     	ssObjs.add(this);
     	return deserialize(str, 0, ssObjs);
 	}
 	
     @J2SIgnore
 	public boolean deserializeBytes(byte[] bytes) {
-    	List<SimpleSerializable> ssObjs = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> ssObjs = newReferenceList();
     	ssObjs.add(this);
     	return deserializeBytes(bytes, 0, ssObjs);
 	}
 	
     @J2SIgnore
 	public boolean deserialize(String str, int start) {
-    	List<SimpleSerializable> ssObjs = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> ssObjs = newReferenceList();
     	ssObjs.add(this);
     	return deserialize(str, start, ssObjs);
 	}
 	
     @J2SIgnore
 	public boolean deserializeBytes(byte[] bytes, int start) {
-    	List<SimpleSerializable> ssObjs = new LinkedList<SimpleSerializable>();
+    	List<SimpleSerializable> ssObjs = newReferenceList();
     	ssObjs.add(this);
     	return deserializeBytes(bytes, start, ssObjs);
 	}
@@ -2952,8 +3155,8 @@ return true;
 			if (index + size > end) return false;
 		}
 		
-		Class<?> clazzType = this.getClass();
-		Map<String, Field> fieldMap = getSerializableFields(clazzType.getName(), clazzType);
+		SimpleSerializableCodec codec = SimpleSerializableCodec.getCodec(this.getClass());
+		Map<String, SimpleSerializableCodec.FieldCodec> fieldMap = codec.fieldMap;
 		int objectEnd = index + size;
 		Map<String, String> fieldAliasMap = getSimpleVersion() >= 202 ? fieldAliasMapping() : null;
 		String[] fMap = fieldAliasMap == null ? fieldMapping() : null;
@@ -2988,7 +3191,8 @@ return true;
 			}
 			char c2 = str.charAt(index++);
 			if (c2 == 'A' || c2 == 'Z' || c2 == 'Y') {
-				Field field = (Field) fieldMap.get(fieldName);
+				SimpleSerializableCodec.FieldCodec fc = fieldMap.get(fieldName);
+				Field field = fc == null ? null : fc.field;
 				c2 = str.charAt(index++);
 				char c3 = str.charAt(index++);
 				int l2 = c3 - baseChar;
@@ -3246,7 +3450,8 @@ return true;
 					s = str.substring(index, index + l4);
 					index += l4;
 				}
-				Field field = (Field) fieldMap.get(fieldName);
+				SimpleSerializableCodec.FieldCodec fc = fieldMap.get(fieldName);
+				Field field = fc == null ? null : fc.field;
 				if (field == null) {
 					continue;
 				}
@@ -3294,14 +3499,7 @@ return true;
 						if (s != null && s.length() > 0) {
 							Object eo = null;
 							try {
-								int v = Integer.parseInt(s);
-								Enum<?>[] enumConstants = (Enum<?> []) field.getType().getEnumConstants();
-								for (int i = 0; i < enumConstants.length; i++) {
-									if (enumConstants[i].ordinal() == v) {
-										eo = enumConstants[i];
-										break;
-									}
-								}
+								eo = fc.enumOf(Integer.parseInt(s));
 							} catch (Exception e) {
 							}
 							field.set(this, eo);
@@ -3401,8 +3599,8 @@ return true;
 			if (index + size > end) return false;
 		}
 		
-		Class<?> clazzType = this.getClass();
-		Map<String, Field> fieldMap = getSerializableFields(clazzType.getName(), clazzType);
+		SimpleSerializableCodec codec = SimpleSerializableCodec.getCodec(this.getClass());
+		Map<String, SimpleSerializableCodec.FieldCodec> fieldMap = codec.fieldMap;
 		int objectEnd = index + size;
 		Map<String, String> fieldAliasMap = getSimpleVersion() >= 202 ? fieldAliasMapping() : null;
 		String[] fMap = fieldAliasMap == null ? fieldMapping() : null;
@@ -3437,7 +3635,8 @@ return true;
 			}
 			char c2 = (char) bytes[index++];
 			if (c2 == 'A' || c2 == 'Z' || c2 == 'Y') {
-				Field field = (Field) fieldMap.get(fieldName);
+				SimpleSerializableCodec.FieldCodec fc = fieldMap.get(fieldName);
+				Field field = fc == null ? null : fc.field;
 				c2 = (char) bytes[index++]; // shift c2 to next char
 				char c3 = (char) bytes[index++];
 				int l2 = c3 - baseChar;
@@ -3720,7 +3919,8 @@ return true;
 					}
 					index += l4;
 				}
-				Field field = (Field) fieldMap.get(fieldName);
+				SimpleSerializableCodec.FieldCodec fc = fieldMap.get(fieldName);
+				Field field = fc == null ? null : fc.field;
 				if (field == null) {
 					continue;
 				}
@@ -3766,14 +3966,7 @@ return true;
 						if (s != null && s.length() > 0) {
 							Object eo = null;
 							try {
-								int v = Integer.parseInt(s);
-								Enum<?>[] enumConstants = (Enum<?> []) field.getType().getEnumConstants();
-								for (int i = 0; i < enumConstants.length; i++) {
-									if (enumConstants[i].ordinal() == v) {
-										eo = enumConstants[i];
-										break;
-									}
-								}
+								eo = fc.enumOf(Integer.parseInt(s));
 							} catch (Exception e) {
 							}
 							field.set(this, eo);
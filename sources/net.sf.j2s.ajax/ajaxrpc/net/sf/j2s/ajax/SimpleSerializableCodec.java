@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.lang.reflect.Field;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Pre-computed field layout of a SimpleSerializable class.
+ *
+ * Serializing or deserializing an object used to walk the map of reflective
+ * fields and classify each field's type through a chain of isSubclassOf and
+ * isSubInterfaceOf checks, for every field of every object. The codec does
+ * this classification only once per class and keeps the fields in an array,
+ * in the same order as the map returned by
+ * SimpleSerializable#getSerializableFields, so the serialized data stays
+ * exactly the same.
+ *
+ * Codecs are Java only and are created lazily on first use of a class.
+ */
+@J2SIgnore
+final class SimpleSerializableCodec {
+
+	static final int TYPE_UNKNOWN = 0;
+	static final int TYPE_STRING = 1;
+	static final int TYPE_INT = 2;
+	static final int TYPE_OBJECT = 3;
+	static final int TYPE_LONG = 4;
+	static final int TYPE_BOOLEAN = 5;
+	static final int TYPE_BYTE_ARRAY = 6;
+	static final int TYPE_STRING_ARRAY = 7;
+	static final int TYPE_OBJECT_ARRAY = 8;
+	static final int TYPE_INT_ARRAY = 9;
+	static final int TYPE_LONG_ARRAY = 10;
+	static final int TYPE_BOOLEAN_ARRAY = 11;
+	static final int TYPE_FLOAT_ARRAY = 12;
+	static final int TYPE_DOUBLE_ARRAY = 13;
+	static final int TYPE_SHORT_ARRAY = 14;
+	static final int TYPE_CHAR_ARRAY = 15;
+	static final int TYPE_COLLECTION = 16;
+	static final int TYPE_MAP = 17;
+	static final int TYPE_ENUM = 18;
+	static final int TYPE_FLOAT = 19;
+	static final int TYPE_DOUBLE = 20;
+	static final int TYPE_SHORT = 21;
+	static final int TYPE_BYTE = 22;
+	static final int TYPE_CHAR = 23;
+
+	/**
+	 * Serializable field with its type already classified.
+	 */
+	static final class FieldCodec {
+
+		final String name;
+
+		final Field field;
+
+		/**
+		 * Index of this field in the fields array.
+		 */
+		final int index;
+
+		final int type;
+
+		/**
+		 * For collections, 'Z' for lists, 'Y' for sets, 'Q' for queues and
+		 * 'W' for other collections.
+		 */
+		final char collectionType;
+
+		/**
+		 * Enum constants indexed by ordinal for enum fields, or null.
+		 */
+		final Enum<?>[] enumConstants;
+
+		FieldCodec(String name, Field field, int index) {
+			this.name = name;
+			this.field = field;
+			this.index = index;
+			Class<?> clazz = field.getType();
+			this.type = classify(clazz);
+			char cType = 0;
+			if (type == TYPE_COLLECTION) {
+				if (SimpleSerializable.isSubInterfaceOf(clazz, List.class)) {
+					cType = 'Z';
+				} else if (SimpleSerializable.isSubInterfaceOf(clazz, Set.class)) {
+					cType = 'Y';
+				} else if (SimpleSerializable.isSubInterfaceOf(clazz, Queue.class)) {
+					cType = 'Q';
+				} else {
+					cType = 'W';
+				}
+			}
+			this.collectionType = cType;
+			Enum<?>[] constants = null;
+			if (type == TYPE_ENUM) {
+				Object[] values = clazz.getEnumConstants();
+				if (values != null) {
+					constants = new Enum<?>[values.length];
+					for (int i = 0; i < values.length; i++) {
+						Enum<?> e = (Enum<?>) values[i];
+						constants[e.ordinal()] = e;
+					}
+				}
+			}
+			this.enumConstants = constants;
+		}
+
+		/**
+		 * Return enum constant of given ordinal or null if it is out of range.
+		 */
+		Enum<?> enumOf(int ordinal) {
+			if (enumConstants == null || ordinal < 0 || ordinal >= enumConstants.length) {
+				return null;
+			}
+			return enumConstants[ordinal];
+		}
+
+	}
+
+	/**
+	 * List of objects already serialized or deserialized in one graph.
+	 *
+	 * Objects are referred by their index in the list ('o' fields), which
+	 * used to be an O(n) LinkedList#indexOf or #get for each nested object.
+	 * This list keeps a hash index of the first index of each object, so
+	 * both lookups are O(1). The index is keyed by #equals and #hashCode, as
+	 * LinkedList#indexOf was, so classes overriding #equals are serialized
+	 * to the same bytes as before.
+	 */
+	static final class ReferenceList extends AbstractList<SimpleSerializable> implements RandomAccess {
+
+		private ArrayList<SimpleSerializable> objects = new ArrayList<SimpleSerializable>();
+
+		private Map<SimpleSerializable, Integer> indexes = new HashMap<SimpleSerializable, Integer>();
+
+		@Override
+		public SimpleSerializable get(int index) {
+			return objects.get(index);
+		}
+
+		@Override
+		public int size() {
+			return objects.size();
+		}
+
+		@Override
+		public void add(int index, SimpleSerializable ss) {
+			if (index == objects.size()) {
+				objects.add(ss);
+				if (ss != null && !indexes.containsKey(ss)) {
+					indexes.put(ss, Integer.valueOf(index));
+				}
+			} else {
+				objects.add(index, ss);
+				reindex();
+			}
+			modCount++;
+		}
+
+		@Override
+		public SimpleSerializable set(int index, SimpleSerializable ss) {
+			SimpleSerializable old = objects.set(index, ss);
+			reindex();
+			return old;
+		}
+
+		@Override
+		public SimpleSerializable remove(int index) {
+			SimpleSerializable old = objects.remove(index);
+			reindex();
+			modCount++;
+			return old;
+		}
+
+		@Override
+		public int indexOf(Object o) {
+			Integer index = indexes.get(o);
+			return index == null ? -1 : index.intValue();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return indexes.containsKey(o);
+		}
+
+		private void reindex() {
+			indexes.clear();
+			for (int i = objects.size() - 1; i >= 0; i--) {
+				SimpleSerializable ss = objects.get(i);
+				if (ss != null) {
+					indexes.put(ss, Integer.valueOf(i)); // keep the first index
+				}
+			}
+		}
+
+	}
+
+	private static Map<Class<?>, SimpleSerializableCodec> codecs = new ConcurrentHashMap<Class<?>, SimpleSerializableCodec>();
+
+	/**
+	 * Fields in the same order of the fields map.
+	 */
+	final FieldCodec[] fields;
+
+	/**
+	 * Field name to field codec.
+	 */
+	final Map<String, FieldCodec> fieldMap;
+
+	/**
+	 * Whether the class overrides SimpleSerializable#serialize(),
+	 * #serialize(SimpleFilter) or #serialize(SimpleFilter, List, boolean) or
+	 * not. If it does, serializing into an existing builder must go through
+	 * #serialize().
+	 */
+	final boolean serializeOverridden;
+
+	private SimpleSerializableCodec(Class<?> clazz, Map<String, Field> serializableFields) {
+		serializeOverridden = isOverridden(clazz, "serialize")
+				|| isOverridden(clazz, "serialize", SimpleFilter.class)
+				|| isOverridden(clazz, "serialize", SimpleFilter.class, List.class, boolean.class);
+		fields = new FieldCodec[serializableFields.size()];
+		fieldMap = new HashMap<String, FieldCodec>(serializableFields.size() * 2);
+		int i = 0;
+		for (Iterator<Entry<String, Field>> itr = serializableFields.entrySet().iterator(); itr.hasNext();) {
+			Entry<String, Field> entry = itr.next();
+			Field field = entry.getValue();
+			try {
+				field.setAccessible(true); // skip access checking on each get/set
+			} catch (SecurityException e) {
+				// keep default access checking
+			}
+			FieldCodec fc = new FieldCodec(entry.getKey(), field, i);
+			fields[i++] = fc;
+			fieldMap.put(fc.name, fc);
+		}
+	}
+
+	/**
+	 * Return the codec of the given class, creating it on first use.
+	 *
+	 * @param clazz SimpleSerializable class
+	 * @return codec for the given class
+	 */
+	static SimpleSerializableCodec getCodec(Class<?> clazz) {
+		SimpleSerializableCodec codec = codecs.get(clazz);
+		if (codec == null) {
+			codec = new SimpleSerializableCodec(clazz, SimpleSerializable.getSerializableFields(clazz.getName(), clazz));
+			// It is OK that two threads create codecs at the same time, they are identical
+			codecs.put(clazz, codec);
+		}
+		return codec;
+	}
+
+	private static boolean isOverridden(Class<?> clazz, String name, Class<?>... parameterTypes) {
+		while (clazz != null && clazz != SimpleSerializable.class) {
+			try {
+				clazz.getDeclaredMethod(name, parameterTypes);
+				return true;
+			} catch (NoSuchMethodException e) {
+				clazz = clazz.getSuperclass();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Classify the given field type. Checking order must be the same as the
+	 * order of the original if-else checking in serializing.
+	 */
+	static int classify(Class<?> type) {
+		if (type == String.class) {
+			return TYPE_STRING;
+		} else if (type == int.class) {
+			return TYPE_INT;
+		} else if (SimpleSerializable.isSubclassOf(type, SimpleSerializable.class) || type == SimpleSerializable.class) {
+			return TYPE_OBJECT;
+		} else if (type == long.class) {
+			return TYPE_LONG;
+		} else if (type == boolean.class) {
+			return TYPE_BOOLEAN;
+		} else if (type.isArray()) {
+			if (type == byte[].class) {
+				return TYPE_BYTE_ARRAY;
+			} else if (type == String[].class) {
+				return TYPE_STRING_ARRAY;
+			} else if (SimpleSerializable.isSubclassOf(type, SimpleSerializable[].class) || type == SimpleSerializable[].class) {
+				return TYPE_OBJECT_ARRAY;
+			} else if (type == int[].class) {
+				return TYPE_INT_ARRAY;
+			} else if (type == long[].class) {
+				return TYPE_LONG_ARRAY;
+			} else if (type == boolean[].class) {
+				return TYPE_BOOLEAN_ARRAY;
+			} else if (type == float[].class) {
+				return TYPE_FLOAT_ARRAY;
+			} else if (type == double[].class) {
+				return TYPE_DOUBLE_ARRAY;
+			} else if (type == short[].class) {
+				return TYPE_SHORT_ARRAY;
+			} else if (type == char[].class) {
+				return TYPE_CHAR_ARRAY;
+			}
+			return TYPE_UNKNOWN; // others unknown or unsupported types!
+		} else if (SimpleSerializable.isSubInterfaceOf(type, Collection.class)) {
+			return TYPE_COLLECTION;
+		} else if (SimpleSerializable.isSubInterfaceOf(type, Map.class)) {
+			return TYPE_MAP;
+		} else if (type.isEnum()) {
+			return TYPE_ENUM;
+		} else if (type == float.class) {
+			return TYPE_FLOAT;
+		} else if (type == double.class) {
+			return TYPE_DOUBLE;
+		} else if (type == short.class) {
+			return TYPE_SHORT;
+		} else if (type == byte.class) {
+			return TYPE_BYTE;
+		} else if (type == char.class) {
+			return TYPE_CHAR;
+		}
+		return TYPE_UNKNOWN;
+	}
+
+}
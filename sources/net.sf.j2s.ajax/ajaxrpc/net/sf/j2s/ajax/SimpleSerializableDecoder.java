@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Incremental decoder for a stream of SimpleSerializable objects in bytes,
+ * which are serialized by SimpleSerializable#serializeBytes.
+ *
+ * Bytes may be fed in chunks of any size, as they arrive from a socket or
+ * a channel. The decoder reads the header of the next object, then allocates
+ * a buffer of the exact size given by its header and fills it, so there is
+ * no growing buffer, no re-parsing of the same bytes and no copying of
+ * leftover bytes between chunks.
+ *
+ * A decoder is not thread safe.
+ */
+@J2SIgnore
+public class SimpleSerializableDecoder {
+
+	/**
+	 * "WLL" + version + class name + "#00000000$"
+	 */
+	private static final int MAX_HEADER_SIZE = 1024;
+
+	private SimpleFilter filter;
+
+	private byte[] header = new byte[128];
+
+	private int headerLength;
+
+	private int sizeStart = -1;
+
+	private byte[] data;
+
+	private int dataLength;
+
+	public SimpleSerializableDecoder() {
+		super();
+	}
+
+	/**
+	 * @param filter SimpleFilter is used to filter out those invalid class names
+	 */
+	public SimpleSerializableDecoder(SimpleFilter filter) {
+		super();
+		this.filter = filter;
+	}
+
+	/**
+	 * Decode given bytes.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return objects completed by given bytes, may be empty.
+	 */
+	public List<SimpleSerializable> decode(byte[] bytes, int offset, int length) {
+		return decode(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	/**
+	 * Decode all remaining bytes of the given buffer. Bytes of an incomplete
+	 * object are kept in the decoder and will be completed by later calls.
+	 *
+	 * @param buffer
+	 * @return objects completed by given bytes, may be empty.
+	 * @throws RuntimeException with message of
+	 * SimpleSerializable#EXCEPTION_INVALID_SIMPLE_FORMAT or
+	 * SimpleSerializable#EXCEPTION_DATA_SIZE_TOO_LARGE for invalid data
+	 */
+	public List<SimpleSerializable> decode(ByteBuffer buffer) {
+		List<SimpleSerializable> objects = new ArrayList<SimpleSerializable>();
+		while (buffer.hasRemaining()) {
+			if (data == null && !readHeader(buffer)) {
+				break; // need more bytes for header
+			}
+			int count = Math.min(buffer.remaining(), data.length - dataLength);
+			buffer.get(data, dataLength, count);
+			dataLength += count;
+			if (dataLength == data.length) {
+				byte[] bytes = data;
+				data = null;
+				dataLength = 0;
+				SimpleSerializable ss = SimpleSerializable.parseInstance(bytes, filter);
+				if (ss == SimpleSerializable.ERROR) {
+					throw new RuntimeException(SimpleSerializable.EXCEPTION_INVALID_SIMPLE_FORMAT);
+				}
+				if (ss != null && ss != SimpleSerializable.UNKNOWN) {
+					ss.deserializeBytes(bytes);
+					objects.add(ss);
+				}
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * @return whether there are bytes of an incomplete object or not
+	 */
+	public boolean hasPendingBytes() {
+		return headerLength > 0 || data != null;
+	}
+
+	/**
+	 * Discard bytes of an incomplete object.
+	 */
+	public void reset() {
+		headerLength = 0;
+		sizeStart = -1;
+		data = null;
+		dataLength = 0;
+	}
+
+	/*
+	 * Read header bytes till '$' after '#'. If header is completed, allocate
+	 * data buffer for the whole object.
+	 */
+	private boolean readHeader(ByteBuffer buffer) {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (headerLength == header.length) {
+				if (headerLength >= MAX_HEADER_SIZE) {
+					throw new RuntimeException(SimpleSerializable.EXCEPTION_INVALID_SIMPLE_FORMAT);
+				}
+				byte[] newHeader = new byte[Math.min(headerLength * 2, MAX_HEADER_SIZE)];
+				System.arraycopy(header, 0, newHeader, 0, headerLength);
+				header = newHeader;
+			}
+			header[headerLength++] = b;
+			if (headerLength <= 3) {
+				if (b != "WLL".charAt(headerLength - 1)) {
+					throw new RuntimeException(SimpleSerializable.EXCEPTION_INVALID_SIMPLE_FORMAT);
+				}
+			} else if (sizeStart == -1) {
+				if (b == '#') {
+					sizeStart = headerLength;
+				}
+			} else if (b == '$') {
+				int size = 0;
+				for (int i = sizeStart; i < headerLength - 1; i++) {
+					size = size * 10 + (header[i] - '0');
+				}
+				if (size + headerLength > 0x1000000) { // 16 * 1024 * 1024
+					throw new RuntimeException(SimpleSerializable.EXCEPTION_DATA_SIZE_TOO_LARGE);
+				}
+				data = new byte[headerLength + size];
+				System.arraycopy(header, 0, data, 0, headerLength);
+				dataLength = headerLength;
+				headerLength = 0;
+				sizeStart = -1;
+				return true;
+			} else if (b < '0' || b > '9') {
+				throw new RuntimeException(SimpleSerializable.EXCEPTION_INVALID_SIMPLE_FORMAT);
+			}
+		}
+		return false;
+	}
+
+}
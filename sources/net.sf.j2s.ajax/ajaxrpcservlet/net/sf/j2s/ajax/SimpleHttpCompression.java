@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compression of HTTP responses, negotiated by request header
+ * "Accept-Encoding". Simple RPC and pipe data are full of repeated class
+ * names and field names, and are compressed well.
+ * 
+ * @author zhou renjian
+ * 
+ * @j2sIgnore
+ */
+public class SimpleHttpCompression {
+
+	public static final String GZIP = "gzip";
+	
+	public static final String DEFLATE = "deflate";
+	
+	private static Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/*
+	 * Java 7's constructors with sync flush, through reflection as this
+	 * class is built for Java 5. Null on older JVMs, where flushing a
+	 * compressing stream does not flush compressed data, and streaming
+	 * responses are not compressed.
+	 */
+	private static Constructor<GZIPOutputStream> gzipSyncFlush;
+	
+	private static Constructor<DeflaterOutputStream> deflateSyncFlush;
+	
+	static {
+		try {
+			gzipSyncFlush = GZIPOutputStream.class.getConstructor(OutputStream.class, int.class, boolean.class);
+			deflateSyncFlush = DeflaterOutputStream.class.getConstructor(OutputStream.class, boolean.class);
+		} catch (Throwable e) {
+			gzipSyncFlush = null;
+			deflateSyncFlush = null;
+		}
+	}
+	
+	/**
+	 * Writer of compressed response. Closing it writes out the trailer of
+	 * compressed data.
+	 */
+	static class CompressedWriter extends PrintWriter {
+
+		CompressedWriter(OutputStream out) {
+			super(new OutputStreamWriter(out, UTF_8));
+		}
+		
+	}
+	
+	/**
+	 * Return the preferred encoding accepted by the given request.
+	 * 
+	 * @param req
+	 * @return "gzip", "deflate" or null if no compression is accepted.
+	 */
+	public static String negotiate(HttpServletRequest req) {
+		return negotiate(req.getHeader("Accept-Encoding"));
+	}
+	
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null || acceptEncoding.length() == 0) {
+			return null;
+		}
+		boolean gzip = false;
+		boolean deflate = false;
+		boolean any = false;
+		boolean gzipRefused = false;
+		boolean deflateRefused = false;
+		String[] codings = acceptEncoding.split(",");
+		for (int i = 0; i < codings.length; i++) {
+			String coding = codings[i].trim();
+			boolean refused = false;
+			int idx = coding.indexOf(';');
+			if (idx != -1) {
+				String params = coding.substring(idx + 1).trim();
+				coding = coding.substring(0, idx).trim();
+				if (params.startsWith("q=")) {
+					try {
+						refused = Double.parseDouble(params.substring(2).trim()) <= 0;
+					} catch (NumberFormatException e) {
+						// ignore invalid quality value
+					}
+				}
+			}
+			if (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+				gzip = !refused;
+				gzipRefused = refused;
+			} else if (DEFLATE.equalsIgnoreCase(coding)) {
+				deflate = !refused;
+				deflateRefused = refused;
+			} else if ("*".equals(coding)) {
+				any = !refused;
+			}
+		}
+		if (gzip || (any && !gzipRefused)) {
+			return GZIP;
+		}
+		if (deflate || (any && !deflateRefused)) {
+			return DEFLATE;
+		}
+		return null;
+	}
+	
+	private static DeflaterOutputStream compressingStream(OutputStream os, String encoding)
+			throws IOException {
+		if (GZIP.equals(encoding)) {
+			return new GZIPOutputStream(os, 8192);
+		}
+		return new DeflaterOutputStream(os);
+	}
+	
+	/*
+	 * Stream of which each flush flushes all written data. Only for JVMs
+	 * of #isStreamingSupported.
+	 */
+	private static DeflaterOutputStream syncFlushStream(OutputStream os, String encoding)
+			throws IOException {
+		try {
+			if (GZIP.equals(encoding)) {
+				return gzipSyncFlush.newInstance(os, Integer.valueOf(8192), Boolean.TRUE);
+			}
+			return deflateSyncFlush.newInstance(os, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (Exception e) {
+			throw new RuntimeException(e); // should never happen
+		}
+	}
+	
+	/**
+	 * @return whether streaming responses, which are flushed before they
+	 * are finished, are compressed or not. Needs Java 7 or later.
+	 */
+	public static boolean isStreamingSupported() {
+		return deflateSyncFlush != null;
+	}
+	
+	/**
+	 * Compress the given bytes.
+	 * 
+	 * @param bytes
+	 * @param encoding "gzip" or "deflate"
+	 * @return compressed bytes
+	 */
+	public static byte[] compress(byte[] bytes, String encoding) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try {
+			DeflaterOutputStream dos = compressingStream(baos, encoding);
+			dos.write(bytes);
+			dos.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e); // should never happen on byte array
+		}
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * Write the given content in UTF-8 and the given encoding.
+	 * 
+	 * @param resp
+	 * @param content
+	 * @param encoding "gzip", "deflate" or null for no compression.
+	 * @throws IOException
+	 */
+	public static void write(HttpServletResponse resp, String content, String encoding) throws IOException {
+		if (encoding == null) {
+			resp.getWriter().write(content);
+			return;
+		}
+		byte[] bytes = compress(content.getBytes(UTF_8), encoding);
+		resp.setHeader("Content-Encoding", encoding);
+		resp.addHeader("Vary", "Accept-Encoding");
+		resp.setContentLength(bytes.length);
+		resp.getOutputStream().write(bytes);
+	}
+	
+	/**
+	 * Return writer of response in the given encoding. Each flush of the
+	 * writer flushes all written data to client, so streaming responses
+	 * still work. Writer must be closed to finish the response.
+	 * 
+	 * Response is not compressed if #isStreamingSupported is false.
+	 * 
+	 * @param resp
+	 * @param encoding "gzip" or "deflate"
+	 * @return writer of response
+	 * @throws IOException
+	 */
+	public static PrintWriter getWriter(HttpServletResponse resp, String encoding) throws IOException {
+		if (!isStreamingSupported()) {
+			return resp.getWriter();
+		}
+		OutputStream os = resp.getOutputStream();
+		resp.setHeader("Content-Encoding", encoding);
+		resp.addHeader("Vary", "Accept-Encoding");
+		return new CompressedWriter(syncFlushStream(os, encoding));
+	}
+	
+	/**
+	 * Return output stream of response in the given encoding. Each flush
+	 * of the stream flushes all written data to client. Stream must be
+	 * closed to finish the response.
+	 * 
+	 * Response is not compressed if #isStreamingSupported is false.
+	 * 
+	 * @param resp
+	 * @param encoding "gzip", "deflate" or null for no compression.
+	 * @return output stream of response
+	 * @throws IOException
+	 */
+	public static OutputStream getOutputStream(HttpServletResponse resp, String encoding) throws IOException {
+		if (encoding == null || !isStreamingSupported()) {
+			return resp.getOutputStream();
+		}
+		OutputStream os = resp.getOutputStream();
+		resp.setHeader("Content-Encoding", encoding);
+		resp.addHeader("Vary", "Accept-Encoding");
+		return syncFlushStream(os, encoding);
+	}
+	
+	/**
+	 * @param writer
+	 * @return whether the writer is a writer of compressed response or not
+	 */
+	public static boolean isCompressed(PrintWriter writer) {
+		return writer instanceof CompressedWriter;
+	}
+	
+}
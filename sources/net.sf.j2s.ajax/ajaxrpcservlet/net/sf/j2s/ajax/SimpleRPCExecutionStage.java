@@ -0,0 +1,518 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Execution stage of Simple RPC runnables, in front of #ajaxRun.
+ * 
+ * Runnables are run by a limited number of threads. Running runnables of
+ * each class can be limited, so slow runnables of one class can not take
+ * up all threads. When too many runnables are waiting, new runnables are
+ * rejected instead of being queued, and a runnable not run before its
+ * deadline is dropped. Latency of runnables of each class is recorded in
+ * histograms.
+ * 
+ * A call can be waited for, or be listened to without blocking the thread,
+ * e.g. by a container's thread which is returned in asynchronous mode.
+ * 
+ * @j2sIgnore
+ */
+public class SimpleRPCExecutionStage {
+
+	/**
+	 * Call is run successfully.
+	 */
+	public static final int DONE = 0;
+	
+	/**
+	 * Call throws exception.
+	 */
+	public static final int FAILED = 1;
+	
+	/**
+	 * Call is not completed before its deadline.
+	 */
+	public static final int TIMEOUT = 2;
+	
+	private static final int PENDING = 3;
+	
+	private static final int RUNNING = 4;
+	
+	private static final int CANCELLED = 5;
+	
+	/**
+	 * Histogram of latencies in buckets of power of 2 milliseconds.
+	 */
+	public static class LatencyHistogram {
+		
+		private static final int BUCKETS = 24; // up to 2^23 ms, about 2.3 hours
+		
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		
+		private final AtomicLong count = new AtomicLong();
+		
+		private final AtomicLong total = new AtomicLong();
+		
+		private final AtomicLong max = new AtomicLong();
+		
+		private final AtomicLong rejected = new AtomicLong();
+		
+		private final AtomicLong timeouts = new AtomicLong();
+		
+		void record(long millis) {
+			int bucket = 0;
+			while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			total.addAndGet(millis);
+			while (true) {
+				long m = max.get();
+				if (millis <= m || max.compareAndSet(m, millis)) {
+					break;
+				}
+			}
+		}
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		public long getMean() {
+			long c = count.get();
+			return c == 0 ? 0 : total.get() / c;
+		}
+		
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * @param percentile 0.0 - 1.0
+		 * @return upper bound in milliseconds of the latency at given
+		 * percentile
+		 */
+		public long getPercentile(double percentile) {
+			long c = count.get();
+			if (c == 0) {
+				return 0;
+			}
+			long target = (long) Math.ceil(c * percentile);
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				sum += buckets.get(i);
+				if (sum >= target) {
+					return Math.min(1L << i, max.get());
+				}
+			}
+			return max.get();
+		}
+		
+		/**
+		 * @return number of runnables rejected as too many runnables are waiting
+		 */
+		public long getRejectedCount() {
+			return rejected.get();
+		}
+		
+		/**
+		 * @return number of runnables not completed before their deadlines
+		 */
+		public long getTimeoutCount() {
+			return timeouts.get();
+		}
+		
+		@Override
+		public String toString() {
+			return "count=" + getCount() + " mean=" + getMean() + "ms p50=" + getPercentile(0.5)
+					+ "ms p99=" + getPercentile(0.99) + "ms max=" + getMax() + "ms rejected="
+					+ getRejectedCount() + " timeouts=" + getTimeoutCount();
+		}
+		
+	}
+	
+	/**
+	 * A submitted runnable.
+	 */
+	public class Call implements Runnable {
+		
+		final String className;
+		
+		final Runnable task;
+		
+		final LatencyHistogram histogram;
+		
+		final long submitted = System.currentTimeMillis();
+		
+		private int state = PENDING;
+		
+		private Runnable listener;
+		
+		private ScheduledFuture<?> expiring;
+		
+		Call(String className, Runnable task, LatencyHistogram histogram) {
+			this.className = className;
+			this.task = task;
+			this.histogram = histogram;
+		}
+		
+		public void run() {
+			synchronized (this) {
+				if (state != PENDING) { // cancelled
+					release(className);
+					return;
+				}
+				state = RUNNING;
+			}
+			waiting.decrementAndGet();
+			int result = FAILED;
+			try {
+				task.run();
+				result = DONE;
+			} catch (Throwable e) {
+				e.printStackTrace();
+			} finally {
+				histogram.record(System.currentTimeMillis() - submitted);
+				complete(result);
+				release(className);
+			}
+		}
+		
+		void complete(int result) {
+			Runnable l = null;
+			synchronized (this) {
+				state = result;
+				notifyAll();
+				l = listener;
+				listener = null;
+				if (expiring != null) {
+					expiring.cancel(false);
+					expiring = null;
+				}
+			}
+			if (l != null) {
+				l.run();
+			}
+		}
+		
+		boolean cancel() {
+			synchronized (this) {
+				if (state != PENDING) {
+					return false;
+				}
+				state = CANCELLED;
+			}
+			waiting.decrementAndGet();
+			return true;
+		}
+		
+		/**
+		 * Wait until the call is completed or the given time since its
+		 * submission is elapsed. Call not started yet is cancelled when
+		 * time is elapsed.
+		 * 
+		 * @param timeout milliseconds since submission, 0 for no limit
+		 * @return #DONE, #FAILED or #TIMEOUT
+		 */
+		public int await(long timeout) {
+			synchronized (this) {
+				try {
+					while (state == PENDING || state == RUNNING) {
+						if (timeout <= 0) {
+							wait();
+						} else {
+							long remaining = submitted + timeout - System.currentTimeMillis();
+							if (remaining <= 0) {
+								break;
+							}
+							wait(remaining);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (state == DONE || state == FAILED) {
+					return state;
+				}
+			}
+			cancel(); // running call is left to be completed
+			histogram.timeouts.incrementAndGet();
+			return TIMEOUT;
+		}
+		
+		/**
+		 * Run the given listener once, without blocking current thread, when
+		 * the call is completed or the given time since its submission is
+		 * elapsed, as #await does. Listener is run by the thread completing
+		 * the call, by the stage's timer, or by current thread if the call
+		 * is completed already. Listener gets the result by #getState.
+		 * 
+		 * @param listener
+		 * @param timeout milliseconds since submission, 0 for no limit
+		 */
+		public void listen(Runnable listener, long timeout) {
+			synchronized (this) {
+				if (state == PENDING || state == RUNNING) {
+					this.listener = listener;
+					if (timeout > 0) {
+						long remaining = submitted + timeout - System.currentTimeMillis();
+						expiring = schedule(new Runnable() {
+							public void run() {
+								expire();
+							}
+						}, remaining > 0 ? remaining : 0);
+					}
+					if (expiring != null || timeout <= 0) {
+						return;
+					}
+					this.listener = null; // shut down
+				}
+			}
+			listener.run();
+		}
+		
+		private void expire() {
+			Runnable l = null;
+			synchronized (this) {
+				if (listener == null) {
+					return; // completed
+				}
+				l = listener;
+				listener = null;
+				expiring = null;
+			}
+			cancel(); // running call is left to be completed
+			histogram.timeouts.incrementAndGet();
+			l.run();
+		}
+		
+		/**
+		 * @return #DONE, #FAILED, or #TIMEOUT if the call is not completed
+		 */
+		public int getState() {
+			synchronized (this) {
+				return state == DONE || state == FAILED ? state : TIMEOUT;
+			}
+		}
+		
+	}
+	
+	private static class ClassQueue {
+		
+		int active;
+		
+		LinkedList<Call> pending = new LinkedList<Call>();
+		
+	}
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final int queueLimit;
+	
+	private final int classLimit;
+	
+	private final Map<String, Integer> classLimits = new ConcurrentHashMap<String, Integer>();
+	
+	private final Map<String, ClassQueue> classes = new HashMap<String, ClassQueue>();
+	
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	
+	private final AtomicInteger waiting = new AtomicInteger();
+	
+	private ScheduledExecutorService timer;
+	
+	/**
+	 * @param threads number of running threads
+	 * @param queueLimit maximum waiting runnables, 0 for no limit
+	 * @param classLimit maximum running runnables of each class, 0 for no limit
+	 */
+	public SimpleRPCExecutionStage(int threads, int queueLimit, int classLimit) {
+		this.queueLimit = queueLimit;
+		this.classLimit = classLimit;
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Simple RPC Worker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Set maximum running runnables of the given class.
+	 * 
+	 * @param className
+	 * @param limit 0 for no limit
+	 */
+	public void setClassLimit(String className, int limit) {
+		classLimits.put(className, Integer.valueOf(limit));
+	}
+	
+	public int getClassLimit(String className) {
+		Integer limit = classLimits.get(className);
+		return limit != null ? limit.intValue() : classLimit;
+	}
+	
+	private LatencyHistogram histogramOf(String className) {
+		LatencyHistogram histogram = histograms.get(className);
+		if (histogram == null) {
+			synchronized (histograms) {
+				histogram = histograms.get(className);
+				if (histogram == null) {
+					histogram = new LatencyHistogram();
+					histograms.put(className, histogram);
+				}
+			}
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Submit the given task of runnable of the given class.
+	 * 
+	 * @param className
+	 * @param task
+	 * @return call to wait for, or null if the task is rejected as too many
+	 * tasks are waiting.
+	 */
+	public Call submit(String className, Runnable task) {
+		LatencyHistogram histogram = histogramOf(className);
+		if (waiting.incrementAndGet() > queueLimit && queueLimit > 0) {
+			waiting.decrementAndGet();
+			histogram.rejected.incrementAndGet();
+			return null;
+		}
+		Call call = new Call(className, task, histogram);
+		int limit = getClassLimit(className);
+		synchronized (classes) {
+			ClassQueue queue = classes.get(className);
+			if (queue == null) {
+				queue = new ClassQueue();
+				classes.put(className, queue);
+			}
+			if (limit > 0 && queue.active >= limit) {
+				queue.pending.add(call);
+				return call;
+			}
+			queue.active++;
+		}
+		dispatch(call);
+		return call;
+	}
+	
+	private void dispatch(Call call) {
+		try {
+			executor.execute(call);
+		} catch (RejectedExecutionException e) { // shut down
+			if (call.cancel()) {
+				call.complete(FAILED);
+			}
+			release(call.className);
+		}
+	}
+	
+	/*
+	 * Run the given task after the given delay by the timer, which is
+	 * started on first use.
+	 * 
+	 * @return null if the stage is shut down
+	 */
+	private synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+		if (executor.isShutdown()) {
+			return null;
+		}
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Simple RPC Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		try {
+			return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+	
+	private void release(String className) {
+		Call next = null;
+		synchronized (classes) {
+			ClassQueue queue = classes.get(className);
+			if (queue == null) {
+				return;
+			}
+			while ((next = queue.pending.poll()) != null) {
+				synchronized (next) {
+					if (next.state == PENDING) {
+						break;
+					}
+				}
+			}
+			if (next == null) {
+				queue.active--;
+				if (queue.active <= 0) {
+					classes.remove(className);
+				}
+				return;
+			}
+		}
+		dispatch(next);
+	}
+	
+	/**
+	 * @return number of runnables waiting to be run
+	 */
+	public int getWaitingCount() {
+		return waiting.get();
+	}
+	
+	/**
+	 * @return latency histograms of runnable classes, sorted by class name
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		return new TreeMap<String, LatencyHistogram>(histograms);
+	}
+	
+	public void shutdown() {
+		synchronized (this) {
+			executor.shutdown();
+			if (timer != null) {
+				timer.shutdown();
+			}
+		}
+	}
+	
+}
@@ -11,15 +11,28 @@
 
 package net.sf.j2s.ajax;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -54,6 +67,46 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	
 	protected boolean managingPipe = false;
 	
+	/*
+	 * Responses not smaller than this size are compressed if client accepts.
+	 * Negative for no compression.
+	 */
+	protected int compressThreshold = 1024;
+	
+	protected int batchLimit = 64;
+	
+	/*
+	 * Runnables of a batch are run in parallel by this executor if it
+	 * is not null.
+	 */
+	protected ExecutorService batchExecutor;
+	
+	/*
+	 * Runnables are run by this stage instead of container's thread, if
+	 * it is not null. POST requests of single runnable are responded in
+	 * Servlet 3.0's asynchronous mode if the container supports it, so
+	 * container's thread is returned once the runnable is submitted.
+	 * Otherwise, container's thread waits for its runnable, up to
+	 * #maxRunningTime, and container's thread pool should be larger than
+	 * stage's threads plus its waiting queue.
+	 */
+	protected SimpleRPCExecutionStage executionStage;
+	
+	private static boolean asyncChecked;
+	
+	private static Method isAsyncSupportedMethod;
+	
+	private static Method startAsyncMethod;
+	
+	private static Method setTimeoutMethod;
+	
+	private static Method completeMethod;
+	
+	/*
+	 * Milliseconds for runnable to be completed, 0 for no limit.
+	 */
+	protected long runningTimeLimit = 0;
+	
 	private static SimpleFilter NO_DELTA_FILTER = new SimpleFilter() {
 		
 		public boolean accept(String field) {
@@ -66,10 +119,94 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	
 	};
 
+	/*
+	 * Delta response of fields marked by SimpleRPCRunnable#markDirty.
+	 */
+	private static class DirtyFilter implements SimpleFilter {
+		
+		private SimpleRPCRunnable runnable;
+		
+		DirtyFilter(SimpleRPCRunnable runnable) {
+			this.runnable = runnable;
+		}
+		
+		public boolean accept(String field) {
+			return runnable.isDirty(field);
+		}
+
+		public boolean ignoreDefaultFields() {
+			return false;
+		}
+		
+	}
+	
+	private SimpleFilter runnableFilter = new SimpleFilter() {
+
+		public boolean accept(String clazzName) {
+			return validateRunnable(clazzName);
+		}
+
+		public boolean ignoreDefaultFields() {
+			return false;
+		}
+
+	};
+	
+	/*
+	 * Subclasses which still override #getRunnableByRequest(String) get
+	 * POST request as string.
+	 */
+	private final boolean stringRequestOverridden = isStringRequestOverridden(getClass());
+	
+	private static boolean isStringRequestOverridden(Class<?> clazz) {
+		while (clazz != null && clazz != SimpleRPCHttpServlet.class) {
+			try {
+				clazz.getDeclaredMethod("getRunnableByRequest", String.class);
+				return true;
+			} catch (NoSuchMethodException e) {
+				clazz = clazz.getSuperclass();
+			}
+		}
+		return false;
+	}
+	
 	protected long maxPostLimit() {
 		return postLimit;
 	}
 	
+	protected int minCompressingSize() {
+		return compressThreshold;
+	}
+	
+	protected int maxBatchSize() {
+		return batchLimit;
+	}
+	
+	/**
+	 * Return milliseconds for the given runnable to be completed, including
+	 * waiting time in execution stage. Service unavailable error is sent
+	 * if runnable is not completed in time. Without asynchronous mode,
+	 * container's thread is blocked meanwhile, so a limit also bounds how
+	 * long a slow runnable may hold a container's thread.
+	 * 
+	 * @param runnable
+	 * @return milliseconds, 0 for no limit
+	 */
+	protected long maxRunningTime(SimpleRPCRunnable runnable) {
+		return runningTimeLimit;
+	}
+	
+	/**
+	 * @return latency histograms of runnable classes, empty if runnables are
+	 * not run by execution stage.
+	 */
+	public Map<String, SimpleRPCExecutionStage.LatencyHistogram> getLatencyHistograms() {
+		if (executionStage == null) {
+			return new HashMap<String, SimpleRPCExecutionStage.LatencyHistogram>();
+		}
+		return executionStage.getHistograms();
+	}
+	
 	/**
 	 * Return support cross site script request or not.
 	 * 
@@ -112,25 +249,77 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	 * specified class name is invalid, null will be returned.
 	 */
 	protected SimpleRPCRunnable getRunnableByRequest(String request) {
-		SimpleSerializable instance = SimpleSerializable.parseInstance(request, new SimpleFilter() {
-
-			public boolean accept(String clazzName) {
-				return validateRunnable(clazzName);
+		SimpleSerializable instance = SimpleSerializable.parseInstance(request, runnableFilter);
+		if (instance instanceof SimpleRPCRunnable) {
+			if (instance.deserialize(request)) {
+				return prepareRunnable((SimpleRPCRunnable) instance);
 			}
-
-			public boolean ignoreDefaultFields() {
-				return false;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get SimpleRPCRunnable instance correspond to the given request bytes,
+	 * which are parsed directly without being converted into string. 
+	 * Requests serialized as string, e.g. from browsers, are decoded in
+	 * UTF-8 and parsed by #getRunnableByRequest(String).
+	 * 
+	 * @param request bytes of POST data
+	 * @return SimpleRPCRunnable instance. If request is bad request or 
+	 * specified class name is invalid, null will be returned.
+	 */
+	protected SimpleRPCRunnable getRunnableByRequest(byte[] request) {
+		if (isStringRequest(request)) {
+			try {
+				return getRunnableByRequest(new String(request, "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				return null; // should never happen!
 			}
-
-		});
+		}
+		SimpleSerializable instance = SimpleSerializable.parseInstance(request, runnableFilter);
 		if (instance instanceof SimpleRPCRunnable) {
-			if (instance.deserialize(request)) {
-				return (SimpleRPCRunnable) instance;
+			if (instance.deserializeBytes(request)) {
+				return prepareRunnable((SimpleRPCRunnable) instance);
 			}
 		}
 		return null;
 	}
 	
+	/*
+	 * Serialized string and serialized bytes share the same "WLL" header,
+	 * but only the size of serialized bytes counts bytes. A string with
+	 * characters out of ASCII, e.g. compact bytes or non-English texts, is
+	 * encoded into more bytes than its size.
+	 */
+	static boolean isStringRequest(byte[] request) {
+		if (request.length <= 7 || 'W' != request[0] || 'L' != request[1] || 'L' != request[2]) {
+			return false;
+		}
+		int index = 3;
+		while (index < request.length && request[index] != '#') {
+			index++;
+		}
+		int size = 0;
+		for (index++; index < request.length && request[index] != '$'; index++) {
+			byte b = request[index];
+			if (b < '0' || b > '9') {
+				return false; // no size, or invalid format
+			}
+			size = size * 10 + (b - '0');
+		}
+		return index < request.length && request.length - index - 1 > size;
+	}
+	
+	/**
+	 * Prepare the runnable parsed from request before it is run.
+	 * 
+	 * @param runnable
+	 * @return runnable to be run, or null for invalid runnable.
+	 */
+	protected SimpleRPCRunnable prepareRunnable(SimpleRPCRunnable runnable) {
+		return runnable;
+	}
+	
 	/*
 	 * Example of web.xml:
     <servlet>
@@ -157,10 +346,45 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 			<param-name>simple.rpc.xss.max.latency</param-name>
 			<param-value>6000</param-value>
 		</init-param>
+		<init-param>
+			<param-name>simple.rpc.compress.threshold</param-name>
+			<param-value>1024</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.batch.max</param-name>
+			<param-value>64</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.batch.threads</param-name>
+			<param-value>8</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.threads</param-name>
+			<param-value>32</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.queue.limit</param-name>
+			<param-value>200</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.class.limit</param-name>
+			<param-value>8</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.class.limits</param-name>
+			<param-value>
+				org.java2script.notepad.SaveNoteRunnable=2;
+			</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.max.running.time</param-name>
+			<param-value>10000</param-value>
+		</init-param>
 		<init-param>
 			<param-name>simple.pipe.managable</param-name>
 			<param-value>true</param-value>
 		</init-param>
+		<async-supported>true</async-supported>
     </servlet>
     <servlet-mapping>
         <servlet-name>simplerpc</servlet-name>
@@ -209,6 +433,86 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 				e.printStackTrace();
 			}
 		}
+		String compressStr = getInitParameter("simple.rpc.compress.threshold");
+		if (compressStr != null) {
+			try {
+				compressThreshold = Integer.parseInt(compressStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		String batchStr = getInitParameter("simple.rpc.batch.max");
+		if (batchStr != null) {
+			try {
+				batchLimit = Integer.parseInt(batchStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		String batchThreadsStr = getInitParameter("simple.rpc.batch.threads");
+		if (batchThreadsStr != null) {
+			int threads = 0;
+			try {
+				threads = Integer.parseInt(batchThreadsStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+			if (threads > 0) {
+				batchExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Simple RPC Batch Worker");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+		String threadsStr = getInitParameter("simple.rpc.threads");
+		if (threadsStr != null) {
+			int threads = 0;
+			int queueLimit = 200;
+			int classLimit = 0;
+			try {
+				threads = Integer.parseInt(threadsStr);
+				String queueStr = getInitParameter("simple.rpc.queue.limit");
+				if (queueStr != null) {
+					queueLimit = Integer.parseInt(queueStr);
+				}
+				String classStr = getInitParameter("simple.rpc.class.limit");
+				if (classStr != null) {
+					classLimit = Integer.parseInt(classStr);
+				}
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+			if (threads > 0) {
+				executionStage = new SimpleRPCExecutionStage(threads, queueLimit, classLimit);
+				String limitsStr = getInitParameter("simple.rpc.class.limits");
+				if (limitsStr != null) {
+					String[] splits = limitsStr.trim().split("\\s*[,;]\\s*");
+					for (int i = 0; i < splits.length; i++) {
+						int idx = splits[i].indexOf('=');
+						if (idx == -1) {
+							continue;
+						}
+						try {
+							executionStage.setClassLimit(splits[i].substring(0, idx).trim(),
+									Integer.parseInt(splits[i].substring(idx + 1).trim()));
+						} catch (NumberFormatException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		}
+		String runningTimeStr = getInitParameter("simple.rpc.max.running.time");
+		if (runningTimeStr != null) {
+			try {
+				runningTimeLimit = Long.parseLong(runningTimeStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
 		String managablePipeStr = getInitParameter("simple.pipe.managable");
 		if (managablePipeStr != null) {
 			managingPipe = "true".equals(managablePipeStr);
@@ -216,6 +520,17 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		super.init();
 	}
 
+	@Override
+	public void destroy() {
+		if (batchExecutor != null) {
+			batchExecutor.shutdown();
+		}
+		if (executionStage != null) {
+			executionStage.shutdown();
+		}
+		super.destroy();
+	}
+
 	/**
 	 * Validate the given class name.
 	 * @param clazzName
@@ -227,38 +542,22 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp) 
 			throws ServletException, IOException {
-		String request = null;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		byte[] buf = new byte[1024];
-		int read = 0;
-		InputStream res = req.getInputStream();
-		while (true) {
-			try {
-				read = res.read(buf);
-			} catch (IOException e) {
-				resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
-				res.close();
-				return;
-			}
-			if (read == -1) {
-				break;
-			}
-			baos.write(buf, 0, read);
-			if (baos.size() > maxPostLimit()) {
-				/*
-				 * Some malicious request may try to allocate huge size of memory! 
-				 * DoS attack? Limit the data size of HTTP request! 
-				 */
-				resp.sendError(HttpServletResponse.SC_FORBIDDEN, 
-						"Data size reaches the limit of Java2Script Simple RPC!");
-				res.close();
-				return;
-			}
+		byte[] request = readRequestBytes(req, resp);
+		if (request == null) {
+			return;
 		}
-		request = baos.toString();
-		res.close();
 		
-		SimpleRPCRunnable runnable = getRunnableByRequest(request);
+		if (req.getHeader(SimpleRPCBatch.BATCH_HEADER) != null) {
+			doBatchPost(req, resp, request);
+			return;
+		}
+		
+		SimpleRPCRunnable runnable = null;
+		if (stringRequestOverridden) {
+			runnable = getRunnableByRequest(new String(request));
+		} else {
+			runnable = getRunnableByRequest(request);
+		}
 		if (runnable == null) {
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 			return;
@@ -268,16 +567,182 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		resp.setDateHeader("Expires", 0);
 		resp.setContentType("text/plain; charset=UTF-8");
 		//resp.setCharacterEncoding("UTF-8");
-		PrintWriter writer = resp.getWriter();
-		SimpleRPCRunnable clonedRunnable = null;
+		if (executionStage != null && isAsyncSupported(req)) {
+			doAsyncPost(req, resp, runnable);
+			return;
+		}
+		String serialize = runRunnable(resp, runnable);
+		if (serialize == null) {
+			return;
+		}
+		
+		SimpleHttpCompression.write(resp, serialize, getResponseEncoding(req, runnable, serialize));
+		runnable.ajaxOut();
+	}
+	
+	/**
+	 * Respond in Servlet 3.0's asynchronous mode. Container's thread is
+	 * returned after the runnable is submitted to execution stage, and the
+	 * response is written by the thread completing the runnable, or by the
+	 * stage's timer if #maxRunningTime is elapsed. Responses are the same as
+	 * blocking mode. If asynchronous mode can not be started, container's
+	 * thread waits for the runnable as blocking mode does.
+	 */
+	protected void doAsyncPost(final HttpServletRequest req, final HttpServletResponse resp,
+			final SimpleRPCRunnable runnable) throws IOException {
+		final SerializingTask task = new SerializingTask(runnable);
+		final SimpleRPCExecutionStage.Call call = executionStage.submit(runnable.getClass().getName(), task);
+		if (call == null) {
+			respond(req, resp, runnable, SimpleRPCExecutionStage.TIMEOUT, null);
+			return;
+		}
+		final Object asyncContext = startAsync(req);
+		if (asyncContext == null) {
+			// fall back to blocking mode
+			respond(req, resp, runnable, call.await(maxRunningTime(runnable)), task.result);
+			return;
+		}
+		call.listen(new Runnable() {
+			public void run() {
+				try {
+					respond(req, resp, runnable, call.getState(), task.result);
+				} catch (Throwable e) {
+					e.printStackTrace(); // HTTP connection may be closed already!
+				} finally {
+					completeAsync(asyncContext);
+				}
+			}
+		}, maxRunningTime(runnable));
+	}
+	
+	/*
+	 * Respond the given state of runnable run in execution stage.
+	 */
+	private void respond(HttpServletRequest req, HttpServletResponse resp, SimpleRPCRunnable runnable,
+			int state, String serialize) throws IOException {
+		if (state == SimpleRPCExecutionStage.FAILED) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		} else if (state != SimpleRPCExecutionStage.DONE) {
+			// too many waiting runnables or time out, client may try later
+			resp.setHeader("Retry-After", "1");
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		SimpleHttpCompression.write(resp, serialize, getResponseEncoding(req, runnable, serialize));
+		runnable.ajaxOut();
+	}
+	
+	/*
+	 * Servlet 3.0's asynchronous API, through reflection as this servlet is
+	 * built against Servlet 2.5.
+	 */
+	protected boolean isAsyncSupported(HttpServletRequest req) {
+		if (!asyncChecked) {
+			try {
+				isAsyncSupportedMethod = ServletRequest.class.getMethod("isAsyncSupported");
+				startAsyncMethod = ServletRequest.class.getMethod("startAsync");
+				Class<?> asyncClass = startAsyncMethod.getReturnType();
+				setTimeoutMethod = asyncClass.getMethod("setTimeout", long.class);
+				completeMethod = asyncClass.getMethod("complete");
+			} catch (Throwable e) {
+				isAsyncSupportedMethod = null; // Servlet 2.5 or earlier containers
+			}
+			asyncChecked = true;
+		}
+		if (isAsyncSupportedMethod == null) {
+			return false;
+		}
 		try {
-			clonedRunnable = (SimpleRPCRunnable) runnable.clone();
-		} catch (CloneNotSupportedException e) {
-			//e.printStackTrace();
+			return ((Boolean) isAsyncSupportedMethod.invoke(req)).booleanValue();
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Start asynchronous mode without container's time out, as
+	 * #maxRunningTime is checked by execution stage.
+	 * @return AsyncContext object, or null if it is not supported.
+	 */
+	protected Object startAsync(HttpServletRequest req) {
+		try {
+			Object asyncContext = startAsyncMethod.invoke(req);
+			setTimeoutMethod.invoke(asyncContext, Long.valueOf(0));
+			return asyncContext;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	protected void completeAsync(Object asyncContext) {
+		if (asyncContext == null) {
+			return;
+		}
+		try {
+			completeMethod.invoke(asyncContext);
+		} catch (Throwable e) {
+			// HTTP connection may be closed already!
+		}
+	}
+	
+	/*
+	 * Run the given runnable, in execution stage if it is enabled.
+	 * 
+	 * @return serialized response, or null if error is already sent.
+	 */
+	private String runRunnable(HttpServletResponse resp, SimpleRPCRunnable runnable) throws IOException {
+		if (executionStage == null) {
+			return runAndSerialize(runnable);
+		}
+		SerializingTask task = new SerializingTask(runnable);
+		SimpleRPCExecutionStage.Call call = executionStage.submit(runnable.getClass().getName(), task);
+		int state = call == null ? SimpleRPCExecutionStage.TIMEOUT : call.await(maxRunningTime(runnable));
+		if (state != SimpleRPCExecutionStage.DONE) {
+			respond(null, resp, runnable, state, null);
+			return null;
+		}
+		return task.result;
+	}
+	
+	/*
+	 * Task of running runnable in execution stage.
+	 */
+	private class SerializingTask implements Runnable {
+		
+		SimpleRPCRunnable runnable;
+		
+		String result;
+		
+		SerializingTask(SimpleRPCRunnable runnable) {
+			this.runnable = runnable;
+		}
+		
+		public void run() {
+			result = runAndSerialize(runnable);
+		}
+		
+	}
+	
+	/*
+	 * Run the given runnable and return its serialized response.
+	 */
+	private String runAndSerialize(SimpleRPCRunnable runnable) {
+		SimpleRPCRunnable clonedRunnable = null;
+		boolean tracking = runnable.supportsDeltaResponse() && runnable.supportsDirtyTracking();
+		if (!tracking && runnable.supportsDeltaResponse()) {
+			try {
+				clonedRunnable = (SimpleRPCRunnable) runnable.clone();
+			} catch (CloneNotSupportedException e) {
+				//e.printStackTrace();
+			}
 		}
 		runnable.ajaxRun();
 		SimpleFilter filter = null;
-		if (runnable.supportsDeltaResponse()) {
+		if (tracking) {
+			filter = new DirtyFilter(runnable);
+		} else if (runnable.supportsDeltaResponse()) {
 			final Set<String> diffs = SimpleRPCUtils.compareDiffs(runnable, clonedRunnable);
 			filter = new SimpleFilter() {
 				
@@ -293,10 +758,219 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		} else { // all fields are returned.
 			filter = NO_DELTA_FILTER;
 		}
-		String serialize = runnable.serialize(filter);
-		
-		writer.write(serialize);
-		runnable.ajaxOut();
+		return runnable.serialize(filter);
+	}
+	
+	/*
+	 * Run the given runnable and return its serialized response, or null
+	 * if it fails, which is responded as RESULT_FAILED.
+	 */
+	private String runQuietly(SimpleRPCRunnable runnable) {
+		try {
+			return runAndSerialize(runnable);
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Run a batch of runnables, which are serialized one by one in request.
+	 * Results are written in order as soon as each result is ready, 'o'
+	 * followed by serialized runnable, or 'f' for invalid or failed
+	 * runnable.
+	 * 
+	 * @see SimpleRPCBatch
+	 */
+	protected void doBatchPost(HttpServletRequest req, HttpServletResponse resp, byte[] request)
+			throws ServletException, IOException {
+		final List<SimpleRPCRunnable> batch = new ArrayList<SimpleRPCRunnable>();
+		int index = 0;
+		while (index < request.length) {
+			int end = SimpleRPCBatch.segmentEnd(request, index, request.length);
+			if (end == -1) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+			if (batch.size() >= maxBatchSize()) {
+				resp.sendError(HttpServletResponse.SC_FORBIDDEN, 
+						"Batch size reaches the limit of Java2Script Simple RPC!");
+				return;
+			}
+			byte[] bytes = new byte[end - index];
+			System.arraycopy(request, index, bytes, 0, bytes.length);
+			if (stringRequestOverridden) {
+				batch.add(getRunnableByRequest(new String(bytes)));
+			} else {
+				batch.add(getRunnableByRequest(bytes)); // null for invalid runnable
+			}
+			index = end;
+		}
+		resp.setHeader("Pragma", "no-cache");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setDateHeader("Expires", 0);
+		resp.setContentType("text/plain; charset=UTF-8");
+		int count = batch.size();
+		String encoding = null;
+		if (minCompressingSize() >= 0) {
+			encoding = SimpleHttpCompression.negotiate(req);
+			for (int i = 0; i < count && encoding != null; i++) {
+				SimpleRPCRunnable runnable = batch.get(i);
+				if (runnable != null && !runnable.supportsGZipEncoding()) {
+					encoding = null;
+				}
+			}
+		}
+		final String[] results = new String[count];
+		Future<?>[] futures = new Future<?>[count];
+		SerializingTask[] tasks = new SerializingTask[count];
+		SimpleRPCExecutionStage.Call[] calls = new SimpleRPCExecutionStage.Call[count];
+		ExecutorService executor = batchExecutor;
+		if (executionStage != null) {
+			for (int i = 0; i < count; i++) {
+				SimpleRPCRunnable runnable = batch.get(i);
+				if (runnable != null) {
+					tasks[i] = new SerializingTask(runnable);
+					calls[i] = executionStage.submit(runnable.getClass().getName(), tasks[i]);
+				}
+			}
+		} else if (executor != null && count > 1) {
+			for (int i = 0; i < count; i++) {
+				final SimpleRPCRunnable runnable = batch.get(i);
+				if (runnable == null) {
+					continue;
+				}
+				final int idx = i;
+				try {
+					futures[i] = executor.submit(new Runnable() {
+						public void run() {
+							results[idx] = runQuietly(runnable);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// run in current thread
+				}
+			}
+		}
+		OutputStream os = SimpleHttpCompression.getOutputStream(resp, encoding);
+		for (int i = 0; i < count; i++) {
+			SimpleRPCRunnable runnable = batch.get(i);
+			String result = null;
+			if (runnable != null) {
+				if (tasks[i] != null) {
+					if (calls[i] != null && calls[i].await(maxRunningTime(runnable)) == SimpleRPCExecutionStage.DONE) {
+						result = tasks[i].result;
+					}
+				} else if (futures[i] != null) {
+					try {
+						futures[i].get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (ExecutionException e) {
+						e.printStackTrace();
+					}
+					result = results[i];
+				} else {
+					result = runQuietly(runnable);
+				}
+			}
+			if (result == null) {
+				os.write(SimpleRPCBatch.RESULT_FAILED);
+			} else {
+				os.write(SimpleRPCBatch.RESULT_OK);
+				// client parses results by sizes in bytes, serialized string has no chars over 0xff
+				os.write(result.getBytes("ISO-8859-1"));
+			}
+			os.flush();
+			if (result != null) {
+				runnable.ajaxOut();
+			}
+		}
+		os.close();
+	}
+	
+	/**
+	 * Return encoding of response, negotiated with client.
+	 * 
+	 * @return "gzip", "deflate" or null for no compression.
+	 */
+	protected String getResponseEncoding(HttpServletRequest req, SimpleRPCRunnable runnable, String response) {
+		int threshold = minCompressingSize();
+		if (threshold < 0 || response.length() < threshold || !runnable.supportsGZipEncoding()) {
+			return null;
+		}
+		return SimpleHttpCompression.negotiate(req);
+	}
+
+	/**
+	 * Read all bytes of request body. If Content-Length is given, buffer is
+	 * allocated only once with the exact size, after checking it against
+	 * the limit of POST data. 
+	 * 
+	 * @param req
+	 * @param resp
+	 * @return bytes of request body, or null if error is already sent.
+	 * @throws IOException
+	 */
+	protected byte[] readRequestBytes(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		long limit = maxPostLimit();
+		int contentLength = req.getContentLength();
+		if (contentLength > limit) {
+			/*
+			 * Some malicious request may try to allocate huge size of memory! 
+			 * DoS attack? Limit the data size of HTTP request! 
+			 */
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, 
+					"Data size reaches the limit of Java2Script Simple RPC!");
+			return null;
+		}
+		// buffer may be one byte larger than the limit, to detect exceeding data
+		int maxLength = limit >= Integer.MAX_VALUE - 8 ? Integer.MAX_VALUE - 8 : (int) limit + 1;
+		byte[] buf = new byte[contentLength >= 0 ? contentLength : Math.min(8192, maxLength)];
+		int size = 0;
+		InputStream res = req.getInputStream();
+		try {
+			while (true) {
+				if (size == buf.length) {
+					if (contentLength >= 0) {
+						break;
+					}
+					if (size >= maxLength) {
+						resp.sendError(HttpServletResponse.SC_FORBIDDEN, 
+								"Data size reaches the limit of Java2Script Simple RPC!");
+						return null;
+					}
+					byte[] newBuf = new byte[(int) Math.min((long) size * 2, maxLength)];
+					System.arraycopy(buf, 0, newBuf, 0, size);
+					buf = newBuf;
+				}
+				int read = res.read(buf, size, buf.length - size);
+				if (read == -1) {
+					break;
+				}
+				size += read;
+			}
+		} catch (IOException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return null;
+		} finally {
+			res.close();
+		}
+		if (size > limit) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, 
+					"Data size reaches the limit of Java2Script Simple RPC!");
+			return null;
+		}
+		if (contentLength >= 0 && size < contentLength) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return null;
+		}
+		if (size < buf.length) {
+			byte[] bytes = new byte[size];
+			System.arraycopy(buf, 0, bytes, 0, size);
+			buf = bytes;
+		}
+		return buf;
 	}
 
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) 
@@ -339,33 +1013,10 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 			return;
 		}
-		SimpleRPCRunnable clonedRunnable = null;
-		if (runnable.supportsDeltaResponse()) {
-			try {
-				clonedRunnable = (SimpleRPCRunnable) runnable.clone();
-			} catch (CloneNotSupportedException e) {
-				//e.printStackTrace();
-			}
-		}
-		runnable.ajaxRun();
-		SimpleFilter filter = null;
-		if (runnable.supportsDeltaResponse()) {
-			final Set<String> diffs = SimpleRPCUtils.compareDiffs(runnable, clonedRunnable);
-			filter = new SimpleFilter() {
-				
-				public boolean accept(String field) {
-					return diffs.contains(field);
-				}
-	
-				public boolean ignoreDefaultFields() {
-					return false;
-				}
-			
-			};
-		} else { // all fields are returned.
-			filter = NO_DELTA_FILTER;
+		String serialize = runRunnable(resp, runnable);
+		if (serialize == null) {
+			return;
 		}
-		String serialize = runnable.serialize(filter);
 		
 		resp.setHeader("Pragma", "no-cache");
 		resp.setHeader("Cache-Control", "no-cache");
@@ -389,8 +1040,7 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		// normal text response
 		resp.setContentType("text/plain; charset=UTF-8");
 		//resp.setCharacterEncoding("UTF-8");
-		PrintWriter writer = resp.getWriter();
-		writer.write(serialize);
+		SimpleHttpCompression.write(resp, serialize, getResponseEncoding(req, runnable, serialize));
 		runnable.ajaxOut();
 	}
 
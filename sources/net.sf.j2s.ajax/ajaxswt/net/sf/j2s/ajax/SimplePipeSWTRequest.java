@@ -290,27 +290,21 @@ public class SimplePipeSWTRequest extends SimplePipeRequest {
 	
     @J2SIgnore
 	static void swtPipeContinuum(final SimplePipeRunnable runnable) {
+		final SimplePipeFrameDecoder decoder = new SimplePipeFrameDecoder();
 		HttpRequest pipeRequest = getRequestWithMonitor(new HttpRequest.IXHRReceiving() {
 			public boolean receiving(ByteArrayOutputStream baos, byte b[], int off, int len) {
-				baos.write(b, off, len);
-				byte[] bytes = baos.toByteArray();
-				int resetIndex = 0;
-				try {
-					resetIndex = swtParseReceivedBytes(bytes);
-				} catch (RuntimeException e) { // invalid simple format
-					int length = bytes.length;
-					if (length < 100) {
-						System.out.println("[ERROR]: " + new String(bytes));
-					} else {
-						System.out.println("[ERROR]: " + new String(bytes, 0, 100) + " ..");
-					}
-					throw e;
-				}
-				if (resetIndex > 0) {
-					baos.reset();
-					if (resetIndex < bytes.length) {
-						baos.write(bytes, resetIndex, bytes.length - resetIndex);
+				decoder.write(b, off, len);
+				int frame = SimplePipeFrameDecoder.NEED_MORE;
+				while ((frame = decoder.decode()) != SimplePipeFrameDecoder.NEED_MORE) {
+					if (frame == SimplePipeFrameDecoder.FRAME_ERROR) { // invalid simple format
+						if (decoder.getPendingSize() < 100) {
+							System.out.println("[ERROR]: " + decoder.getPendingData(100));
+						} else {
+							System.out.println("[ERROR]: " + decoder.getPendingData(100) + " ..");
+						}
+						throw new RuntimeException(SimpleSerializable.EXCEPTION_INVALID_SIMPLE_FORMAT);
 					}
+					swtDealReceivedFrame(decoder);
 				}
 
 				/*
@@ -432,6 +426,44 @@ public class SimplePipeSWTRequest extends SimplePipeRequest {
 		return string;
 	}
 
+    @J2SIgnore
+	static void swtDealReceivedFrame(SimplePipeFrameDecoder decoder) {
+		final String key = decoder.getKey();
+		final SimplePipeRunnable runnable = SimplePipeHelper.getPipe(key);
+		if (runnable == null) { // should not happen
+			return;
+		}
+		if (PIPE_STATUS_DESTROYED == decoder.getStatus()) {
+			if (key.equals(runnable.pipeKey)) {
+				runnable.pipeAlive = false;
+				SWTHelper.syncExec(Display.getDefault(), new Runnable() {
+					public void run() {
+						runnable.pipeClosed();
+					}
+				});
+			}
+			SimplePipeHelper.removePipe(key);
+			return;
+		}
+		runnable.lastPipeDataReceived = System.currentTimeMillis();
+		final SimpleSerializable ss = decoder.getObject();
+		if (ss == null || ss == SimpleSerializable.UNKNOWN) {
+			return;
+		}
+		if (ss instanceof SimplePipeSequence) {
+			long sequence = ((SimplePipeSequence) ss).sequence;
+			if (sequence > runnable.pipeSequence) {
+				runnable.pipeSequence = sequence;
+			}
+		} else {
+			SWTHelper.syncExec(Display.getDefault(), new Runnable() {
+				public void run() {
+					runnable.deal(ss);
+				}
+			});
+		}
+	}
+
     @J2SIgnore
 	static int swtParseReceivedBytes(final byte[] bytes) {
 		if (bytes == null) {
@@ -0,0 +1,383 @@
+package net.sf.j2s.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.eclipse.jdt.core.dom.SimpleName;
+
+/**
+ * The persisted state of incremental builds, kept in the project folder.
+ *
+ * For each compilation unit, the index holds the hash of its source, the
+ * hashes of the signatures of the types it declares, and the top-level types
+ * it references. An incremental build transpiles the units whose source
+ * changed, and then the units referencing a type whose signature changed,
+ * until no signature changes.
+ *
+ * The index also holds the hash of each .js file written, so that a file is
+ * only rewritten when its content changes, and browser caches and packaging
+ * steps downstream are not invalidated for nothing.
+ *
+ * The index is discarded if the transpiler version or the .j2s file changes.
+ *
+ */
+class Java2ScriptBuildIndex {
+
+	private static final String INDEX_FORMAT = "j2s.index.1";
+
+	/**
+	 * What is known of one compilation unit. Units are created by
+	 * {@link #scan(CompilationUnit)} on any thread.
+	 */
+	static class Unit implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * hash of the .java file, or null if unknown
+		 */
+		String sourceHash;
+
+		/**
+		 * signature hash by top-level type name
+		 */
+		Map<String, String> signatures = new HashMap<String, String>();
+
+		/**
+		 * names of the top-level types referenced, including the declared ones
+		 */
+		Set<String> references = new HashSet<String>();
+
+		/**
+		 * .js files written for this unit
+		 */
+		List<String> outputs = new ArrayList<String>();
+
+	}
+
+	private final File file;
+
+	private final String key;
+
+	private Map<String, Unit> units = new HashMap<String, Unit>();
+
+	private Map<String, String> outputHashes = new HashMap<String, String>();
+
+	/**
+	 * @param file the persisted index
+	 * @param key  anything which, if changed, changes all output
+	 */
+	Java2ScriptBuildIndex(File file, String key) {
+		this.file = file;
+		this.key = INDEX_FORMAT + "\n" + key;
+	}
+
+	/**
+	 * Load the persisted index, unless it was created with a different key.
+	 */
+	@SuppressWarnings("unchecked")
+	void load() {
+		if (!file.exists())
+			return;
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (!key.equals(in.readObject())) {
+				System.out.println("Java2ScriptCompiler rebuilding all, as options or version changed");
+				return;
+			}
+			units = (Map<String, Unit>) in.readObject();
+			outputHashes = (Map<String, String>) in.readObject();
+		} catch (Exception e) {
+			System.err.println("Java2ScriptCompiler ignoring " + file + ": " + e);
+			units = new HashMap<String, Unit>();
+			outputHashes = new HashMap<String, String>();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	void save() {
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeObject(key);
+			out.writeObject(units);
+			out.writeObject(outputHashes);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param path       the unit
+	 * @param sourceHash hash of its current source
+	 * @return true if the unit must be transpiled
+	 */
+	boolean isDirty(String path, String sourceHash) {
+		Unit unit = units.get(path);
+		if (unit == null || !sourceHash.equals(unit.sourceHash))
+			return true;
+		for (int i = unit.outputs.size(); --i >= 0;)
+			if (!new File(unit.outputs.get(i)).exists())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Forget units which are no longer in the build, deleting their .js
+	 * files.
+	 *
+	 * @param paths        all units of the build
+	 * @param changedTypes filled with the types they declared
+	 */
+	void retainUnits(Collection<String> paths, Set<String> changedTypes) {
+		Set<String> current = new HashSet<String>(paths);
+		for (Iterator<Map.Entry<String, Unit>> it = units.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Unit> e = it.next();
+			if (current.contains(e.getKey()))
+				continue;
+			Unit unit = e.getValue();
+			changedTypes.addAll(unit.signatures.keySet());
+			for (int i = unit.outputs.size(); --i >= 0;) {
+				String output = unit.outputs.get(i);
+				outputHashes.remove(output);
+				File js = new File(output);
+				if (js.exists()) {
+					System.out.println("Java2ScriptCompiler deleting " + js);
+					js.delete();
+				}
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Record a transpiled unit.
+	 *
+	 * @param path
+	 * @param unit
+	 * @param changedTypes filled with the types whose signatures changed
+	 */
+	void putUnit(String path, Unit unit, Set<String> changedTypes) {
+		Unit old = units.put(path, unit);
+		Map<String, String> oldSignatures = (old == null ? new HashMap<String, String>() : old.signatures);
+		for (Map.Entry<String, String> e : unit.signatures.entrySet())
+			if (!e.getValue().equals(oldSignatures.get(e.getKey())))
+				changedTypes.add(e.getKey());
+		for (String type : oldSignatures.keySet())
+			if (!unit.signatures.containsKey(type))
+				changedTypes.add(type);
+	}
+
+	/**
+	 * @param changedTypes
+	 * @return the units referencing any of the types
+	 */
+	Set<String> getDependents(Set<String> changedTypes) {
+		Set<String> dependents = new HashSet<String>();
+		for (Map.Entry<String, Unit> e : units.entrySet()) {
+			for (String type : e.getValue().references) {
+				if (changedTypes.contains(type)) {
+					dependents.add(e.getKey());
+					break;
+				}
+			}
+		}
+		return dependents;
+	}
+
+	/**
+	 * Write the file unless it already holds the data.
+	 *
+	 * @param f
+	 * @param data
+	 * @return false if the file was not changed
+	 * @throws IOException
+	 */
+	boolean writeIfChanged(File f, byte[] data) throws IOException {
+		String path = f.getAbsolutePath();
+		String hash = hash(data);
+		if (f.exists() && f.length() == data.length
+				&& (hash.equals(outputHashes.get(path)) || Arrays.equals(data, Files.readAllBytes(f.toPath())))) {
+			outputHashes.put(path, hash);
+			return false;
+		}
+		FileOutputStream os = new FileOutputStream(f);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+		outputHashes.put(path, hash);
+		return true;
+	}
+
+	static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < digest.length; i++)
+				sb.append(Integer.toHexString((digest[i] >> 4) & 0xF)).append(Integer.toHexString(digest[i] & 0xF));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String hash(String s) {
+		try {
+			return hash(s.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Collect the type signatures and references of a compilation unit whose
+	 * bindings are resolved.
+	 *
+	 * @param root
+	 * @return a unit without source hash or outputs
+	 */
+	static Unit scan(CompilationUnit root) {
+		final Unit unit = new Unit();
+		root.accept(new ASTVisitor() {
+
+			@Override
+			public boolean visit(SimpleName node) {
+				IBinding binding = node.resolveBinding();
+				if (binding == null)
+					return false;
+				switch (binding.getKind()) {
+				case IBinding.TYPE:
+					addReference(unit.references, (ITypeBinding) binding);
+					break;
+				case IBinding.METHOD:
+					IMethodBinding m = (IMethodBinding) binding;
+					addReference(unit.references, m.getDeclaringClass());
+					addReference(unit.references, m.getReturnType());
+					ITypeBinding[] params = m.getParameterTypes();
+					for (int i = 0; i < params.length; i++)
+						addReference(unit.references, params[i]);
+					break;
+				case IBinding.VARIABLE:
+					IVariableBinding v = (IVariableBinding) binding;
+					addReference(unit.references, v.getDeclaringClass());
+					addReference(unit.references, v.getType());
+					break;
+				}
+				return false;
+			}
+
+		});
+		List<?> types = root.types();
+		for (int i = 0; i < types.size(); i++) {
+			ITypeBinding type = ((AbstractTypeDeclaration) types.get(i)).resolveBinding();
+			if (type == null)
+				continue;
+			StringBuilder sb = new StringBuilder();
+			appendSignature(type, sb, unit.references);
+			unit.signatures.put(type.getErasure().getQualifiedName(), hash(sb.toString()));
+		}
+		return unit;
+	}
+
+	private static void addReference(Set<String> references, ITypeBinding type) {
+		if (type == null)
+			return;
+		if (type.isArray())
+			type = type.getElementType();
+		if (type.isPrimitive() || type.isNullType() || type.isTypeVariable() || type.isWildcardType()
+				|| type.isCapture())
+			return;
+		type = type.getErasure();
+		while (type.getDeclaringClass() != null)
+			type = type.getDeclaringClass();
+		references.add(type.getQualifiedName());
+	}
+
+	/**
+	 * What code elsewhere may depend on: modifiers, supertypes, fields with
+	 * their constant values, and methods. Supertypes are referenced, as the
+	 * transpiled class depends on what it inherits.
+	 */
+	private static void appendSignature(ITypeBinding type, StringBuilder sb, Set<String> references) {
+		sb.append(type.getModifiers()).append(' ').append(type.getQualifiedName());
+		for (ITypeBinding sup = type.getSuperclass(); sup != null; sup = sup.getSuperclass()) {
+			sb.append(" extends ").append(sup.getQualifiedName());
+			addReference(references, sup);
+		}
+		ITypeBinding[] interfaces = type.getInterfaces();
+		for (int i = 0; i < interfaces.length; i++) {
+			sb.append(" implements ").append(interfaces[i].getQualifiedName());
+			addReference(references, interfaces[i]);
+		}
+		sb.append('\n');
+		IVariableBinding[] fields = type.getDeclaredFields();
+		for (int i = 0; i < fields.length; i++) {
+			IVariableBinding f = fields[i];
+			sb.append(f.getModifiers()).append(' ').append(f.getType().getQualifiedName()).append(' ')
+					.append(f.getName());
+			Object value = f.getConstantValue();
+			if (value != null)
+				sb.append('=').append(value);
+			sb.append('\n');
+		}
+		IMethodBinding[] methods = type.getDeclaredMethods();
+		for (int i = 0; i < methods.length; i++) {
+			IMethodBinding m = methods[i];
+			sb.append(m.getModifiers()).append(' ').append(m.getReturnType().getQualifiedName()).append(' ')
+					.append(m.getName()).append('(');
+			ITypeBinding[] params = m.getParameterTypes();
+			for (int j = 0; j < params.length; j++)
+				sb.append(j == 0 ? "" : ",").append(params[j].getQualifiedName());
+			sb.append(")\n");
+		}
+		ITypeBinding[] memberTypes = type.getDeclaredTypes();
+		for (int i = 0; i < memberTypes.length; i++)
+			appendSignature(memberTypes[i], sb, references);
+	}
+
+}
@@ -0,0 +1,208 @@
+package net.sf.j2s.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A headless front end for Java2ScriptCompiler, for builds outside of Eclipse.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * java -cp &lt;j2s core and JDT jars&gt; net.sf.j2s.core.Java2ScriptCommandLine
+ *     [-path &lt;project folder&gt;]          default "."
+ *     [-sourceFolders &lt;folders&gt;]        relative to the project; default "src"
+ *     [-classPath &lt;jars and folders&gt;]
+ *     [-j2s &lt;.j2s file&gt;]                default &lt;project folder&gt;/.j2s
+ *     [-encoding &lt;encoding&gt;]            default UTF-8
+ *     [-clean]
+ *     [-stdin]
+ * </pre>
+ * 
+ * Lists are separated by File.pathSeparator. All .java files of the source
+ * folders are transpiled, and the time spent parsing, binding, visiting and
+ * writing is reported.
+ * 
+ * With -stdin, the JVM stays warm after the first build: each further line
+ * read from standard input holds the options of another build, until "exit"
+ * or the end of input.
+ * 
+ * From Maven, run it with the exec-maven-plugin in the same JVM:
+ * 
+ * <pre>
+ * &lt;plugin&gt;
+ *   &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *   &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *   &lt;executions&gt;&lt;execution&gt;
+ *     &lt;phase&gt;process-classes&lt;/phase&gt;
+ *     &lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *     &lt;configuration&gt;
+ *       &lt;mainClass&gt;net.sf.j2s.core.Java2ScriptCommandLine&lt;/mainClass&gt;
+ *       &lt;arguments&gt;
+ *         &lt;argument&gt;-path&lt;/argument&gt;&lt;argument&gt;${basedir}&lt;/argument&gt;
+ *         &lt;argument&gt;-sourceFolders&lt;/argument&gt;&lt;argument&gt;src/main/java&lt;/argument&gt;
+ *         &lt;argument&gt;-classPath&lt;/argument&gt;&lt;argument&gt;${project.build.outputDirectory}&lt;/argument&gt;
+ *       &lt;/arguments&gt;
+ *     &lt;/configuration&gt;
+ *   &lt;/execution&gt;&lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ * 
+ */
+public class Java2ScriptCommandLine {
+
+	private static final String ARG_PATH = "-path";
+	private static final String ARG_SOURCE_FOLDERS = "-sourceFolders";
+	private static final String ARG_CLASS_PATH = "-classPath";
+	private static final String ARG_J2S = "-j2s";
+	private static final String ARG_ENCODING = "-encoding";
+	private static final String ARG_CLEAN = "-clean";
+	private static final String ARG_STDIN = "-stdin";
+
+	private String projectFolder = ".";
+	private String sourceFolders = "src";
+	private String classPath = "";
+	private String j2sFile;
+	private String encoding = "UTF-8";
+	private boolean isClean;
+	private boolean isStdin;
+
+	public static void main(String[] args) {
+		Java2ScriptCommandLine cmd = new Java2ScriptCommandLine();
+		if (!cmd.setArgs(args)) {
+			System.exit(2);
+		}
+		boolean ok = cmd.build();
+		if (!cmd.isStdin) {
+			if (!ok)
+				System.exit(1);
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.equals("exit"))
+					break;
+				if (line.length() == 0)
+					continue;
+				cmd = new Java2ScriptCommandLine();
+				if (cmd.setArgs(line.split("\\s+")))
+					cmd.build();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param args
+	 * @return false if the arguments are not valid
+	 */
+	boolean setArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals(ARG_CLEAN)) {
+				isClean = true;
+				continue;
+			}
+			if (arg.equals(ARG_STDIN)) {
+				isStdin = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				System.err.println("Java2ScriptCommandLine: missing value for " + arg);
+				return false;
+			}
+			String value = args[++i];
+			if (arg.equals(ARG_PATH)) {
+				projectFolder = value;
+			} else if (arg.equals(ARG_SOURCE_FOLDERS)) {
+				sourceFolders = value;
+			} else if (arg.equals(ARG_CLASS_PATH)) {
+				classPath = value;
+			} else if (arg.equals(ARG_J2S)) {
+				j2sFile = value;
+			} else if (arg.equals(ARG_ENCODING)) {
+				encoding = value;
+			} else {
+				System.err.println("Java2ScriptCommandLine: unknown option " + arg);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Transpile all .java files of the source folders.
+	 * 
+	 * @return false if .j2s is disabled or a file failed
+	 */
+	boolean build() {
+		long t0 = System.currentTimeMillis();
+		String folder = new File(projectFolder).getAbsolutePath();
+		Java2ScriptCompiler j2sCompiler = new Java2ScriptCompiler();
+		j2sCompiler.startBuild(isClean);
+		if (!j2sCompiler.initializeProject(folder, j2sFile == null ? null : new File(j2sFile), false)) {
+			System.out.println(".j2s disabled");
+			return false;
+		}
+		List<File> folders = new ArrayList<File>();
+		List<File> javaFiles = new ArrayList<File>();
+		for (String name : split(sourceFolders)) {
+			File src = new File(name);
+			if (!src.isAbsolute())
+				src = new File(folder, name);
+			folders.add(src);
+			addJavaFiles(src, javaFiles);
+		}
+		j2sCompiler.setSourceFolders(folders);
+		System.out.println("building JavaScript " + folder + " " + javaFiles.size() + " files");
+		boolean ok = j2sCompiler.compileToJavaScript(split(classPath), javaFiles, encoding);
+		if (!ok)
+			System.out.println("Error processing " + folder);
+		System.out.println("build finished " + folder + " in " + (System.currentTimeMillis() - t0) + "ms ("
+				+ j2sCompiler.getTimings() + ")");
+		return ok;
+	}
+
+	private static String[] split(String list) {
+		if (list.length() == 0)
+			return new String[0];
+		return list.split(File.pathSeparator);
+	}
+
+	/**
+	 * Collect .java files below the folder, sorted, so the output does not
+	 * depend on the file system.
+	 */
+	private static void addJavaFiles(File dir, List<File> javaFiles) {
+		File[] files = dir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File f) {
+				return f.isDirectory() || f.getName().endsWith(".java");
+			}
+
+		});
+		if (files == null)
+			return;
+		List<File> list = Arrays.asList(files);
+		Collections.sort(list);
+		for (File f : list) {
+			if (f.isDirectory())
+				addJavaFiles(f, javaFiles);
+			else
+				javaFiles.add(f);
+		}
+	}
+
+}
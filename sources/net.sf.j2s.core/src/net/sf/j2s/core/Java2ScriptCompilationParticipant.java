@@ -1,5 +1,9 @@
 package net.sf.j2s.core;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IFile;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.compiler.BuildContext;
 import org.eclipse.jdt.core.compiler.ReconcileContext;
@@ -109,21 +113,15 @@ public class Java2ScriptCompilationParticipant extends org.eclipse.jdt.core.comp
 				return;
 			}
 			System.out.println("building JavaScript " + project.getProject().getLocation());
-			for (int i = 0; i < javaFiles.length; i++) {
-				System.out.println("transpiling " + javaFiles[i]);
-// trying to keep the progess monitor running - didn't work
-//				try {
-//					Thread.currentThread().sleep(1);
-//				} catch (InterruptedException e) {
-//					// ignore
-//				}
-				if (!j2sCompiler.compileToJavaScript(javaFiles[i].getFile())) {
-					System.out.println("Error processing " + javaFiles[i].getFile());
-					break;
-				}
+			List<IFile> files = new ArrayList<IFile>();
+			for (int i = 0; i < javaFiles.length; i++)
+				files.add(javaFiles[i].getFile());
+			// bindings are resolved in batches, and files are transpiled in parallel
+			if (!j2sCompiler.compileToJavaScript(files)) {
+				System.out.println("Error processing " + project.getProject().getLocation());
 			}
 			javaFiles = null;
-			System.out.println("build finished " + project.getProject().getLocation());
+			System.out.println("build finished " + project.getProject().getLocation() + " (" + j2sCompiler.getTimings() + ")");
 		}
 		isCleanBuild = false;
 	}
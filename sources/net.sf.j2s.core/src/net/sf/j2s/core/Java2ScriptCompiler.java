@@ -12,19 +12,30 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
+import org.eclipse.jdt.core.ICompilationUnit;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTRequestor;
 import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
 
 /**
  * The main (and currently only operational) Java2Script compiler.
@@ -88,6 +99,35 @@ class Java2ScriptCompiler {
 
 	private static final String J2S_TEMPLATE_HTML = "j2s.template.html";
 	
+	/**
+	 * "false" to write the .js files of a batch before the next batch is
+	 * parsed and visited, instead of by a writer thread meanwhile
+	 */
+	private static final String J2S_COMPILER_ASYNC_WRITE = "j2s.compiler.async.write";
+
+	private static final String J2S_COMPILER_ASYNC_WRITE_FALSE = "false";
+
+	/**
+	 * number of compilation units whose bindings are resolved together by
+	 * ASTParser.createASTs
+	 */
+	private static final String J2S_COMPILER_BATCH_SIZE = "j2s.compiler.batch.size";
+
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * file of the incremental build index, relative to the project
+	 */
+	private static final String J2S_COMPILER_INDEX = "j2s.compiler.index";
+
+	private static final String DEFAULT_INDEX_FILE = ".j2s.index";
+
+	/**
+	 * file of methods to leave out of the output, one "class.method" per line,
+	 * as created by Java2ScriptTreeShaker
+	 */
+	private static final String J2S_COMPILER_STRIP_METHODS = "j2s.compiler.strip.methods";
+	
 	
 	private Properties props;
 	private String htmlTemplate = null;
@@ -120,6 +160,32 @@ class Java2ScriptCompiler {
 
 	private boolean isDebugging;
 
+	boolean asyncWrite;
+
+	int batchSize;
+
+	/**
+	 * where the non-Java resources of a package are copied from
+	 */
+	private List<File> sourceFolders;
+
+	/**
+	 * milliseconds spent in each phase of the build
+	 */
+	private long timeParse, timeBind, timeVisit, timeWrite;
+
+	private Java2ScriptBuildIndex index;
+
+	/**
+	 * types whose signatures changed in the current round of transpiling
+	 */
+	private final Set<String> changedTypes = new HashSet<String>();
+
+	/**
+	 * .js files written for the current compilation unit
+	 */
+	private List<String> unitOutputs;
+
 	static boolean isActive(IJavaProject project) {
 		try {
 			return new File(project.getProject().getLocation().toOSString(), J2S_OPTIONS_FILE_NAME).exists();
@@ -134,13 +200,14 @@ class Java2ScriptCompiler {
 	}
 
 	/**
-	 * only for CompilationParticipant
+	 * for CompilationParticipant and Java2ScriptCommandLine
 	 * @param isClean
 	 */
 	void startBuild(boolean isClean) {
 		// at the beginning of a clean build, clear data
 		isCleanBuild = isClean;
 		htmlTemplate = null;
+		timeParse = timeBind = timeVisit = timeWrite = 0;
 		if (isClean) {
 			copyResources.clear();
 			lstMethodsDeclared = null;
@@ -161,15 +228,33 @@ class Java2ScriptCompiler {
 	 */
 	boolean initializeProject(IJavaProject project, boolean isCompilationParticipant) {
 		this.project = project;
-		this.isCompilationParticipant = isCompilationParticipant;
 		if (!isActive(project)) {
 			// the file .j2s does not exist in the project directory -- skip this project
 			return false;
 		}
-		projectFolder = project.getProject().getLocation().toOSString();
+		return initializeProject(project.getProject().getLocation().toOSString(), null, isCompilationParticipant);
+	}
+
+	/**
+	 * from Java2ScriptCommandLine.java, without an Eclipse project
+	 * 
+	 * get all necessary .j2s params for a build
+	 * 
+	 * @param projectFolder
+	 * @param j2sFile                  the .j2s file, or null for the one in the
+	 *                                 project folder
+	 * @param isCompilationParticipant
+	 * @return true if the .j2s file is enabled
+	 */
+	boolean initializeProject(String projectFolder, File j2sFile, boolean isCompilationParticipant) {
+		this.isCompilationParticipant = isCompilationParticipant;
+		this.projectFolder = projectFolder;
+		if (j2sFile == null)
+			j2sFile = new File(projectFolder, J2S_OPTIONS_FILE_NAME);
+		sourceFolders = new ArrayList<File>();
+		sourceFolders.add(new File(projectFolder, "src"));
 		props = new Properties();
 		try {
-			File j2sFile = new File(projectFolder, J2S_OPTIONS_FILE_NAME);
 			props.load(new FileInputStream(j2sFile));
 			String status = getProperty(J2S_COMPILER_STATUS);
 			if (!J2S_COMPILER_STATUS_ENABLE.equalsIgnoreCase(status) && !J2S_COMPILER_STATUS_ENABLED.equalsIgnoreCase(status)) {
@@ -246,6 +331,39 @@ class Java2ScriptCompiler {
 
 		String classReplacements = getProperty(J2S_CLASS_REPLACEMENTS);
 
+		asyncWrite = !J2S_COMPILER_ASYNC_WRITE_FALSE.equalsIgnoreCase(getProperty(J2S_COMPILER_ASYNC_WRITE));
+		batchSize = getIntProperty(J2S_COMPILER_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		if (lstMethodsDeclared != null || htMethodsCalled != null) {
+			// method logs record which class saw a call first
+			asyncWrite = false;
+		}
+
+		String stripFile = getProperty(J2S_COMPILER_STRIP_METHODS);
+		String strippedMethods = null;
+		if (stripFile != null) {
+			if (lstMethodsDeclared != null || htMethodsCalled != null) {
+				System.err.println("Java2ScriptCompiler not stripping methods while logging methods");
+			} else if ((strippedMethods = getFileContents(file = new File(projectFolder, stripFile))) == null) {
+				System.err.println("Java2ScriptCompiler cannot read " + file);
+			}
+		}
+		Set<String> stripped = null;
+		if (strippedMethods != null) {
+			stripped = new HashSet<String>();
+			String[] lines = strippedMethods.split("\n");
+			for (int i = 0; i < lines.length; i++)
+				if (lines[i].trim().length() > 0)
+					stripped.add(lines[i].trim());
+			System.err.println("Java2ScriptCompiler stripping " + stripped.size() + " methods listed in " + stripFile);
+		}
+
+		String indexFile = getProperty(J2S_COMPILER_INDEX);
+		index = new Java2ScriptBuildIndex(new File(projectFolder, indexFile == null ? DEFAULT_INDEX_FILE : indexFile),
+				CorePlugin.VERSION + "\n" + getFileContents(j2sFile) + "\n"
+						+ (strippedMethods == null ? "" : Java2ScriptBuildIndex.hash(strippedMethods)));
+		if (!isCleanBuild)
+			index.load();
+
 		String htmlTemplateFile = getProperty(J2S_TEMPLATE_HTML);
 		if (htmlTemplateFile == null)
 			htmlTemplateFile = "template.html";
@@ -264,6 +382,7 @@ class Java2ScriptCompiler {
 
 		Java2ScriptVisitor.setDebugging(isDebugging);
 		Java2ScriptVisitor.setLogging(lstMethodsDeclared, htMethodsCalled, logAllCalls);
+		Java2ScriptVisitor.setStrippedMethods(stripped);
 
 		Java2ScriptVisitor.NameMapper.setNonQualifiedNamePackages(nonqualifiedPackages);
 		Java2ScriptVisitor.NameMapper.setClassReplacements(classReplacements);
@@ -282,31 +401,485 @@ class Java2ScriptCompiler {
 	 * @param javaSource
 	 */
 	boolean compileToJavaScript(IFile javaSource) {
-
-		String fileName = new String(javaSource.getName());
-		if (lstExcludedPaths != null) {
-			for (int i = lstExcludedPaths.size(); --i >= 0;)
-				if (fileName.startsWith(lstExcludedPaths.get(i)))
-					return true;
-		}
 		org.eclipse.jdt.core.ICompilationUnit createdUnit = JavaCore.createCompilationUnitFrom(javaSource);
+		if (isExcluded(getPackagePath(createdUnit)))
+			return true;
+		long t0 = System.currentTimeMillis();
 		astParser.setSource(createdUnit);
 		// note: next call must come before each createAST call
 		astParser.setResolveBindings(true); 
 		CompilationUnit root = (CompilationUnit) astParser.createAST(null);
+		long t1 = System.currentTimeMillis();
+		timeBind += t1 - t0;
+		Transpiled t = transpile(root, createdUnit.getPath().toString(), createdUnit.getElementName(), null);
+		timeVisit += System.currentTimeMillis() - t1;
+		return outputJavaScript(t);
+	}
+
+	/**
+	 * from Java2ScriptCompilationParticipant.java
+	 * 
+	 * process the source files into JavaScript in batches. Bindings of each
+	 * batch are resolved at once by ASTParser.createASTs, and each unit is
+	 * visited by the requestor as its AST is accepted, on the parser thread.
+	 * Files are written in the given order, so the output is the same as
+	 * compiling the files one by one.
+	 * 
+	 * @param javaSources
+	 * @return false if transpiling of a file failed; following files are
+	 *         skipped
+	 */
+	boolean compileToJavaScript(List<IFile> javaSources) {
+		try {
+			return compileUnits(javaSources);
+		} finally {
+			index.save();
+		}
+	}
+
+	private boolean compileUnits(List<IFile> javaSources) {
+		final List<ICompilationUnit> units = new ArrayList<ICompilationUnit>();
+		for (int i = 0, n = javaSources.size(); i < n; i++) {
+			ICompilationUnit unit = JavaCore.createCompilationUnitFrom(javaSources.get(i));
+			if (!isExcluded(getPackagePath(unit)))
+				units.add(unit);
+		}
+		return compileToJavaScript(new SourceList() {
+
+			@Override
+			public int size() {
+				return units.size();
+			}
+
+			@Override
+			public String getPath(int i) {
+				return units.get(i).getPath().toString();
+			}
+
+			@Override
+			public String getName(int i) {
+				return units.get(i).getElementName();
+			}
+
+			@Override
+			public void createASTs(int start, int end) {
+				List<ICompilationUnit> batch = units.subList(start, end);
+				final Map<ICompilationUnit, Integer> indexes = new HashMap<ICompilationUnit, Integer>();
+				for (int i = 0; i < batch.size(); i++)
+					indexes.put(batch.get(i), Integer.valueOf(i));
+				astParser.setProject(project);
+				// note: next call must come before each createASTs call
+				astParser.setResolveBindings(true);
+				astParser.createASTs(batch.toArray(new ICompilationUnit[batch.size()]), new String[0],
+						new ASTRequestor() {
+							@Override
+							public void acceptAST(ICompilationUnit source, CompilationUnit ast) {
+								accept(indexes.get(source).intValue(), ast);
+							}
+						}, null);
+			}
+
+		});
+	}
+
+	/**
+	 * from Java2ScriptCommandLine.java
+	 * 
+	 * process the source files into JavaScript without an Eclipse workspace.
+	 * Bindings are resolved against the given class path and source folders.
+	 * 
+	 * Only files whose source changed since the last build are transpiled,
+	 * and then, round after round, the files referencing a type whose
+	 * signature changed.
+	 * 
+	 * @param classPath     jar files and class folders
+	 * @param javaFiles     .java files, each in one of the source folders
+	 * @param encoding      encoding of the .java files
+	 * @return false if transpiling of a file failed; following files are
+	 *         skipped
+	 */
+	boolean compileToJavaScript(String[] classPath, List<File> javaFiles, String encoding) {
+		String[] sourcePath = new String[sourceFolders.size()];
+		for (int i = 0; i < sourcePath.length; i++)
+			sourcePath[i] = sourceFolders.get(i).getAbsolutePath();
+		List<String> paths = new ArrayList<String>();
+		Map<String, String> sourceHashes = new HashMap<String, String>();
+		Set<String> todo = new HashSet<String>();
+		for (int i = 0, n = javaFiles.size(); i < n; i++) {
+			String path = javaFiles.get(i).getAbsolutePath();
+			if (isExcluded(getPackagePath(path, sourcePath)))
+				continue;
+			String hash;
+			try {
+				hash = Java2ScriptBuildIndex.hash(Files.readAllBytes(new File(path).toPath()));
+			} catch (IOException e) {
+				System.out.println("Error reading " + path + ": " + e);
+				return false;
+			}
+			paths.add(path);
+			sourceHashes.put(path, hash);
+			if (index.isDirty(path, hash))
+				todo.add(path);
+		}
+		changedTypes.clear();
+		index.retainUnits(paths, changedTypes);
+		Set<String> done = new HashSet<String>();
+		try {
+			while (true) {
+				todo.addAll(index.getDependents(changedTypes));
+				changedTypes.clear();
+				List<String> round = new ArrayList<String>();
+				for (int i = 0, n = paths.size(); i < n; i++) {
+					String path = paths.get(i);
+					if (todo.contains(path) && done.add(path))
+						round.add(path);
+				}
+				todo.clear();
+				if (round.isEmpty())
+					break;
+				System.out.println("Java2ScriptCompiler transpiling " + round.size() + " of " + paths.size() + " files");
+				if (!compileFiles(round, sourceHashes, classPath, sourcePath, encoding))
+					return false;
+			}
+		} finally {
+			index.save();
+		}
+		return true;
+	}
+
+	private boolean compileFiles(final List<String> paths, final Map<String, String> sourceHashes,
+			final String[] classPath, final String[] sourcePath, final String encoding) {
+		return compileToJavaScript(new SourceList() {
+
+			@Override
+			public int size() {
+				return paths.size();
+			}
+
+			@Override
+			public String getPath(int i) {
+				return paths.get(i);
+			}
+
+			@Override
+			public String getName(int i) {
+				return new File(paths.get(i)).getName();
+			}
+
+			@Override
+			String getSourceHash(int i) {
+				return sourceHashes.get(paths.get(i));
+			}
+
+			@Override
+			public void createASTs(int start, int end) {
+				String[] batch = paths.subList(start, end).toArray(new String[end - start]);
+				final Map<String, Integer> indexes = new HashMap<String, Integer>();
+				String[] encodings = new String[batch.length];
+				for (int i = 0; i < batch.length; i++) {
+					indexes.put(batch[i], Integer.valueOf(i));
+					encodings[i] = encoding;
+				}
+				String[] sourceEncodings = new String[sourcePath.length];
+				for (int i = 0; i < sourceEncodings.length; i++)
+					sourceEncodings[i] = encoding;
+				Map<String, String> options = JavaCore.getOptions();
+				JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, options);
+				options.put(JavaCore.COMPILER_DOC_COMMENT_SUPPORT, JavaCore.ENABLED);
+				ASTParser parser = ASTParser.newParser(JSL_LEVEL);
+				parser.setKind(ASTParser.K_COMPILATION_UNIT);
+				parser.setCompilerOptions(options);
+				parser.setEnvironment(classPath, sourcePath, sourceEncodings, true);
+				parser.setResolveBindings(true);
+				parser.setBindingsRecovery(true);
+				parser.createASTs(batch, encodings, new String[0], new FileASTRequestor() {
+					@Override
+					public void acceptAST(String sourceFilePath, CompilationUnit ast) {
+						Integer index = indexes.get(sourceFilePath);
+						if (index != null)
+							accept(index.intValue(), ast);
+					}
+				}, null);
+			}
+
+		});
+	}
+
+	/**
+	 * from Java2ScriptCommandLine.java
+	 * 
+	 * @param folders where non-Java resources are copied from; the project's
+	 *                src folder by default
+	 */
+	void setSourceFolders(List<File> folders) {
+		sourceFolders = folders;
+	}
+
+	/**
+	 * @return milliseconds spent in each phase since startBuild
+	 */
+	String getTimings() {
+		return "parse " + timeParse + "ms, bind " + timeBind + "ms, visit " + timeVisit + "ms, write " + timeWrite
+				+ "ms";
+	}
+
+	//// private methods ////
+	
+	/**
+	 * Compilation units to be parsed in batches, from an Eclipse project or
+	 * from files.
+	 */
+	abstract class SourceList {
+
+		private Transpiled[] batch;
+
+		private int start;
+
+		private long firstAccepted, visit;
+
+		abstract int size();
+
+		abstract String getPath(int i);
+
+		/**
+		 * @return the .java file name
+		 */
+		abstract String getName(int i);
+
+		/**
+		 * @return hash of the source, or null if unknown
+		 */
+		String getSourceHash(int i) {
+			return null;
+		}
+
+		/**
+		 * Resolve bindings for units [start, end) in one pass, passing each AST
+		 * to #accept before the requestor returns.
+		 */
+		abstract void createASTs(int start, int end);
+
+		/**
+		 * Called by requestors. JDT bindings are only valid on the parser
+		 * thread while the requestor has the AST, so the unit is visited here.
+		 * All units of a batch are parsed before the first AST is accepted, so
+		 * the time to this point is taken for parsing and the rest, but for
+		 * visiting, for binding.
+		 * 
+		 * @param i   index of the unit in the batch
+		 * @param ast
+		 */
+		void accept(int i, CompilationUnit ast) {
+			long t0 = System.currentTimeMillis();
+			if (firstAccepted == 0)
+				firstAccepted = t0;
+			int unit = start + i;
+			batch[i] = transpile(ast, getPath(unit), getName(unit), getSourceHash(unit));
+			visit += System.currentTimeMillis() - t0;
+		}
+
+		/**
+		 * @return the visited units [start, end), in order; null for a unit
+		 *         that was not accepted
+		 */
+		Transpiled[] transpileBatch(int start, int end) {
+			this.start = start;
+			batch = new Transpiled[end - start];
+			firstAccepted = visit = 0;
+			long t0 = System.currentTimeMillis();
+			createASTs(start, end);
+			long t1 = System.currentTimeMillis();
+			long t = (firstAccepted == 0 ? t1 : firstAccepted);
+			timeParse += t - t0;
+			timeBind += t1 - t - visit;
+			timeVisit += visit;
+			Transpiled[] transpiled = batch;
+			batch = null;
+			return transpiled;
+		}
+
+	}
+
+	/**
+	 * Visit the units batch by batch, and write the files of each batch in
+	 * order. Units are visited on the current thread only. With asyncWrite,
+	 * the files of a batch are written by a single writer thread while the
+	 * next batch is parsed and visited.
+	 * 
+	 * @param units
+	 * @return false if transpiling of a file failed; following files are
+	 *         skipped
+	 */
+	boolean compileToJavaScript(SourceList units) {
+		int n = units.size();
+		ExecutorService writer = (asyncWrite && n > batchSize ? Executors.newSingleThreadExecutor() : null);
+		Future<Boolean> written = null;
+		try {
+			for (int start = 0; start < n; start += batchSize) {
+				int end = Math.min(n, start + batchSize);
+				final Transpiled[] batch = units.transpileBatch(start, end);
+				for (int i = 0; i < batch.length; i++) {
+					if (batch[i] == null) {
+						System.out.println("Error processing " + units.getPath(start + i));
+						return false;
+					}
+				}
+				if (written != null && !written.get().booleanValue())
+					return false;
+				if (writer == null) {
+					if (!outputJavaScript(batch))
+						return false;
+					continue;
+				}
+				written = writer.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return Boolean.valueOf(outputJavaScript(batch));
+					}
+				});
+			}
+			return (written == null || written.get().booleanValue());
+		} catch (InterruptedException e) {
+			System.out.println("Java2ScriptCompiler interrupted");
+			return false;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (writer != null) {
+				// the build index is saved next, so the writer must be done
+				writer.shutdown();
+				try {
+					while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+						// writing the last batch
+					}
+				} catch (InterruptedException e) {
+					writer.shutdownNow();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The result of visiting one compilation unit, still to be written.
+	 */
+	static class Transpiled {
+		CompilationUnit root;
+		String path;
+		String name;
+		Java2ScriptVisitor visitor;
+		List<String> elements;
+		Java2ScriptBuildIndex.Unit unit;
+		Throwable error;
+	}
+
+	/**
+	 * @param packagePath path of the file relative to its source folder, as
+	 *                    j2s.excluded.paths are given
+	 */
+	private boolean isExcluded(String packagePath) {
+		if (lstExcludedPaths != null) {
+			for (int i = lstExcludedPaths.size(); --i >= 0;)
+				if (packagePath.startsWith(lstExcludedPaths.get(i)))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return path of the file relative to its source folder, using /
+	 */
+	private static String getPackagePath(String path, String[] sourcePath) {
+		for (int i = 0; i < sourcePath.length; i++) {
+			if (path.startsWith(sourcePath[i] + File.separator))
+				return path.substring(sourcePath[i].length() + 1).replace(File.separatorChar, '/');
+		}
+		return path;
+	}
+
+	/**
+	 * @return path of the unit relative to its source folder, using /
+	 */
+	private static String getPackagePath(ICompilationUnit unit) {
+		String packageName = unit.getParent().getElementName();
+		return (packageName.length() == 0 ? "" : packageName.replace('.', '/') + "/") + unit.getElementName();
+	}
+
+	/**
+	 * Run a visitor on the compilation unit. This must be called by the
+	 * thread that accepted the AST, and must not touch the state of this
+	 * compiler, which may be writing files of the previous batch.
+	 * 
+	 * @param root
+	 * @param path
+	 * @param name
+	 * @param sourceHash
+	 * @return the visitor and its elements, or the error
+	 */
+	Transpiled transpile(CompilationUnit root, String path, String name, String sourceHash) {
+		Transpiled t = new Transpiled();
+		t.root = root;
+		t.path = path;
+		t.name = name;
 		// If the Java2ScriptVisitor is ever extended, it is important to set the project.
 		// Java2ScriptVisitor#addClassOrInterface uses getClass().newInstance().setproject(project). 
-		Java2ScriptVisitor visitor = new Java2ScriptVisitor().setProject(project, testing);
-
+		t.visitor = new Java2ScriptVisitor().setProject(project, testing);
 		try {
 
 			// transpile the code
 
-			root.accept(visitor);
+			root.accept(t.visitor);
+			t.elements = t.visitor.getElementList();
+			t.unit = Java2ScriptBuildIndex.scan(root);
+			t.unit.sourceHash = sourceHash;
+		} catch (Throwable e) {
+			t.error = e;
+		}
+		return t;
+	}
+
+	/**
+	 * Write the .js file(s) and HTML files of transpiled compilation units,
+	 * in order.
+	 * 
+	 * @param batch
+	 * @return false if there was an error; following units are skipped
+	 */
+	boolean outputJavaScript(Transpiled[] batch) {
+		for (int i = 0; i < batch.length; i++) {
+			if (!outputJavaScript(batch[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the .js file(s) and HTML files of a transpiled compilation unit.
+	 * 
+	 * @param t
+	 * @return false if there was an error
+	 */
+	private boolean outputJavaScript(Transpiled t) {
+		long t0 = System.currentTimeMillis();
+		try {
+			return writeJavaScript(t);
+		} finally {
+			timeWrite += System.currentTimeMillis() - t0;
+		}
+	}
+
+	private boolean writeJavaScript(Transpiled t) {
+		Java2ScriptVisitor visitor = t.visitor;
+		System.out.println("transpiling " + t.path);
+		try {
+			if (t.error != null)
+				throw t.error;
 
 			// generate the .js file(s) in the site directory
 
-			outputJavaScript(visitor, j2sPath);
+			unitOutputs = t.unit.outputs;
+			outputJavaScript(visitor, t.elements, j2sPath);
+			index.putUnit(t.path, t.unit, changedTypes);
 
 			logMethods(logCalled, logDeclared, logAllCalls);
 
@@ -319,7 +892,7 @@ class Java2ScriptCompiler {
 			e.printStackTrace(System.out);
 			// find the file and delete it.
 			String filePath = j2sPath;
-			String rootName = root.getJavaElement().getElementName();
+			String rootName = t.name;
 			rootName = rootName.substring(0, rootName.lastIndexOf('.'));
 			String packageName = visitor.getMyPackageName();
 			if (packageName != null) {
@@ -340,16 +913,13 @@ class Java2ScriptCompiler {
 				packageName = packageName.substring(0, pt);
 			if (!copyResources.contains(packageName)) {
 				copyResources.add(packageName);
-				File src = new File(projectFolder + "/src", packageName);
 				File dest = new File(j2sPath, packageName);
-				copySiteResources(src, dest);
+				for (int i = 0; i < sourceFolders.size(); i++)
+					copySiteResources(new File(sourceFolders.get(i), packageName), dest);
 			}
 		}
 		return true;
 	}
-
-	//// private methods ////
-	
 	
 	private void logMethods(String logCalled, String logDeclared, boolean doAppend) {
 		if (htMethodsCalled != null)
@@ -392,10 +962,22 @@ class Java2ScriptCompiler {
 		return val;
 	}
 
-	private void outputJavaScript(Java2ScriptVisitor visitor, String j2sPath) {
+	private int getIntProperty(String key, int defaultValue) {
+		String val = getProperty(key);
+		if (val == null || val.trim().length() == 0)
+			return defaultValue;
+		try {
+			int n = Integer.parseInt(val.trim());
+			return (n > 0 ? n : defaultValue);
+		} catch (NumberFormatException e) {
+			System.err.println("Java2ScriptCompiler ignoring " + key + " = " + val);
+			return defaultValue;
+		}
+	}
+
+	private void outputJavaScript(Java2ScriptVisitor visitor, List<String> elements, String j2sPath) {
 
 		// fragments[0] is package]
-		List<String> elements = visitor.getElementList();
 
 		// BH all compression is deprecated --- use Google Closure Compiler
 
@@ -419,9 +1001,17 @@ class Java2ScriptCompiler {
 			}
 		}
 		File f = new File(j2sPath, elementName + ".js");
-		if (isDebugging)
-			System.out.println("Java2ScriptCompiler creating " + f);
-		writeToFile(f, js);
+		unitOutputs.add(f.getAbsolutePath());
+		try {
+			if (index.writeIfChanged(f, js.getBytes("UTF-8"))) {
+				if (isDebugging)
+					System.out.println("Java2ScriptCompiler creating " + f);
+			} else if (isDebugging) {
+				System.out.println("Java2ScriptCompiler unchanged " + f);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	private String getFileContents(File file) {
@@ -511,7 +1101,22 @@ class Java2ScriptCompiler {
 		"# uncomment and change if you do not want to use the template.html file created for you\n" + 
 		"# in your project directory. A default template file will be created by the transpiler \n" + 
 		"# directory if there is none there already.\n" + 
-		"#j2s.template.html=template.html\n";
+		"#j2s.template.html=template.html\n" + 
+		"\n" + 
+		"# files of a batch are written by another thread while the next batch is transpiled,\n" + 
+		"# unless set to false. Transpiling itself is not parallel.\n" + 
+		"#j2s.compiler.async.write=false\n" + 
+		"\n" + 
+		"# number of files whose bindings are resolved together in a build\n" + 
+		"#j2s.compiler.batch.size=100\n" + 
+		"\n" + 
+		"# incremental build index, relative to the project directory. Unchanged .js files\n" + 
+		"# are not rewritten. A clean build starts a new index.\n" + 
+		"#j2s.compiler.index=.j2s.index\n" + 
+		"\n" + 
+		"# methods to leave out of the .js files, created by net.sf.j2s.core.Java2ScriptTreeShaker\n" + 
+		"# from the method logs of a clean build with j2s.log.all.calls=true. Ignored while logging.\n" + 
+		"#j2s.compiler.strip.methods=j2s-strip.txt\n";
 	}
 	/**
 	 * The default template file. The user can specify another in the .j2s file
@@ -0,0 +1,261 @@
+package net.sf.j2s.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Whole-program reachability over the method logs of the transpiler.
+ *
+ * Build the project (including any library sources such as java.core) clean,
+ * with these .j2s settings:
+ *
+ * <pre>
+ * j2s.log.methods.declared=methodsDeclared.csv
+ * j2s.log.methods.called=methodsCalled.csv
+ * j2s.log.all.calls=true
+ * </pre>
+ *
+ * and then run:
+ *
+ * <pre>
+ * java net.sf.j2s.core.Java2ScriptTreeShaker
+ *     -declared methodsDeclared.csv -called methodsCalled.csv
+ *     -roots &lt;class prefixes&gt;        the application, such as "test.;org.myapp."
+ *     [-keep &lt;prefixes&gt;]               classes or class.methods never stripped
+ *     [-classes _j2sclasslist.txt]     reachable classes, for build-core.xml
+ *     [-strip j2s-strip.txt]           unreachable methods, for j2s.compiler.strip.methods
+ * </pre>
+ *
+ * Prefixes are separated by ";".
+ *
+ * Starting from the root classes, a class is reachable when a reachable class
+ * calls one of its methods, creates it, extends or implements it, reads its
+ * static fields, or uses its class literal. A method of a reachable class is
+ * kept when any class in the logs calls a method of that name on any class,
+ * so that overriding methods are kept with the methods they override. Callers
+ * need not be reachable themselves: classes loaded by name, such as the
+ * swingjs.plaf classes of JSToolkit, are never reached from the roots, but
+ * still call methods of reachable classes. Methods of classes that are not
+ * reachable are left alone, so that classes loaded on demand still work.
+ *
+ * Calls from @j2sNative blocks, from the JavaScript runtime, and through
+ * reflection are not in the logs. Methods needed only by those must be given
+ * with -keep.
+ *
+ */
+public class Java2ScriptTreeShaker {
+
+	/**
+	 * method names called by the runtime, never stripped
+	 */
+	private static final String[] KEPT_METHOD_PREFIXES = { "c$", "$init", "$clinit", "toString", "valueOf",
+			"hashCode$", "equals$O", "compareTo$O", "clone$", "finalize$", "run$", "main$SA", "getClass$" };
+
+	private final Set<String> declared = new TreeSet<String>();
+
+	private final Map<String, List<String>> callsByCaller = new HashMap<String, List<String>>();
+
+	private final Set<String> reachableClasses = new TreeSet<String>();
+
+	private final Set<String> calledNames = new HashSet<String>();
+
+	public static void main(String[] args) {
+		String declaredFile = null, calledFile = null, roots = null, keep = "", classesFile = null, stripFile = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String arg = args[i], value = args[i + 1];
+			if (arg.equals("-declared")) {
+				declaredFile = value;
+			} else if (arg.equals("-called")) {
+				calledFile = value;
+			} else if (arg.equals("-roots")) {
+				roots = value;
+			} else if (arg.equals("-keep")) {
+				keep = value;
+			} else if (arg.equals("-classes")) {
+				classesFile = value;
+			} else if (arg.equals("-strip")) {
+				stripFile = value;
+			} else {
+				System.err.println("Java2ScriptTreeShaker: unknown option " + arg);
+				System.exit(2);
+			}
+		}
+		if (declaredFile == null || calledFile == null || roots == null) {
+			System.err.println(
+					"usage: Java2ScriptTreeShaker -declared <file> -called <file> -roots <prefixes> [-keep <prefixes>] [-classes <file>] [-strip <file>]");
+			System.exit(2);
+		}
+		try {
+			Java2ScriptTreeShaker shaker = new Java2ScriptTreeShaker();
+			shaker.readDeclared(readLines(declaredFile));
+			shaker.readCalled(readLines(calledFile));
+			shaker.shake(roots.split(";"));
+			Set<String> stripped = shaker.getStrippedMethods(keep.split(";"));
+			System.out.println("Java2ScriptTreeShaker: " + shaker.reachableClasses.size() + " classes reachable, "
+					+ stripped.size() + " of " + shaker.declared.size() + " methods unreachable");
+			if (classesFile != null)
+				writeLines(classesFile, shaker.getClassFiles());
+			if (stripFile != null)
+				writeLines(stripFile, stripped);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param lines "class.method" for each method declared
+	 */
+	void readDeclared(List<String> lines) {
+		for (int i = 0, n = lines.size(); i < n; i++) {
+			String line = lines.get(i).trim();
+			if (line.length() > 0)
+				declared.add(line);
+		}
+	}
+
+	/**
+	 * @param lines "class.method,callerClass" for each call
+	 */
+	void readCalled(List<String> lines) {
+		for (int i = 0, n = lines.size(); i < n; i++) {
+			String line = lines.get(i).trim();
+			int pt = line.lastIndexOf(',');
+			if (pt < 0)
+				continue;
+			String caller = line.substring(pt + 1);
+			List<String> calls = callsByCaller.get(caller);
+			if (calls == null)
+				callsByCaller.put(caller, calls = new ArrayList<String>());
+			calls.add(line.substring(0, pt));
+		}
+	}
+
+	/**
+	 * Find the classes reachable from the roots, and the method names called
+	 * by any class.
+	 *
+	 * @param rootPrefixes
+	 */
+	void shake(String[] rootPrefixes) {
+		List<String> todo = new ArrayList<String>();
+		Set<String> known = new HashSet<String>(callsByCaller.keySet());
+		for (String method : declared)
+			known.add(getClassName(method));
+		for (String name : known)
+			if (startsWithAny(name, rootPrefixes) && reachableClasses.add(name))
+				todo.add(name);
+		while (!todo.isEmpty()) {
+			List<String> calls = callsByCaller.get(todo.remove(todo.size() - 1));
+			if (calls == null)
+				continue;
+			for (int i = 0, n = calls.size(); i < n; i++) {
+				String name = getClassName(calls.get(i));
+				if (reachableClasses.add(name))
+					todo.add(name);
+			}
+		}
+		for (List<String> calls : callsByCaller.values())
+			for (int i = 0, n = calls.size(); i < n; i++)
+				calledNames.add(getMethodName(calls.get(i)));
+	}
+
+	/**
+	 * @param keepPrefixes classes or class.methods never stripped
+	 * @return declared methods of reachable classes that are never called
+	 */
+	Set<String> getStrippedMethods(String[] keepPrefixes) {
+		Set<String> stripped = new TreeSet<String>();
+		for (String method : declared) {
+			String name = getMethodName(method);
+			if (reachableClasses.contains(getClassName(method)) && !calledNames.contains(name)
+					&& !startsWithAny(name, KEPT_METHOD_PREFIXES) && !startsWithAny(method, keepPrefixes))
+				stripped.add(method);
+		}
+		return stripped;
+	}
+
+	Set<String> getReachableClasses() {
+		return reachableClasses;
+	}
+
+	/**
+	 * @return the .js files of the reachable classes, as in _j2sclasslist.txt
+	 */
+	Set<String> getClassFiles() {
+		Set<String> files = new TreeSet<String>();
+		for (String name : reachableClasses) {
+			// inner classes are in the file of their top-level class
+			String[] parts = name.split("\\.");
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < parts.length; i++) {
+				String part = parts[i];
+				if (part.length() == 0)
+					break;
+				sb.append(i == 0 ? "" : "/");
+				if (Character.isUpperCase(part.charAt(0)) || i == parts.length - 1) {
+					int pt = part.indexOf('$');
+					sb.append(pt > 0 ? part.substring(0, pt) : part);
+					break;
+				}
+				sb.append(part);
+			}
+			files.add(sb.append(".js").toString());
+		}
+		return files;
+	}
+
+	private static String getClassName(String method) {
+		int pt = method.lastIndexOf('.');
+		return (pt < 0 ? method : method.substring(0, pt));
+	}
+
+	private static String getMethodName(String method) {
+		return method.substring(method.lastIndexOf('.') + 1);
+	}
+
+	private static boolean startsWithAny(String s, String[] prefixes) {
+		for (int i = 0; i < prefixes.length; i++)
+			if (prefixes[i].length() > 0 && s.startsWith(prefixes[i]))
+				return true;
+		return false;
+	}
+
+	private static List<String> readLines(String fileName) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static void writeLines(String fileName, Collection<String> lines) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(fileName)), "UTF-8");
+		try {
+			for (String line : lines)
+				writer.write(line + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -10,9 +10,8 @@
  *******************************************************************************/
 package net.sf.j2s.core;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -230,7 +229,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	/**
 	 * track the names for I$$[...]
 	 */
-	private StringBuffer package_includes = new StringBuffer();
+	private StringBuilder package_includes = new StringBuilder();
 
 	/**
 	 * map class names to I$$[] index
@@ -244,6 +243,15 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 */
 	private int[] package_includeCount = new int[1];
 
+	/**
+	 * generic method aliases and class type arguments found for the classes of
+	 * this compilation unit. These are not static, so that visitors can run in
+	 * parallel and each file gets the same output whatever the build order.
+	 * 
+	 */
+	private Map<String, Map<String, List<String[]>>> package_genericClassMap = new HashMap<String, Map<String, List<String[]>>>();
+	private Map<String, Map<String, String>> package_genericClassTypes = new HashMap<String, Map<String, String>>();
+
 	/**
 	 * List of variables that are declared as final or are found to be effectively
 	 * final.
@@ -301,6 +309,12 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		package_includeCount = parent.package_includeCount;
 		package_includes = parent.package_includes;
 		package_mapBlockJavadoc = parent.package_mapBlockJavadoc;
+		package_genericClassMap = parent.package_genericClassMap;
+		package_genericClassTypes = parent.package_genericClassTypes;
+		package_classToPrivateVar = parent.package_classToPrivateVar;
+		package_privateVarString = parent.package_privateVarString;
+		package_privateClassCount = parent.package_privateClassCount;
+		package_privateVarCount = parent.package_privateVarCount;
 
 		// final and effectively final references
 
@@ -354,13 +368,24 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	/**
 	 * Buffer that keeps all compiled *.js.
 	 */
-	private StringBuffer buffer = new StringBuffer();
+	private StringBuilder buffer = new StringBuilder();
 
 	private char getLastCharInBuffer() {
 		return (buffer.length() == 0 ? '\0' : buffer.charAt(buffer.length() - 1));
 	}
 
-	private StringBuffer init0Buffer;
+	private StringBuilder init0Buffer;
+
+	/**
+	 * positions of the element keys in buffer, one for each top-level class
+	 */
+	private List<Integer> elementStarts = new ArrayList<Integer>();
+
+	/**
+	 * position of ",I$=[]" in buffer, where the package header gets its private
+	 * vars and includes
+	 */
+	private int headerIncludesPt = -1;
 
 	private ArrayList<String> applets, apps;
 
@@ -435,13 +460,14 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			packageName = NULL_PACKAGE;
 		}
 		package_name = packageName;
-		package_includes = new StringBuffer();
+		package_includes = new StringBuilder();
 		buffer.append("var P$=");
 		if (NameMapper.isJ2sClazzPackage(package_name)) {
 			buffer.append(packageName);
 		} else {
 			buffer.append("Clazz.newPackage(\"").append(packageName).append("\")");
 		}
+		headerIncludesPt = buffer.length();
 		buffer.append(",I$=[];\r\n");
 	}
 
@@ -519,6 +545,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			return false;
 		}
 		IMethodBinding constructorMethodBinding = node.resolveConstructorBinding();
+		logClassUsed(getJavaClassNameQualified(binding));
 		if (binding.isTopLevel() || isStatic(binding)) {
 			// standard new Foo() or new ClassX.Foo()
 			addConstructor(binding,
@@ -780,7 +807,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		if (visitedVars.size() == 0)
 			return null;
 		String scope = (package_methodStackForFinals.size() == 0 ? null : (String) package_methodStackForFinals.peek());
-		StringBuffer buf = new StringBuffer();
+		StringBuilder buf = new StringBuilder();
 		buf.append("{");
 		for (Iterator<LocalVariable> iter = visitedVars.iterator(); iter.hasNext();) {
 			iter.next().appendToBuffer(scope, buf);
@@ -1030,6 +1057,10 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		}
 		if (global_lstMethodsDeclared != null && !isPrivate)
 			logMethodDeclared(finalName);
+		if (global_strippedMethods != null && lambdaType == NOT_LAMBDA && !isConstructor && !isPrivate && !isMain
+				&& !temp_add$UnqualifiedMethod && (qualification & METHOD_UNQUALIFIED) == 0
+				&& isMethodStripped(finalName))
+			return;
 
 		String key = getNormalizedKey(mBinding);
 		package_methodStackForFinals.push(key);
@@ -1171,6 +1202,8 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		boolean isPrivateAndNotStatic = isPrivate && !isStatic;
 		String privateVar = (isPrivateAndNotStatic ? getPrivateVar(declaringClass, false) : null);
 		boolean doLog = (!isPrivate && global_htMethodsCalled != null);
+		// all calls, including unqualified ones, for Java2ScriptTreeShaker
+		boolean doLogAll = (doLog && global_logAllCalls);
 		boolean needBname = (!isStatic && lambdaArity < 0 && (expression == null
 				? !areEqual(declaringClass, class_typeBinding)
 						&& !class_typeBinding.isAssignmentCompatible(declaringClass)
@@ -1254,6 +1287,8 @@ public class Java2ScriptVisitor extends ASTVisitor {
 				// in using "t.apply" is that t must be non-null.
 				// if this does not work, then we can go to ($class$.prototype || t)
 				//
+				if (doLogAll)
+					logMethodCalled(declaringClassJavaClassName + "." + finalMethodNameWith$Params);
 				boolean classIsTarget = ((isStatic || isVariableBinding(expression)
 						|| expression instanceof ClassInstanceCreation) // BH Added 2019.05.13
 						&& lambdaArity == mBinding.getParameterTypes().length);
@@ -1268,6 +1303,11 @@ public class Java2ScriptVisitor extends ASTVisitor {
 				// foo.xx$T$K || $o$.xx$O$O --> ($o$=foo).($o$.xx$T$K ||
 				// $o$.xx$O$O)
 				doLog = false;
+				if (doLogAll) {
+					String[] names = finalMethodNameWith$Params.split("\\|");
+					for (int i = 0; i < names.length; i++)
+						logMethodCalled(declaringClassJavaClassName + "." + names[i]);
+				}
 				postFixGeneric$OMethodName(pt, finalMethodNameWith$Params, isPrivateAndNotStatic, privateVar);
 				term = "])";
 			} else {
@@ -1278,6 +1318,8 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			if (doLog) {
 				String name = declaringClassJavaClassName + "." + buffer.substring(ptLog);
 				logMethodCalled(name);
+			} else if (doLogAll && term.equals(")")) {
+				logMethodCalled(declaringClassJavaClassName + "." + finalMethodNameWith$Params);
 			}
 			if (isPrivateAndNotStatic || bname != null) {
 				// A call to a nonprivate outer-class method from an inner class
@@ -1674,6 +1716,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 				className = class_shortName + "." + binding.getName();
 			}
 			tempVisitor.setClassAndBinding(className, binding);
+			logClassUsed(tempVisitor.class_fullName);
 
 			// generate the code
 
@@ -1719,6 +1762,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 				// java.lang.x will return x, not P$.x
 				finalShortClassName = finalShortClassName.substring(3);
 			}
+			logClassUsed(package_name + "." + finalShortClassName);
 			setClassAndBinding(finalShortClassName, binding);
 			if (isLambda)
 				buffer.append("(");
@@ -1733,6 +1777,18 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			finalPackageName = checkPackageP$Name(class_fullName.substring(0, pt1));
 		}
 
+		if (global_logAllCalls) {
+			// a class uses its superclass and interfaces
+			if (isLambda)
+				logClassUsed(getJavaClassNameQualified(binding));
+			ITypeBinding superclass = binding.getSuperclass();
+			if (superclass != null)
+				logClassUsed(getJavaClassNameQualified(superclass));
+			ITypeBinding[] interfaces = binding.getInterfaces();
+			for (int i = 0; i < interfaces.length; i++)
+				logClassUsed(getJavaClassNameQualified(interfaces[i]));
+		}
+
 		// add the anonymous wrapper if needed
 
 		if (!isTopLevel) {
@@ -1987,8 +2043,8 @@ public class Java2ScriptVisitor extends ASTVisitor {
 
 			// if this is not an interface, generate $init0$ and $init$ methods
 
-			StringBuffer init0bufold = init0Buffer;
-			init0Buffer = new StringBuffer();
+			StringBuilder init0bufold = init0Buffer;
+			init0Buffer = new StringBuilder();
 
 			int len = buffer.length();
 			buffer.append("\r\nClazz.newMeth(C$, '$init$', function () {\r\n");
@@ -2028,7 +2084,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 
 		// add all the methods
 
-		StringBuffer defaults = new StringBuffer();
+		StringBuilder defaults = new StringBuilder();
 
 		if (isLambda) {
 			addLambdaMethod(node, binding.getFunctionalInterfaceMethod());
@@ -2561,13 +2617,13 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 */
 	class TrailingBuffer {
 
-		StringBuffer buf;
+		StringBuilder buf;
 		private String added = "";
 
 		boolean hasAssert;
 
 		TrailingBuffer() {
-			buf = new StringBuffer();
+			buf = new StringBuilder();
 		}
 
 		TrailingBuffer append(String s) {
@@ -3484,6 +3540,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		} else {
 			// BH we are creating a new Class object around this class
 			// if it is an interface, then we explicitly add .$methodList$
+			logClassUsed(getJavaClassNameQualified(binding));
 			buffer.append("Clazz.getClass(");
 			buffer.append(getFinalJ2SClassNameQualifier(null, binding, getJavaClassNameQualified(binding),
 					FINAL_ESCAPECACHE));
@@ -4167,6 +4224,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		String finalQualifiedName = getFinalJ2SClassName(javaClassName, FINAL_PC);
 		if (isStatic) {// && (isStatic || finalQualifiedName.length() < 2 ||
 						// finalQualifiedName.charAt(1) != '$')) {
+			logClassUsed(javaClassName);
 			finalQualifiedName = getFinalJ2SClassNameQualifier(null, declaringClass, javaClassName, FINAL_ESCAPECACHE);
 		}
 		buffer.append(finalQualifiedName);
@@ -4743,9 +4801,6 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		}
 	}
 
-	private static Map<String, Map<String, List<String[]>>> genericClassMap = new HashMap<String, Map<String, List<String[]>>>();
-	private static Map<String, Map<String, String>> genericClassTypes = new HashMap<String, Map<String, String>>();
-
 	/**
 	 * Check a class, interface, or Enum binding for generics.
 	 * 
@@ -4755,10 +4810,10 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * @param binding
 	 * @return true if this class could have generic replacements
 	 */
-	private static boolean checkGenericClass(ITypeBinding topBinding, ITypeBinding binding) {
+	private boolean checkGenericClass(ITypeBinding topBinding, ITypeBinding binding) {
 		// debugListAllOverrides(binding);
 		if (topBinding == binding)
-			genericClassMap.put(binding.getKey(), null);
+			package_genericClassMap.put(binding.getKey(), null);
 		// check all superclasses from most super to least super
 		String classKey = binding.getKey();
 		boolean hasGenerics = (binding.isRawType() || binding.getTypeArguments().length > 0);
@@ -4773,7 +4828,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		if (hasGenerics) {
 			checkMethodsWithGenericParams(topBinding.getKey(), binding);
 		} else {
-			genericClassMap.put(classKey, null);
+			package_genericClassMap.put(classKey, null);
 		}
 		return hasGenerics;
 	}
@@ -4785,7 +4840,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * @param topClassKey
 	 * @param binding
 	 */
-	private static void checkMethodsWithGenericParams(String topClassKey, ITypeBinding binding) {
+	private void checkMethodsWithGenericParams(String topClassKey, ITypeBinding binding) {
 		Map<String, String> classTypes = getGenericClassTypes(binding);
 		if (classTypes == null)
 			return;
@@ -4833,9 +4888,9 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * @param type
 	 * @return a map {T:"java.lang.String",K:"java.lang.Object"}
 	 */
-	private static Map<String, String> getGenericClassTypes(ITypeBinding type) {
+	private Map<String, String> getGenericClassTypes(ITypeBinding type) {
 		String classKey = type.getKey();
-		Map<String, String> classTypes = genericClassTypes.get(classKey);
+		Map<String, String> classTypes = package_genericClassTypes.get(classKey);
 		if (classTypes != null)
 			return classTypes;
 		ITypeBinding[] typeArgs = type.getTypeArguments();
@@ -4844,7 +4899,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		boolean isExtended = (typeArgs.length > 0 || type.isRawType());
 		if (!isGeneric && !isExtended) {
 			if (hasSuperClass(type))
-				genericClassTypes.put(classKey, classTypes = genericClassTypes.get(type.getSuperclass().getKey()));
+				package_genericClassTypes.put(classKey, classTypes = package_genericClassTypes.get(type.getSuperclass().getKey()));
 			return classTypes;
 		}
 		ITypeBinding[] types = (isGeneric ? typeParams : typeArgs);
@@ -4855,7 +4910,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		String erasure = type.getErasure().toString();
 		// abstract class test.Test_GenericExt_T<T extends Map<T,K>, K>
 		erasure = erasure.substring(erasure.indexOf("<") + 1);
-		StringBuffer sb = new StringBuffer(erasure.substring(0, erasure.indexOf(">\n")));
+		StringBuilder sb = new StringBuilder(erasure.substring(0, erasure.indexOf(">\n")));
 		for (int n = 0, i = sb.length(); --i >= 0;) {
 			switch (sb.charAt(i)) {
 			case '>':
@@ -4894,8 +4949,8 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * @param methodName
 	 * @return list of generic types for methods with this name
 	 */
-	private static List<String[]> getGenericMethodList(ITypeBinding methodClass, String methodName) {
-		Map<String, List<String[]>> methodList = genericClassMap.get(methodClass.getKey());
+	private List<String[]> getGenericMethodList(ITypeBinding methodClass, String methodName) {
+		Map<String, List<String[]>> methodList = package_genericClassMap.get(methodClass.getKey());
 		return (methodList == null ? null : methodList.get(methodName));
 	}
 
@@ -4906,11 +4961,11 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * @param methodName
 	 * @param list
 	 */
-	private static void addGenericClassMethod(String classKey, String methodName, String[] list) {
+	private void addGenericClassMethod(String classKey, String methodName, String[] list) {
 
-		Map<String, List<String[]>> classMap = genericClassMap.get(classKey);
+		Map<String, List<String[]>> classMap = package_genericClassMap.get(classKey);
 		if (classMap == null)
-			genericClassMap.put(classKey, classMap = new Hashtable<String, List<String[]>>());
+			package_genericClassMap.put(classKey, classMap = new Hashtable<String, List<String[]>>());
 		List<String[]> methodList = classMap.get(methodName);
 		if (methodList == null)
 			classMap.put(methodName, methodList = new ArrayList<String[]>());
@@ -5043,7 +5098,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 
 	private static String getParamsAsString(int nParams, String[] genericTypes, ITypeBinding[] paramTypes,
 			boolean toObject) {
-		StringBuffer sbParams = new StringBuffer();
+		StringBuilder sbParams = new StringBuilder();
 		// if this is a method invocation and has generics, then we alias that
 		boolean haveGeneric = false;
 		for (int i = 0; i < nParams; i++) {
@@ -5164,7 +5219,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	private static String removeBrackets(String qName) {
 		if (qName.indexOf('<') < 0)
 			return qName;
-		StringBuffer buf = new StringBuffer();
+		StringBuilder buf = new StringBuilder();
 		int ltCount = 0;
 		char c;
 		for (int i = 0, len = qName.length(); i < len; i++) {
@@ -5243,15 +5298,15 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		if (node == null)
 			return false;
 		Object constValue = getConstant(node);
-		StringBuffer sb = null;
+		StringBuilder sb = null;
 		if (constValue instanceof Number) {
-			sb = new StringBuffer();
+			sb = new StringBuilder();
 			String s = constValue.toString();
 			if (s.startsWith("-") && buffer.charAt(buffer.length() - 1) == '-')
 				sb.append(' ');
 			sb.append(s);
 		} else if (constValue instanceof Character || constValue instanceof Boolean) {
-			sb = new StringBuffer();
+			sb = new StringBuilder();
   			if (constValue instanceof Character) {
 				sb.append('"');
 				addChar(((Character) constValue).charValue(), sb);
@@ -5260,7 +5315,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 				sb.append(constValue);
 			}
 		} else if (constValue instanceof String) {
-			sb = new StringBuffer();
+			sb = new StringBuilder();
 			String str = (String) constValue;
 			int length = str.length();
 			sb.append('"');
@@ -5283,7 +5338,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		return true;
 	}
 
-	private static void addChar(char c, StringBuffer buffer) {
+	private static void addChar(char c, StringBuilder buffer) {
 		switch (c) {
 		case '\\':
 		case '\'':
@@ -5535,13 +5590,41 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		global_logAllCalls = logAllCalls;
 		if (lstMethodsDeclared != null)
 			lstMethodsDeclared.clear();
-		if (logAllCalls)
+		if (logAllCalls && htMethodsCalled != null)
 			htMethodsCalled.clear();
 	}
 
+	/**
+	 * Methods to be left out of the output, as "class.method", from
+	 * Java2ScriptTreeShaker.
+	 */
+	private static Set<String> global_strippedMethods;
+
+	public static void setStrippedMethods(Set<String> strippedMethods) {
+		global_strippedMethods = strippedMethods;
+	}
+
+	/**
+	 * @param finalName a name such as 'foo$I' or an array of aliases
+	 * @return true if all names of the method are to be stripped
+	 */
+	private boolean isMethodStripped(String finalName) {
+		String myName = fixLogName(class_fullName) + ".";
+		String[] names = (finalName.startsWith("[") ? finalName.substring(1, finalName.length() - 1).split(",")
+				: new String[] { finalName });
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			if (name.startsWith("'"))
+				name = name.substring(1, name.length() - 1);
+			if (!global_strippedMethods.contains(myName + name))
+				return false;
+		}
+		return true;
+	}
+
 	private void logMethodDeclared(String name) {
 		if (name.startsWith("[")) {
-			String[] names = name.substring(0, name.length() - 1).split(",");
+			String[] names = name.substring(1, name.length() - 1).split(",");
 			for (int i = 0; i < names.length; i++)
 				logMethodDeclared(names[i]);
 			return;
@@ -5561,6 +5644,18 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			global_htMethodsCalled.put(name, myName);
 	}
 
+	/**
+	 * Log the use of a class -- instantiation, subclassing, static fields, or
+	 * class literals -- as a call to its $clinit$. Only when logging all calls,
+	 * for Java2ScriptTreeShaker.
+	 * 
+	 * @param javaClassName
+	 */
+	private void logClassUsed(String javaClassName) {
+		if (global_logAllCalls && global_htMethodsCalled != null)
+			logMethodCalled(javaClassName + ".$clinit$");
+	}
+
 	private String fixLogName(String name) {
 		name = NameMapper.checkClassReplacement(name);
 		int pt = name.indexOf("<");
@@ -5586,6 +5681,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * @param className
 	 */
 	private void appendElementKey(String className) {
+		elementStarts.add(Integer.valueOf(buffer.length()));
 		buffer.append(ELEMENT_KEY + ("=" + className) + "\r\n");
 	}
 
@@ -5603,31 +5699,81 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			addDummyClassForPackageOnlyFile();
 		}
 
-		String trailer = ";Clazz.setTVer('" + VERSION + "');//Created "
-				+ new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " Java2ScriptVisitor version "
-				+ VERSION + " net.sf.j2s.core.jar version " + CorePlugin.VERSION + "\n";
+		// no timestamp, so that unchanged classes give identical files
+		String trailer = ";Clazz.setTVer('" + VERSION + "');//Java2ScriptVisitor version " + VERSION
+				+ " net.sf.j2s.core.jar version " + CorePlugin.VERSION + "\n";
 		List<String> elements = new ArrayList<String>();
-		String js = buffer.toString();
-		String eq = "="; // because we might be operating on this file
-		String[] parts = js.split(ELEMENT_KEY + eq);
-		String header = parts[0];
-		String header_noIncludes = header.replace(",I$=[[]]", "");
-		header = header.replace(",I$=[]", privateVarString + (package_includes.length() == 0 ? ""
-				: package_includes.append("]],$I$=function(i){return I$[i]||(I$[i]=Clazz.load(I$[0][i]))}")));
-		for (int i = 1; i < parts.length; i++) {
-			js = parts[i];
-			int pt = js.indexOf("\r\n");
-			String name = js.substring(0, pt);
-			elements.add(name);
-			js = js.substring(pt + 2);
-			String head = "(function(){"
-					+ (js.indexOf("$I$(") < 0 && js.indexOf("p$") < 0 ? header_noIncludes : header);
-			elements.add(head + js + "})();\r\n" + trailer);
+		List<Integer> starts = getElementStarts();
+		int n = starts.size();
+		String header = buffer.substring(0, n == 0 ? buffer.length() : starts.get(0).intValue());
+		String header_noIncludes = header;
+		String includes = package_privateVarString + (package_includes.length() == 0 ? ""
+				: package_includes.append("]],$I$=function(i){return I$[i]||(I$[i]=Clazz.load(I$[0][i]))}"));
+		int pt = headerIncludesPt;
+		header = (pt >= 0 && header.startsWith(",I$=[]", pt)
+				? header.substring(0, pt) + includes + header.substring(pt + 6)
+				: header.replace(",I$=[]", includes));
+		int keyLength = ELEMENT_KEY.length() + 1;
+		for (int i = 0; i < n; i++) {
+			int start = starts.get(i).intValue() + keyLength;
+			int end = (i + 1 < n ? starts.get(i + 1).intValue() : buffer.length());
+			pt = buffer.indexOf("\r\n", start);
+			elements.add(buffer.substring(start, pt));
+			pt += 2;
+			String head = (contains(buffer, "$I$(", pt, end) || contains(buffer, "p$", pt, end) ? header
+					: header_noIncludes);
+			StringBuilder js = new StringBuilder(12 + head.length() + end - pt + 9 + trailer.length());
+			js.append("(function(){").append(head).append(buffer, pt, end).append("})();\r\n").append(trailer);
+			elements.add(js.toString());
 		}
 		resetPrivateVars();
 		return elements;
 	}
 
+	/**
+	 * Element keys are recorded as they are written. Should code have been
+	 * inserted or removed ahead of a key since, find the keys again.
+	 * 
+	 * @return positions of the element keys in buffer
+	 */
+	private List<Integer> getElementStarts() {
+		String eq = "="; // because we might be operating on this file
+		String key = ELEMENT_KEY + eq;
+		int pt = 0;
+		for (int i = 0, n = elementStarts.size(); i < n; i++) {
+			int start = elementStarts.get(i).intValue();
+			if (start < pt || !contains(buffer, key, start, start + key.length()))
+				return findElementStarts(key);
+			pt = start + key.length();
+		}
+		return elementStarts;
+	}
+
+	private List<Integer> findElementStarts(String key) {
+		List<Integer> starts = new ArrayList<Integer>();
+		for (int pt = 0; (pt = buffer.indexOf(key, pt)) >= 0; pt += key.length())
+			starts.add(Integer.valueOf(pt));
+		return starts;
+	}
+
+	/**
+	 * @return true if s is found in sb between from and to
+	 */
+	private static boolean contains(StringBuilder sb, String s, int from, int to) {
+		char c = s.charAt(0);
+		int len = s.length();
+		for (int i = from, n = Math.min(to, sb.length()) - len; i <= n; i++) {
+			if (sb.charAt(i) != c)
+				continue;
+			int j = 1;
+			while (j < len && sb.charAt(i + j) == s.charAt(j))
+				j++;
+			if (j == len)
+				return true;
+		}
+		return false;
+	}
+
 	private void addDummyClassForPackageOnlyFile() {
 		appendElementKey("_$");
 		buffer.append("var C$=Clazz.newClass(\"_$\");\nC$.$clinit$ = function() {Clazz.load(C$, 1)};\n");
@@ -5739,7 +5885,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	private static String getFinalFieldOrLocalVariableName(ITypeBinding classBinding, String fieldName) {
 		String js$ = NameMapper.getJavaScriptCollisionIdentifier(fieldName, false);
 		return (isJ2SInheritedFieldName(classBinding, fieldName) ? NameMapper.getJ2S$$InheritedFieldName(classBinding,
-				fieldName, NameMapper.newFieldNameBuf(fieldName, new StringBuffer(js$))).toString() : js$ + fieldName);
+				fieldName, NameMapper.newFieldNameBuf(fieldName, new StringBuilder(js$))).toString() : js$ + fieldName);
 	}
 
 	/**
@@ -5952,7 +6098,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		 * @param scope
 		 * @param buf
 		 */
-		void appendToBuffer(String scope, StringBuffer buf) {
+		void appendToBuffer(String scope, StringBuilder buf) {
 			buf.append(j2sName);
 			buf.append(": ");
 			if (methodScope == null ? scope == null : methodScope.equals(scope)) {
@@ -6023,10 +6169,13 @@ public class Java2ScriptVisitor extends ASTVisitor {
 				"java.lang.Iterable", "java.lang.CharSequence", "java.lang.Cloneable", "java.lang.Comparable",
 				"java.lang.Runnable", "java.lang.System", "java.lang.ClassLoader", "java.lang.Math",
 				"java.lang.Number" };
-		private final static Set<String> knownClassHash = new HashSet<String>();
+		private final static Set<String> knownClassHash;
 		static {
+			Set<String> known = new HashSet<String>();
 			for (int i = knownClasses.length; --i >= 0;)
-				knownClassHash.add(knownClasses[i]);
+				known.add(knownClasses[i]);
+			// read-only, so it can be shared by visitors running in parallel
+			knownClassHash = Collections.unmodifiableSet(known);
 		}
 
 		static boolean isClassKnown(String qualifiedName) {
@@ -6247,7 +6396,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		 * @param name
 		 * @return
 		 */
-		static StringBuffer getJ2S$$InheritedFieldName(ITypeBinding binding, String name, StringBuffer buf) {
+		static StringBuilder getJ2S$$InheritedFieldName(ITypeBinding binding, String name, StringBuilder buf) {
 			if (binding != null) {
 				ITypeBinding superclass = binding.getSuperclass();
 				if (superclass != null) {
@@ -6272,9 +6421,9 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		 * @param buf
 		 * @return
 		 */
-		static StringBuffer newFieldNameBuf(String fieldName, StringBuffer buf) {
+		static StringBuilder newFieldNameBuf(String fieldName, StringBuilder buf) {
 			if (buf == null)
-				buf = new StringBuffer();
+				buf = new StringBuilder();
 			if (fieldNameCoversMethod(fieldName))
 				buf.append("$");
 			return buf;
@@ -6632,7 +6781,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		 * @param isBlock
 		 * @return true if code was added
 		 */
-		static boolean addJ2sJavadocs(StringBuffer buffer, List<Javadoc> list, boolean isBlock) {
+		static boolean addJ2sJavadocs(StringBuilder buffer, List<Javadoc> list, boolean isBlock) {
 			boolean didAdd = false;
 			int n = list.size();
 			for (int i = 0; i < n; i++) {
@@ -6672,7 +6821,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		 * @param isIgnore
 		 * @return true to indicate we have written, so this block can be skipped
 		 */
-		private static boolean addJ2SSourceForTag(StringBuffer buffer, TagElement tag, boolean addPrefix,
+		private static boolean addJ2SSourceForTag(StringBuilder buffer, TagElement tag, boolean addPrefix,
 				boolean addPostfix, boolean isIgnore) {
 			if (isIgnore) {
 				buffer.append("\r\n{}\r\n");
@@ -6680,7 +6829,7 @@ public class Java2ScriptVisitor extends ASTVisitor {
 			}
 			if (tag == null)
 				return false;
-			StringBuffer buf = new StringBuffer();
+			StringBuilder buf = new StringBuilder();
 			List<?> fragments = tag.fragments();
 			for (Iterator<?> iterator = fragments.iterator(); iterator.hasNext();) {
 				TextElement commentEl = (TextElement) iterator.next();
@@ -7021,13 +7170,13 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	 * 
 	 * This hashtable is reset for each top-level class, indicating which private
 	 * var to use for a private method -- p$1, p$2, p$3 etc. -- depending upon the
-	 * class being referred to.
+	 * class being referred to. It is shared with the visitors of inner classes.
 	 * 
 	 */
-	private static Map<String, String> classToPrivateVar = new Hashtable<String, String>();
-	private static String privateVarString = "";
-	private static int privateClassCount = 0;
-	private static int privateVarCount = 0;
+	private Map<String, String> package_classToPrivateVar = new Hashtable<String, String>();
+	private StringBuilder package_privateVarString = new StringBuilder();
+	private int[] package_privateClassCount = new int[1];
+	private int[] package_privateVarCount = new int[1];
 
 	/**
 	 * p$1, p$2, etc.
@@ -7042,22 +7191,22 @@ public class Java2ScriptVisitor extends ASTVisitor {
 		String key = binding.getKey(), key0 = null, key1 = null;
 		if (isClassCompare)
 			key = "_" + key;
-		String p$ = classToPrivateVar.get(key);
+		String p$ = package_classToPrivateVar.get(key);
 		if (p$ == null) {
 			key0 = key;
-			p$ = classToPrivateVar.get(key = (isClassCompare ? "_" : "") + getNormalizedKey(binding));
+			p$ = package_classToPrivateVar.get(key = (isClassCompare ? "_" : "") + getNormalizedKey(binding));
 		}
 		if (p$ == null && !isClassCompare && key.indexOf("[") >= 0) {
 			key1 = key;
-			p$ = classToPrivateVar.get(key = key.substring(0, key.indexOf("[") + 1) + "]");
+			p$ = package_classToPrivateVar.get(key = key.substring(0, key.indexOf("[") + 1) + "]");
 		}
 		if (p$ == null) {
-			classToPrivateVar.put(key, p$ = "p$" + (isClassCompare ? ++privateClassCount : ++privateVarCount));
-			classToPrivateVar.put(key0, p$);
+			package_classToPrivateVar.put(key, p$ = "p$" + (isClassCompare ? ++package_privateClassCount[0] : ++package_privateVarCount[0]));
+			package_classToPrivateVar.put(key0, p$);
 			if (!isClassCompare) {
 				if (key1 != null)
-					classToPrivateVar.put(key1, p$);
-				privateVarString += "," + p$ + "={}";
+					package_classToPrivateVar.put(key1, p$);
+				package_privateVarString.append(",").append(p$).append("={}");
 			}
 		}
 		return p$;
@@ -7113,9 +7262,9 @@ public class Java2ScriptVisitor extends ASTVisitor {
 	}
 
 	private void resetPrivateVars() {
-		privateVarCount = privateClassCount = 0;
-		privateVarString = "";
-		classToPrivateVar.clear();
+		package_privateVarCount[0] = package_privateClassCount[0] = 0;
+		package_privateVarString.setLength(0);
+		package_classToPrivateVar.clear();
 	}
 
 	///////////////// debugging //////////////////////////
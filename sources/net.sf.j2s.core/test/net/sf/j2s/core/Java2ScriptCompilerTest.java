@@ -0,0 +1,169 @@
+package net.sf.j2s.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jdt.core.dom.CompilationUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Batching and ordering of Java2ScriptCompiler#compileToJavaScript(SourceList),
+ * with the visitor and the file writer replaced by recorders.
+ */
+public class Java2ScriptCompilerTest extends TestCase {
+
+	private static class RecordingCompiler extends Java2ScriptCompiler {
+
+		final List<String> batches = Collections.synchronizedList(new ArrayList<String>());
+
+		final List<String> transpiled = Collections.synchronizedList(new ArrayList<String>());
+
+		final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+		final List<Thread> writers = Collections.synchronizedList(new ArrayList<Thread>());
+
+		/**
+		 * set while a batch is being parsed
+		 */
+		volatile boolean parsing;
+
+		/**
+		 * a unit visited outside of the requestor, or on another thread
+		 */
+		volatile String misplaced;
+
+		/**
+		 * path of the unit whose writing fails
+		 */
+		String failing;
+
+		Thread parser = Thread.currentThread();
+
+		RecordingCompiler(boolean asyncWrite, int batchSize) {
+			this.asyncWrite = asyncWrite;
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		Transpiled transpile(CompilationUnit root, String path, String name, String sourceHash) {
+			if (!parsing || Thread.currentThread() != parser)
+				misplaced = path;
+			transpiled.add(path);
+			Transpiled t = new Transpiled();
+			t.path = path;
+			t.name = name;
+			return t;
+		}
+
+		@Override
+		boolean outputJavaScript(Transpiled[] batch) {
+			writers.add(Thread.currentThread());
+			for (int i = 0; i < batch.length; i++) {
+				if (batch[i].path.equals(failing))
+					return false;
+				written.add(batch[i].path);
+			}
+			return true;
+		}
+
+		SourceList units(final int n, final int skipped) {
+			return new SourceList() {
+
+				@Override
+				int size() {
+					return n;
+				}
+
+				@Override
+				String getPath(int i) {
+					return "U" + i + ".java";
+				}
+
+				@Override
+				String getName(int i) {
+					return getPath(i);
+				}
+
+				@Override
+				void createASTs(int start, int end) {
+					batches.add(start + "-" + end);
+					parsing = true;
+					try {
+						// requestors accept ASTs in any order
+						for (int i = end; --i >= start;) {
+							if (i != skipped)
+								accept(i - start, null);
+						}
+					} finally {
+						parsing = false;
+					}
+				}
+
+			};
+		}
+
+	}
+
+	private static List<String> paths(int from, int to) {
+		List<String> paths = new ArrayList<String>();
+		for (int i = from; i < to; i++)
+			paths.add("U" + i + ".java");
+		return paths;
+	}
+
+	public void testBatches() {
+		RecordingCompiler compiler = new RecordingCompiler(false, 3);
+		assertTrue(compiler.compileToJavaScript(compiler.units(7, -1)));
+		assertEquals("[0-3, 3-6, 6-7]", compiler.batches.toString());
+		assertNull(compiler.misplaced);
+		assertEquals(7, compiler.transpiled.size());
+		assertEquals(paths(0, 7), compiler.written);
+		assertEquals(3, compiler.writers.size());
+		for (int i = 0; i < compiler.writers.size(); i++)
+			assertSame(compiler.parser, compiler.writers.get(i));
+	}
+
+	public void testSingleBatch() {
+		RecordingCompiler compiler = new RecordingCompiler(true, 100);
+		assertTrue(compiler.compileToJavaScript(compiler.units(5, -1)));
+		assertEquals("[0-5]", compiler.batches.toString());
+		assertEquals(paths(0, 5), compiler.written);
+		// nothing to overlap with
+		assertSame(compiler.parser, compiler.writers.get(0));
+	}
+
+	public void testWriterThread() {
+		RecordingCompiler compiler = new RecordingCompiler(true, 2);
+		assertTrue(compiler.compileToJavaScript(compiler.units(9, -1)));
+		assertEquals("[0-2, 2-4, 4-6, 6-8, 8-9]", compiler.batches.toString());
+		// visited on the parser thread only
+		assertNull(compiler.misplaced);
+		// written in order, all before returning
+		assertEquals(paths(0, 9), compiler.written);
+		assertEquals(5, compiler.writers.size());
+		Thread writer = compiler.writers.get(0);
+		assertNotSame(compiler.parser, writer);
+		for (int i = 1; i < compiler.writers.size(); i++)
+			assertSame(writer, compiler.writers.get(i));
+	}
+
+	public void testMissingUnit() {
+		RecordingCompiler compiler = new RecordingCompiler(true, 2);
+		assertFalse(compiler.compileToJavaScript(compiler.units(9, 3)));
+		// the batch of the missing unit is not written, nor parsed after it
+		assertEquals("[0-2, 2-4]", compiler.batches.toString());
+		assertEquals(paths(0, 2), compiler.written);
+	}
+
+	public void testWriteFailure() {
+		RecordingCompiler compiler = new RecordingCompiler(true, 2);
+		compiler.failing = "U3.java";
+		assertFalse(compiler.compileToJavaScript(compiler.units(9, -1)));
+		assertEquals(paths(0, 3), compiler.written);
+		// the failure is seen once the following batch is visited
+		assertEquals("[0-2, 2-4, 4-6]", compiler.batches.toString());
+	}
+
+}
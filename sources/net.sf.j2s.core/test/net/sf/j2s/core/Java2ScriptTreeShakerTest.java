@@ -0,0 +1,85 @@
+package net.sf.j2s.core;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Reachability and stripping of Java2ScriptTreeShaker over small method logs.
+ */
+public class Java2ScriptTreeShakerTest extends TestCase {
+
+	private static final String[] NONE = { "" };
+
+	private Java2ScriptTreeShaker shaker;
+
+	@Override
+	protected void setUp() {
+		shaker = new Java2ScriptTreeShaker();
+		shaker.readDeclared(Arrays.asList(
+				"app.Main.main$SA",
+				"app.Main.start$",
+				"app.Main.unused$",
+				"",
+				"lib.Util.used$I",
+				"lib.Util.unused$",
+				"lib.Util.fromPlugin$",
+				"lib.Base.paint$",
+				"lib.Base.c$",
+				"lib.Derived.paint$",
+				"lib.Derived.extra$",
+				"lib.Plugin.install$",
+				"lib.Plugin.uncalled$",
+				"lib.Orphan.orphan$"));
+		shaker.readCalled(Arrays.asList(
+				"app.Main.start$,app.Main",
+				"lib.Util.used$I,app.Main",
+				"lib.Base.paint$,app.Main",
+				"lib.Derived.c$,app.Main",
+				"  lib.Util.used$I,lib.Util  ",
+				"no caller",
+				// loaded by name, so not reachable from the roots
+				"lib.Util.fromPlugin$,lib.Plugin"));
+	}
+
+	public void testReachableClasses() {
+		shaker.shake(new String[] { "app." });
+		assertEquals("[app.Main, lib.Base, lib.Derived, lib.Util]", shaker.getReachableClasses().toString());
+	}
+
+	public void testStrippedMethods() {
+		shaker.shake(new String[] { "app." });
+		Set<String> stripped = shaker.getStrippedMethods(NONE);
+		// main$SA and c$ are called by the runtime; Derived.paint$ overrides
+		// a called method; classes not reachable are left alone
+		assertEquals("[app.Main.unused$, lib.Derived.extra$, lib.Util.unused$]", stripped.toString());
+	}
+
+	public void testCallsFromUnreachableClasses() {
+		shaker.shake(new String[] { "app." });
+		assertFalse(shaker.getReachableClasses().contains("lib.Plugin"));
+		assertFalse(shaker.getStrippedMethods(NONE).contains("lib.Util.fromPlugin$"));
+	}
+
+	public void testKeep() {
+		shaker.shake(new String[] { "app." });
+		Set<String> stripped = shaker.getStrippedMethods(new String[] { "lib.Derived", "app.Main.unused$" });
+		assertEquals("[lib.Util.unused$]", stripped.toString());
+	}
+
+	public void testRoots() {
+		shaker.shake(new String[] { "lib.Plugin", "lib.Orphan" });
+		assertEquals("[lib.Orphan, lib.Plugin, lib.Util]", shaker.getReachableClasses().toString());
+		assertEquals("[lib.Orphan.orphan$, lib.Plugin.install$, lib.Plugin.uncalled$, lib.Util.unused$]",
+				shaker.getStrippedMethods(NONE).toString());
+	}
+
+	public void testClassFiles() {
+		Java2ScriptTreeShaker shaker = new Java2ScriptTreeShaker();
+		shaker.readCalled(Arrays.asList("a.b.C$Inner.m$,a.b.C", "a.b.D.m$,a.b.C"));
+		shaker.shake(new String[] { "a.b.C" });
+		assertEquals("[a/b/C.js, a/b/D.js]", shaker.getClassFiles().toString());
+	}
+
+}
@@ -1,5 +1,8 @@
 package com.falstad;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 
  * @author Paul Falstad
@@ -7,9 +10,14 @@ package com.falstad;
  */
 public class FFT {
 	
+	private static Map<Integer, FFT> plans = new HashMap<Integer, FFT>();
+
 	private double wtabf[];
 	private double wtabi[];
+	private double rtab[];
+	private int swaps[];
 	private int size;
+	private int bits;
 
 	/**
 	 * 
@@ -24,9 +32,31 @@ public class FFT {
 	 */
 	public FFT(int size) throws ArithmeticException {
 		this.size = size;
-		if ((size & (size - 1)) != 0)
+		if (size < 1 || (size & (size - 1)) != 0)
 			throw new ArithmeticException("FFT size must be power of two");
+		while ((1 << bits) != size)
+			bits++;
 		calcWTable();
+		calcSwaps();
+	}
+
+	/**
+	 * 
+	 * The shared FFT of a given size. An FFT holds no state besides its
+	 * tables, so one instance can be used by any number of callers.
+	 * 
+	 * @param size
+	 *          as for the constructor
+	 * 
+	 * @throws ArithmeticException
+	 */
+	public static synchronized FFT getInstance(int size)
+			throws ArithmeticException {
+		Integer key = Integer.valueOf(size);
+		FFT fft = plans.get(key);
+		if (fft == null)
+			plans.put(key, fft = new FFT(size));
+		return fft;
 	}
 
 	public int getSize() {
@@ -53,113 +83,275 @@ public class FFT {
 	 *          set true to do inverse fast Fourier transform
 	 */
 	public void transform(double[] data, boolean isInverse) {
-		int i;
-		int j = 0;
-		int size2 = size * 2;
+		transform(data, 0, 1, isInverse);
+	}
+
+	/**
+	 * 
+	 * Transform several signals of the same size.
+	 * 
+	 * @param data
+	 *          count arrays as for transform(data, isInverse), one after the
+	 *          other
+	 * 
+	 * @param count
+	 *          the number of signals
+	 * 
+	 * @param isInverse
+	 *          set true to do inverse fast Fourier transform
+	 */
+	public void transformBatch(double[] data, int count, boolean isInverse) {
+		transform(data, 0, count, isInverse);
+	}
+
+	/**
+	 * 
+	 * Transform a real signal of twice the size parameter given in the
+	 * constructor, using a complex transform of that size.
+	 * 
+	 * The result is the first half of what transform(data, false) gives for
+	 * the signal with zero imaginary parts. Element 0 holds the real value at
+	 * frequency 0, element 1 the real value at frequency size, and elements
+	 * 2k and 2k+1 the value at frequency k.
+	 * 
+	 * The inverse takes such a spectrum back to a real signal, multiplied by
+	 * twice the size, as transform(data, true) would.
+	 * 
+	 * @param data
+	 *          an array that is twice the length of the size parameter
+	 * 
+	 * @param isInverse
+	 *          set true to do the inverse transform
+	 */
+	public void realTransform(double[] data, boolean isInverse) {
+		realTransformBatch(data, 1, isInverse);
+	}
+
+	/**
+	 * 
+	 * @param data
+	 *          count arrays as for realTransform(data, isInverse), one after
+	 *          the other
+	 * 
+	 * @param count
+	 *          the number of signals
+	 * 
+	 * @param isInverse
+	 *          set true to do the inverse transform
+	 */
+	public void realTransformBatch(double[] data, int count, boolean isInverse) {
+		if (isInverse) {
+			for (int o = 0; o != count * size * 2; o += size * 2)
+				unpackReal(data, o);
+			transform(data, 0, count, true);
+		} else {
+			transform(data, 0, count, false);
+			for (int o = 0; o != count * size * 2; o += size * 2)
+				packReal(data, o);
+		}
+	}
+
+	private void transform(double[] data, int off, int count, boolean isInverse) {
+		for (int i = 0; i != count; i++)
+			transform(data, off + i * size * 2, isInverse);
+	}
+
+	private void transform(double[] data, int off, boolean isInverse) {
+		int i, k;
+		int end = off + size * 2;
 
 		// bit-reversal
 		double q;
-		int bit;
-		for (i = 0; i != size2; i += 2) {
-			if (i > j) {
-				q = data[i];
-				data[i] = data[j];
-				data[j] = q;
-				q = data[i + 1];
-				data[i + 1] = data[j + 1];
-				data[j + 1] = q;
-			}
-			// increment j by one, from the left side (bit-reversed)
-			bit = size;
-			while ((bit & j) != 0) {
-				j &= ~bit;
-				bit >>= 1;
-			}
-			j |= bit;
+		for (i = 0; i != swaps.length; i += 2) {
+			int a = off + swaps[i];
+			int b = off + swaps[i + 1];
+			q = data[a];
+			data[a] = data[b];
+			data[b] = q;
+			q = data[a + 1];
+			data[a + 1] = data[b + 1];
+			data[b + 1] = q;
 		}
 
-		// amount to skip through w table
-		int tabskip = size << 1;
 		double wtab[] = (isInverse) ? wtabi : wtabf;
+		double d0r, d0i, d1r, d1i, d2r, d2i, d3r, d3i;
 
-		int skip1, skip2, ix, j2;
-		double wr, wi, d1r, d1i, d2r, d2i, d2wr, d2wi;
-
-		// unroll the first iteration of the main loop
-		for (i = 0; i != size2; i += 4) {
-			d1r = data[i];
-			d1i = data[i + 1];
-			d2r = data[i + 2];
-			d2i = data[i + 3];
-			data[i] = d1r + d2r;
-			data[i + 1] = d1i + d2i;
-			data[i + 2] = d1r - d2r;
-			data[i + 3] = d1i - d2i;
-		}
-		tabskip >>= 1;
-
-		// unroll the second iteration of the main loop
-		int imult = (isInverse) ? -1 : 1;
-		for (i = 0; i != size2; i += 8) {
-			d1r = data[i];
-			d1i = data[i + 1];
-			d2r = data[i + 4];
-			d2i = data[i + 5];
-			data[i] = d1r + d2r;
-			data[i + 1] = d1i + d2i;
-			data[i + 4] = d1r - d2r;
-			data[i + 5] = d1i - d2i;
-			d1r = data[i + 2];
-			d1i = data[i + 3];
-			d2r = data[i + 6] * imult;
-			d2i = data[i + 7] * imult;
-			data[i + 2] = d1r - d2i;
-			data[i + 3] = d1i + d2r;
-			data[i + 6] = d1r + d2i;
-			data[i + 7] = d1i - d2r;
+		// if there is an odd number of levels, combine the first one with a
+		// radix-2 pass
+		int len = 1;
+		if ((bits & 1) != 0) {
+			for (i = off; i != end; i += 4) {
+				d0r = data[i];
+				d0i = data[i + 1];
+				d1r = data[i + 2];
+				d1i = data[i + 3];
+				data[i] = d0r + d1r;
+				data[i + 1] = d0i + d1i;
+				data[i + 2] = d0r - d1r;
+				data[i + 3] = d0i - d1i;
+			}
+			len = 2;
 		}
-		tabskip >>= 1;
-
-		for (skip1 = 16; skip1 <= size2; skip1 <<= 1) {
-			// skip2 = length of subarrays we are combining
-			// skip1 = length of subarray after combination
-			skip2 = skip1 >> 1;
-			tabskip >>= 1;
-			// for each subarray
-			for (i = 0; i < size2; i += skip1) {
-				ix = 0;
-				// for each pair of complex numbers (one in each subarray)
-				for (j = i; j != i + skip2; j += 2, ix += tabskip) {
-					wr = wtab[ix];
-					wi = wtab[ix + 1];
-					d1r = data[j];
-					d1i = data[j + 1];
-					j2 = j + skip2;
-					d2r = data[j2];
-					d2i = data[j2 + 1];
-					d2wr = d2r * wr - d2i * wi;
-					d2wi = d2r * wi + d2i * wr;
-					data[j] = d1r + d2wr;
-					data[j + 1] = d1i + d2wi;
-					data[j2] = d1r - d2wr;
-					data[j2 + 1] = d1i - d2wi;
+
+		// then combine four subarrays of length len at a time (radix 4). With
+		// the bit-reversed order, the subarrays hold the transforms of the
+		// elements 0, 2, 1 and 3 mod 4.
+		double imult = (isInverse) ? -1 : 1;
+		for (; len < size; len <<= 2) {
+			int skip = len * 2;
+			int skip4 = len * 8;
+			int tabskip = 2 * (size / (len * 4));
+			double t1r, t1i, t2r, t2i, t3r, t3i;
+			double s0r, s0i, s1r, s1i;
+			for (k = 0; k != len; k++) {
+				int ix = k * tabskip;
+				double w1r = wtab[ix];
+				double w1i = wtab[ix + 1];
+				double w2r = wtab[ix * 2];
+				double w2i = wtab[ix * 2 + 1];
+				double w3r = wtab[ix * 3];
+				double w3i = wtab[ix * 3 + 1];
+				for (i = off + k * 2; i < end; i += skip4) {
+					int i1 = i + skip;
+					int i2 = i1 + skip;
+					int i3 = i2 + skip;
+					d0r = data[i];
+					d0i = data[i + 1];
+					d2r = data[i1];
+					d2i = data[i1 + 1];
+					d1r = data[i2];
+					d1i = data[i2 + 1];
+					d3r = data[i3];
+					d3i = data[i3 + 1];
+					if (k == 0) {
+						t1r = d1r;
+						t1i = d1i;
+						t2r = d2r;
+						t2i = d2i;
+						t3r = d3r;
+						t3i = d3i;
+					} else {
+						t1r = d1r * w1r - d1i * w1i;
+						t1i = d1r * w1i + d1i * w1r;
+						t2r = d2r * w2r - d2i * w2i;
+						t2i = d2r * w2i + d2i * w2r;
+						t3r = d3r * w3r - d3i * w3i;
+						t3i = d3r * w3i + d3i * w3r;
+					}
+					s0r = d0r + t2r;
+					s0i = d0i + t2i;
+					d0r -= t2r;
+					d0i -= t2i;
+					s1r = t1r + t3r;
+					s1i = t1i + t3i;
+					// (t1 - t3) times i, or -i for the inverse
+					d1r = (t3i - t1i) * imult;
+					d1i = (t1r - t3r) * imult;
+					data[i] = s0r + s1r;
+					data[i + 1] = s0i + s1i;
+					data[i1] = d0r + d1r;
+					data[i1 + 1] = d0i + d1i;
+					data[i2] = s0r - s1r;
+					data[i2 + 1] = s0i - s1i;
+					data[i3] = d0r - d1r;
+					data[i3 + 1] = d0i - d1i;
 				}
 			}
 		}
 	}
-	
+
+	// The transform of the real signal is E + w O, where E and O are the
+	// transforms of its even and odd elements, which were transformed
+	// together as the real and imaginary parts of one complex signal.
+	private void packReal(double[] data, int o) {
+		double zr = data[o];
+		double zi = data[o + 1];
+		data[o] = zr + zi;
+		data[o + 1] = zr - zi;
+		for (int k = 1; k <= size / 2; k++) {
+			int a = o + k * 2;
+			int b = o + (size - k) * 2;
+			double ar = data[a], ai = data[a + 1];
+			double br = data[b], bi = data[b + 1];
+			double er = (ar + br) * .5;
+			double ei = (ai - bi) * .5;
+			double or = (ai + bi) * .5;
+			double oi = (br - ar) * .5;
+			double wr = rtab[k * 2];
+			double wi = rtab[k * 2 + 1];
+			double tr = or * wr - oi * wi;
+			double ti = or * wi + oi * wr;
+			data[a] = er + tr;
+			data[a + 1] = ei + ti;
+			data[b] = er - tr;
+			data[b + 1] = ti - ei;
+		}
+	}
+
+	// undo packReal(), times two
+	private void unpackReal(double[] data, int o) {
+		double x0 = data[o];
+		double xn = data[o + 1];
+		data[o] = x0 + xn;
+		data[o + 1] = x0 - xn;
+		for (int k = 1; k <= size / 2; k++) {
+			int a = o + k * 2;
+			int b = o + (size - k) * 2;
+			double ar = data[a], ai = data[a + 1];
+			double br = data[b], bi = data[b + 1];
+			double er = ar + br;
+			double ei = ai - bi;
+			double dr = ar - br;
+			double di = ai + bi;
+			double wr = rtab[k * 2];
+			double wi = rtab[k * 2 + 1];
+			double or = dr * wr + di * wi;
+			double oi = di * wr - dr * wi;
+			data[a] = er - oi;
+			data[a + 1] = ei + or;
+			data[b] = er + oi;
+			data[b + 1] = or - ei;
+		}
+	}
+
 	private void calcWTable() {
-		// calculate table of powers of w
-		wtabf = new double[size];
-		wtabi = new double[size];
+		// calculate table of powers of w, around the whole circle, for the
+		// radix-4 passes
+		wtabf = new double[size * 2];
+		wtabi = new double[size * 2];
 		int i;
-		for (i = 0; i != size; i += 2) {
+		for (i = 0; i != size * 2; i += 2) {
 			double th = Math.PI * i / size;
 			wtabf[i] = (double) Math.cos(th);
 			wtabf[i + 1] = (double) Math.sin(th);
 			wtabi[i] = wtabf[i];
 			wtabi[i + 1] = -wtabf[i + 1];
 		}
+		// and half way around, for realTransform()
+		rtab = new double[size + 2];
+		for (i = 0; i <= size; i += 2) {
+			double th = Math.PI * i / (size * 2);
+			rtab[i] = Math.cos(th);
+			rtab[i + 1] = Math.sin(th);
+		}
+	}
+
+	private void calcSwaps() {
+		// pairs of elements exchanged by the bit-reversal
+		int count = 0;
+		int pairs[] = new int[size];
+		for (int i = 0; i != size; i++) {
+			int j = 0;
+			for (int b = 0; b != bits; b++)
+				if ((i & (1 << b)) != 0)
+					j |= 1 << (bits - 1 - b);
+			if (i < j) {
+				pairs[count++] = i * 2;
+				pairs[count++] = j * 2;
+			}
+		}
+		swaps = new int[count];
+		System.arraycopy(pairs, 0, swaps, 0, count);
 	}
 
 }
\ No newline at end of file
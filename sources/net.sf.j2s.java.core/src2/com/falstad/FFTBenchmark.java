@@ -0,0 +1,245 @@
+package com.falstad;
+
+import java.util.Random;
+
+// Headless comparison of FFT with the radix-2 transform it replaced.
+//
+// java com.falstad.FFTBenchmark [sizes...]
+//
+// For each size, it checks the complex, real and batch transforms against a
+// direct Fourier transform, and times them against the old transform.
+class FFTBenchmark {
+
+	// the radix-2 transform of FFT before plans, real transforms and batches
+	static class Radix2 {
+		double wtabf[], wtabi[];
+		int size;
+
+		Radix2(int size) {
+			this.size = size;
+			wtabf = new double[size];
+			wtabi = new double[size];
+			for (int i = 0; i != size; i += 2) {
+				double th = Math.PI * i / size;
+				wtabf[i] = Math.cos(th);
+				wtabf[i + 1] = Math.sin(th);
+				wtabi[i] = wtabf[i];
+				wtabi[i + 1] = -wtabf[i + 1];
+			}
+		}
+
+		void transform(double[] data, boolean isInverse) {
+			int i;
+			int j = 0;
+			int size2 = size * 2;
+			double q;
+			int bit;
+			for (i = 0; i != size2; i += 2) {
+				if (i > j) {
+					q = data[i];
+					data[i] = data[j];
+					data[j] = q;
+					q = data[i + 1];
+					data[i + 1] = data[j + 1];
+					data[j + 1] = q;
+				}
+				bit = size;
+				while ((bit & j) != 0) {
+					j &= ~bit;
+					bit >>= 1;
+				}
+				j |= bit;
+			}
+			int tabskip = size << 1;
+			double wtab[] = (isInverse) ? wtabi : wtabf;
+			int skip1, skip2, ix, j2;
+			double wr, wi, d1r, d1i, d2r, d2i, d2wr, d2wi;
+			for (i = 0; i != size2; i += 4) {
+				d1r = data[i];
+				d1i = data[i + 1];
+				d2r = data[i + 2];
+				d2i = data[i + 3];
+				data[i] = d1r + d2r;
+				data[i + 1] = d1i + d2i;
+				data[i + 2] = d1r - d2r;
+				data[i + 3] = d1i - d2i;
+			}
+			tabskip >>= 1;
+			int imult = (isInverse) ? -1 : 1;
+			for (i = 0; i != size2; i += 8) {
+				d1r = data[i];
+				d1i = data[i + 1];
+				d2r = data[i + 4];
+				d2i = data[i + 5];
+				data[i] = d1r + d2r;
+				data[i + 1] = d1i + d2i;
+				data[i + 4] = d1r - d2r;
+				data[i + 5] = d1i - d2i;
+				d1r = data[i + 2];
+				d1i = data[i + 3];
+				d2r = data[i + 6] * imult;
+				d2i = data[i + 7] * imult;
+				data[i + 2] = d1r - d2i;
+				data[i + 3] = d1i + d2r;
+				data[i + 6] = d1r + d2i;
+				data[i + 7] = d1i - d2r;
+			}
+			tabskip >>= 1;
+			for (skip1 = 16; skip1 <= size2; skip1 <<= 1) {
+				skip2 = skip1 >> 1;
+				tabskip >>= 1;
+				for (i = 0; i < size2; i += skip1) {
+					ix = 0;
+					for (j = i; j != i + skip2; j += 2, ix += tabskip) {
+						wr = wtab[ix];
+						wi = wtab[ix + 1];
+						d1r = data[j];
+						d1i = data[j + 1];
+						j2 = j + skip2;
+						d2r = data[j2];
+						d2i = data[j2 + 1];
+						d2wr = d2r * wr - d2i * wi;
+						d2wi = d2r * wi + d2i * wr;
+						data[j] = d1r + d2wr;
+						data[j + 1] = d1i + d2wi;
+						data[j2] = d1r - d2wr;
+						data[j2 + 1] = d1i - d2wi;
+					}
+				}
+			}
+		}
+	}
+
+	// direct transform, with the sign convention of FFT
+	static double[] dft(double[] data, int n) {
+		double out[] = new double[n * 2];
+		for (int k = 0; k != n; k++) {
+			double sr = 0, si = 0;
+			for (int m = 0; m != n; m++) {
+				double th = 2 * Math.PI * ((long) m * k % n) / n;
+				double c = Math.cos(th), s = Math.sin(th);
+				sr += data[m * 2] * c - data[m * 2 + 1] * s;
+				si += data[m * 2] * s + data[m * 2 + 1] * c;
+			}
+			out[k * 2] = sr;
+			out[k * 2 + 1] = si;
+		}
+		return out;
+	}
+
+	static double maxError(double[] a, double[] b, int len) {
+		double err = 0, mag = 0;
+		for (int i = 0; i != len; i++) {
+			err = Math.max(err, Math.abs(a[i] - b[i]));
+			mag = Math.max(mag, Math.abs(b[i]));
+		}
+		return err / mag;
+	}
+
+	static String time(long ns, int reps) {
+		return (ns / reps / 100) / 10. + "us";
+	}
+
+	public static void main(String args[]) {
+		int sizes[] = { 64, 256, 1024, 4096, 16384, 65536 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i != args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		Random random = new Random(1);
+		for (int si = 0; si != sizes.length; si++) {
+			int n = sizes[si];
+			double complex[] = new double[n * 2];
+			double real[] = new double[n * 2];
+			for (int i = 0; i != n * 2; i++) {
+				complex[i] = random.nextDouble() - .5;
+				real[i] = (i % 2 == 0 ? complex[i] : 0);
+			}
+			FFT fft = FFT.getInstance(n);
+			FFT half = FFT.getInstance(n / 2);
+			Radix2 old = new Radix2(n);
+
+			// accuracy
+			double ref[] = (n <= 4096 ? dft(complex, n) : null);
+			double a[] = complex.clone();
+			old.transform(a, false);
+			double b[] = complex.clone();
+			fft.transform(b, false);
+			String line = "n=" + n;
+			if (ref != null)
+				line += " error: old " + (float) maxError(a, ref, n * 2)
+						+ ", new " + (float) maxError(b, ref, n * 2);
+			else
+				line += " new vs old " + (float) maxError(b, a, n * 2);
+			double r[] = real.clone();
+			old.transform(r, false);
+			double samples[] = new double[n];
+			for (int i = 0; i != n; i++)
+				samples[i] = real[i * 2];
+			double packed[] = samples.clone();
+			half.realTransform(packed, false);
+			packed[1] = 0; // frequency n/2 is compared below
+			double realErr = maxError(packed, r, n);
+			double back[] = samples.clone();
+			half.realTransform(back, false);
+			double nyq = Math.abs(back[1] - r[n]);
+			half.realTransform(back, true);
+			double roundTrip = 0;
+			for (int i = 0; i != n; i++)
+				roundTrip = Math.max(roundTrip, Math.abs(back[i] / n - real[i * 2]));
+			line += ", real vs complex " + (float) Math.max(realErr, nyq)
+					+ ", real round trip " + (float) roundTrip;
+			int count = 8;
+			double batch[] = new double[n * 2 * count];
+			for (int c = 0; c != count; c++)
+				System.arraycopy(complex, 0, batch, c * n * 2, n * 2);
+			fft.transformBatch(batch, count, false);
+			double batchErr = 0;
+			for (int c = 0; c != count; c++)
+				for (int i = 0; i != n * 2; i++)
+					batchErr = Math.max(batchErr, Math.abs(batch[c * n * 2 + i] - b[i]));
+			line += ", batch " + batchErr;
+			System.out.println(line);
+
+			// speed
+			int reps = Math.max(count, (1 << 24) / (n * 20)) / count * count;
+			double work[] = new double[n * 2];
+			// best of several passes, the first ones warming up
+			long best[] = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE,
+					Long.MAX_VALUE };
+			for (int pass = 0; pass != 6; pass++) {
+				long t0 = System.nanoTime();
+				for (int i = 0; i != reps; i++) {
+					System.arraycopy(complex, 0, work, 0, n * 2);
+					old.transform(work, false);
+				}
+				long t1 = System.nanoTime();
+				for (int i = 0; i != reps; i++) {
+					System.arraycopy(complex, 0, work, 0, n * 2);
+					fft.transform(work, false);
+				}
+				long t2 = System.nanoTime();
+				for (int i = 0; i != reps; i++) {
+					System.arraycopy(samples, 0, work, 0, n);
+					half.realTransform(work, false);
+				}
+				long t3 = System.nanoTime();
+				for (int i = 0; i < reps; i += count) {
+					for (int c = 0; c != count; c++)
+						System.arraycopy(complex, 0, batch, c * n * 2, n * 2);
+					fft.transformBatch(batch, count, false);
+				}
+				long t4 = System.nanoTime();
+				best[0] = Math.min(best[0], t1 - t0);
+				best[1] = Math.min(best[1], t2 - t1);
+				best[2] = Math.min(best[2], t3 - t2);
+				best[3] = Math.min(best[3], t4 - t3);
+			}
+			System.out.println("  per transform: old " + time(best[0], reps)
+					+ ", radix-4 " + time(best[1], reps) + ", real "
+					+ time(best[2], reps) + ", batch of " + count + " "
+					+ time(best[3], reps));
+		}
+	}
+}
@@ -347,8 +347,8 @@ class RippleFrame extends Frame implements ComponentListener, ActionListener,
 	Method timerMethod;
 	int timerDiv;
 	ImportDialog impDialog;
-	static final int mediumMax = 191;
-	static final double mediumMaxIndex = .5;
+	static final int mediumMax = RippleStencil.mediumMax;
+	static final double mediumMaxIndex = RippleStencil.mediumMaxIndex;
 	static final int SWF_SIN = 0;
 	static final int SWF_SQUARE = 1;
 	static final int SWF_PULSE = 2;
@@ -690,6 +690,8 @@ class RippleFrame extends Frame implements ComponentListener, ActionListener,
 		exceptional = new boolean[gridSizeXY];
 		medium = new int[gridSizeXY];
 		walls = new boolean[gridSizeXY];
+		stencil = new RippleStencil(func, funci, damp, walls, exceptional,
+				medium, gridSizeX, gw);
 		int i, j;
 		for (i = 0; i != gridSizeXY; i++)
 			damp[i] = 1f; // (float) dampcoef;
@@ -891,8 +893,7 @@ class RippleFrame extends Frame implements ComponentListener, ActionListener,
 	int steps = 0;
 	int framerate = 0, steprate = 0;
 
-	boolean moveRight = true;
-	boolean moveDown = true;
+	RippleStencil stencil;
 
 	public void updateRipple(Graphics realg) {
 		if (winSize == null || winSize.width <= 0 || winSize.height <= 0) {
@@ -930,103 +931,9 @@ class RippleFrame extends Frame implements ComponentListener, ActionListener,
 			 * = sysTime; } lastTime = sysTime;
 			 */
 			int iter;
-			int mxx = gridSizeX - 1;
-			int mxy = gridSizeY - 1;
+			stencil.setTimeStep(tadd, dampcoef, fixedEndsCheck.getState());
 			for (iter = 0; iter != iterCount; iter++) {
-				int jstart, jend, jinc;
-				if (moveDown) {
-					// we process the rows in alternate directions
-					// each time to avoid any directional bias.
-					jstart = 1;
-					jend = mxy;
-					jinc = 1;
-					moveDown = false;
-				} else {
-					jstart = mxy - 1;
-					jend = 0;
-					jinc = -1;
-					moveDown = true;
-				}
-				moveRight = moveDown;
-				float sinhalfth = 0;
-				float sinth = 0;
-				float scaleo = 0;
-				int curMedium = -1;
-				for (j = jstart; j != jend; j += jinc) {
-					int istart, iend, iinc;
-					if (moveRight) {
-						iinc = 1;
-						istart = 1;
-						iend = mxx;
-						moveRight = false;
-					} else {
-						iinc = -1;
-						istart = mxx - 1;
-						iend = 0;
-						moveRight = true;
-					}
-					int gi = j * gw + istart;
-					int giEnd = j * gw + iend;
-					for (; gi != giEnd; gi += iinc) {
-						// calculate equilibrum point of this
-						// element's oscillation
-						float previ = func[gi - 1];
-						float nexti = func[gi + 1];
-						float prevj = func[gi - gw];
-						float nextj = func[gi + gw];
-						float basis = (nexti + previ + nextj + prevj) * .25f;
-						if (exceptional[gi]) {
-							if (curMedium != medium[gi]) {
-								curMedium = medium[gi];
-								double tadd2 = tadd
-										* (1 - (mediumMaxIndex / mediumMax) * curMedium);
-								sinhalfth = (float) Math.sin(tadd2 / 2);
-								sinth = (float) (Math.sin(tadd2) * dampcoef);
-								scaleo = (float) (1 - Math.sqrt(4 * sinhalfth * sinhalfth
-										- sinth * sinth));
-							}
-							if (walls[gi])
-								continue;
-							int count = 4;
-							if (fixedEndsCheck.getState()) {
-								if (walls[gi - 1])
-									previ = 0;
-								if (walls[gi + 1])
-									nexti = 0;
-								if (walls[gi - gw])
-									prevj = 0;
-								if (walls[gi + gw])
-									nextj = 0;
-							} else {
-								if (walls[gi - 1])
-									previ = walls[gi + 1] ? func[gi] : func[gi + 1];
-								if (walls[gi + 1])
-									nexti = walls[gi - 1] ? func[gi] : func[gi - 1];
-								if (walls[gi - gw])
-									prevj = walls[gi + gw] ? func[gi] : func[gi + gw];
-								if (walls[gi + gw])
-									nextj = walls[gi - gw] ? func[gi] : func[gi - gw];
-							}
-							basis = (nexti + previ + nextj + prevj) * .25f;
-						}
-						// what we are doing here (aside from damping)
-						// is rotating the point (func[gi], funci[gi])
-						// an angle tadd about the point (basis, 0).
-						// Rather than call atan2/sin/cos, we use this
-						// faster method using some precomputed info.
-						float a = 0;
-						float b = 0;
-						if (damp[gi] == 1f) {
-							a = func[gi] - basis;
-							b = funci[gi];
-						} else {
-							a = (func[gi] - basis) * damp[gi];
-							b = funci[gi] * damp[gi];
-						}
-						func[gi] = basis + a * scaleo - b * sinth;
-						funci[gi] = b * scaleo + a * sinth;
-					}
-				}
+				stencil.sweep();
 				t += tadd;
 				if (sourceCount > 0) {
 					double w = freqBar.getValue() * (t - freqTimeZero) * freqMult;
@@ -2188,6 +2095,8 @@ class RippleFrame extends Frame implements ComponentListener, ActionListener,
 						boolean w = (tint == 'w');
 						int ct = new Integer(st.nextToken()).intValue();
 						int md = new Integer(st.nextToken()).intValue();
+						// RippleStencil looks up each medium in a table
+						md = Math.max(0, Math.min(mediumMax, md));
 						for (; ct > 0; ct--, x++) {
 							walls[x] = w;
 							medium[x] = md;
@@ -0,0 +1,159 @@
+package com.falstad;
+
+// The update rule of Ripple. sweep() is the one Ripple steps with;
+// update() is the same rule in red-black order, for StencilEngine.
+//
+// Each cell oscillates about the average of its four neighbors. Rather
+// than call atan2/sin/cos, the point (func[gi], funci[gi]) is rotated an
+// angle tadd about the point (basis, 0) using some precomputed info, which
+// depends on the medium of the cell.
+public class RippleStencil implements StencilEngine.Kernel {
+	// medium[] values run from 0 to mediumMax, which slows waves by
+	// mediumMaxIndex
+	public static final int mediumMax = 191;
+	public static final double mediumMaxIndex = .5;
+
+	public float func[], funci[], damp[];
+	public boolean walls[], exceptional[];
+	public int medium[];
+	int gridSizeX, gw;
+	boolean fixedEnds;
+
+	// per medium value
+	float sinth[], scaleo[];
+	double tadd = -1, dampcoef;
+	boolean moveDown = true;
+
+	public RippleStencil(float func[], float funci[], float damp[],
+			boolean walls[], boolean exceptional[], int medium[], int gridSizeX,
+			int gw) {
+		this.func = func;
+		this.funci = funci;
+		this.damp = damp;
+		this.walls = walls;
+		this.exceptional = exceptional;
+		this.medium = medium;
+		this.gridSizeX = gridSizeX;
+		this.gw = gw;
+		sinth = new float[mediumMax + 1];
+		scaleo = new float[mediumMax + 1];
+	}
+
+	public void setTimeStep(double tadd, double dampcoef, boolean fixedEnds) {
+		this.fixedEnds = fixedEnds;
+		if (tadd == this.tadd && dampcoef == this.dampcoef)
+			return;
+		this.tadd = tadd;
+		this.dampcoef = dampcoef;
+		for (int m = 0; m <= mediumMax; m++) {
+			double tadd2 = tadd
+					* (1 - (mediumMaxIndex / mediumMax) * m);
+			float sinhalfth = (float) Math.sin(tadd2 / 2);
+			sinth[m] = (float) (Math.sin(tadd2) * dampcoef);
+			scaleo[m] = (float) (1 - Math.sqrt(4 * sinhalfth * sinhalfth
+					- sinth[m] * sinth[m]));
+		}
+	}
+
+	// Steps the whole grid in place, one row after another. Red-black order
+	// drifts about 5% of the peak amplitude away from this in a few hundred
+	// steps (see StencilBenchmark), so Ripple keeps the order it always had.
+	public void sweep() {
+		int mxx = gridSizeX - 1;
+		int mxy = func.length / gw - 1;
+		int jstart, jend, jinc;
+		if (moveDown) {
+			// we process the rows in alternate directions
+			// each time to avoid any directional bias.
+			jstart = 1;
+			jend = mxy;
+			jinc = 1;
+			moveDown = false;
+		} else {
+			jstart = mxy - 1;
+			jend = 0;
+			jinc = -1;
+			moveDown = true;
+		}
+		boolean moveRight = moveDown;
+		for (int j = jstart; j != jend; j += jinc) {
+			int istart, iend, iinc;
+			if (moveRight) {
+				iinc = 1;
+				istart = 1;
+				iend = mxx;
+				moveRight = false;
+			} else {
+				iinc = -1;
+				istart = mxx - 1;
+				iend = 0;
+				moveRight = true;
+			}
+			int gi = j * gw + istart;
+			int giEnd = j * gw + iend;
+			for (; gi != giEnd; gi += iinc)
+				updateCell(gi);
+		}
+	}
+
+	public void update(int parity, int y0, int y1) {
+		int mxx = gridSizeX - 1;
+		for (int y = y0; y < y1; y++) {
+			int x = (((1 + y) & 1) == parity ? 1 : 2);
+			int gi = y * gw + x;
+			int giEnd = y * gw + mxx;
+			for (; gi < giEnd; gi += 2)
+				updateCell(gi);
+		}
+	}
+
+	void updateCell(int gi) {
+		float func[] = this.func;
+		float funci[] = this.funci;
+		int gw = this.gw;
+		// calculate equilibrum point of this
+		// element's oscillation
+		float previ = func[gi - 1];
+		float nexti = func[gi + 1];
+		float prevj = func[gi - gw];
+		float nextj = func[gi + gw];
+		if (exceptional[gi]) {
+			if (walls[gi])
+				return;
+			if (fixedEnds) {
+				if (walls[gi - 1])
+					previ = 0;
+				if (walls[gi + 1])
+					nexti = 0;
+				if (walls[gi - gw])
+					prevj = 0;
+				if (walls[gi + gw])
+					nextj = 0;
+			} else {
+				if (walls[gi - 1])
+					previ = walls[gi + 1] ? func[gi] : func[gi + 1];
+				if (walls[gi + 1])
+					nexti = walls[gi - 1] ? func[gi] : func[gi - 1];
+				if (walls[gi - gw])
+					prevj = walls[gi + gw] ? func[gi] : func[gi + gw];
+				if (walls[gi + gw])
+					nextj = walls[gi - gw] ? func[gi] : func[gi - gw];
+			}
+		}
+		float basis = (nexti + previ + nextj + prevj) * .25f;
+		int m = medium[gi];
+		float s = sinth[m];
+		float c = scaleo[m];
+		float a, b;
+		float d = damp[gi];
+		if (d == 1f) {
+			a = func[gi] - basis;
+			b = funci[gi];
+		} else {
+			a = (func[gi] - basis) * d;
+			b = funci[gi] * d;
+		}
+		func[gi] = basis + a * c - b * s;
+		funci[gi] = b * c + a * s;
+	}
+}
@@ -0,0 +1,38 @@
+package com.falstad;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// The rows of a StencilEngine, split in bands on the common fork-join pool.
+//
+// Java only: the JavaScript runtime has no fork-join pool, and
+// StencilEngine only refers to this class from a @j2sIgnore block, so it is
+// never loaded in the browser.
+class StencilBands extends RecursiveAction {
+	StencilEngine engine;
+	int parity, y0, y1;
+
+	StencilBands(StencilEngine engine, int parity, int y0, int y1) {
+		this.engine = engine;
+		this.parity = parity;
+		this.y0 = y0;
+		this.y1 = y1;
+	}
+
+	// update both colors of all rows of the engine
+	static void step(StencilEngine engine) {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		pool.invoke(new StencilBands(engine, 0, engine.rowStart, engine.rowEnd));
+		pool.invoke(new StencilBands(engine, 1, engine.rowStart, engine.rowEnd));
+	}
+
+	protected void compute() {
+		if (y1 - y0 <= engine.grain) {
+			engine.kernel.update(parity, y0, y1);
+			return;
+		}
+		int mid = (y0 + y1) >>> 1;
+		invokeAll(new StencilBands(engine, parity, y0, mid),
+				new StencilBands(engine, parity, mid, y1));
+	}
+}
@@ -0,0 +1,255 @@
+package com.falstad;
+
+// Headless benchmark of StencilEngine stepping a large ripple tank.
+//
+// java com.falstad.StencilBenchmark [gridSize [steps]]
+//
+// It first checks the orderings on a fixed scene: RippleStencil.sweep()
+// must give exactly the grid of the loop it was taken from, and the
+// red-black order of the engine must stay within RED_BLACK_BOUND of it.
+// Then it times Ripple's sweep and the engine on one thread and on all
+// processors, and checks that the engine gives the same grid for any
+// number of threads.
+class StencilBenchmark {
+	// largest difference allowed between red-black order and the sweep,
+	// as a fraction of the peak amplitude, after CHECK_STEPS steps of a
+	// CHECK_SIZE grid. It was .047; sweeping the other way first changes
+	// the grid by about .0001.
+	static final double RED_BLACK_BOUND = .06;
+	static final int CHECK_SIZE = 256;
+	static final int CHECK_STEPS = 400;
+
+	int size, gw;
+	float func[], funci[], damp[];
+	boolean walls[], exceptional[];
+	int medium[];
+	RippleStencil stencil;
+	double t;
+
+	StencilBenchmark(int size) {
+		this.size = size;
+		gw = size;
+		int n = size * size;
+		func = new float[n];
+		funci = new float[n];
+		damp = new float[n];
+		walls = new boolean[n];
+		exceptional = new boolean[n];
+		medium = new int[n];
+		int i, j;
+		for (i = 0; i != n; i++)
+			damp[i] = 1f;
+		// absorbing border, as in RippleFrame.reinit()
+		int border = 20;
+		for (i = 0; i != border; i++)
+			for (j = 0; j != size; j++)
+				damp[i + j * gw] = damp[size - 1 - i + gw * j] = damp[j + gw * i] = damp[j
+						+ (size - 1 - i) * gw] = (float) (.999 - (border - i) * .002);
+		// a wall with two slits, and a slower medium below it
+		int wy = size / 3;
+		for (i = 0; i != size; i++) {
+			int dx = Math.abs(i - size / 2);
+			if (dx < size / 16 || dx > size / 8)
+				walls[i + wy * gw] = true;
+		}
+		for (j = size * 2 / 3; j != size; j++)
+			for (i = 0; i != size; i++)
+				medium[i + j * gw] = RippleStencil.mediumMax / 2;
+		// as in RippleFrame.calcExceptions()
+		for (i = 1; i < size - 1; i++)
+			for (j = 1; j < size - 1; j++) {
+				int gi = i + gw * j;
+				exceptional[gi] = walls[gi - 1] || walls[gi + 1] || walls[gi - gw]
+						|| walls[gi + gw] || walls[gi] || medium[gi] != medium[gi - 1]
+						|| medium[gi] != medium[gi + 1];
+				if ((i == 1 || i == size - 2)
+						&& medium[gi] != medium[size - 1 - i + gw * (j + 1)]
+						|| medium[gi] != medium[size - 1 - i + gw * (j - 1)])
+					exceptional[gi] = true;
+			}
+		exceptional[1 + gw] = exceptional[size - 2 + gw] = exceptional[1
+				+ (size - 2) * gw] = exceptional[size - 2 + (size - 2) * gw] = true;
+		stencil = new RippleStencil(func, funci, damp, walls, exceptional,
+				medium, size, gw);
+		stencil.setTimeStep(.25, 1, false);
+	}
+
+	void reset() {
+		for (int i = 0; i != func.length; i++)
+			func[i] = funci[i] = 0;
+		t = 0;
+		moveDown = stencil.moveDown = true;
+	}
+
+	// a point source above the wall
+	void source() {
+		t += .25;
+		int gi = size / 2 + gw * (size / 6);
+		func[gi] = (float) Math.cos(t * .5);
+		funci[gi] = 0;
+	}
+
+	// the loop of RippleFrame.updateRipple() that RippleStencil.sweep()
+	// was taken from, with free ends
+	boolean moveDown = true;
+
+	void oldSweep() {
+		int mxx = size - 1, mxy = size - 1;
+		int jstart, jend, jinc;
+		if (moveDown) {
+			jstart = 1;
+			jend = mxy;
+			jinc = 1;
+			moveDown = false;
+		} else {
+			jstart = mxy - 1;
+			jend = 0;
+			jinc = -1;
+			moveDown = true;
+		}
+		boolean moveRight = moveDown;
+		double tadd = stencil.tadd, dampcoef = stencil.dampcoef;
+		float sinhalfth = 0, sinth = 0, scaleo = 0;
+		int curMedium = -1;
+		for (int j = jstart; j != jend; j += jinc) {
+			int istart, iend, iinc;
+			if (moveRight) {
+				iinc = 1;
+				istart = 1;
+				iend = mxx;
+				moveRight = false;
+			} else {
+				iinc = -1;
+				istart = mxx - 1;
+				iend = 0;
+				moveRight = true;
+			}
+			int gi = j * gw + istart;
+			int giEnd = j * gw + iend;
+			for (; gi != giEnd; gi += iinc) {
+				float previ = func[gi - 1];
+				float nexti = func[gi + 1];
+				float prevj = func[gi - gw];
+				float nextj = func[gi + gw];
+				float basis = (nexti + previ + nextj + prevj) * .25f;
+				if (exceptional[gi]) {
+					if (curMedium != medium[gi]) {
+						curMedium = medium[gi];
+						double tadd2 = tadd
+								* (1 - (RippleStencil.mediumMaxIndex / RippleStencil.mediumMax)
+										* curMedium);
+						sinhalfth = (float) Math.sin(tadd2 / 2);
+						sinth = (float) (Math.sin(tadd2) * dampcoef);
+						scaleo = (float) (1 - Math.sqrt(4 * sinhalfth * sinhalfth
+								- sinth * sinth));
+					}
+					if (walls[gi])
+						continue;
+					if (walls[gi - 1])
+						previ = walls[gi + 1] ? func[gi] : func[gi + 1];
+					if (walls[gi + 1])
+						nexti = walls[gi - 1] ? func[gi] : func[gi - 1];
+					if (walls[gi - gw])
+						prevj = walls[gi + gw] ? func[gi] : func[gi + gw];
+					if (walls[gi + gw])
+						nextj = walls[gi - gw] ? func[gi] : func[gi - gw];
+					basis = (nexti + previ + nextj + prevj) * .25f;
+				}
+				float a = 0;
+				float b = 0;
+				if (damp[gi] == 1f) {
+					a = func[gi] - basis;
+					b = funci[gi];
+				} else {
+					a = (func[gi] - basis) * damp[gi];
+					b = funci[gi] * damp[gi];
+				}
+				func[gi] = basis + a * scaleo - b * sinth;
+				funci[gi] = b * scaleo + a * sinth;
+			}
+		}
+	}
+
+	// the largest difference from ref[], as a fraction of its peak
+	double difference(float ref[]) {
+		double diff = 0, peak = 0;
+		for (int i = 0; i != ref.length; i++) {
+			diff = Math.max(diff, Math.abs(func[i] - ref[i]));
+			peak = Math.max(peak, Math.abs(ref[i]));
+		}
+		return diff / peak;
+	}
+
+	static void checkOrder() {
+		StencilBenchmark b = new StencilBenchmark(CHECK_SIZE);
+		b.reset();
+		for (int i = 0; i != CHECK_STEPS; i++) {
+			b.oldSweep();
+			b.source();
+		}
+		float ref[] = b.func.clone();
+		b.timeSweep(CHECK_STEPS);
+		if (!java.util.Arrays.equals(ref, b.func))
+			throw new IllegalStateException("RippleStencil.sweep() changed the results");
+		b.timeEngine(new StencilEngine(b.stencil, 1, CHECK_SIZE - 1, CHECK_SIZE, 1),
+				CHECK_STEPS);
+		double diff = b.difference(ref);
+		System.out.println("red-black order differs by " + (float) diff
+				+ " of the peak after " + CHECK_STEPS + " steps");
+		if (diff > RED_BLACK_BOUND)
+			throw new IllegalStateException("red-black order drifted from the sweep");
+	}
+
+	long timeSweep(int steps) {
+		reset();
+		long start = System.nanoTime();
+		for (int i = 0; i != steps; i++) {
+			stencil.sweep();
+			source();
+		}
+		return System.nanoTime() - start;
+	}
+
+	long timeEngine(StencilEngine engine, int steps) {
+		reset();
+		long start = System.nanoTime();
+		for (int i = 0; i != steps; i++) {
+			engine.step();
+			source();
+		}
+		return System.nanoTime() - start;
+	}
+
+	static String rate(long ns, int steps, int cells) {
+		double mcells = (double) cells * steps / (ns / 1000.);
+		return ((int) (mcells * 10) / 10.) + " Mcells/s";
+	}
+
+	public static void main(String args[]) {
+		checkOrder();
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 2048);
+		int steps = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		StencilBenchmark b = new StencilBenchmark(size);
+		int cells = (size - 2) * (size - 2);
+		int threads = StencilEngine.defaultThreads();
+		StencilEngine serial = new StencilEngine(b.stencil, 1, size - 1, size, 1);
+		StencilEngine parallel = new StencilEngine(b.stencil, 1, size - 1, size,
+				threads);
+
+		// warm up
+		b.timeSweep(steps / 4 + 1);
+		b.timeEngine(serial, steps / 4 + 1);
+		b.timeEngine(parallel, steps / 4 + 1);
+
+		System.out.println("grid " + size + "x" + size + ", " + steps
+				+ " steps, " + threads + " processors");
+		System.out.println("sweep            " + rate(b.timeSweep(steps), steps, cells));
+		System.out.println("engine, 1 thread " + rate(b.timeEngine(serial, steps), steps, cells));
+		float check[] = b.func.clone();
+		System.out.println("engine, " + parallel.getThreads() + " threads "
+				+ rate(b.timeEngine(parallel, steps), steps, cells));
+		if (!java.util.Arrays.equals(check, b.func))
+			throw new IllegalStateException("results depend on the thread count");
+
+	}
+}
@@ -0,0 +1,103 @@
+package com.falstad;
+
+// Steps a grid simulation whose state is kept in flat arrays indexed by
+// x + y * gw, such as Ripple's func[] and funci[].
+//
+// Each step updates the cells in two colors of a checkerboard, so that a
+// cell is computed only from neighbors of the other color. The cells of one
+// color are then independent of each other, and the rows are split in
+// bands across a fork-join pool (see StencilBands). The result does not
+// depend on the number of threads. In JavaScript, and for small grids, the
+// grid is stepped on the calling thread. The JavaScript runtime has no
+// fork-join pool, so this class must not refer to one outside of
+// @j2sIgnore blocks.
+//
+// Red-black order is a different scheme from a sweep that updates one cell
+// after another, and its results drift apart from those of the sweep over
+// many steps. StencilBenchmark measures how far they drift for Ripple.
+public class StencilEngine {
+
+	// the update rule of a simulation
+	public interface Kernel {
+		// update the cells of rows y0..y1-1 with (x + y) % 2 == parity. This
+		// is called concurrently for disjoint rows.
+		void update(int parity, int y0, int y1);
+	}
+
+	// grids with fewer cells than this are not worth splitting
+	static final int PARALLEL_CELLS = 128 * 128;
+
+	Kernel kernel;
+	int rowStart, rowEnd, width;
+	int threads;
+	int grain;
+	int steps;
+
+	// rows [rowStart, rowEnd) are updated; width is only used to decide
+	// whether the grid is large enough to split
+	public StencilEngine(Kernel kernel, int rowStart, int rowEnd, int width,
+			int threads) {
+		this.kernel = kernel;
+		this.rowStart = rowStart;
+		this.rowEnd = rowEnd;
+		this.width = width;
+		setThreads(threads);
+	}
+
+	public StencilEngine(Kernel kernel, int rowStart, int rowEnd, int width) {
+		this(kernel, rowStart, rowEnd, width, defaultThreads());
+	}
+
+	static boolean isJS() {
+		boolean isJS = false;
+		/**
+		 * @j2sNative
+		 *
+		 *            isJS = true;
+		 */
+		{
+		}
+		return isJS;
+	}
+
+	public static int defaultThreads() {
+		return (isJS() ? 1 : Runtime.getRuntime().availableProcessors());
+	}
+
+	public void setThreads(int threads) {
+		int rows = rowEnd - rowStart;
+		if (threads < 1 || rows * width < PARALLEL_CELLS || isJS())
+			threads = 1;
+		this.threads = threads;
+		// a few bands per thread, to even out the load
+		grain = Math.max(4, rows / (threads * 4));
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	public void step() {
+		if (threads == 1) {
+			kernel.update(0, rowStart, rowEnd);
+			kernel.update(1, rowStart, rowEnd);
+		} else {
+			/**
+			 * @j2sIgnore
+			 */
+			{
+				StencilBands.step(this);
+			}
+		}
+		steps++;
+	}
+
+	public void step(int count) {
+		for (int i = 0; i != count; i++)
+			step();
+	}
+}
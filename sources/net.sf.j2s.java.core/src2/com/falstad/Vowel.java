@@ -1106,10 +1106,17 @@ class VowelFrame extends Frame implements ComponentListener, ActionListener,
 				double ht = .54 - .46 * Math.cos(i * cosmult);
 				spectrumBuf[i] *= ht;
 			}
+			// the samples are real, so use a transform of half the size on
+			// the first half of the buffer. The bins below isub/2 come out
+			// where the complex transform puts them, except that the
+			// imaginary part of bin 0 holds bin isub/2.
+			for (i = 0; i != isub; i++)
+				spectrumBuf[i] = spectrumBuf[i * 2];
 			if (spectrumFFT == null
-					|| spectrumFFT.getSize() != isub)
-				spectrumFFT = new FFT(isub);
-			spectrumFFT.transform(spectrumBuf, false);
+					|| spectrumFFT.getSize() != isub / 2)
+				spectrumFFT = FFT.getInstance(isub / 2);
+			spectrumFFT.realTransform(spectrumBuf, false);
+			spectrumBuf[1] = 0;
 //			double logmult = spectrumView.width
 //					/ Math.log(isub + 1);
 
@@ -693,7 +693,7 @@ class Wave2dFrame extends Frame
 		    line2[(ii+1) & szm] =
 			(float) (a * apertureI[i] + b * apertureR[i]);
 		}
-	    FFT fft = new FFT(sz);
+	    FFT fft = FFT.getInstance(sz);
 	    fft.transform(line2, false);
 	    
 	    //System.out.print("computing...");
@@ -190,6 +190,7 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 			origMatrix[][];
 	RowInfo circuitRowInfo[];
 	int circuitPermute[];
+	SparseLU circuitLU;
 	boolean circuitNonLinear;
 	int voltageSourceCount;
 	int circuitMatrixSize, circuitMatrixFullSize;
@@ -1202,6 +1203,7 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 			return;
 		stopMessage = null;
 		stopElm = null;
+		circuitLU = null;
 		int i, j;
 		int vscount = 0;
 		nodeList = new Vector<CircuitNode>();
@@ -1605,10 +1607,18 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 		 * System.out.print("\n");
 		 */
 
+		// the sparse LU keeps its pivots and fill pattern from frame to
+		// frame, and refactors only the rows that nonlinear elements stamp
+		circuitLU = new SparseLU(circuitMatrix, circuitMatrixSize);
+		if (!circuitLU.isFinite()) {
+			stop("nan/infinite matrix!", null);
+			return;
+		}
+
 		// if a matrix is linear, we can do the lu_factor here instead of
 		// needing to do it every frame
 		if (!circuitNonLinear) {
-			if (!lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+			if (!circuitLU.factor()) {
 				stop("Singular matrix!", null);
 				return;
 			}
@@ -1830,6 +1840,8 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 				j--;
 			}
 			circuitMatrix[i][j] += x;
+			if (circuitLU != null)
+				circuitLU.stamp(i, j);
 		}
 	}
 
@@ -1896,11 +1908,9 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 				subIterations = subiter;
 				for (i = 0; i != circuitMatrixSize; i++)
 					circuitRightSide[i] = origRightSide[i];
-				if (circuitNonLinear) {
-					for (i = 0; i != circuitMatrixSize; i++)
-						for (j = 0; j != circuitMatrixSize; j++)
-							circuitMatrix[i][j] = origMatrix[i][j];
-				}
+				// only the rows stamped by doStep() need to be restored
+				if (circuitNonLinear)
+					circuitLU.restore(origMatrix);
 				for (i = 0; i != elmList.size(); i++) {
 					CircuitElm ce = getElm(i);
 					ce.doStep();
@@ -1909,14 +1919,9 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 					return;
 				boolean printit = debugprint;
 				debugprint = false;
-				for (j = 0; j != circuitMatrixSize; j++) {
-					for (i = 0; i != circuitMatrixSize; i++) {
-						double x = circuitMatrix[i][j];
-						if (Double.isNaN(x) || Double.isInfinite(x)) {
-							stop("nan/infinite matrix!", null);
-							return;
-						}
-					}
+				if (!circuitLU.isFinite()) {
+					stop("nan/infinite matrix!", null);
+					return;
 				}
 				if (printit) {
 					for (j = 0; j != circuitMatrixSize; j++) {
@@ -1929,13 +1934,12 @@ public class CirSim extends Frame implements ComponentListener, ActionListener,
 				if (circuitNonLinear) {
 					if (converged && subiter > 0)
 						break;
-					if (!lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+					if (!circuitLU.factor()) {
 						stop("Singular matrix!", null);
 						return;
 					}
 				}
-				lu_solve(circuitMatrix, circuitMatrixSize, circuitPermute,
-						circuitRightSide);
+				circuitLU.solve(circuitRightSide);
 
 				for (j = 0; j != circuitMatrixFullSize; j++) {
 					RowInfo ri = circuitRowInfo[j];
@@ -0,0 +1,287 @@
+package com.falstad.circuit;
+
+// LU factorization of the circuit matrix that uses its sparsity.
+//
+// The matrix is still stamped into a dense double[][], but the factors are
+// computed only over the nonzero pattern of each row, including fill-in.
+// The pivot order and the pattern (the symbolic factorization) are found
+// once, and are reused as long as no new nonzero entry is stamped and the
+// pivots stay large enough. Rows are factored in pivot order, and factored
+// row k depends only on matrix rows at pivot positions <= k, so after
+// doStep() only the rows from the first stamped one on are refactored.
+class SparseLU {
+	// a pivot smaller than this, relative to the largest entry of its row of
+	// U, makes us choose the pivots again
+	static final double PIVOT_TOLERANCE = 1e-9;
+
+	int n;
+	double a[][];           // the matrix, as stamped
+	double lu[][];          // factored rows, in pivot order
+	int perm[];             // matrix row at each pivot position
+	int pos[];              // pivot position of each matrix row
+	int lcols[][];          // columns < k in the pattern of factored row k
+	int ucols[][];          // columns > k in the pattern of factored row k
+	boolean pattern[][];    // nonzero pattern of a, by matrix row
+	boolean stamped[];      // rows stamped since restore()
+	boolean changed[];      // rows changed since factor()
+	int firstChanged;       // first pivot position changed since factor()
+	boolean needsPivoting;
+	double y[];
+
+	SparseLU(double a[][], int n) {
+		this.a = a;
+		this.n = n;
+		lu = new double[n][n];
+		perm = new int[n];
+		pos = new int[n];
+		lcols = new int[n][];
+		ucols = new int[n][];
+		pattern = new boolean[n][n];
+		stamped = new boolean[n];
+		changed = new boolean[n];
+		y = new double[n];
+		int i, j;
+		for (i = 0; i != n; i++)
+			for (j = 0; j != n; j++)
+				pattern[i][j] = (a[i][j] != 0);
+		needsPivoting = true;
+	}
+
+	// called for each value stamped into a[i][j]
+	void stamp(int i, int j) {
+		if (!pattern[i][j]) {
+			pattern[i][j] = true;
+			needsPivoting = true;
+		}
+		stamped[i] = true;
+		if (!changed[i]) {
+			changed[i] = true;
+			if (pos[i] < firstChanged)
+				firstChanged = pos[i];
+		}
+	}
+
+	// undo the stamps since the last call by copying the rows from orig
+	void restore(double orig[][]) {
+		for (int i = 0; i != n; i++) {
+			if (!stamped[i])
+				continue;
+			System.arraycopy(orig[i], 0, a[i], 0, n);
+			stamped[i] = false;
+			changed[i] = true;
+			if (pos[i] < firstChanged)
+				firstChanged = pos[i];
+		}
+	}
+
+	// true if the rows changed since the last factor() are finite
+	boolean isFinite() {
+		for (int i = 0; i != n; i++) {
+			if (!needsPivoting && !changed[i])
+				continue;
+			double row[] = a[i];
+			for (int j = 0; j != n; j++) {
+				double x = row[j];
+				if (Double.isNaN(x) || Double.isInfinite(x))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// factor the matrix, reusing the pivot order and pattern if possible.
+	// Returns false if the matrix is singular.
+	boolean factor() {
+		if (!needsPivoting && refactor(firstChanged)) {
+			clearChanged();
+			return true;
+		}
+		if (!choosePivots())
+			return false;
+		analyze();
+		needsPivoting = false;
+		// pivots may still be too small, for a matrix near singular. Then we
+		// go on with them, as lu_factor() does.
+		refactor(0);
+		clearChanged();
+		return true;
+	}
+
+	void clearChanged() {
+		for (int i = 0; i != n; i++)
+			changed[i] = false;
+		firstChanged = n;
+	}
+
+	// choose the pivots as lu_factor() does, on a dense copy
+	boolean choosePivots() {
+		double d[][] = new double[n][n];
+		int ipvt[] = new int[n];
+		int i, j;
+		for (i = 0; i != n; i++)
+			System.arraycopy(a[i], 0, d[i], 0, n);
+		if (!denseFactor(d, n, ipvt))
+			return false;
+		for (i = 0; i != n; i++)
+			perm[i] = i;
+		for (j = 0; j != n; j++) {
+			int x = perm[j];
+			perm[j] = perm[ipvt[j]];
+			perm[ipvt[j]] = x;
+		}
+		for (i = 0; i != n; i++)
+			pos[perm[i]] = i;
+		return true;
+	}
+
+	// symbolic factorization: find the pattern of each factored row,
+	// including fill-in
+	void analyze() {
+		boolean mark[] = new boolean[n];
+		int cols[] = new int[n];
+		int k, j;
+		for (k = 0; k != n; k++) {
+			boolean p[] = pattern[perm[k]];
+			for (j = 0; j != n; j++)
+				mark[j] = p[j];
+			mark[k] = true;
+			// eliminating with row c fills in the pattern of row c's U
+			for (int c = 0; c != k; c++) {
+				if (!mark[c])
+					continue;
+				int u[] = ucols[c];
+				for (j = 0; j != u.length; j++)
+					mark[u[j]] = true;
+			}
+			int nl = 0, nu = 0;
+			for (j = 0; j != k; j++)
+				if (mark[j])
+					cols[nl++] = j;
+			lcols[k] = new int[nl];
+			System.arraycopy(cols, 0, lcols[k], 0, nl);
+			for (j = k + 1; j != n; j++)
+				if (mark[j])
+					cols[nu++] = j;
+			ucols[k] = new int[nu];
+			System.arraycopy(cols, 0, ucols[k], 0, nu);
+		}
+	}
+
+	// numeric factorization of the rows at pivot positions start..n-1.
+	// Returns false if a pivot is too small for the pivot order.
+	boolean refactor(int start) {
+		boolean ok = true;
+		int j;
+		for (int k = start; k < n; k++) {
+			double row[] = lu[k];
+			double src[] = a[perm[k]];
+			int l[] = lcols[k];
+			int u[] = ucols[k];
+			for (j = 0; j != l.length; j++)
+				row[l[j]] = src[l[j]];
+			for (j = 0; j != u.length; j++)
+				row[u[j]] = src[u[j]];
+			row[k] = src[k];
+			for (int m = 0; m != l.length; m++) {
+				int c = l[m];
+				double f = row[c] / lu[c][c];
+				row[c] = f;
+				if (f == 0)
+					continue;
+				double rc[] = lu[c];
+				int uc[] = ucols[c];
+				for (j = 0; j != uc.length; j++)
+					row[uc[j]] -= f * rc[uc[j]];
+			}
+			double largest = 0;
+			for (j = 0; j != u.length; j++) {
+				double x = Math.abs(row[u[j]]);
+				if (x > largest)
+					largest = x;
+			}
+			double pivot = Math.abs(row[k]);
+			if (pivot == 0 || pivot < PIVOT_TOLERANCE * largest) {
+				ok = false;
+				if (pivot == 0)
+					row[k] = 1e-18; // avoid zeros, as lu_factor() does
+			}
+		}
+		return ok;
+	}
+
+	// On input, b[0..n-1] is the right hand side, by matrix row, and on
+	// output, the solution, by column.
+	void solve(double b[]) {
+		int k, j;
+		for (k = 0; k != n; k++) {
+			double row[] = lu[k];
+			int l[] = lcols[k];
+			double tot = b[perm[k]];
+			for (j = 0; j != l.length; j++)
+				tot -= row[l[j]] * y[l[j]];
+			y[k] = tot;
+		}
+		for (k = n - 1; k >= 0; k--) {
+			double row[] = lu[k];
+			int u[] = ucols[k];
+			double tot = y[k];
+			for (j = 0; j != u.length; j++)
+				tot -= row[u[j]] * b[u[j]];
+			b[k] = tot / row[k];
+		}
+	}
+
+	// the dense factorization of CirSim.lu_factor(), used to choose pivots
+	static boolean denseFactor(double a[][], int n, int ipvt[]) {
+		int i, j, k;
+
+		for (i = 0; i != n; i++) {
+			double largest = 0;
+			for (j = 0; j != n; j++) {
+				double x = Math.abs(a[i][j]);
+				if (x > largest)
+					largest = x;
+			}
+			// if all zeros, it's a singular matrix
+			if (largest == 0)
+				return false;
+		}
+
+		// use Crout's method; loop through the columns
+		for (j = 0; j != n; j++) {
+			for (i = 0; i != j; i++) {
+				double q = a[i][j];
+				for (k = 0; k != i; k++)
+					q -= a[i][k] * a[k][j];
+				a[i][j] = q;
+			}
+			double largest = 0;
+			int largestRow = -1;
+			for (i = j; i != n; i++) {
+				double q = a[i][j];
+				for (k = 0; k != j; k++)
+					q -= a[i][k] * a[k][j];
+				a[i][j] = q;
+				double x = Math.abs(q);
+				if (x >= largest) {
+					largest = x;
+					largestRow = i;
+				}
+			}
+			if (j != largestRow) {
+				double x[] = a[largestRow];
+				a[largestRow] = a[j];
+				a[j] = x;
+			}
+			ipvt[j] = largestRow;
+			if (a[j][j] == 0.0)
+				a[j][j] = 1e-18;
+			if (j != n - 1) {
+				double mult = 1.0 / a[j][j];
+				for (i = j + 1; i != n; i++)
+					a[i][j] *= mult;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,170 @@
+package com.falstad.circuit;
+
+import java.util.Random;
+
+// Headless comparison of the dense lu_factor()/lu_solve() of CirSim with
+// SparseLU, on matrices shaped like the ones CirSim builds: a grid of
+// resistors with a voltage source, and diodes from some nodes to ground
+// whose conductance changes every subiteration.
+//
+// java com.falstad.circuit.SparseLUBenchmark [grid sizes...]
+class SparseLUBenchmark {
+	int n, nodes, grid;
+	double orig[][], a[][], rs[];
+	int diodes[];
+	Random random = new Random(1);
+
+	SparseLUBenchmark(int grid) {
+		this.grid = grid;
+		nodes = grid * grid;
+		n = nodes + 1; // one voltage source
+		orig = new double[n][n];
+		a = new double[n][n];
+		rs = new double[n];
+		int i, j;
+		for (i = 0; i != grid; i++)
+			for (j = 0; j != grid; j++) {
+				int k = i * grid + j;
+				if (j + 1 < grid)
+					stampResistor(orig, k, k + 1, 1000);
+				if (i + 1 < grid)
+					stampResistor(orig, k, k + grid, 1000);
+			}
+		// ground the far corner, and drive the near one
+		stampResistor(orig, nodes - 1, -1, 100);
+		orig[0][nodes] += 1;
+		orig[nodes][0] += 1;
+		rs[nodes] = 5;
+		diodes = new int[Math.max(1, nodes / 10)];
+		for (i = 0; i != diodes.length; i++)
+			diodes[i] = 1 + random.nextInt(nodes - 1);
+	}
+
+	static void stampResistor(double m[][], int n1, int n2, double r) {
+		double g = 1 / r;
+		m[n1][n1] += g;
+		if (n2 >= 0) {
+			m[n2][n2] += g;
+			m[n1][n2] -= g;
+			m[n2][n1] -= g;
+		}
+	}
+
+	// what doStep() of the nonlinear elements does
+	void stampDiodes(SparseLU lu) {
+		for (int i = 0; i != diodes.length; i++) {
+			int d = diodes[i];
+			a[d][d] += 1e-3 * (1 + random.nextDouble());
+			if (lu != null)
+				lu.stamp(d, d);
+		}
+	}
+
+	void copy() {
+		for (int i = 0; i != n; i++)
+			System.arraycopy(orig[i], 0, a[i], 0, n);
+	}
+
+	double residual(double x[]) {
+		double worst = 0;
+		for (int i = 0; i != n; i++) {
+			double tot = -rs[i];
+			for (int j = 0; j != n; j++)
+				tot += a[i][j] * x[j];
+			worst = Math.max(worst, Math.abs(tot));
+		}
+		return worst;
+	}
+
+	long runDense(int steps, double res[]) {
+		int ipvt[] = new int[n];
+		double b[] = new double[n];
+		double lu[][] = new double[n][n];
+		long start = System.nanoTime();
+		for (int s = 0; s != steps; s++) {
+			copy();
+			stampDiodes(null);
+			for (int i = 0; i != n; i++)
+				System.arraycopy(a[i], 0, lu[i], 0, n);
+			System.arraycopy(rs, 0, b, 0, n);
+			if (!SparseLU.denseFactor(lu, n, ipvt))
+				throw new IllegalStateException("singular");
+			denseSolve(lu, n, ipvt, b);
+		}
+		long t = System.nanoTime() - start;
+		res[0] = residual(b);
+		return t;
+	}
+
+	long runSparse(int steps, double res[]) {
+		double b[] = new double[n];
+		copy();
+		SparseLU lu = new SparseLU(a, n);
+		long start = System.nanoTime();
+		for (int s = 0; s != steps; s++) {
+			lu.restore(orig);
+			stampDiodes(lu);
+			System.arraycopy(rs, 0, b, 0, n);
+			if (!lu.isFinite() || !lu.factor())
+				throw new IllegalStateException("singular");
+			lu.solve(b);
+		}
+		long t = System.nanoTime() - start;
+		res[0] = residual(b);
+		return t;
+	}
+
+	// CirSim.lu_solve()
+	static void denseSolve(double a[][], int n, int ipvt[], double b[]) {
+		int i;
+		for (i = 0; i != n; i++) {
+			int row = ipvt[i];
+			double swap = b[row];
+			b[row] = b[i];
+			b[i] = swap;
+			if (swap != 0)
+				break;
+		}
+		int bi = i++;
+		for (; i < n; i++) {
+			int row = ipvt[i];
+			int j;
+			double tot = b[row];
+			b[row] = b[i];
+			for (j = bi; j < i; j++)
+				tot -= a[i][j] * b[j];
+			b[i] = tot;
+		}
+		for (i = n - 1; i >= 0; i--) {
+			double tot = b[i];
+			int j;
+			for (j = i + 1; j != n; j++)
+				tot -= a[i][j] * b[j];
+			b[i] = tot / a[i][i];
+		}
+	}
+
+	public static void main(String args[]) {
+		int grids[] = { 4, 8, 12, 16, 24 };
+		if (args.length > 0) {
+			grids = new int[args.length];
+			for (int i = 0; i != args.length; i++)
+				grids[i] = Integer.parseInt(args[i]);
+		}
+		for (int i = 0; i != grids.length; i++) {
+			SparseLUBenchmark b = new SparseLUBenchmark(grids[i]);
+			int steps = Math.max(20, 2000000 / (b.n * b.n));
+			double dres[] = new double[1], sres[] = new double[1];
+			// warm up, then measure
+			b.runDense(steps, dres);
+			b.runSparse(steps, sres);
+			long dense = b.runDense(steps, dres);
+			long sparse = b.runSparse(steps, sres);
+			System.out.println("n=" + b.n + " steps=" + steps + " dense "
+					+ (dense / steps / 1000) + "us/step (residual " + dres[0]
+					+ "), sparse " + (sparse / steps / 1000)
+					+ "us/step (residual " + sres[0] + "), speedup "
+					+ ((double) dense / sparse));
+		}
+	}
+}
@@ -250,10 +250,8 @@ public class Display extends Device {
 	Tray tray;
 	int nextTrayId = 0;
 	
-	/* Timers */
-	int [] timerIds;
-	Runnable [] timerList;
-	int nextTimerId;
+	/* Timers and asyncExec runnables */
+	RunQueue runQueue;
 	
 	/* Keyboard and Mouse */
 	int lastKey, lastAscii, lastMouse;
@@ -696,7 +694,7 @@ int asciiKey (int key) {
 public void asyncExec (Runnable runnable) {
 	if (isDisposed ()) error (SWT.ERROR_DEVICE_DISPOSED);
 	//synchronizer.asyncExec (runnable);
-	window.setTimeout(Clazz.makeFunction(runnable), 10);
+	getRunQueue ().asyncExec (runnable);
 }
 
 /**
@@ -2037,6 +2035,36 @@ protected void bindMonitor(Monitor m) {
 	currentMonitor = m;
 	ResizeSystem.register(m);
 }
+
+/*
+ * Returns the queue of asyncExec and timerExec runnables, which
+ * drains from one window timer.
+ */
+RunQueue getRunQueue () {
+	if (runQueue == null) {
+		runQueue = new RunQueue () {
+			int timerId;
+			Runnable drainer;
+			void schedule (int delay) {
+				if (drainer == null) {
+					final RunQueue queue = this;
+					drainer = Clazz.makeFunction (new Runnable () {
+						public void run () {
+							queue.drain ();
+						}
+					});
+				}
+				timerId = window.setTimeout (drainer, delay);
+			}
+			void cancel () {
+				window.clearTimeout (timerId);
+				timerId = 0;
+			}
+		};
+	}
+	return runQueue;
+}
+
 /**
  * Returns a (possibly empty) array containing all shells which have
  * not been disposed and have the receiver as their display.
@@ -3817,18 +3845,8 @@ protected void release () {
 		}
 	}
 	disposeList = null;
-	if (timerIds != null) {
-		for (int i=0; i<timerIds.length; i++) {
-			if (timerIds [i] != 0) window.clearInterval(timerIds[i]);
-		}
-	}
-	timerIds = null;
-	if (timerList != null) {
-		for (int i=0; i<timerList.length; i++) {
-			if (timerList [i] != null) timerList[i] = null;
-		}
-	}
-	timerList = null;
+	if (runQueue != null) runQueue.release ();
+	runQueue = null;
 	boolean trayCornerSupported = true;
 	/**
 	 * @j2sNative
@@ -4617,7 +4635,7 @@ public boolean sleep () {
 public void syncExec (Runnable runnable) {
 	if (isDisposed ()) error (SWT.ERROR_DEVICE_DISPOSED);
 	//synchronizer.syncExec (runnable);
-	runnable.run();
+	getRunQueue ().syncExec (runnable);
 }
 
 /*
@@ -4661,67 +4679,8 @@ int systemFont () {
 public void timerExec (int milliseconds, Runnable runnable) {
 	checkDevice ();
 	if (runnable == null) error (SWT.ERROR_NULL_ARGUMENT);
-	if (timerList == null) timerList = new Runnable [4];
-	if (timerIds == null) timerIds = new int [4];
-	int index = 0;
-	while (index < timerList.length) {
-		if (timerList [index] == runnable) break;
-		index++;
-	}
-	int timerId = 0;
-	if (index != timerList.length) {
-		timerId = timerIds [index];
-		if (milliseconds < 0 && timerIds [index] != 0) {			
-			//OS.KillTimer (hwndMessage, timerId);
-			window.clearTimeout(timerId);
-			timerList [index] = null;
-			timerIds [index] = 0;
-			return;
-		}
-	} else {
-		if (milliseconds < 0) return;
-		index = 0;
-		while (index < timerList.length) {
-			if (timerList [index] == null) break;
-			index++;
-		}
-		nextTimerId++;
-		timerId = nextTimerId;
-		if (index == timerList.length) {
-			Runnable [] newTimerList = new Runnable [timerList.length + 4];
-			System.arraycopy (timerList, 0, newTimerList, 0, timerList.length);
-			timerList = newTimerList;
-			int [] newTimerIds = new int [timerIds.length + 4];
-			System.arraycopy (timerIds, 0, newTimerIds, 0, timerIds.length);
-			timerIds = newTimerIds;
-		}
-	}
 	//int newTimerID = OS.SetTimer (hwndMessage, timerId, milliseconds, 0);
-	Runnable fun = null;
-	/**
-	 * @j2sNative
-	 * fun = (function (jsr, idx, disp) {
-	 * 	return function () {
-	 * 		try {
-	 * 			jsr.run ();
-	 * 		} finally {
-	 * 			if (disp != null) {
-	 * 				if (disp.timerList != null) {
-	 * 					disp.timerList[idx] = null;
-	 * 				}
-	 * 				if (disp.timerIds != null) {
-	 * 					disp.timerIds[idx] = 0;
-	 * 				}
-	 * 			}
-	 * 		}
-	 * 	};
-	 * }) (runnable, index, this);
-	 */ {}
-	int newTimerID = window.setTimeout(fun, milliseconds);
-	if (newTimerID != 0) {
-		timerList [index] = runnable;
-		timerIds [index] = newTimerID;
-	}
+	getRunQueue ().timerExec (milliseconds, runnable);
 }
 
 /*
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     java2script.org - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.swt.widgets;
+
+/**
+ * The runnables of <code>asyncExec</code> and <code>timerExec</code>
+ * of a display, run from a single host timer.
+ * <p>
+ * Queued runnables are kept in order and drained together in one
+ * task, until the time budget of the drain is spent; whatever is left,
+ * and whatever the drain itself queued, runs in the next task.  Timers
+ * are kept in a heap ordered by the time they are due, and the host
+ * timer is always set for the earliest of
+ * them, so that any number of pending runnables costs one host timer,
+ * and the page lays out once per drain rather than once per runnable.
+ * </p><p>
+ * The host timer is only touched through <code>schedule</code> and
+ * <code>cancel</code>, so the queue runs (and can be timed) without a
+ * browser.
+ * </p>
+ */
+abstract class RunQueue {
+	/* milliseconds a drain may spend on queued runnables before yielding */
+	static final int BUDGET = 10;
+
+	int budget = BUDGET;
+
+	/* queued runnables, from queue [head] to queue [head + count - 1] */
+	Runnable [] queue = new Runnable [16];
+	int head, count;
+
+	/* timer heap, ordered by time and then by order of scheduling */
+	Runnable [] timers = new Runnable [4];
+	long [] times = new long [4];
+	int [] orders = new int [4];
+	int timerCount, nextOrder;
+
+	/* time the host timer is set for, or -1 */
+	long wakeTime = -1;
+	boolean draining;
+
+/**
+ * Sets the host timer to call <code>drain</code> after the given
+ * number of milliseconds, replacing the one set before, if any.
+ */
+abstract void schedule (int delay);
+
+/**
+ * Clears the host timer.
+ */
+abstract void cancel ();
+
+long now () {
+	return System.currentTimeMillis ();
+}
+
+/**
+ * Queues the runnable to run in the next drain, after the runnables
+ * queued before it.  A <code>null</code> runnable only makes sure
+ * that a drain is coming.
+ */
+void asyncExec (Runnable runnable) {
+	if (runnable != null) {
+		if (count == queue.length) {
+			Runnable [] newQueue = new Runnable [queue.length * 2];
+			for (int i = 0; i < count; i++) {
+				newQueue [i] = queue [(head + i) % queue.length];
+			}
+			queue = newQueue;
+			head = 0;
+		}
+		queue [(head + count) % queue.length] = runnable;
+		count++;
+	}
+	if (!draining) wake ();
+}
+
+/**
+ * Runs the runnable at once, ahead of everything queued.  In the
+ * browser, the caller of <code>syncExec</code> cannot be suspended
+ * until a later drain.
+ */
+void syncExec (Runnable runnable) {
+	if (runnable == null) {
+		if (!draining) wake ();
+		return;
+	}
+	runnable.run ();
+}
+
+/**
+ * Runs the runnable once after the given number of milliseconds,
+ * moving it if it was already scheduled, or unschedules it if
+ * milliseconds is less than zero.
+ */
+void timerExec (int milliseconds, Runnable runnable) {
+	for (int i = 0; i < timerCount; i++) {
+		if (timers [i] == runnable) {
+			removeTimer (i);
+			break;
+		}
+	}
+	if (milliseconds >= 0) {
+		if (timerCount == timers.length) {
+			int length = timerCount * 2;
+			Runnable [] newTimers = new Runnable [length];
+			long [] newTimes = new long [length];
+			int [] newOrders = new int [length];
+			System.arraycopy (timers, 0, newTimers, 0, timerCount);
+			System.arraycopy (times, 0, newTimes, 0, timerCount);
+			System.arraycopy (orders, 0, newOrders, 0, timerCount);
+			timers = newTimers;
+			times = newTimes;
+			orders = newOrders;
+		}
+		int i = timerCount++;
+		timers [i] = runnable;
+		times [i] = now () + milliseconds;
+		orders [i] = nextOrder++;
+		siftUp (i);
+	}
+	if (!draining) wake ();
+}
+
+/**
+ * Runs the timers that are due and the queued runnables, within
+ * the time budget, and sets the host timer for what is left.
+ * Called by the host timer.
+ */
+void drain () {
+	wakeTime = -1;
+	draining = true;
+	long start = now ();
+	/* timers scheduled by this drain wait for the next one */
+	int lastOrder = nextOrder;
+	/*
+	 * and so do runnables queued by it, so that a runnable which
+	 * queues itself again lets the page paint in between
+	 */
+	int queued = count;
+	try {
+		while (timerCount > 0 && times [0] <= start && orders [0] < lastOrder) {
+			Runnable runnable = timers [0];
+			removeTimer (0);
+			runnable.run ();
+			if (now () - start >= budget) break;
+		}
+		/* at least one queued runnable, so that timers cannot starve them */
+		while (queued-- > 0 && count > 0) {
+			Runnable runnable = queue [head];
+			queue [head] = null;
+			head = (head + 1) % queue.length;
+			count--;
+			runnable.run ();
+			if (now () - start >= budget) break;
+		}
+	} finally {
+		draining = false;
+		wake ();
+	}
+}
+
+/**
+ * Sets the host timer for the next drain, unless it is already
+ * set for that time or earlier.
+ */
+void wake () {
+	long time = -1;
+	if (count > 0) {
+		time = now ();
+	} else if (timerCount > 0) {
+		time = times [0];
+	}
+	if (time == -1) {
+		if (wakeTime != -1) cancel ();
+		wakeTime = -1;
+		return;
+	}
+	if (wakeTime != -1) {
+		if (wakeTime <= time) return;
+		cancel ();
+	}
+	wakeTime = time;
+	schedule ((int) Math.max (0, time - now ()));
+}
+
+/**
+ * Drops all runnables and clears the host timer.
+ */
+void release () {
+	if (wakeTime != -1) cancel ();
+	wakeTime = -1;
+	queue = new Runnable [16];
+	head = count = 0;
+	timers = new Runnable [4];
+	times = new long [4];
+	orders = new int [4];
+	timerCount = 0;
+}
+
+void removeTimer (int i) {
+	int last = --timerCount;
+	if (i != last) {
+		moveTimer (last, i);
+		if (!siftUp (i)) siftDown (i);
+	}
+	timers [last] = null;
+}
+
+boolean before (int i, int j) {
+	return times [i] < times [j] || (times [i] == times [j] && orders [i] < orders [j]);
+}
+
+void moveTimer (int from, int to) {
+	timers [to] = timers [from];
+	times [to] = times [from];
+	orders [to] = orders [from];
+}
+
+void swapTimers (int i, int j) {
+	Runnable runnable = timers [i];
+	long time = times [i];
+	int order = orders [i];
+	moveTimer (j, i);
+	timers [j] = runnable;
+	times [j] = time;
+	orders [j] = order;
+}
+
+boolean siftUp (int i) {
+	boolean moved = false;
+	while (i > 0) {
+		int parent = (i - 1) >> 1;
+		if (!before (i, parent)) break;
+		swapTimers (i, parent);
+		i = parent;
+		moved = true;
+	}
+	return moved;
+}
+
+void siftDown (int i) {
+	while (true) {
+		int child = i * 2 + 1;
+		if (child >= timerCount) break;
+		if (child + 1 < timerCount && before (child + 1, child)) child++;
+		if (!before (child, i)) break;
+		swapTimers (i, child);
+		i = child;
+	}
+}
+
+}
@@ -98,6 +98,13 @@ public class Table extends Composite {
 	private Element tableHandle;
 	private Element theadHandle;
 	private Object hTableKeyDown;
+	
+	/* windowed rendering of SWT.VIRTUAL tables, see VirtualRows */
+	VirtualRows virtualRows;
+	TableItem [] rowItems;
+	private Element virtualTop, virtualBottom;
+	private boolean rowHeightMeasured;
+	private Object hTableScroll;
 
 /**
  * Constructs a new instance of this class given its parent
@@ -140,14 +147,16 @@ public Table (Composite parent, int style) {
 
 TableItem _getItem (int index) {
 	if (items [index] != null) return items [index];
-	return items [index] = new TableItem (this, SWT.NONE, -1, false);
+	TableItem item = items [index] = new TableItem (this, SWT.NONE, -1, false);
+	item.index = index;
+	return item;
 }
 
 void enableWidget(boolean enabled) {
 	// TODO Auto-generated method stub
 	super.enableWidget(enabled);
 	for(int i = 0; i < this.items.length; i++){
-		this.items[i].enableWidget(enabled);
+		if (this.items[i] != null) this.items[i].enableWidget(enabled);
 	}
 }
 
@@ -349,6 +358,7 @@ public void clear (int index) {
 		setScrollWidth (item, false);
 	}
 	*/
+	if (virtualRows != null) clearVirtualItems (index, index);
 }
 
 /**
@@ -426,6 +436,13 @@ public void clear (int start, int end) {
 		}
 	}
 	*/
+	if (virtualRows != null) {
+		int count = items.length;
+		if (!(0 <= start && start <= end && end < count)) {
+			error (SWT.ERROR_INVALID_RANGE);
+		}
+		clearVirtualItems (start, end);
+	}
 }
 
 /**
@@ -499,6 +516,17 @@ public void clear (int [] indices) {
 	}
 	if (cleared) setScrollWidth (null, false);
 	*/
+	if (virtualRows != null) {
+		int count = items.length;
+		for (int i=0; i<indices.length; i++) {
+			if (!(0 <= indices [i] && indices [i] < count)) {
+				error (SWT.ERROR_INVALID_RANGE);
+			}
+		}
+		for (int i=0; i<indices.length; i++) {
+			clearVirtualItems (indices [i], indices [i]);
+		}
+	}
 }
 
 /**
@@ -560,6 +588,27 @@ public void clearAll () {
 		setScrollWidth (null, false);
 	}
 	*/
+	if (virtualRows != null && items.length != 0) {
+		clearVirtualItems (0, items.length - 1);
+	}
+}
+
+/*
+ * Clears the items from start to end of a virtual table so that
+ * their data is requested again when they are next in view.
+ */
+void clearVirtualItems (int start, int end) {
+	boolean cleared = false;
+	for (int i=start; i<=end; i++) {
+		TableItem item = items [i];
+		if (item != null && item != currentItem) {
+			item.clear ();
+			cleared = true;
+		}
+	}
+	if (!cleared) return;
+	virtualRows.invalidate (start, end);
+	updateVirtualRows ();
 }
 public Point computeSize (int wHint, int hHint, boolean changed) {
 	checkWidget ();
@@ -602,8 +651,10 @@ public Point computeSize (int wHint, int hHint, boolean changed) {
 		height += 14 * items.length;
 		height += (getHeaderVisible() ? 14 : 0);
 		int maxWidth = 1;
+		boolean isVirtual = (style & SWT.VIRTUAL) != 0;
 		for (int i = 0; i < items.length; i++) {
-			String text = items[i].getText();
+			if (items[i] == null) continue;
+			String text = isVirtual ? items[i].text : items[i].getText();
 			if (text != null) {
 				maxWidth = Math.max(OS.getStringPlainWidth(text), maxWidth);
 			}
@@ -825,6 +876,121 @@ protected void createHandle () {
 		}
 	};
 	Clazz.addEvent(handle, "keydown", hTableKeyDown);
+	if ((style & SWT.VIRTUAL) != 0) createVirtualRows ();
+}
+
+/*
+ * Only the rows in view of a virtual table have elements, taken
+ * from a pool which is recycled as the table scrolls.  The TBODY
+ * holds a spacer row, the pooled rows and another spacer row.
+ */
+void createVirtualRows () {
+	tbody = document.createElement ("TBODY");
+	tableHandle.appendChild(tbody);
+	virtualTop = createSpacer ();
+	virtualBottom = createSpacer ();
+	rowItems = new TableItem [0];
+	rowHeightMeasured = false;
+	virtualRows = new VirtualRows (getItemHeight ()) {
+		Element createRow () {
+			Element tbodyTR = getRowTemplate ().cloneNode(true);
+			tbody.insertBefore(tbodyTR, virtualBottom);
+			return tbodyTR;
+		}
+		void bindRow (int slot, Element row, int index) {
+			bindVirtualRow (slot, row, index);
+		}
+		void setSpacers (int above, int below) {
+			setSpacerHeight (virtualTop, above);
+			setSpacerHeight (virtualBottom, below);
+		}
+	};
+	hTableScroll = new RunnableCompatibility() {
+		public void run() {
+			updateVirtualRows ();
+		}
+	};
+	Clazz.addEvent(handle, "scroll", hTableScroll);
+}
+
+private Element createSpacer () {
+	Element tr = document.createElement("TR");
+	tr.className = "table-virtual-spacer";
+	tr.style.display = "none";
+	tr.appendChild(document.createElement("TD"));
+	tbody.appendChild(tr);
+	return tr;
+}
+
+private void setSpacerHeight (Element spacer, int height) {
+	spacer.style.display = height > 0 ? "" : "none";
+	spacer.childNodes[0].style.height = height + "px";
+}
+
+void bindVirtualRow (int slot, Element row, int index) {
+	if (slot >= rowItems.length) {
+		TableItem [] newRowItems = new TableItem [virtualRows.rows.length];
+		System.arraycopy (rowItems, 0, newRowItems, 0, rowItems.length);
+		rowItems = newRowItems;
+	}
+	TableItem item = rowItems [slot];
+	if (item != null && item.handle == row) item.setHandle (null);
+	rowItems [slot] = null;
+	if (index == -1) {
+		row.style.display = "none";
+		return;
+	}
+	row.style.display = "";
+	OS.updateCSSClass(row, "table-row-first", index == 0);
+	item = _getItem (index);
+	item.index = index;
+	rowItems [slot] = item;
+	item.setHandle (row);
+	/* only the items that come into view are asked for their data */
+	checkData (item, false);
+}
+
+/*
+ * Binds the rows that are in view after the table was scrolled,
+ * resized or had items added or removed.
+ */
+void updateVirtualRows () {
+	if (virtualRows == null || handle == null) return;
+	int scrollTop = handle.scrollTop;
+	if (theadHandle != null) scrollTop -= theadHandle.offsetHeight;
+	virtualRows.update (scrollTop, handle.clientHeight);
+	if (!rowHeightMeasured && virtualRows.size != 0) {
+		int height = virtualRows.rows[0].offsetHeight;
+		if (height > 0) {
+			rowHeightMeasured = true;
+			if (height != virtualRows.rowHeight) {
+				virtualRows.setRowHeight (height);
+				virtualRows.update (scrollTop, handle.clientHeight);
+			}
+		}
+	}
+}
+
+/*
+ * Drops the pooled rows, which are created again on the next
+ * update, as when the columns changed.
+ */
+void resetVirtualRows () {
+	Element[] rows = virtualRows.rows;
+	for (int i = 0; i < rows.length; i++) {
+		TableItem item = i < rowItems.length ? rowItems [i] : null;
+		if (item != null && item.handle == rows [i]) item.setHandle (null);
+		OS.deepClearChildren(rows [i]);
+		OS.destroyHandle(rows [i]);
+	}
+	rowItems = new TableItem [0];
+	virtualRows.clear ();
+	if (tbodyTRTemplate != null) {
+		OS.deepClearChildren(tbodyTRTemplate);
+		OS.destroyHandle(tbodyTRTemplate);
+		tbodyTRTemplate = null;
+	}
+	updateVirtualRows ();
 }
 
 //void setCursorFocus(int index){
@@ -1071,7 +1237,7 @@ void createItem (TableColumn column, int index) {
 	}
 	//*/
 	column.handle = theadTD;
-	
+	if (virtualRows != null) resetVirtualRows ();
 }
 
 void createItem (TableItem item, int index) {
@@ -1121,6 +1287,20 @@ void createItem (TableItem item, int index) {
 	}
 //	if(itemsStr == null){
 //	}
+	if (virtualRows != null) {
+		int count = items.length;
+		if (!(0 <= index && index <= count)) error (SWT.ERROR_INVALID_RANGE);
+		TableItem [] newItems = new TableItem [count + 1];
+		System.arraycopy (items, 0, newItems, 0, index);
+		System.arraycopy (items, index, newItems, index + 1, count - index);
+		items = newItems;
+		item.index = index;
+		items [index] = item;
+		virtualRows.setCount (items.length);
+		virtualRows.invalidate (index, items.length);
+		updateVirtualRows ();
+		return;
+	}
 	item.index = index;
 	items[index] = item;
 	if (handle == null) {
@@ -1140,6 +1320,36 @@ void createItem (TableItem item, int index) {
 		table.appendChild(tbody);
 	}
 	
+	Element tbodyTR = getRowTemplate ().cloneNode(true);
+//	tbodyTR.className = "table-item-default";
+//	tbodyTR.innerHTML = tbodyTRTemplateInnerHTML;
+	if ((style & SWT.CHECK) != 0) {
+		Element[] nl = tbodyTR.getElementsByTagName("INPUT");
+		item.check = (Element) nl[0];
+	}
+	if (index == 0) {
+		OS.addCSSClass(tbodyTR, "table-row-first");
+	}
+	if (index < 0 || index >= tbody.childNodes.length) { //theadTD == null){
+		tbody.appendChild(tbodyTR);
+		items[index] = item;
+//		itemsStr[index] = trStr;
+	} else {
+		tbody.insertBefore(tbodyTR, tbody.childNodes[index]);
+		for (int i = items.length; i > index; i--) {
+			items[i] = items[i - 1];
+			items[i].index = i;
+//			itemsStr[i] = itemsStr[i - 1];
+		}
+		items[index] = item;
+//		itemsStr[index] = trStr;
+	}
+//	fillTbody();
+//	item.handle = tbody.childNodes[index];
+	item.handle = tbodyTR;
+}
+
+Element getRowTemplate () {
 	if(tbodyTRTemplate == null){
 		tbodyTRTemplate = document.createElement("TR");
 		int length = Math.max(1,this.columns.length);
@@ -1173,33 +1383,7 @@ void createItem (TableItem item, int index) {
 		tbodyTRTemplate.appendChild(td);
 	}
 	
-	Element tbodyTR = tbodyTRTemplate.cloneNode(true);
-//	tbodyTR.className = "table-item-default";
-//	tbodyTR.innerHTML = tbodyTRTemplateInnerHTML;
-	if ((style & SWT.CHECK) != 0) {
-		Element[] nl = tbodyTR.getElementsByTagName("INPUT");
-		item.check = (Element) nl[0];
-	}
-	if (index == 0) {
-		OS.addCSSClass(tbodyTR, "table-row-first");
-	}
-	if (index < 0 || index >= tbody.childNodes.length) { //theadTD == null){
-		tbody.appendChild(tbodyTR);
-		items[index] = item;
-//		itemsStr[index] = trStr;
-	} else {
-		tbody.insertBefore(tbodyTR, tbody.childNodes[index]);
-		for (int i = items.length; i > index; i--) {
-			items[i] = items[i - 1];
-			items[i].index = i;
-//			itemsStr[i] = itemsStr[i - 1];
-		}
-		items[index] = item;
-//		itemsStr[index] = trStr;
-	}
-//	fillTbody();
-//	item.handle = tbody.childNodes[index];
-	item.handle = tbodyTR;
+	return tbodyTRTemplate;
 }
 
 protected void createWidget () {
@@ -1257,7 +1441,7 @@ public void deselect (int [] indices) {
 //			ignoreSelect = true;
 //			OS.SendMessage (handle, OS.LVM_SETITEMSTATE, indices [i], lvItem);
 //			ignoreSelect = false;
-			items[indices[i]].showSelection(false);
+			if (items[indices[i]] != null) items[indices[i]].showSelection(false);
 		}
 	}
 	removeFromSelection(indices);
@@ -1289,7 +1473,7 @@ public void deselect (int index) {
 	OS.SendMessage (handle, OS.LVM_SETITEMSTATE, index, lvItem);
 	ignoreSelect = false;
 	*/
-	items[index].showSelection(false);
+	if (items[index] != null) items[index].showSelection(false);
 	removeFromSelection(new int[]{index});
 	//if (items[i].handle.className.indexOf("selected");
 }
@@ -1326,7 +1510,7 @@ public void deselect (int start, int end) {
 //			ignoreSelect = true;
 //			OS.SendMessage (handle, OS.LVM_SETITEMSTATE, i, lvItem);
 //			ignoreSelect = false;
-			items[i].showSelection(false);
+			if (items[i] != null) items[i].showSelection(false);
 			indices[i-start] = i;
 		}
 		removeFromSelection(indices);
@@ -1844,6 +2028,7 @@ public int getItemHeight () {
 	int oneItem = OS.SendMessage (handle, OS.LVM_APPROXIMATEVIEWRECT, 1, 0);
 	return (oneItem >> 16) - (empty >> 16);
 	*/
+	if (virtualRows != null) return virtualRows.rowHeight;
 	return 16;
 }
 /**
@@ -2031,6 +2216,7 @@ public int getTopIndex () {
 	* fix is to check for a negative number and return zero instead.
 	*/
 	//return Math.max (0, OS.SendMessage (handle, OS.LVM_GETTOPINDEX, 0, 0));
+	if (virtualRows != null) return virtualRows.getTopIndex ();
 	return 0;
 }
 
@@ -2197,6 +2383,13 @@ protected void releaseHandle() {
 		Clazz.removeEvent(handle, "keydown", hTableKeyDown);
 		hTableKeyDown = null;
 	}
+	if (hTableScroll != null) {
+		Clazz.removeEvent(handle, "scroll", hTableScroll);
+		hTableScroll = null;
+	}
+	virtualRows = null;
+	rowItems = null;
+	virtualTop = virtualBottom = null;
 	if (tbodyTRTemplate != null) {
 		OS.deepClearChildren(tbodyTRTemplate);
 		OS.destroyHandle(tbodyTRTemplate);
@@ -2338,6 +2531,24 @@ public void remove (int [] indices) {
 		}
 	}
 
+	if (virtualRows != null) {
+		int count = items.length;
+		for (int i = 0; i < newIndices.length; i++) {
+			if (!(0 <= newIndices [i] && newIndices [i] < count)) return;
+		}
+		/* remove from the last index down so that the others stay valid */
+		for (int i = 0; i < newIndices.length; i++) {
+			int max = i;
+			for (int j = i + 1; j < newIndices.length; j++) {
+				if (newIndices [j] > newIndices [max]) max = j;
+			}
+			int index = newIndices [max];
+			newIndices [max] = newIndices [i];
+			newIndices [i] = index;
+			if (i == 0 || index != newIndices [i - 1]) removeVirtualItems (index, index);
+		}
+		return;
+	}
 	if(tbody == null) return;
 //	sort (newIndices);
 	int start = newIndices [newIndices.length - 1], end = newIndices [0];
@@ -2446,6 +2657,10 @@ public void remove (int start, int end) {
 	if (!(0 <= start && start <= end && end < count)) {
 		return;
 	}
+	if (virtualRows != null) {
+		removeVirtualItems (start, end);
+		return;
+	}
 	
 	Element table = handle.childNodes[0];
 	Element tbody = null;
@@ -2472,6 +2687,44 @@ public void remove (int start, int end) {
 	items = newItems;
 }
 
+/*
+ * Removes the items from start to end of a virtual table.  Items
+ * that were never in view have no TableItem to release.
+ */
+void removeVirtualItems (int start, int end) {
+	int count = items.length;
+	boolean selected = false;
+	for (int i = start; i <= end; i++) {
+		TableItem item = items [i];
+		if (item != null && !item.isDisposed ()) {
+			if (item.isSelected ()) selected = true;
+			if (item == focusItem) {
+				focusItem = null;
+				focusIndex = -1;
+			}
+			item.setHandle (null);
+			item.releaseResources ();
+		}
+	}
+	TableItem [] newItems = new TableItem [count - (end - start + 1)];
+	System.arraycopy (items, 0, newItems, 0, start);
+	System.arraycopy (items, end + 1, newItems, start, count - end - 1);
+	items = newItems;
+	if (selected) {
+		TableItem [] newSelection = new TableItem [0];
+		for (int i = 0; i < selection.length; i++) {
+			if (selection [i] != null && !selection [i].isDisposed ()) {
+				newSelection [newSelection.length] = selection [i];
+			}
+		}
+		selection = newSelection;
+	}
+	if (lastSelection != null && lastSelection.isDisposed ()) lastSelection = null;
+	virtualRows.setCount (items.length);
+	virtualRows.invalidate (start, count);
+	updateVirtualRows ();
+}
+
 /**
  * Removes all of the items from the receiver.
  * <p>
@@ -2598,7 +2851,7 @@ public void select (int [] indices) {
 	selection = new TableItem[length];
 	for(int i = 0 ; i < length; i++){
 		int index = indices[i];
-		items[index].showSelection(true);
+		_getItem(index).showSelection(true);
 		selection[i] = this.items[index];
 	}
 	int focusIndex = indices [0];
@@ -2642,7 +2895,7 @@ public void select (int index) {
 	*/
 	if (index < 0) return;
 	deselectAll();
-	items[index].showSelection(true);
+	_getItem(index).showSelection(true);
 	selection = new TableItem[1];
 	selection[0] = this.items[index];
 	setFocusIndex(index);
@@ -2698,7 +2951,7 @@ public void select (int start, int end) {
 //		lvItem.stateMask = OS.LVIS_SELECTED;
 		selection = new TableItem[end - start + 1];
 		for (int i=start; i<=end; i++) {
-			items[i].showSelection(true);
+			_getItem(i).showSelection(true);
 			/*
 			 * Setting the selection array
 			 */
@@ -2725,7 +2978,7 @@ public void selectAll () {
 	if ((style & SWT.SINGLE) != 0) return;
 	selection = new TableItem[items.length];
 	for (int i = 0; i < items.length; i++) {
-		items[i].showSelection(true);
+		_getItem(i).showSelection(true);
 		selection[i] = items[i];
 	}
 	/*
@@ -2862,6 +3115,7 @@ void setBounds (int x, int y, int width, int height, int flags) {
 	if (fixResize) setRedraw (false);
 	super.setBounds (x, y, width, height, flags);
 	if (fixResize) setRedraw (true);
+	updateVirtualRows ();
 }
 
 /**
@@ -3035,12 +3289,12 @@ void setFocusIndex (int index) {
 	if(item == null){
 		return;
 	}
-	if(this.focusItem != null){
+	if(this.focusItem != null && focusItem.handle != null){
 		OS.removeCSSClass(focusItem.handle, "table-item-focus");
 	}
 	this.focusItem = item;
 	this.focusIndex = index;
-	OS.addCSSClass(item.handle, "table-item-focus");
+	if (item.handle != null) OS.addCSSClass(item.handle, "table-item-focus");
 }
 
 public void setFont (Font font) {
@@ -3138,6 +3392,7 @@ public void setHeaderVisible (boolean show) {
 	if (theadHandle != null) {
 		theadHandle.style.display = (show ? "" : "none");
 	}
+	updateVirtualRows ();
 }
 
 /**
@@ -3197,6 +3452,38 @@ public void setItemCount (int count) {
 	}
 	if (!isVirtual) setRedraw (true);
 	*/
+	int itemCount = items.length;
+	if (count == itemCount) return;
+	if (virtualRows == null) {
+		if (count < itemCount) {
+			remove (count, itemCount - 1);
+		} else {
+			for (int i=itemCount; i<count; i++) {
+				new TableItem (this, SWT.NONE, i, true);
+			}
+		}
+		return;
+	}
+	if (count < itemCount) {
+		removeVirtualItems (count, itemCount - 1);
+		return;
+	}
+	/*
+	* Items of a virtual table are created when they come
+	* into view, so growing the table only grows the array.
+	*/
+	int length = count;
+	/**
+	 * @j2sNative
+	 * this.items.length = length;
+	 */
+	{
+		TableItem [] newItems = new TableItem [length];
+		System.arraycopy (items, 0, newItems, 0, itemCount);
+		items = newItems;
+	}
+	virtualRows.setCount (count);
+	updateVirtualRows ();
 }
 
 void setItemHeight () {
@@ -3652,7 +3939,7 @@ boolean toggleSelection(TableItem item, boolean isCtrlKeyHold, boolean isShiftKe
 				int idx2 = Math.max(indexOf(lastSelection), indexOf(item));
 				selection = new TableItem[0];
 				for (int i = idx1; i <= idx2; i++) {
-					TableItem ti = items[i];
+					TableItem ti = _getItem(i);
 					//if (ti.handle.style.display != "none") { //expandStatus) {
 						selection[selection.length] = ti;
 						ti.showSelection(true);
@@ -3746,6 +4033,9 @@ public void setTopIndex (int index) {
 	int dy = (index - topIndex) * (rect.bottom - rect.top);
 	OS.SendMessage (handle, OS.LVM_SCROLL, 0, dy);
 	*/
+	if (virtualRows != null && 0 <= index && index < items.length) {
+		scrollToVirtualRow (index, true);
+	}
 }
 
 /**
@@ -3813,6 +4103,14 @@ public void showColumn (TableColumn column) {
 	*/
 }
 
+void scrollToVirtualRow (int index, boolean top) {
+	int scrollTop = virtualRows.getScrollTop (index, top);
+	if (scrollTop == -1) return;
+	if (theadHandle != null) scrollTop += theadHandle.offsetHeight;
+	handle.scrollTop = scrollTop;
+	updateVirtualRows ();
+}
+
 void showItem (int index) {
 	/*
 	/*
@@ -3842,6 +4140,7 @@ void showItem (int index) {
 		OS.SendMessage (handle, OS.LVM_ENSUREVISIBLE, index, 0);
 	}
 	*/
+	if (virtualRows != null) scrollToVirtualRow (index, false);
 }
 
 /**
@@ -51,6 +51,8 @@ public class TableItem extends Item {
 	 */
 	int index;
 	private boolean selected;
+	String cssBackground, cssForeground;
+	String [] cellCSSBackground, cellCSSForeground;
 	Element check;
 	private Object hCheckSelection;
 	private Object hItemDefaultSelection;
@@ -133,6 +135,8 @@ TableItem (Table parent, int style, int index, boolean create) {
 }
 
 private void configureItem() {
+	/* items of virtual tables are hooked when they are given a row */
+	if (handle == null || hItemSelection != null) return;
 	if((parent.style & SWT.CHECK) != 0 && check != null){
 		hCheckSelection = new RunnableCompatibility() {
 			public void run() {
@@ -248,7 +252,7 @@ public Color getBackground () {
 	if (!parent.checkData (this, true)) error (SWT.ERROR_WIDGET_DISPOSED);
 //	int pixel = (background == -1) ? parent.getBackgroundPixel() : background;
 //	return Color.win32_new (display, pixel);
-	return new Color(display, handle.style.backgroundColor);
+	return new Color(display, handle != null ? handle.style.backgroundColor : cssBackground);
 }
 
 /**
@@ -271,6 +275,9 @@ public Color getBackground (int index) {
 	if (0 > index || index > count - 1) return getBackground ();
 //	int pixel = cellBackground != null ? cellBackground [index] : -1;
 //	return pixel == -1 ? getBackground () : Color.win32_new (display, pixel);
+	if (handle == null) {
+		return new Color(display, getCell (cellCSSBackground, index));
+	}
 	return new Color(display, handle.childNodes[index].style.backgroundColor);
 }
 
@@ -480,7 +487,7 @@ public Color getForeground () {
 	if (!parent.checkData (this, true)) error (SWT.ERROR_WIDGET_DISPOSED);
 //	int pixel = (foreground == -1) ? parent.getForegroundPixel () : foreground;
 //	return Color.win32_new (display, pixel);
-	return new Color(display, handle.style.color);
+	return new Color(display, handle != null ? handle.style.color : cssForeground);
 }
 
 /**
@@ -504,6 +511,9 @@ public Color getForeground (int index) {
 	if (0 > index || index > count -1) return getForeground ();
 //	int pixel = cellForeground != null ? cellForeground [index] : -1;
 //	return pixel == -1 ? getForeground () : Color.win32_new (display, pixel);
+	if (handle == null) {
+		return new Color(null, getCell (cellCSSForeground, index));
+	}
 	return new Color(null, handle.childNodes[index].style.backgroundColor);
 }
 
@@ -673,23 +683,12 @@ void redraw (int column, boolean drawText, boolean drawImage) {
  * @see org.eclipse.swt.widgets.Widget#releaseHandle()
  */
 protected void releaseHandle() {
+	unhookItem ();
 	if (check != null) {
-		if (hCheckSelection != null) {
-			Clazz.removeEvent(check, "click", hCheckSelection);
-			hCheckSelection = null;
-		}
 		OS.destroyHandle(check);
 		check = null;
 	}
 	if (handle != null) {
-		if (hItemSelection != null) {
-			Clazz.removeEvent(handle, "click", hItemSelection);
-			hItemSelection = null;
-		}
-		if (hItemDefaultSelection != null) {
-			Clazz.removeEvent(handle, "dblclick", hItemDefaultSelection);
-			hItemDefaultSelection = null;
-		}
 		OS.deepClearChildren(handle);
 //		OS.destroyHandle(handle);
 //		handle = null;
@@ -735,7 +734,8 @@ public void setBackground (Color color) {
 	if (color != null) {
 //		parent.customDraw = true;
 //		pixel = color.handle;
-		handle.style.backgroundColor = color.getCSSHandle();
+		cssBackground = color.getCSSHandle();
+		if (handle != null) handle.style.backgroundColor = cssBackground;
 	}
 //	if (background == pixel) return;
 //	background = pixel;
@@ -770,8 +770,9 @@ public void setBackground (int index, Color color) {
 //	int pixel = -1;
 	if (color != null) {
 //		this.backgroundColors[index] = color.getCSSHandle();
-		
-		handle.childNodes[index].style.backgroundColor = color.getCSSHandle();
+		cellCSSBackground = growCells (cellCSSBackground, count);
+		cellCSSBackground[index] = color.getCSSHandle();
+		if (handle != null) handle.childNodes[index].style.backgroundColor = cellCSSBackground[index];
 //		parent.customDraw = true;
 //		pixel = color.handle;
 	}
@@ -974,7 +975,8 @@ public void setForeground (Color color){
 	if (color != null) {
 //		parent.customDraw = true;
 //		pixel = color.handle;
-		handle.style.color = color.getCSSHandle();
+		cssForeground = color.getCSSHandle();
+		if (handle != null) handle.style.color = cssForeground;
 	}
 //	if (foreground == pixel) return;
 //	foreground = pixel;
@@ -1010,7 +1012,9 @@ public void setForeground (int index, Color color){
 	if (color != null) {
 //		parent.customDraw = true;
 //		pixel = color.handle;
-		handle.childNodes[index].style.color = color.getCSSHandle();
+		cellCSSForeground = growCells (cellCSSForeground, count);
+		cellCSSForeground[index] = color.getCSSHandle();
+		if (handle != null) handle.childNodes[index].style.color = cellCSSForeground[index];
 	}
 	/*
 	if (cellForeground == null) {
@@ -1109,37 +1113,7 @@ public void setImage (int index, Image image) {
 	/* Ensure that the image list is created */
 	//parent.imageIndex (image);
 	
-	if (index == 0) {
-		if (this.image.handle == null && this.image.url != null && this.image.url.length() != 0) {
-			Element text = handle.childNodes[index].childNodes[0];
-			//text = text.childNodes[text.childNodes.length - 1];
-				
-			Element[] els = text.childNodes;
-			CSSStyle handleStyle = handle.style;
-			if (els.length == 1 || !OS.existedCSSClass(els[els.length - 2], "table-image")) {
-				Element div = document.createElement("DIV");
-				div.className = "table-image image-p-4 image-n-5";
-				text.insertBefore(div, els[els.length - 1]);
-				handleStyle = div.style; 
-			} else {
-				handleStyle = els[els.length - 2].style;
-			}
-			if (OS.isIENeedPNGFix && image.url.toLowerCase().endsWith(".png") && handleStyle.filter != null) {
-//					Element imgBackground = document.createElement("DIV");
-//					imgBackground.style.position = "absolute";
-//					imgBackground.style.width = "100%";
-//					imgBackground.style.height = "100%";
-//					imgBackground.style.filter = "progid:DXImageTransform.Microsoft.AlphaImageLoader(src=\"" + this.image.url + "\", sizingMethod=\"image\")";
-//					handle.appendChild(imgBackground);
-				handleStyle.backgroundImage = "";
-				handleStyle.filter = "progid:DXImageTransform.Microsoft.AlphaImageLoader(src=\"" + this.image.url + "\", sizingMethod=\"image\")";
-			} else {
-				if (OS.isIENeedPNGFix && handleStyle.filter != null) handleStyle.filter = ""; 
-				handleStyle.backgroundImage = "url(\"" + this.image.url + "\")";
-			}
-		}
-		OS.addCSSClass(handle.parentNode, "table-image");
-	}
+	if (index == 0 && handle != null) updateImage ();
 	//if (index == 0) parent.setScrollWidth (this, false);
 	redraw (index, false, true);
 }
@@ -1149,6 +1123,43 @@ public void setImage (Image image) {
 	setImage (0, image);
 }
 
+void updateImage () {
+	Element text = handle.childNodes[0].childNodes[0];
+	//text = text.childNodes[text.childNodes.length - 1];
+		
+	Element[] els = text.childNodes;
+	if (image != null && image.handle == null && image.url != null && image.url.length() != 0) {
+		CSSStyle handleStyle = handle.style;
+		if (els.length == 1 || !OS.existedCSSClass(els[els.length - 2], "table-image")) {
+			Element div = document.createElement("DIV");
+			div.className = "table-image image-p-4 image-n-5";
+			text.insertBefore(div, els[els.length - 1]);
+			handleStyle = div.style; 
+		} else {
+			handleStyle = els[els.length - 2].style;
+		}
+		if (OS.isIENeedPNGFix && image.url.toLowerCase().endsWith(".png") && handleStyle.filter != null) {
+//				Element imgBackground = document.createElement("DIV");
+//				imgBackground.style.position = "absolute";
+//				imgBackground.style.width = "100%";
+//				imgBackground.style.height = "100%";
+//				imgBackground.style.filter = "progid:DXImageTransform.Microsoft.AlphaImageLoader(src=\"" + this.image.url + "\", sizingMethod=\"image\")";
+//				handle.appendChild(imgBackground);
+			handleStyle.backgroundImage = "";
+			handleStyle.filter = "progid:DXImageTransform.Microsoft.AlphaImageLoader(src=\"" + this.image.url + "\", sizingMethod=\"image\")";
+		} else {
+			if (OS.isIENeedPNGFix && handleStyle.filter != null) handleStyle.filter = ""; 
+			handleStyle.backgroundImage = "url(\"" + this.image.url + "\")";
+		}
+	} else if (els.length > 1 && OS.existedCSSClass(els[els.length - 2], "table-image")) {
+		/* a recycled row of a virtual table may show the image of another item */
+		CSSStyle handleStyle = els[els.length - 2].style;
+		if (OS.isIENeedPNGFix && handleStyle.filter != null) handleStyle.filter = ""; 
+		handleStyle.backgroundImage = "";
+	}
+	if (image != null) OS.addCSSClass(handle.parentNode, "table-image");
+}
+
 /**
  * Sets the indent of the first column's image, expressed in terms of the image's width.
  *
@@ -1229,19 +1240,13 @@ public void setText (int index, String string) {
 	}
 	int count = Math.max (1, parent.getColumnCount ());
 	if (0 > index || index > count - 1) return;
-	if (strings == null && index != 0) strings = new String [count];
+	if (strings != null || index != 0) strings = growCells (strings, count);
 	if (strings != null) {
 		if (string.equals (strings [index])) return;
 		strings [index] = string;
 	}
-	Element text = handle.childNodes[index].childNodes[0];
-	if (index == 0) {
-//		if((parent.style & SWT.RIGHT_TO_LEFT) == 0) {
-			text = text.childNodes[text.childNodes.length - 1];
-//		}else{
-//			text = text.childNodes[0];
-//		}
-	}
+	if (handle == null) return;
+	Element text = getTextElement (index);
 	text.innerHTML = string;
 	
 	int[] columnMaxWidth = parent.columnMaxWidth;
@@ -1374,8 +1379,87 @@ public void setText (int index, String string) {
 	redraw (index, true, false);
 	*/
 }
+Element getTextElement (int index) {
+	Element text = handle.childNodes[index].childNodes[0];
+	if (index == 0) {
+//		if((parent.style & SWT.RIGHT_TO_LEFT) == 0) {
+			text = text.childNodes[text.childNodes.length - 1];
+//		}else{
+//			text = text.childNodes[0];
+//		}
+	}
+	return text;
+}
+
+/*
+ * Per-column arrays are sized to the columns there were when they
+ * were created; columns may have been added since.
+ */
+static String getCell (String [] cells, int index) {
+	return cells != null && index < cells.length ? cells [index] : null;
+}
+
+static String [] growCells (String [] cells, int count) {
+	if (cells != null && cells.length >= count) return cells;
+	String [] newCells = new String [count];
+	if (cells != null) System.arraycopy (cells, 0, newCells, 0, cells.length);
+	return newCells;
+}
+
+/*
+ * Virtual tables recycle a few row elements as they scroll (see
+ * VirtualRows).  Moves the receiver to the given row, or out of
+ * view if the row is null, and paints what it holds into the row.
+ */
+void setHandle (Element row) {
+	unhookItem ();
+	handle = row;
+	check = null;
+	if (row == null) return;
+	if ((parent.style & SWT.CHECK) != 0) {
+		Element[] nl = row.getElementsByTagName("INPUT");
+		check = (Element) nl[0];
+		check.checked = checked;
+	}
+	configureItem ();
+	int count = Math.max (1, parent.getColumnCount ());
+	for (int i = 0; i < count; i++) {
+		String string = i == 0 ? text : getCell (strings, i);
+		getTextElement (i).innerHTML = string != null ? string : "";
+		CSSStyle cellStyle = row.childNodes[i].style;
+		String css = getCell (cellCSSBackground, i);
+		cellStyle.backgroundColor = css != null ? css : "";
+		css = getCell (cellCSSForeground, i);
+		cellStyle.color = css != null ? css : "";
+	}
+	row.style.backgroundColor = cssBackground != null ? cssBackground : "";
+	row.style.color = cssForeground != null ? cssForeground : "";
+	updateImage ();
+	OS.updateCSSClass(row, "table-item-selected", selected);
+	OS.updateCSSClass(row, "table-item-focus", parent.focusItem == this);
+	enableWidget (parent.isEnabled ());
+}
+
+private void unhookItem () {
+	if (check != null && hCheckSelection != null) {
+		Clazz.removeEvent(check, "click", hCheckSelection);
+	}
+	hCheckSelection = null;
+	if (handle != null) {
+		if (hItemSelection != null) {
+			Clazz.removeEvent(handle, "click", hItemSelection);
+		}
+		if (hItemDefaultSelection != null) {
+			Clazz.removeEvent(handle, "dblclick", hItemDefaultSelection);
+		}
+	}
+	hItemSelection = null;
+	hItemDefaultSelection = null;
+}
+
 void showSelection(boolean selected) {
 	this.selected = selected;
+	if (handle == null) return;
 	OS.updateCSSClass(handle, "table-item-selected", selected);
 	if (OS.isIE) { // IE won't update selected background! 
 		Element tmpDiv = document.createElement("DIV");
@@ -1389,6 +1473,7 @@ boolean isSelected(){
 }
 
 public void enableWidget(boolean enabled) {
+	if (this.handle == null) return;
 	this.handle.disabled = !enabled;
 	if (this.check != null) {
 		this.check.disabled = !enabled;
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     java2script.org - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.swt.widgets;
+
+import org.eclipse.swt.internal.xhtml.Element;
+
+/**
+ * Windowed rendering of the rows of a virtual list, such as a
+ * <code>Table</code> with the <code>SWT.VIRTUAL</code> style.
+ * <p>
+ * Only the rows in the viewport, and a few on either side of it,
+ * have row elements.  These come from a pool which grows to the
+ * number of rows that fit in the viewport and is recycled from then
+ * on: as the viewport moves, each pooled row is bound to the item
+ * that now falls in its place.  Two spacers above and below the
+ * pooled rows stand in for the rows that have no element, so that
+ * the list keeps its full scrolling height.
+ * </p><p>
+ * The DOM is only touched through the abstract methods, so the
+ * windowing itself runs (and can be counted) without a browser.
+ * </p>
+ */
+abstract class VirtualRows {
+	/* rows kept bound above and below the viewport */
+	static final int OVERSCAN = 2;
+
+	int count, rowHeight;
+	int scrollTop, viewHeight;
+	/* rows start to start + size - 1 are bound to rows [0] to rows [size - 1] */
+	int start, size;
+	Element [] rows = new Element [0];
+	int [] indices = new int [0];
+	int above = -1, below = -1;
+
+VirtualRows (int rowHeight) {
+	this.rowHeight = Math.max (1, rowHeight);
+}
+
+/**
+ * Creates a row element and places it after the rows
+ * created before it, between the two spacers.
+ */
+abstract Element createRow ();
+
+/**
+ * Binds the pooled row at the given position in the pool to
+ * the item at the given index, or hides it if index is -1.
+ */
+abstract void bindRow (int slot, Element row, int index);
+
+/**
+ * Sets the heights, in pixels, of the spacers above and below
+ * the pooled rows.
+ */
+abstract void setSpacers (int above, int below);
+
+/**
+ * Returns the row element bound to the item at the given
+ * index, or null if the item is not in the window.
+ */
+Element getRow (int index) {
+	if (index < start || index >= start + size) return null;
+	return rows [index - start];
+}
+
+int getTopIndex () {
+	if (count == 0) return 0;
+	return Math.min (scrollTop / rowHeight, count - 1);
+}
+
+/**
+ * Returns the scroll position, in pixels, that shows the item
+ * at the given index at the top of the viewport, or -1 if the
+ * item is already entirely visible.
+ */
+int getScrollTop (int index, boolean top) {
+	int y = index * rowHeight;
+	if (top) return y;
+	if (y >= scrollTop && y + rowHeight <= scrollTop + viewHeight) return -1;
+	if (y < scrollTop) return y;
+	return Math.max (0, y + rowHeight - viewHeight);
+}
+
+/**
+ * Forces the rows bound to the items from start to end to be
+ * bound again at the next update, as when those items were
+ * inserted, removed or cleared.
+ */
+void invalidate (int start, int end) {
+	for (int i = 0; i < indices.length; i++) {
+		if (start <= indices [i] && indices [i] <= end) indices [i] = -2;
+	}
+}
+
+void invalidateAll () {
+	for (int i = 0; i < indices.length; i++) {
+		indices [i] = -2;
+	}
+	above = below = -1;
+}
+
+/**
+ * Forgets the pooled rows, as when their elements were destroyed.
+ */
+void clear () {
+	rows = new Element [0];
+	indices = new int [0];
+	start = size = 0;
+	above = below = -1;
+}
+
+void setCount (int count) {
+	this.count = Math.max (0, count);
+}
+
+void setRowHeight (int rowHeight) {
+	rowHeight = Math.max (1, rowHeight);
+	if (this.rowHeight == rowHeight) return;
+	this.rowHeight = rowHeight;
+	above = below = -1;
+}
+
+/**
+ * Moves the window to the given viewport, in pixels from the top
+ * of the first row, binding the rows that came into view and
+ * growing the pool if it is too small to fill the viewport.
+ */
+void update (int scrollTop, int viewHeight) {
+	this.scrollTop = Math.max (0, scrollTop);
+	this.viewHeight = Math.max (0, viewHeight);
+	/* the rows partially visible at the top and the bottom count too */
+	int visible = this.viewHeight / rowHeight + 2;
+	size = Math.min (count, visible + OVERSCAN * 2);
+	start = this.scrollTop / rowHeight - OVERSCAN;
+	start = Math.max (0, Math.min (start, count - size));
+	if (rows.length < size) {
+		Element [] newRows = new Element [size];
+		int [] newIndices = new int [size];
+		System.arraycopy (rows, 0, newRows, 0, rows.length);
+		System.arraycopy (indices, 0, newIndices, 0, indices.length);
+		for (int i = rows.length; i < size; i++) {
+			newRows [i] = createRow ();
+			newIndices [i] = -2;
+		}
+		rows = newRows;
+		indices = newIndices;
+	}
+	for (int i = 0; i < rows.length; i++) {
+		int index = i < size ? start + i : -1;
+		if (indices [i] != index) {
+			indices [i] = index;
+			bindRow (i, rows [i], index);
+		}
+	}
+	int above = start * rowHeight;
+	int below = (count - start - size) * rowHeight;
+	if (above != this.above || below != this.below) {
+		this.above = above;
+		this.below = below;
+		setSpacers (above, below);
+	}
+}
+
+}
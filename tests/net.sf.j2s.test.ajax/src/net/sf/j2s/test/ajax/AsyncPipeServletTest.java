@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimplePipeHelper;
+import net.sf.j2s.ajax.SimplePipeHttpServlet;
+import net.sf.j2s.ajax.SimplePipeRequest;
+import net.sf.j2s.ajax.SimplePipeRunnable;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Asynchronous pipe mode: responses are the same as blocking mode, and
+ * threads stay constant while pipe connections grow.
+ */
+public class AsyncPipeServletTest extends TestCase {
+
+	public static class TestPipe extends SimplePipeRunnable {
+		public boolean pipeSetup() {
+			return true;
+		}
+	}
+
+	public static class PipeEvent extends SimpleSerializable {
+		public int index;
+	}
+
+	public static class TextEvent extends SimpleSerializable {
+		public String text;
+		public PipeEvent event;
+	}
+
+	public static class CustomEvent extends PipeEvent {
+		@Override
+		public String serialize() {
+			return "WLLcustom" + index;
+		}
+	}
+
+	/*
+	 * Servlet 2.5 API has no AsyncContext, so asynchronous mode is simulated.
+	 */
+	static class AsyncPipeServlet extends SimplePipeHttpServlet {
+		private static final long serialVersionUID = 1L;
+		boolean async;
+		AtomicInteger completed = new AtomicInteger();
+		int piped;
+		@Override
+		protected void doPipe(HttpServletResponse resp, String key, char type, String domain) throws IOException {
+			piped++; // still the entry point of both modes
+			super.doPipe(resp, key, type, domain);
+		}
+		@Override
+		protected boolean isAsyncSupported(HttpServletRequest req) {
+			return async;
+		}
+		@Override
+		protected Object startAsync(HttpServletRequest req) {
+			return new Object();
+		}
+		@Override
+		protected void completeAsync(Object asyncContext) {
+			completed.incrementAndGet();
+		}
+		void pipe(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+			doGet(req, resp);
+		}
+		static String outputString(char type, String key, SimpleSerializable ss) {
+			return output(type, key, ss.serialize());
+		}
+		static String outputBuilder(char type, String key, SimpleSerializable ss) {
+			StringBuilder builder = new StringBuilder("prefix");
+			output(builder, type, key, ss);
+			return builder.substring("prefix".length());
+		}
+	}
+
+	static HttpServletRequest request(String key, char type) {
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put(String.valueOf(SimplePipeRequest.FORM_PIPE_KEY), key);
+		params.put(String.valueOf(SimplePipeRequest.FORM_PIPE_TYPE), String.valueOf(type));
+		return (HttpServletRequest) Proxy.newProxyInstance(AsyncPipeServletTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getParameter".equals(method.getName())) {
+					return params.get(args[0]);
+				}
+				return null;
+			}
+		});
+	}
+
+	static HttpServletResponse response(final StringWriter out) {
+		final PrintWriter writer = new PrintWriter(out);
+		return (HttpServletResponse) Proxy.newProxyInstance(AsyncPipeServletTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getWriter".equals(method.getName())) {
+					return writer;
+				}
+				return null;
+			}
+		});
+	}
+
+	static AsyncPipeServlet servlet(boolean async) throws ServletException {
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put("simple.pipe.async", String.valueOf(async));
+		params.put("simple.pipe.async.threads", "4");
+		AsyncPipeServlet servlet = new AsyncPipeServlet();
+		servlet.async = async;
+		servlet.init((ServletConfig) Proxy.newProxyInstance(AsyncPipeServletTest.class.getClassLoader(),
+				new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getInitParameter".equals(method.getName())) {
+					return params.get(args[0]);
+				}
+				return null;
+			}
+		}));
+		return servlet;
+	}
+
+	static TestPipe createPipe() {
+		TestPipe pipe = new TestPipe();
+		pipe.setPipeHelper(new SimplePipeHelper.IPipeThrough() {
+			public void helpThrough(SimplePipeRunnable pipe, SimpleSerializable[] objs) {
+				SimplePipeHelper.pipeIn(pipe.pipeKey, objs);
+			}
+		});
+		pipe.ajaxRun();
+		return pipe;
+	}
+
+	static SimpleSerializable[] events(int count) {
+		SimpleSerializable[] evts = new SimpleSerializable[count];
+		for (int i = 0; i < count; i++) {
+			PipeEvent e = new PipeEvent();
+			e.index = i;
+			evts[i] = e;
+		}
+		return evts;
+	}
+
+	public void testSameResponses() throws Exception {
+		AsyncPipeServlet blocking = servlet(false);
+		AsyncPipeServlet async = servlet(true);
+		TestPipe p1 = createPipe();
+		TestPipe p2 = createPipe();
+		SimplePipeHelper.pipeIn(p1.pipeKey, events(3));
+		SimplePipeHelper.pipeIn(p2.pipeKey, events(3));
+		StringWriter out1 = new StringWriter();
+		blocking.pipe(request(p1.pipeKey, SimplePipeRequest.PIPE_TYPE_QUERY), response(out1));
+		StringWriter out2 = new StringWriter();
+		async.pipe(request(p2.pipeKey, SimplePipeRequest.PIPE_TYPE_QUERY), response(out2));
+		for (int i = 0; i < 100 && async.completed.get() == 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, async.completed.get());
+		assertEquals(1, blocking.piped);
+		assertEquals(1, async.piped);
+		assertEquals(out1.toString().replaceAll(p1.pipeKey, "KEY"), out2.toString().replaceAll(p2.pipeKey, "KEY"));
+		assertTrue(out1.toString().length() > 0);
+		p1.pipeDestroy();
+		p2.pipeDestroy();
+		blocking.destroy();
+		async.destroy();
+	}
+
+	public void testBatchedOutput() {
+		char[] types = new char[] { SimplePipeRequest.PIPE_TYPE_CONTINUUM, SimplePipeRequest.PIPE_TYPE_QUERY,
+				SimplePipeRequest.PIPE_TYPE_SCRIPT, SimplePipeRequest.PIPE_TYPE_XSS };
+		String[] texts = new String[] { null, "", "plain", "\"quoted\" \\ back\r\n",
+				"<script>x</script></script>", "\u4e2d\u6587</scr" };
+		for (int i = 0; i < types.length; i++) {
+			for (int j = 0; j < texts.length; j++) {
+				TextEvent e = new TextEvent();
+				e.text = texts[j];
+				e.event = new PipeEvent();
+				assertEquals(AsyncPipeServlet.outputString(types[i], "abcdef", e),
+						AsyncPipeServlet.outputBuilder(types[i], "abcdef", e));
+			}
+			// overridden public serialize is kept
+			CustomEvent c = new CustomEvent();
+			c.index = 7;
+			assertEquals(AsyncPipeServlet.outputString(types[i], "abcdef", c),
+					AsyncPipeServlet.outputBuilder(types[i], "abcdef", c));
+			assertTrue(AsyncPipeServlet.outputBuilder(types[i], "abcdef", c).indexOf("custom7") != -1);
+		}
+	}
+
+	public void testConstantThreads() throws Exception {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		AsyncPipeServlet servlet = servlet(true);
+		// first pumpings run in container's threads, pipe timer is the only new thread
+		int baseThreads = Thread.activeCount() + 1;
+		// and no more than 4 pipe workers are started for wakings
+		int maxThreads = threadBean.getThreadCount() + 1 + 4;
+		threadBean.resetPeakThreadCount();
+		List<TestPipe> pipes = new ArrayList<TestPipe>();
+		List<StringWriter> outs = new ArrayList<StringWriter>();
+		List<String> keys = new ArrayList<String>();
+		int[] steps = new int[] { 100, 1000, 5000 };
+		for (int s = 0; s < steps.length; s++) {
+			while (pipes.size() < steps[s]) {
+				TestPipe pipe = createPipe();
+				StringWriter out = new StringWriter();
+				servlet.pipe(request(pipe.pipeKey, SimplePipeRequest.PIPE_TYPE_CONTINUUM), response(out));
+				pipes.add(pipe);
+				outs.add(out);
+				keys.add(pipe.pipeKey);
+			}
+			int threads = Thread.activeCount();
+			System.out.println(pipes.size() + " asynchronous pipe connections, " + threads + " threads");
+			assertTrue(threads <= baseThreads);
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < pipes.size(); i++) {
+			SimplePipeHelper.pipeIn(pipes.get(i).pipeKey, events(1));
+		}
+		for (int i = 0; i < outs.size(); i++) {
+			StringWriter out = outs.get(i);
+			for (int j = 0; j < 200 && out.toString().indexOf("PipeEvent") == -1; j++) {
+				Thread.sleep(10);
+			}
+			assertTrue(out.toString().indexOf("PipeEvent") != -1);
+		}
+		System.out.println("Events delivered to " + pipes.size() + " connections in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		for (int i = 0; i < pipes.size(); i++) {
+			SimplePipeHelper.removePipe(keys.get(i));
+		}
+		for (int i = 0; i < 200 && servlet.completed.get() < pipes.size(); i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(pipes.size(), servlet.completed.get());
+		for (int i = 0; i < outs.size(); i++) {
+			assertTrue(outs.get(i).toString().endsWith(keys.get(i) + SimplePipeRequest.PIPE_STATUS_DESTROYED));
+		}
+		int peak = threadBean.getPeakThreadCount();
+		System.out.println("Peak threads " + peak + ", at most " + maxThreads + " expected");
+		assertTrue(peak <= maxThreads);
+		servlet.destroy();
+	}
+
+	public void testConnectionsOfSamePipe() throws Exception {
+		AsyncPipeServlet servlet = servlet(true);
+		TestPipe pipe = createPipe();
+		StringWriter out1 = new StringWriter();
+		servlet.pipe(request(pipe.pipeKey, SimplePipeRequest.PIPE_TYPE_CONTINUUM), response(out1));
+		StringWriter out2 = new StringWriter();
+		servlet.pipe(request(pipe.pipeKey, SimplePipeRequest.PIPE_TYPE_CONTINUUM), response(out2));
+		SimplePipeHelper.pipeIn(pipe.pipeKey, events(1));
+		for (int j = 0; j < 200 && (out1.toString() + out2.toString()).indexOf("PipeEvent") == -1; j++) {
+			Thread.sleep(10);
+		}
+		assertTrue((out1.toString() + out2.toString()).indexOf("PipeEvent") != -1);
+		// both connections are woken up by removing, not left for live status checking
+		SimplePipeHelper.removePipe(pipe.pipeKey);
+		for (int i = 0; i < 40 && servlet.completed.get() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, servlet.completed.get());
+		assertTrue(out1.toString().endsWith(pipe.pipeKey + SimplePipeRequest.PIPE_STATUS_DESTROYED));
+		assertTrue(out2.toString().endsWith(pipe.pipeKey + SimplePipeRequest.PIPE_STATUS_DESTROYED));
+		servlet.destroy();
+	}
+
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.CompoundPipeRunnable;
+import net.sf.j2s.ajax.CompoundPipeSession;
+import net.sf.j2s.ajax.CompoundSerializable;
+
+/**
+ * Compound pipe sessions are looked up by session key under weave/unweave churn.
+ */
+public class CompoundPipeTest extends TestCase {
+
+	public static class SessionEvent extends CompoundSerializable {
+		public int index;
+	}
+
+	public static class TestSession extends CompoundPipeSession {
+		public int dealt;
+		public boolean pipeSetup() {
+			return true;
+		}
+		public boolean deal(SessionEvent evt) {
+			dealt++;
+			return true;
+		}
+	}
+
+	static TestSession session(String key) {
+		TestSession s = new TestSession();
+		s.session = key;
+		return s;
+	}
+
+	static void assertConsistent(CompoundPipeRunnable cp, List<TestSession> woven) {
+		assertEquals(woven.size(), cp.getActivePipeSessionCount());
+		for (int i = 0; i < woven.size(); i++) {
+			TestSession s = woven.get(i);
+			SessionEvent evt = new SessionEvent();
+			evt.session = s.session;
+			int dealt = s.dealt;
+			assertTrue(cp.deal(evt));
+			assertEquals(dealt + 1, s.dealt);
+		}
+	}
+
+	public void testWeaveUnweave() {
+		CompoundPipeRunnable cp = new CompoundPipeRunnable();
+		List<TestSession> woven = new ArrayList<TestSession>();
+		for (int i = 0; i < 100; i++) {
+			TestSession s = i % 2 == 0 ? session("s" + i) : session(null);
+			assertTrue(cp.weave(s));
+			assertNotNull(s.session);
+			woven.add(s);
+		}
+		assertConsistent(cp, woven);
+		// weaving again is a no-op
+		assertFalse(cp.weave(woven.get(3)));
+		assertEquals(100, cp.getActivePipeSessionCount());
+		// same session key replaces the old session
+		TestSession replaced = session("s10");
+		assertTrue(cp.weave(replaced));
+		assertEquals(100, cp.getActivePipeSessionCount());
+		woven.set(10, replaced);
+		assertConsistent(cp, woven);
+		for (int i = woven.size() - 1; i >= 0; i -= 3) {
+			assertTrue(cp.unweave(woven.remove(i)));
+		}
+		assertConsistent(cp, woven);
+		SessionEvent evt = new SessionEvent();
+		evt.session = "s99";
+		assertFalse(cp.deal(evt));
+		while (!woven.isEmpty()) {
+			assertTrue(cp.unweave(woven.remove(0)));
+		}
+		assertTrue(cp.isEmpty());
+	}
+
+	public void testWeaveChurn() throws InterruptedException {
+		final CompoundPipeRunnable cp = new CompoundPipeRunnable();
+		final int threads = 8;
+		final int sessions = 2000;
+		final int rounds = 50000;
+		final List<List<TestSession>> woven = new ArrayList<List<TestSession>>();
+		for (int t = 0; t < threads; t++) {
+			woven.add(new ArrayList<TestSession>());
+		}
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread() {
+				public void run() {
+					List<TestSession> mine = woven.get(thread);
+					Random random = new Random(thread);
+					try {
+						for (int i = 0; i < rounds; i++) {
+							if (mine.size() < sessions && (mine.isEmpty() || random.nextInt(3) != 0)) {
+								TestSession s = session("t" + thread + "-" + i);
+								cp.weave(s);
+								mine.add(s);
+							} else {
+								TestSession s = mine.remove(random.nextInt(mine.size()));
+								if (!cp.unweave(s)) {
+									errors.incrementAndGet();
+								}
+							}
+							if (mine.isEmpty()) {
+								continue;
+							}
+							SessionEvent evt = new SessionEvent();
+							evt.session = mine.get(random.nextInt(mine.size())).session;
+							if (!cp.deal(evt)) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		System.out.println(threads + " threads woven/unwoven " + (threads * rounds) + " sessions in "
+				+ (System.currentTimeMillis() - start) + "ms, " + cp.getActivePipeSessionCount() + " sessions alive");
+		assertEquals(0, errors.get());
+		List<TestSession> all = new ArrayList<TestSession>();
+		for (int t = 0; t < threads; t++) {
+			all.addAll(woven.get(t));
+		}
+		assertConsistent(cp, all);
+	}
+
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.HttpRequest;
+import net.sf.j2s.ajax.SimpleHttpCompression;
+import net.sf.j2s.ajax.SimplePipeHelper;
+import net.sf.j2s.ajax.SimplePipeHttpServlet;
+import net.sf.j2s.ajax.SimplePipeRequest;
+import net.sf.j2s.ajax.SimpleRPCRunnable;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Negotiated compression of responses, and transparent decompression of
+ * HttpRequest.
+ */
+public class CompressionTest extends TestCase {
+
+	public static class ItemEvent extends SimpleSerializable {
+		public String itemName;
+		public String itemDescription;
+		public int itemQuantity;
+		public long itemTimestamp;
+	}
+
+	public static class ListRunnable extends SimpleRPCRunnable {
+		public int count;
+		public ItemEvent[] items;
+		@Override
+		public void ajaxRun() {
+			items = new ItemEvent[count];
+			for (int i = 0; i < count; i++) {
+				ItemEvent e = new ItemEvent();
+				e.itemName = "item" + i;
+				e.itemDescription = "Description of item " + (i % 7);
+				e.itemQuantity = i % 13;
+				e.itemTimestamp = 1300000000000L + i * 1000;
+				items[i] = e;
+			}
+		}
+	}
+
+	static HttpServletRequest request(final byte[] body, final String acceptEncoding) {
+		return request(body, acceptEncoding, new HashMap<String, String>());
+	}
+
+	static HttpServletRequest request(final byte[] body, final String acceptEncoding, final Map<String, String> params) {
+		final ByteArrayInputStream in = new ByteArrayInputStream(body);
+		final ServletInputStream sis = new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return in.read();
+			}
+		};
+		return (HttpServletRequest) Proxy.newProxyInstance(CompressionTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getInputStream".equals(method.getName())) {
+					return sis;
+				} else if ("getContentLength".equals(method.getName())) {
+					return body.length;
+				} else if ("getHeader".equals(method.getName()) && "Accept-Encoding".equals(args[0])) {
+					return acceptEncoding;
+				} else if ("getParameter".equals(method.getName())) {
+					return params.get(args[0]);
+				}
+				return null;
+			}
+		});
+	}
+
+	static HttpServletResponse response(final StringWriter out, final ByteArrayOutputStream bytes,
+			final Map<String, String> headers) {
+		final PrintWriter writer = new PrintWriter(out);
+		final ServletOutputStream sos = new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				bytes.write(b);
+			}
+		};
+		return (HttpServletResponse) Proxy.newProxyInstance(CompressionTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("getWriter".equals(name)) {
+					return writer;
+				} else if ("getOutputStream".equals(name)) {
+					return sos;
+				} else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+					headers.put((String) args[0], (String) args[1]);
+				}
+				return null;
+			}
+		});
+	}
+
+	public void testNegotiation() {
+		String[][] cases = new String[][] {
+				{ null, null },
+				{ "", null },
+				{ "identity", null },
+				{ "gzip", "gzip" },
+				{ "deflate", "deflate" },
+				{ "gzip, deflate", "gzip" },
+				{ "deflate, gzip;q=0.5", "gzip" },
+				{ "gzip;q=0, deflate", "deflate" },
+				{ "gzip;q=0, deflate;q=0", null },
+				{ "*", "gzip" },
+				{ "gzip;q=0, *", "deflate" },
+				{ "x-gzip", "gzip" },
+		};
+		for (int i = 0; i < cases.length; i++) {
+			assertEquals(cases[i][0], cases[i][1], SimpleHttpCompression.negotiate(request(new byte[0], cases[i][0])));
+		}
+	}
+
+	static byte[] decompress(byte[] bytes, String encoding) throws IOException {
+		InputStream is = new ByteArrayInputStream(bytes);
+		is = "gzip".equals(encoding) ? new GZIPInputStream(is) : new InflaterInputStream(is);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			baos.write(buffer, 0, read);
+		}
+		return baos.toByteArray();
+	}
+
+	String post(int count, String acceptEncoding, Map<String, String> headers) throws Exception {
+		ListRunnable r = new ListRunnable();
+		r.count = count;
+		RPCPostTest.PostServlet servlet = new RPCPostTest.PostServlet() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean validateRunnable(String clazzName) {
+				return ListRunnable.class.getName().equals(clazzName);
+			}
+		};
+		StringWriter out = new StringWriter();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		servlet.post(request(r.serializeBytes(), acceptEncoding), response(out, bytes, headers));
+		String encoding = headers.get("Content-Encoding");
+		if (encoding == null) {
+			assertEquals(0, bytes.size());
+			return out.toString();
+		}
+		assertEquals(0, out.toString().length());
+		assertEquals("Accept-Encoding", headers.get("Vary"));
+		byte[] compressed = bytes.toByteArray();
+		String text = new String(decompress(compressed, encoding), "UTF-8");
+		System.out.println(count + " items: " + text.length() + " bytes in " + compressed.length
+				+ " bytes of " + encoding + " (" + (compressed.length * 100 / text.length()) + "%)");
+		return text;
+	}
+
+	public void testRPCResponses() throws Exception {
+		Map<String, String> headers = new HashMap<String, String>();
+		String plain = post(1000, null, headers);
+		assertNull(headers.get("Content-Encoding"));
+		headers.clear();
+		assertEquals(plain, post(1000, "gzip, deflate", headers));
+		assertEquals("gzip", headers.get("Content-Encoding"));
+		headers.clear();
+		assertEquals(plain, post(1000, "deflate", headers));
+		assertEquals("deflate", headers.get("Content-Encoding"));
+		headers.clear();
+		post(1, "gzip", headers); // too small to compress
+		assertNull(headers.get("Content-Encoding"));
+	}
+
+	static class PipeServlet extends SimplePipeHttpServlet {
+		private static final long serialVersionUID = 1L;
+		void pipe(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+			doGet(req, resp);
+		}
+	}
+
+	String pipe(PipeServlet servlet, String acceptEncoding, Map<String, String> headers) throws Exception {
+		AsyncPipeServletTest.TestPipe pipe = AsyncPipeServletTest.createPipe();
+		SimplePipeHelper.pipeIn(pipe.pipeKey, AsyncPipeServletTest.events(100));
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(String.valueOf(SimplePipeRequest.FORM_PIPE_KEY), pipe.pipeKey);
+		params.put(String.valueOf(SimplePipeRequest.FORM_PIPE_TYPE), String.valueOf(SimplePipeRequest.PIPE_TYPE_QUERY));
+		StringWriter out = new StringWriter();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		servlet.pipe(request(new byte[0], acceptEncoding, params), response(out, bytes, headers));
+		String key = pipe.pipeKey;
+		pipe.pipeDestroy();
+		String encoding = headers.get("Content-Encoding");
+		String text = encoding == null ? out.toString() : new String(decompress(bytes.toByteArray(), encoding), "UTF-8");
+		if (encoding != null) {
+			System.out.println("100 pipe events: " + text.length() + " bytes in " + bytes.size()
+					+ " bytes of " + encoding);
+		}
+		return text.replaceAll(key, "KEY");
+	}
+
+	public void testPipeResponses() throws Exception {
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put("simple.pipe.compress", "true");
+		PipeServlet servlet = new PipeServlet();
+		servlet.init((ServletConfig) Proxy.newProxyInstance(CompressionTest.class.getClassLoader(),
+				new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getInitParameter".equals(method.getName())) {
+					return params.get(args[0]);
+				}
+				return null;
+			}
+		}));
+		Map<String, String> headers = new HashMap<String, String>();
+		String plain = pipe(servlet, null, headers);
+		assertNull(headers.get("Content-Encoding"));
+		assertTrue(plain.indexOf("PipeEvent") != -1);
+		headers.clear();
+		assertEquals(plain, pipe(servlet, "gzip", headers));
+		assertEquals("gzip", headers.get("Content-Encoding"));
+		servlet.destroy();
+	}
+
+	/*
+	 * Compressed continuum responses are decompressed as soon as each part
+	 * is flushed.
+	 */
+	public void testStreamingDecompression() throws Exception {
+		final CountDownLatch firstReceived = new CountDownLatch(1);
+		final String[] acceptEncoding = new String[1];
+		final String part1 = "WLL202first part of streaming response;";
+		final String part2 = "WLL202second part of streaming response;";
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/pipe", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				acceptEncoding[0] = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(200, 0); // chunked
+				OutputStream os = new GZIPOutputStream(exchange.getResponseBody(), 8192, true);
+				os.write(part1.getBytes("UTF-8"));
+				os.flush();
+				try {
+					firstReceived.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+				os.write(part2.getBytes("UTF-8"));
+				os.close();
+			}
+		});
+		server.start();
+		try {
+			final StringBuilder received = new StringBuilder();
+			HttpRequest request = new HttpRequest() {
+				@Override
+				protected IXHRReceiving initializeReceivingMonitor() {
+					return new IXHRReceiving() {
+						public boolean receiving(ByteArrayOutputStream baos, byte[] b, int off, int len) {
+							baos.write(b, off, len);
+							received.append(new String(b, off, len));
+							if (received.toString().equals(part1)) {
+								firstReceived.countDown();
+							}
+							return true;
+						}
+					};
+				}
+			};
+			long start = System.currentTimeMillis();
+			request.open("GET", "http://localhost:" + server.getAddress().getPort() + "/pipe");
+			request.send();
+			long time = System.currentTimeMillis() - start;
+			assertEquals("gzip, deflate", acceptEncoding[0]);
+			assertEquals(0, firstReceived.getCount()); // first part is received before the end
+			assertEquals(part1 + part2, request.getResponseText());
+			System.out.println("Compressed streaming response received in " + time + "ms");
+		} finally {
+			server.stop(0);
+		}
+	}
+
+}
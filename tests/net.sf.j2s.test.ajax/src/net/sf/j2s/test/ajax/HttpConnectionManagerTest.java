@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.HttpConnectionManager;
+import net.sf.j2s.ajax.HttpRequest;
+import net.sf.j2s.ajax.XHRCallbackAdapter;
+
+/**
+ * Java side HTTP requests reuse keep-alive connections, and asynchronous
+ * requests are limited per host.
+ */
+public class HttpConnectionManagerTest extends TestCase {
+
+	static {
+		// avoid delayed ACKs of the stand-in server's small responses
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	static class StandInServer implements HttpHandler {
+		HttpServer server;
+		ExecutorService executor = Executors.newCachedThreadPool();
+		Set<Integer> ports = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		volatile long delay;
+		
+		StandInServer() throws IOException {
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/rpc", this);
+			server.setExecutor(executor);
+			server.start();
+		}
+		
+		String url() {
+			return "http://localhost:" + server.getAddress().getPort() + "/rpc";
+		}
+		
+		public void handle(HttpExchange exchange) throws IOException {
+			int count = running.incrementAndGet();
+			while (true) {
+				int max = maxRunning.get();
+				if (count <= max || maxRunning.compareAndSet(max, count)) {
+					break;
+				}
+			}
+			ports.add(exchange.getRemoteAddress().getPort());
+			InputStream is = exchange.getRequestBody();
+			while (is.read() != -1) {
+				// discard
+			}
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+				}
+			}
+			running.decrementAndGet(); // before client receives response
+			byte[] bytes = "WLL202ok".getBytes();
+			exchange.sendResponseHeaders(200, bytes.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(bytes);
+			os.close();
+		}
+		
+		void stop() {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+	
+	static long sequentialRequests(String url, int count, boolean close) {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			HttpRequest request = new HttpRequest();
+			request.open("POST", url);
+			if (close) {
+				request.setRequestHeader("Connection", "close");
+			}
+			request.send("n=" + i);
+			assertEquals("WLL202ok", request.getResponseText());
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	public void testKeepAliveConnections() {
+		String property = System.getProperty("http.maxConnections");
+		try {
+			System.clearProperty("http.maxConnections");
+			new HttpConnectionManager();
+			// not changed for the whole JVM unless asked for
+			assertNull(System.getProperty("http.maxConnections"));
+			assertTrue(HttpConnectionManager.setKeepAliveConnections(6));
+			assertEquals("6", System.getProperty("http.maxConnections"));
+			System.setProperty("http.maxConnections", "3");
+			assertFalse(HttpConnectionManager.setKeepAliveConnections(6));
+			assertEquals("3", System.getProperty("http.maxConnections"));
+		} finally {
+			if (property != null) {
+				System.setProperty("http.maxConnections", property);
+			} else {
+				System.clearProperty("http.maxConnections");
+			}
+		}
+	}
+
+	public void testKeepAlive() throws Exception {
+		StandInServer server = new StandInServer();
+		try {
+			int count = 500;
+			sequentialRequests(server.url(), 20, false); // warm up
+			server.ports.clear();
+			long keepAlive = sequentialRequests(server.url(), count, false);
+			assertEquals(1, server.ports.size());
+			server.ports.clear();
+			long closing = sequentialRequests(server.url(), count, true);
+			assertEquals(count, server.ports.size());
+			System.out.println(count + " sequential requests: keep-alive " + keepAlive
+					+ "ms, new connection per request " + closing + "ms");
+		} finally {
+			server.stop();
+		}
+	}
+
+	static long asyncRequests(String url, int count, HttpConnectionManager manager, boolean close)
+			throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(count);
+		final AtomicInteger succeeded = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			final HttpRequest request = new HttpRequest();
+			request.setConnectionManager(manager);
+			request.registerOnReadyStateChange(new XHRCallbackAdapter() {
+				@Override
+				public void onLoaded() {
+					if ("WLL202ok".equals(request.getResponseText())) {
+						succeeded.incrementAndGet();
+					}
+					latch.countDown();
+				}
+			});
+			request.open("POST", url, true);
+			if (close) {
+				request.setRequestHeader("Connection", "close");
+			}
+			request.send("n=" + i);
+		}
+		assertTrue(latch.await(60, TimeUnit.SECONDS));
+		assertEquals(count, succeeded.get());
+		return System.currentTimeMillis() - start;
+	}
+
+	public void testPerHostLimit() throws Exception {
+		StandInServer server = new StandInServer();
+		HttpConnectionManager manager = new HttpConnectionManager(4, 16);
+		try {
+			int count = 2000;
+			asyncRequests(server.url(), 100, manager, false); // warm up
+			server.ports.clear();
+			server.maxRunning.set(0);
+			long keepAlive = asyncRequests(server.url(), count, manager, false);
+			assertTrue(server.maxRunning.get() <= 4);
+			assertTrue(server.ports.size() <= 8);
+			System.out.println(count + " asynchronous requests: " + server.ports.size() + " connections, "
+					+ (count * 1000L / Math.max(1, keepAlive)) + " requests/s");
+			server.ports.clear();
+			long closing = asyncRequests(server.url(), count, manager, true);
+			System.out.println(count + " asynchronous requests, new connection per request: "
+					+ (count * 1000L / Math.max(1, closing)) + " requests/s");
+			
+			// requests are queued, not rejected, when host is busy
+			server.delay = 20;
+			server.maxRunning.set(0);
+			asyncRequests(server.url(), 40, manager, false);
+			assertEquals(4, server.maxRunning.get());
+			for (int i = 0; i < 100 && manager.getActiveCount(server.url()) > 0; i++) {
+				Thread.sleep(10); // released after callbacks
+			}
+			assertEquals(0, manager.getActiveCount(server.url()));
+			assertEquals(0, manager.getPendingCount(server.url()));
+		} finally {
+			server.stop();
+		}
+	}
+
+}
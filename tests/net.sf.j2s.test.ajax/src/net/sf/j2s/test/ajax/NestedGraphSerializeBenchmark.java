@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.util.ArrayList;
+
+import net.sf.j2s.test.ajax.NestedGraphSerializeTest.NodeSerialize;
+
+/**
+ * Prints timings of serializing and deserializing a large nested object
+ * graph. Not a test case, run it as a Java application:
+ *
+ * java net.sf.j2s.test.ajax.NestedGraphSerializeBenchmark [depth] [rounds]
+ */
+public class NestedGraphSerializeBenchmark {
+
+	public static void main(String[] args) {
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		NodeSerialize root = new NestedGraphSerializeTest().build(null, depth, 0, new ArrayList<NodeSerialize>());
+		String str = root.serialize();
+		byte[] bytes = root.serializeBytes();
+		// warm up
+		for (int i = 0; i < rounds / 4 + 1; i++) {
+			root.serialize();
+			root.serializeBytes();
+			new NodeSerialize().deserialize(str);
+			new NodeSerialize().deserializeBytes(bytes);
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < rounds; i++) {
+			root.serialize();
+		}
+		long serializing = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for (int i = 0; i < rounds; i++) {
+			root.serializeBytes();
+		}
+		long serializingBytes = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for (int i = 0; i < rounds; i++) {
+			new NodeSerialize().deserialize(str);
+		}
+		long deserializing = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for (int i = 0; i < rounds; i++) {
+			new NodeSerialize().deserializeBytes(bytes);
+		}
+		long deserializingBytes = System.currentTimeMillis() - start;
+		System.out.println("Graph of " + str.length() + " chars, " + rounds + " rounds: serialize "
+				+ serializing + "ms, serializeBytes " + serializingBytes + "ms, deserialize "
+				+ deserializing + "ms, deserializeBytes " + deserializingBytes + "ms");
+	}
+
+}
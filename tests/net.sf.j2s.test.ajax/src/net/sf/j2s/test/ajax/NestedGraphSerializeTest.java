@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Serializing and deserializing a large nested object graph, with shared
+ * references.
+ */
+public class NestedGraphSerializeTest extends TestCase {
+
+	public static class NodeSerialize extends SimpleSerializable {
+		public String name;
+		public int id;
+		public long stamp;
+		public boolean leaf;
+		public double weight;
+		public int[] values;
+		public String[] tags;
+		public NodeSerialize parent;
+		public NodeSerialize[] children;
+	}
+
+	/**
+	 * Objects of the same key are equal, though not the same.
+	 */
+	public static class KeySerialize extends SimpleSerializable {
+		public String key;
+		public int count;
+		public KeySerialize self;
+		public KeySerialize[] items;
+
+		public boolean equals(Object o) {
+			return o instanceof KeySerialize && key.equals(((KeySerialize) o).key);
+		}
+
+		public int hashCode() {
+			return key.hashCode();
+		}
+	}
+
+	static KeySerialize key(String key, int count) {
+		KeySerialize ks = new KeySerialize();
+		ks.key = key;
+		ks.count = count;
+		return ks;
+	}
+
+	static KeySerialize buildKeys() {
+		KeySerialize root = key("root", 0);
+		KeySerialize x1 = key("x", 1), x2 = key("x", 2), y = key("y", 3);
+		root.self = root;
+		x1.self = root;
+		x2.self = y;
+		root.items = new KeySerialize[] {x1, x2, y, x1};
+		return root;
+	}
+
+	NodeSerialize build(NodeSerialize parent, int depth, int id, List<NodeSerialize> all) {
+		NodeSerialize node = new NodeSerialize();
+		node.name = "node-" + id;
+		node.id = id;
+		node.stamp = id * 1000000007L;
+		node.weight = id / 7.0;
+		node.values = new int[] {id, id + 1, id + 2};
+		node.tags = new String[] {"tag" + (id % 5), null, ""};
+		node.parent = parent;
+		all.add(node);
+		if (depth == 0) {
+			node.leaf = true;
+			return node;
+		}
+		node.children = new NodeSerialize[4];
+		for (int i = 0; i < 4; i++) {
+			node.children[i] = build(node, depth - 1, id * 4 + i + 1, all);
+		}
+		return node;
+	}
+
+	public void testNestedGraph() {
+		List<NodeSerialize> all = new ArrayList<NodeSerialize>();
+		NodeSerialize root = build(null, 4, 0, all);
+		String str = root.serialize();
+		NodeSerialize ss = new NodeSerialize();
+		assertTrue(ss.deserialize(str));
+		assertEquals(str, ss.serialize());
+		assertSame(ss, ss.children[1].parent);
+		assertEquals("node-5", ss.children[0].children[0].name);
+
+		byte[] bytes = root.serializeBytes();
+		NodeSerialize bs = new NodeSerialize();
+		assertTrue(bs.deserializeBytes(bytes));
+		assertTrue(Arrays.equals(bytes, bs.serializeBytes()));
+		assertSame(bs.children[3], bs.children[3].children[2].parent);
+	}
+
+	/**
+	 * An object equal to one serialized before is written as a reference to
+	 * that one, as LinkedList#indexOf found it. These are the bytes of the
+	 * LinkedList implementation.
+	 */
+	public void testEqualObjectsGolden() throws Exception {
+		String name = "WLL201net.sf.j2s.test.ajax.NestedGraphSerializeTest$KeySerialize";
+		String golden = name + "#00000231$FselfoC0GitemsAOFO@D98"
+				+ name + "#00000024$GcountIC1FselfoC0EkeysCxoC1O@D90"
+				+ name + "#00000016$GcountIC3EkeysCyoC1EkeysFroot";
+		KeySerialize root = buildKeys();
+		assertEquals(golden, root.serialize());
+		assertEquals(golden, new String(root.serializeBytes(), "ISO-8859-1"));
+	}
+
+	void assertSameGraph(NodeSerialize expected, NodeSerialize actual, NodeSerialize actualParent) {
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.id, actual.id);
+		assertEquals(expected.stamp, actual.stamp);
+		assertEquals(expected.leaf, actual.leaf);
+		assertEquals(expected.weight, actual.weight, 0);
+		assertTrue(Arrays.equals(expected.values, actual.values));
+		assertTrue(Arrays.equals(expected.tags, actual.tags));
+		assertSame(actualParent, actual.parent);
+		if (expected.children == null) {
+			assertNull(actual.children);
+			return;
+		}
+		assertEquals(expected.children.length, actual.children.length);
+		for (int i = 0; i < expected.children.length; i++) {
+			assertSameGraph(expected.children[i], actual.children[i], actual);
+		}
+	}
+
+	public void testDeepGraphRoundTrip() {
+		NodeSerialize root = build(null, 6, 0, new ArrayList<NodeSerialize>());
+		String str = root.serialize();
+		NodeSerialize ss = new NodeSerialize();
+		assertTrue(ss.deserialize(str));
+		assertSameGraph(root, ss, null);
+		assertEquals(str, ss.serialize());
+
+		byte[] bytes = root.serializeBytes();
+		NodeSerialize bs = new NodeSerialize();
+		assertTrue(bs.deserializeBytes(bytes));
+		assertSameGraph(root, bs, null);
+		assertTrue(Arrays.equals(bytes, bs.serializeBytes()));
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimplePipeFrameDecoder;
+import net.sf.j2s.ajax.SimplePipeHelper;
+import net.sf.j2s.ajax.SimplePipeRequest;
+import net.sf.j2s.ajax.SimplePipeRunnable;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Pipe frames are decoded from fragmented streams, without re-parsing.
+ */
+public class PipeFrameDecoderTest extends TestCase {
+
+	public static class FrameEvent extends SimpleSerializable {
+		public int index;
+		public String text;
+	}
+
+	public static class CountingPipe extends SimplePipeRunnable {
+		public int count;
+		public boolean pipeSetup() {
+			return true;
+		}
+		@Override
+		public boolean deal(SimpleSerializable ss) {
+			count++;
+			return true;
+		}
+	}
+
+	static final String KEY = "fdtest";
+
+	static byte[] stream(int count, int textSize) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < textSize; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			FrameEvent e = new FrameEvent();
+			e.index = i;
+			e.text = i % 3 == 0 ? "\u4e2d" + text : text.toString();
+			byte[] bytes = e.serializeBytes();
+			out.write(KEY.getBytes(), 0, KEY.length());
+			out.write(bytes, 0, bytes.length);
+			if (i % 10 == 9) {
+				out.write(KEY.getBytes(), 0, KEY.length());
+				out.write(SimplePipeRequest.PIPE_STATUS_OK);
+			}
+		}
+		out.write(KEY.getBytes(), 0, KEY.length());
+		out.write(SimplePipeRequest.PIPE_STATUS_DESTROYED);
+		return out.toByteArray();
+	}
+
+	public void testFragmentedStream() {
+		int count = 500;
+		byte[] data = stream(count, 50);
+		Random random = new Random(11);
+		int[] maxChunks = new int[] { 1, 7, 64, 4096, data.length };
+		for (int m = 0; m < maxChunks.length; m++) {
+			SimplePipeFrameDecoder decoder = new SimplePipeFrameDecoder();
+			int objects = 0;
+			int oks = 0;
+			int destroyed = 0;
+			int offset = 0;
+			while (offset < data.length) {
+				int len = Math.min(data.length - offset, 1 + random.nextInt(maxChunks[m]));
+				decoder.write(data, offset, len);
+				offset += len;
+				int frame;
+				while ((frame = decoder.decode()) != SimplePipeFrameDecoder.NEED_MORE) {
+					assertEquals(KEY, decoder.getKey());
+					if (frame == SimplePipeFrameDecoder.FRAME_OBJECT) {
+						FrameEvent e = (FrameEvent) decoder.getObject();
+						assertEquals(objects, e.index);
+						assertEquals(objects % 3 == 0 ? 51 : 50, e.text.length());
+						objects++;
+					} else {
+						assertEquals(SimplePipeFrameDecoder.FRAME_STATUS, frame);
+						if (decoder.getStatus() == SimplePipeRequest.PIPE_STATUS_OK) {
+							oks++;
+						} else if (decoder.getStatus() == SimplePipeRequest.PIPE_STATUS_DESTROYED) {
+							destroyed++;
+						}
+					}
+				}
+			}
+			assertEquals(count, objects);
+			assertEquals(count / 10, oks);
+			assertEquals(1, destroyed);
+			assertEquals(0, decoder.getPendingSize());
+		}
+	}
+
+	public void testInvalidData() {
+		SimplePipeFrameDecoder decoder = new SimplePipeFrameDecoder();
+		byte[] bytes = (KEY + "XYZ202Event#00000010$").getBytes();
+		decoder.write(bytes, 0, bytes.length);
+		assertEquals(SimplePipeFrameDecoder.FRAME_ERROR, decoder.decode());
+		decoder = new SimplePipeFrameDecoder();
+		bytes = (KEY + "WLL202Event#0000x010$").getBytes();
+		decoder.write(bytes, 0, bytes.length);
+		assertEquals(SimplePipeFrameDecoder.FRAME_ERROR, decoder.decode());
+		decoder = new SimplePipeFrameDecoder();
+		bytes = (KEY + "WLL202Event#0000").getBytes();
+		decoder.write(bytes, 0, bytes.length);
+		assertEquals(SimplePipeFrameDecoder.NEED_MORE, decoder.decode());
+	}
+
+	/*
+	 * Old way of continuum pipe: copying all pending bytes and parsing from
+	 * the beginning on each chunk.
+	 */
+	static int parseByCopying(byte[] data, int chunk) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int parsed = 0;
+		for (int offset = 0; offset < data.length; offset += chunk) {
+			baos.write(data, offset, Math.min(chunk, data.length - offset));
+			byte[] bytes = baos.toByteArray();
+			int resetIndex = 0;
+			try {
+				resetIndex = SimplePipeRequest.parseReceivedBytes(bytes);
+			} catch (RuntimeException e) { // not enough data
+				continue;
+			}
+			if (resetIndex > 0) {
+				parsed += resetIndex;
+				baos.reset();
+				if (resetIndex < bytes.length) {
+					baos.write(bytes, resetIndex, bytes.length - resetIndex);
+				}
+			}
+		}
+		return parsed;
+	}
+
+	static int parseByDecoder(byte[] data, int chunk, CountingPipe pipe) {
+		SimplePipeFrameDecoder decoder = new SimplePipeFrameDecoder();
+		for (int offset = 0; offset < data.length; offset += chunk) {
+			decoder.write(data, offset, Math.min(chunk, data.length - offset));
+			int frame;
+			while ((frame = decoder.decode()) != SimplePipeFrameDecoder.NEED_MORE) {
+				if (frame == SimplePipeFrameDecoder.FRAME_OBJECT) {
+					pipe.deal(decoder.getObject());
+				}
+			}
+		}
+		return data.length - decoder.getPendingSize();
+	}
+
+	public void testLargeObjectsBenchmark() {
+		// 20 objects of about 200k bytes each, received in 1k chunks
+		byte[] data = stream(20, 200000);
+		CountingPipe pipe = new CountingPipe();
+		SimplePipeHelper.registerPipe(KEY, pipe);
+		try {
+			long start = System.currentTimeMillis();
+			assertEquals(data.length, parseByCopying(data, 1024));
+			long copying = System.currentTimeMillis() - start;
+			assertEquals(20, pipe.count);
+			start = System.currentTimeMillis();
+			assertEquals(data.length, parseByDecoder(data, 1024, pipe));
+			long decoding = System.currentTimeMillis() - start;
+			assertEquals(40, pipe.count);
+			System.out.println("Decoded " + data.length + " bytes in 1k chunks: copying and re-parsing "
+					+ copying + "ms, resumable decoder " + decoding + "ms");
+			assertTrue(decoding <= copying);
+		} finally {
+			SimplePipeHelper.removePipe(KEY);
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimplePipeHelper;
+import net.sf.j2s.ajax.SimplePipeRunnable;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Pipe monitor expires dead pipes at their due time, with many live pipes.
+ */
+public class PipeMonitorTest extends TestCase {
+
+	public static class MonitoredPipe extends SimplePipeRunnable {
+		public boolean closed;
+		public boolean pipeSetup() {
+			return true;
+		}
+		@Override
+		public long pipeWaitClosingInterval() {
+			return 500;
+		}
+		@Override
+		public void pipeClosed() {
+			closed = true;
+			super.pipeClosed();
+		}
+	}
+
+	public void testExpiringPipes() throws InterruptedException {
+		long interval = SimplePipeHelper.getMonitoringInterval();
+		SimplePipeHelper.setMonitoringInterval(1000);
+		try {
+			int basePipes = SimplePipeHelper.getPipeCount();
+			int count = 100000;
+			List<MonitoredPipe> pipes = new ArrayList<MonitoredPipe>();
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < count; i++) {
+				MonitoredPipe pipe = new MonitoredPipe();
+				pipe.setPipeHelper(new SimplePipeHelper.IPipeThrough() {
+					public void helpThrough(SimplePipeRunnable pipe, SimpleSerializable[] objs) {
+						SimplePipeHelper.pipeIn(pipe.pipeKey, objs);
+					}
+				});
+				pipe.ajaxRun();
+				pipes.add(pipe);
+			}
+			System.out.println(count + " pipes registered in " + (System.currentTimeMillis() - start) + "ms");
+			assertEquals(basePipes + count, SimplePipeHelper.getPipeCount());
+			// pipes of odd index are dead
+			for (int i = 1; i < count; i += 2) {
+				pipes.get(i).pipeAlive = false;
+			}
+			long maxLag = 0;
+			start = System.currentTimeMillis();
+			while (SimplePipeHelper.getPipeCount() > basePipes + count / 2
+					&& System.currentTimeMillis() - start < 20000) {
+				Thread.sleep(50);
+				maxLag = Math.max(maxLag, SimplePipeHelper.getExpiryLag());
+			}
+			System.out.println((count / 2) + " dead pipes expired in " + (System.currentTimeMillis() - start)
+					+ "ms, max expiry lag " + maxLag + "ms, destroy queue depth " + SimplePipeHelper.getDestroyQueueDepth());
+			assertEquals(basePipes + count / 2, SimplePipeHelper.getPipeCount());
+			for (int i = 0; i < 200 && SimplePipeHelper.getDestroyQueueDepth() > 0; i++) {
+				Thread.sleep(50);
+			}
+			for (int i = 0; i < count; i++) {
+				MonitoredPipe pipe = pipes.get(i);
+				if (i % 2 == 0) {
+					assertTrue(pipe.isPipeLive());
+					assertSame(pipe, SimplePipeHelper.getPipe(pipe.pipeKey));
+				} else {
+					assertTrue(pipe.closed);
+				}
+			}
+			for (int i = 0; i < count; i += 2) {
+				pipes.get(i).pipeDestroy();
+			}
+			assertEquals(basePipes, SimplePipeHelper.getPipeCount());
+		} finally {
+			SimplePipeHelper.setMonitoringInterval(interval);
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimplePipeHelper;
+import net.sf.j2s.ajax.SimplePipeInProcessTransport;
+import net.sf.j2s.ajax.SimplePipeRunnable;
+import net.sf.j2s.ajax.SimplePipeSocketTransport;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Pipe data for pipes of other nodes are forwarded by pipe transports.
+ */
+public class PipeTransportTest extends TestCase {
+
+	public static class TestPipe extends SimplePipeRunnable {
+		public boolean pipeSetup() {
+			return true;
+		}
+	}
+
+	public static class PipeEvent extends SimpleSerializable {
+		public int index;
+		public String text;
+	}
+
+	static class RecordingReceiver implements SimplePipeHelper.IPipeTransport {
+		List<String> keys = new ArrayList<String>();
+		List<SimpleSerializable> objs = new ArrayList<SimpleSerializable>();
+		public synchronized boolean helpForwarding(String node, String key, SimpleSerializable[] ss) {
+			for (int i = 0; i < ss.length; i++) {
+				keys.add(key);
+				objs.add(ss[i]);
+			}
+			return true;
+		}
+	}
+
+	static TestPipe createPipe() {
+		TestPipe pipe = new TestPipe();
+		pipe.setPipeHelper(new SimplePipeHelper.IPipeThrough() {
+			public void helpThrough(SimplePipeRunnable pipe, SimpleSerializable[] objs) {
+				SimplePipeHelper.pipeIn(pipe.pipeKey, objs);
+			}
+		});
+		pipe.ajaxRun();
+		return pipe;
+	}
+
+	static SimpleSerializable[] events(int count) {
+		SimpleSerializable[] evts = new SimpleSerializable[count];
+		for (int i = 0; i < count; i++) {
+			PipeEvent e = new PipeEvent();
+			e.index = i;
+			e.text = "event \u4e2d " + i;
+			evts[i] = e;
+		}
+		return evts;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		SimplePipeHelper.setPipeTransport(null, null);
+		super.tearDown();
+	}
+
+	public void testPipeKeyNode() {
+		SimplePipeHelper.setPipeTransport("a1", new SimplePipeInProcessTransport());
+		TestPipe pipe = createPipe();
+		assertEquals(6, pipe.pipeKey.length());
+		assertTrue(pipe.pipeKey.startsWith("a1"));
+		assertEquals("a1", SimplePipeHelper.getPipeNode(pipe.pipeKey));
+		pipe.pipeDestroy();
+		try {
+			SimplePipeHelper.setPipeTransport("a-", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		SimplePipeHelper.setPipeTransport(null, null);
+		assertNull(SimplePipeHelper.getPipeNode(pipe.pipeKey));
+	}
+
+	public void testInProcessForwarding() {
+		SimplePipeInProcessTransport transport = new SimplePipeInProcessTransport();
+		RecordingReceiver nodeB = new RecordingReceiver();
+		transport.addNode("b", nodeB);
+		SimplePipeHelper.setPipeTransport("a", transport);
+		TestPipe local = createPipe();
+		SimplePipeHelper.pipeIn(local.pipeKey, events(2));
+		assertEquals(2, local.getPipeData().size());
+		assertEquals(0, nodeB.objs.size());
+		SimpleSerializable[] evts = events(3);
+		SimplePipeHelper.pipeIn("b12345", evts);
+		assertEquals(3, nodeB.objs.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("b12345", nodeB.keys.get(i));
+			PipeEvent e = (PipeEvent) nodeB.objs.get(i);
+			assertNotSame(evts[i], e);
+			assertEquals(i, e.index);
+			assertEquals("event \u4e2d " + i, e.text);
+		}
+		SimplePipeHelper.pipeIn("c12345", events(1)); // unknown node, dropped
+		SimplePipeHelper.pipeIn("a12345", events(1)); // closed local pipe, dropped
+		assertEquals(3, nodeB.objs.size());
+		local.pipeDestroy();
+	}
+
+	public void testSocketForwarding() throws Exception {
+		SimplePipeSocketTransport transport = new SimplePipeSocketTransport(null);
+		int port = transport.listen(0);
+		// this process is node "a", and pipe data sent to node "a" over
+		// socket is piped into the local pipe
+		transport.addNode("a", "localhost", port);
+		SimplePipeHelper.setPipeTransport("a", transport);
+		TestPipe pipe = createPipe();
+		try {
+			int count = 0;
+			for (int i = 1; i <= 20; i++) {
+				assertTrue(transport.helpForwarding("a", pipe.pipeKey, events(i)));
+				count += i;
+			}
+			List<SimpleSerializable> data = pipe.getPipeData();
+			for (int i = 0; i < 200 && data.size() < count; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(count, data.size());
+			for (int i = 1; i <= 20; i++) {
+				for (int j = 0; j < i; j++) {
+					PipeEvent e = (PipeEvent) data.remove(0);
+					assertEquals(j, e.index);
+					assertEquals("event \u4e2d " + j, e.text);
+				}
+			}
+			assertFalse(transport.helpForwarding("x", pipe.pipeKey, events(1)));
+		} finally {
+			pipe.pipeDestroy();
+			transport.close();
+		}
+	}
+
+}
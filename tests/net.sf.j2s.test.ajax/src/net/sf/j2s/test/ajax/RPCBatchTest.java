@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimpleRPCBatch;
+import net.sf.j2s.ajax.SimpleRPCHttpServlet;
+import net.sf.j2s.ajax.SimpleRPCRequest;
+import net.sf.j2s.ajax.SimpleRPCRunnable;
+
+/**
+ * Batched Simple RPC requests are sent in one POST, run by servlet, and
+ * each runnable gets its own #ajaxOut or #ajaxFail.
+ */
+public class RPCBatchTest extends TestCase {
+
+	static {
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	static String url;
+	
+	static CountDownLatch latch;
+	
+	static AtomicInteger failed = new AtomicInteger();
+
+	/*
+	 * Runnables of #parallel wait for each other on server side.
+	 */
+	static CyclicBarrier barrier;
+
+	public static class BatchRunnable extends SimpleRPCRunnable {
+		public String text;
+		public byte[] data;
+		public boolean parallel;
+		public boolean fail;
+		public String result;
+		boolean client = true; // not serialized
+		@Override
+		public String getHttpURL() {
+			return url;
+		}
+		@Override
+		protected boolean bytesCompactMode() {
+			return true;
+		}
+		@Override
+		public void ajaxRun() {
+			if (parallel) {
+				try {
+					barrier.await(10, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					fail = true; // not run in parallel
+				}
+			}
+			if (fail) {
+				throw new RuntimeException("failed on purpose");
+			}
+			result = text + "!";
+			if (data != null) {
+				for (int i = 0; i < data.length / 2; i++) {
+					byte b = data[i];
+					data[i] = data[data.length - 1 - i];
+					data[data.length - 1 - i] = b;
+				}
+			}
+		}
+		@Override
+		public void ajaxOut() {
+			if (client) {
+				latch.countDown();
+			}
+		}
+		@Override
+		public void ajaxFail() {
+			if (client) {
+				failed.incrementAndGet();
+				latch.countDown();
+			}
+		}
+	}
+
+	static class BatchServlet extends SimpleRPCHttpServlet {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected SimpleRPCRunnable prepareRunnable(SimpleRPCRunnable runnable) {
+			((BatchRunnable) runnable).client = false;
+			return runnable;
+		}
+		void post(HttpServletRequest req, HttpServletResponse resp) throws Exception {
+			doPost(req, resp);
+		}
+	}
+
+	/*
+	 * Stand-in servlet container, bridging HTTP exchanges to servlet with
+	 * given latency of each HTTP request.
+	 */
+	static class StandInServer implements HttpHandler {
+		HttpServer server;
+		ExecutorService executor = Executors.newCachedThreadPool();
+		BatchServlet servlet = new BatchServlet();
+		AtomicInteger requests = new AtomicInteger();
+		long latency;
+		byte[] response; // responded instead of servlet's response if not null
+
+		StandInServer(String threads) throws Exception {
+			final Map<String, String> params = new HashMap<String, String>();
+			params.put("simple.rpc.runnables", BatchRunnable.class.getName());
+			params.put("simple.rpc.batch.max", "8");
+			if (threads != null) {
+				params.put("simple.rpc.batch.threads", threads);
+			}
+			servlet.init((ServletConfig) Proxy.newProxyInstance(RPCBatchTest.class.getClassLoader(),
+					new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("getInitParameter".equals(method.getName())) {
+						return params.get(args[0]);
+					}
+					return null;
+				}
+			}));
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/rpc", this);
+			server.setExecutor(executor);
+			server.start();
+			url = "http://localhost:" + server.getAddress().getPort() + "/rpc";
+		}
+
+		public void handle(final HttpExchange exchange) throws IOException {
+			requests.incrementAndGet();
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+				}
+			}
+			final InputStream is = exchange.getRequestBody();
+			final ServletInputStream sis = new ServletInputStream() {
+				@Override
+				public int read() throws IOException {
+					return is.read();
+				}
+			};
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final ServletOutputStream sos = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					baos.write(b);
+				}
+			};
+			final PrintWriter writer = new PrintWriter(new OutputStreamWriter(sos, "UTF-8"));
+			final int[] status = new int[] { 200 };
+			HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(RPCBatchTest.class.getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if ("getInputStream".equals(name)) {
+						return sis;
+					} else if ("getContentLength".equals(name)) {
+						String length = exchange.getRequestHeaders().getFirst("Content-Length");
+						return length != null ? Integer.parseInt(length) : -1;
+					} else if ("getHeader".equals(name)) {
+						return exchange.getRequestHeaders().getFirst((String) args[0]);
+					}
+					return null;
+				}
+			});
+			HttpServletResponse resp = (HttpServletResponse) Proxy.newProxyInstance(RPCBatchTest.class.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if ("getWriter".equals(name)) {
+						return writer;
+					} else if ("getOutputStream".equals(name)) {
+						return sos;
+					} else if ("sendError".equals(name)) {
+						status[0] = (Integer) args[0];
+					} else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+						exchange.getResponseHeaders().add((String) args[0], (String) args[1]);
+					}
+					return null;
+				}
+			});
+			try {
+				if (response == null) {
+					servlet.post(req, resp);
+				} else {
+					baos.write(response);
+				}
+			} catch (Exception e) {
+				status[0] = 500;
+			}
+			writer.flush();
+			byte[] bytes = baos.toByteArray();
+			exchange.sendResponseHeaders(status[0], bytes.length > 0 ? bytes.length : -1);
+			exchange.getResponseBody().write(bytes);
+			exchange.close();
+		}
+
+		void stop() {
+			server.stop(0);
+			executor.shutdownNow();
+			servlet.destroy();
+		}
+	}
+
+	static BatchRunnable[] fire(int count) {
+		latch = new CountDownLatch(count);
+		failed.set(0);
+		BatchRunnable[] runnables = new BatchRunnable[count];
+		for (int i = 0; i < count; i++) {
+			BatchRunnable r = new BatchRunnable();
+			r.text = "call " + i;
+			runnables[i] = r;
+			SimpleRPCRequest.request(r);
+		}
+		return runnables;
+	}
+
+	public void testBatchedRequests() throws Exception {
+		StandInServer server = new StandInServer(null);
+		SimpleRPCRequest.setBatch(new SimpleRPCBatch(20, 8));
+		try {
+			BatchRunnable[] runnables = fire(20);
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(0, failed.get());
+			for (int i = 0; i < runnables.length; i++) {
+				assertEquals("call " + i + "!", runnables[i].result);
+			}
+			assertEquals(3, server.requests.get()); // 8 + 8 + 4
+		} finally {
+			SimpleRPCRequest.setBatch(null);
+			server.stop();
+		}
+	}
+
+	public void testFailuresDispatchedIndividually() throws Exception {
+		StandInServer server = new StandInServer("4");
+		SimpleRPCRequest.setBatch(new SimpleRPCBatch(50, 8));
+		try {
+			latch = new CountDownLatch(4);
+			failed.set(0);
+			BatchRunnable[] runnables = new BatchRunnable[4];
+			for (int i = 0; i < runnables.length; i++) {
+				runnables[i] = new BatchRunnable();
+				runnables[i].text = "call " + i;
+				runnables[i].fail = i == 1;
+			}
+			for (int i = 0; i < runnables.length; i++) {
+				SimpleRPCRequest.request(runnables[i]);
+			}
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(1, failed.get());
+			assertEquals("call 0!", runnables[0].result);
+			assertNull(runnables[1].result);
+			assertEquals("call 2!", runnables[2].result);
+			assertEquals("call 3!", runnables[3].result);
+			assertEquals(1, server.requests.get());
+		} finally {
+			SimpleRPCRequest.setBatch(null);
+			server.stop();
+		}
+	}
+
+	/*
+	 * Runnables of a batch only pass the barrier if they are all running at
+	 * the same time.
+	 */
+	public void testParallelBatch() throws Exception {
+		StandInServer server = new StandInServer("8");
+		SimpleRPCRequest.setBatch(new SimpleRPCBatch(20, 8));
+		try {
+			latch = new CountDownLatch(8);
+			failed.set(0);
+			barrier = new CyclicBarrier(8);
+			BatchRunnable[] runnables = new BatchRunnable[8];
+			for (int i = 0; i < runnables.length; i++) {
+				runnables[i] = new BatchRunnable();
+				runnables[i].text = "parallel " + i;
+				runnables[i].parallel = true;
+				SimpleRPCRequest.request(runnables[i]);
+			}
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			assertEquals(0, failed.get());
+			for (int i = 0; i < runnables.length; i++) {
+				assertEquals("parallel " + i + "!", runnables[i].result);
+			}
+			assertEquals(1, server.requests.get());
+		} finally {
+			SimpleRPCRequest.setBatch(null);
+			server.stop();
+		}
+	}
+
+	/*
+	 * Compact bytes and non-ASCII texts keep results framed by sizes.
+	 */
+	public void testHighBytes() throws Exception {
+		StandInServer server = new StandInServer(null);
+		SimpleRPCRequest.setBatch(new SimpleRPCBatch(50, 8));
+		try {
+			latch = new CountDownLatch(3);
+			failed.set(0);
+			BatchRunnable[] runnables = new BatchRunnable[3];
+			for (int i = 0; i < runnables.length; i++) {
+				runnables[i] = new BatchRunnable();
+				runnables[i].text = "\u4e2d\u6587 " + i;
+				runnables[i].data = new byte[256];
+				for (int j = 0; j < 256; j++) {
+					runnables[i].data[j] = (byte) j;
+				}
+				SimpleRPCRequest.request(runnables[i]);
+			}
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(0, failed.get());
+			for (int i = 0; i < runnables.length; i++) {
+				assertEquals("\u4e2d\u6587 " + i + "!", runnables[i].result);
+				for (int j = 0; j < 256; j++) {
+					assertEquals((byte) (255 - j), runnables[i].data[j]);
+				}
+			}
+		} finally {
+			SimpleRPCRequest.setBatch(null);
+			server.stop();
+		}
+	}
+
+	/*
+	 * Invalid result fails its runnable and all the rest, once for each.
+	 */
+	public void testBrokenResponse() throws Exception {
+		StandInServer server = new StandInServer(null);
+		server.response = ("fo" + "WLL202" + BatchRunnable.class.getName() + "#00000004$!!!!o").getBytes("ISO-8859-1");
+		SimpleRPCRequest.setBatch(new SimpleRPCBatch(50, 8));
+		try {
+			fire(4);
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(4, failed.get());
+		} finally {
+			SimpleRPCRequest.setBatch(null);
+			server.stop();
+		}
+	}
+
+	public void testBatchingBenchmark() throws Exception {
+		StandInServer server = new StandInServer(null);
+		server.latency = 20; // round trip latency
+		try {
+			int count = 20;
+			long start = System.currentTimeMillis();
+			fire(count);
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			long separate = System.currentTimeMillis() - start;
+			int separateRequests = server.requests.getAndSet(0);
+			SimpleRPCRequest.setBatch(new SimpleRPCBatch(5, 8));
+			start = System.currentTimeMillis();
+			fire(count);
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			long batched = System.currentTimeMillis() - start;
+			assertEquals(0, failed.get());
+			System.out.println(count + " RPCs with 20ms latency: " + separateRequests + " requests in "
+					+ separate + "ms, batched " + server.requests.get() + " requests in " + batched + "ms");
+			assertTrue(server.requests.get() < separateRequests);
+		} finally {
+			SimpleRPCRequest.setBatch(null);
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimpleRPCExecutionStage;
+import net.sf.j2s.ajax.SimpleRPCRunnable;
+
+/**
+ * Runnables are run by execution stage with limited concurrency of each
+ * class, waiting queue and deadline.
+ */
+public class RPCExecutionStageTest extends TestCase {
+
+	public static class SleepRunnable extends SimpleRPCRunnable {
+		public long sleep;
+		public String text;
+		@Override
+		public void ajaxRun() {
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+			}
+			text = "slept " + sleep;
+		}
+	}
+
+	static class Task implements Runnable {
+		static AtomicInteger running = new AtomicInteger();
+		static AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch blocker;
+		long sleep;
+		volatile boolean run;
+		Task(long sleep, CountDownLatch blocker) {
+			this.sleep = sleep;
+			this.blocker = blocker;
+		}
+		public void run() {
+			int count = running.incrementAndGet();
+			while (true) {
+				int max = maxRunning.get();
+				if (count <= max || maxRunning.compareAndSet(max, count)) {
+					break;
+				}
+			}
+			run = true;
+			started.countDown();
+			try {
+				if (blocker != null) {
+					blocker.await(10, TimeUnit.SECONDS);
+				}
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+			}
+			running.decrementAndGet();
+		}
+	}
+
+	public void testClassLimit() throws Exception {
+		SimpleRPCExecutionStage stage = new SimpleRPCExecutionStage(8, 0, 2);
+		Task.maxRunning.set(0);
+		CountDownLatch blocker = new CountDownLatch(1);
+		Task[] tasks = new Task[10];
+		SimpleRPCExecutionStage.Call[] slow = new SimpleRPCExecutionStage.Call[tasks.length];
+		for (int i = 0; i < slow.length; i++) {
+			tasks[i] = new Task(50, blocker);
+			slow[i] = stage.submit("SlowRunnable", tasks[i]);
+		}
+		Runnable fast = new Runnable() {
+			public void run() {
+				// not counted as running slow runnable
+			}
+		};
+		// fast runnable is not queued behind blocked slow runnables
+		assertEquals(SimpleRPCExecutionStage.DONE, stage.submit("FastRunnable", fast).await(0));
+		int started = 0;
+		for (int i = 0; i < tasks.length; i++) {
+			if (tasks[i].run) {
+				started++;
+			}
+		}
+		assertTrue(started <= 2);
+		blocker.countDown();
+		for (int i = 0; i < slow.length; i++) {
+			assertEquals(SimpleRPCExecutionStage.DONE, slow[i].await(0));
+		}
+		assertEquals(2, Task.maxRunning.get());
+		SimpleRPCExecutionStage.LatencyHistogram histogram = stage.getHistograms().get("SlowRunnable");
+		assertEquals(10, histogram.getCount());
+		assertTrue(histogram.getMax() >= 250); // 5 rounds of 2 runnables
+		System.out.println("SlowRunnable " + histogram);
+		System.out.println("FastRunnable " + stage.getHistograms().get("FastRunnable"));
+		stage.shutdown();
+	}
+
+	public void testShedding() throws Exception {
+		SimpleRPCExecutionStage stage = new SimpleRPCExecutionStage(2, 4, 0);
+		CountDownLatch blocker = new CountDownLatch(1);
+		Task t1 = new Task(0, blocker);
+		Task t2 = new Task(0, blocker);
+		stage.submit("BlockedRunnable", t1);
+		stage.submit("BlockedRunnable", t2);
+		assertTrue(t1.started.await(5, TimeUnit.SECONDS));
+		assertTrue(t2.started.await(5, TimeUnit.SECONDS));
+		int accepted = 0;
+		SimpleRPCExecutionStage.Call[] calls = new SimpleRPCExecutionStage.Call[10];
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = stage.submit("BlockedRunnable", new Task(0, blocker));
+			if (calls[i] != null) {
+				accepted++;
+			}
+		}
+		assertEquals(4, accepted);
+		assertEquals(4, stage.getWaitingCount());
+		assertEquals(6, stage.getHistograms().get("BlockedRunnable").getRejectedCount());
+		blocker.countDown();
+		for (int i = 0; i < calls.length; i++) {
+			if (calls[i] != null) {
+				assertEquals(SimpleRPCExecutionStage.DONE, calls[i].await(0));
+			}
+		}
+		assertEquals(0, stage.getWaitingCount());
+		stage.shutdown();
+	}
+
+	public void testDeadline() throws Exception {
+		SimpleRPCExecutionStage stage = new SimpleRPCExecutionStage(1, 0, 0);
+		CountDownLatch blocker = new CountDownLatch(1);
+		Task first = new Task(0, blocker);
+		SimpleRPCExecutionStage.Call firstCall = stage.submit("BlockedRunnable", first);
+		Task second = new Task(0, null);
+		SimpleRPCExecutionStage.Call secondCall = stage.submit("BlockedRunnable", second);
+		assertEquals(SimpleRPCExecutionStage.TIMEOUT, secondCall.await(50));
+		assertEquals(SimpleRPCExecutionStage.TIMEOUT, firstCall.await(50)); // still running
+		assertEquals(0, stage.getWaitingCount());
+		blocker.countDown();
+		Task third = new Task(0, null);
+		assertEquals(SimpleRPCExecutionStage.DONE, stage.submit("BlockedRunnable", third).await(1000));
+		assertTrue(first.run);
+		assertFalse(second.run); // dropped after its deadline
+		assertEquals(2, stage.getHistograms().get("BlockedRunnable").getTimeoutCount());
+		stage.shutdown();
+	}
+
+	/*
+	 * Servlet 2.5 API has no AsyncContext, so asynchronous mode is simulated.
+	 */
+	static class AsyncPostServlet extends RPCPostTest.PostServlet {
+		private static final long serialVersionUID = 1L;
+		CountDownLatch completed = new CountDownLatch(1);
+		@Override
+		protected boolean isAsyncSupported(HttpServletRequest req) {
+			return true;
+		}
+		@Override
+		protected Object startAsync(HttpServletRequest req) {
+			return new Object();
+		}
+		@Override
+		protected void completeAsync(Object asyncContext) {
+			completed.countDown();
+		}
+	}
+
+	static RPCPostTest.PostServlet servlet(final Map<String, String> params) throws ServletException {
+		return servlet(new RPCPostTest.PostServlet(), params);
+	}
+
+	static <T extends RPCPostTest.PostServlet> T servlet(T servlet, final Map<String, String> params) throws ServletException {
+		params.put("simple.rpc.runnables", SleepRunnable.class.getName());
+		servlet.init((ServletConfig) Proxy.newProxyInstance(RPCExecutionStageTest.class.getClassLoader(),
+				new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getInitParameter".equals(method.getName())) {
+					return params.get(args[0]);
+				}
+				return null;
+			}
+		}));
+		return servlet;
+	}
+
+	static int post(RPCPostTest.PostServlet servlet, long sleep) throws Exception {
+		SleepRunnable r = new SleepRunnable();
+		r.sleep = sleep;
+		int[] error = new int[1];
+		StringWriter out = new StringWriter();
+		servlet.post(RPCPostTest.request(r.serializeBytes(), true), RPCPostTest.response(out, error));
+		if (error[0] == 0) {
+			assertTrue(out.toString().indexOf("slept") != -1);
+		}
+		return error[0];
+	}
+
+	public void testServletShedding() throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("simple.rpc.threads", "1");
+		params.put("simple.rpc.queue.limit", "1");
+		params.put("simple.rpc.max.running.time", "500");
+		final RPCPostTest.PostServlet servlet = servlet(params);
+		assertEquals(0, post(servlet, 0));
+		final int[] slowResult = new int[] { -1 };
+		Thread slow = new Thread() {
+			public void run() {
+				try {
+					slowResult[0] = post(servlet, 300);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		slow.start();
+		Thread.sleep(50);
+		final int[] waitingResult = new int[] { -1 };
+		Thread waiting = new Thread() {
+			public void run() {
+				try {
+					waitingResult[0] = post(servlet, 0);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		waiting.start();
+		Thread.sleep(50);
+		// queue is full
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, post(servlet, 0));
+		slow.join();
+		waiting.join();
+		assertEquals(0, slowResult[0]);
+		assertEquals(0, waitingResult[0]);
+		// deadline exceeded
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, post(servlet, 1000));
+		SimpleRPCExecutionStage.LatencyHistogram histogram = servlet.getLatencyHistograms().get(SleepRunnable.class.getName());
+		assertEquals(1, histogram.getRejectedCount());
+		assertEquals(1, histogram.getTimeoutCount());
+		servlet.destroy();
+	}
+
+	static long asyncPost(AsyncPostServlet servlet, long sleep, StringWriter out, int[] error) throws Exception {
+		SleepRunnable r = new SleepRunnable();
+		r.sleep = sleep;
+		long start = System.currentTimeMillis();
+		servlet.post(RPCPostTest.request(r.serializeBytes(), true), RPCPostTest.response(out, error));
+		return System.currentTimeMillis() - start;
+	}
+
+	public void testAsyncServlet() throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("simple.rpc.threads", "1");
+		params.put("simple.rpc.max.running.time", "300");
+		AsyncPostServlet servlet = servlet(new AsyncPostServlet(), params);
+		StringWriter out = new StringWriter();
+		int[] error = new int[1];
+		// container's thread is returned before the runnable is completed
+		assertTrue(asyncPost(servlet, 200, out, error) < 150);
+		assertEquals(1, servlet.completed.getCount());
+		assertTrue(servlet.completed.await(5, TimeUnit.SECONDS));
+		assertEquals(0, error[0]);
+		assertTrue(out.toString().indexOf("slept 200") != -1);
+		// deadline exceeded, responded by stage's timer
+		servlet.completed = new CountDownLatch(1);
+		out = new StringWriter();
+		assertTrue(asyncPost(servlet, 1000, out, error) < 150);
+		assertTrue(servlet.completed.await(5, TimeUnit.SECONDS));
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, error[0]);
+		assertEquals(1, servlet.getLatencyHistograms().get(SleepRunnable.class.getName()).getTimeoutCount());
+		servlet.destroy();
+	}
+
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimpleRPCHttpServlet;
+import net.sf.j2s.ajax.SimpleRPCRunnable;
+import net.sf.j2s.ajax.SimpleRPCUtils;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * POST data is read with bounded buffer and parsed from bytes, and delta
+ * responses of runnables tracking their modified fields.
+ */
+public class RPCPostTest extends TestCase {
+
+	public static class EchoRunnable extends SimpleRPCRunnable {
+		public String text;
+		public int[] numbers;
+		public byte[] data;
+		@Override
+		protected boolean bytesCompactMode() {
+			return true;
+		}
+		@Override
+		public void ajaxRun() {
+			text = text + "!" + numbers.length + "," + numbers[numbers.length - 1];
+			if (data != null) {
+				text = text + "," + data.length + "," + data[data.length - 1];
+			}
+		}
+	}
+
+	public static class ScoreRunnable extends SimpleRPCRunnable {
+		public int[] samples;
+		public String[] names;
+		public int total;
+		public String summary;
+		public boolean tracking;
+		@Override
+		public boolean supportsDirtyTracking() {
+			return tracking;
+		}
+		@Override
+		public void ajaxRun() {
+			for (int i = 0; i < samples.length; i++) {
+				total += samples[i];
+			}
+			markDirty("total");
+			summary = names.length + " names";
+			markDirty("summary");
+			markDirty("nonexistent");
+		}
+	}
+
+	static class PostServlet extends SimpleRPCHttpServlet {
+		private static final long serialVersionUID = 1L;
+		void post(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+			doPost(req, resp);
+		}
+	}
+
+	/*
+	 * Servlet which is still parsing string requests.
+	 */
+	static class StringPostServlet extends PostServlet {
+		private static final long serialVersionUID = 1L;
+		int parsed;
+		@Override
+		protected SimpleRPCRunnable getRunnableByRequest(String request) {
+			parsed++;
+			return super.getRunnableByRequest(request);
+		}
+	}
+
+	static HttpServletRequest request(final byte[] body, final boolean contentLength) {
+		final ByteArrayInputStream in = new ByteArrayInputStream(body);
+		final ServletInputStream sis = new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return in.read();
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return in.read(b, off, Math.min(len, 1000)); // in chunks
+			}
+		};
+		return (HttpServletRequest) Proxy.newProxyInstance(RPCPostTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getInputStream".equals(method.getName())) {
+					return sis;
+				} else if ("getContentLength".equals(method.getName())) {
+					return contentLength ? body.length : -1;
+				}
+				return null;
+			}
+		});
+	}
+
+	static HttpServletResponse response(final StringWriter out, final int[] error) {
+		final PrintWriter writer = new PrintWriter(out);
+		return (HttpServletResponse) Proxy.newProxyInstance(RPCPostTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getWriter".equals(method.getName())) {
+					return writer;
+				} else if ("sendError".equals(method.getName())) {
+					error[0] = (Integer) args[0];
+				}
+				return null;
+			}
+		});
+	}
+
+	static <T extends PostServlet> T init(T servlet, String postLimit) throws ServletException {
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put("simple.rpc.runnables", EchoRunnable.class.getName() + ";" + ScoreRunnable.class.getName());
+		params.put("simple.rpc.post.limit", postLimit);
+		servlet.init((ServletConfig) Proxy.newProxyInstance(RPCPostTest.class.getClassLoader(),
+				new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getInitParameter".equals(method.getName())) {
+					return params.get(args[0]);
+				}
+				return null;
+			}
+		}));
+		return servlet;
+	}
+
+	static byte[] requestBytes(int numbers) {
+		EchoRunnable r = new EchoRunnable();
+		r.text = "hello \u4e2d\u6587";
+		r.numbers = new int[numbers];
+		for (int i = 0; i < numbers; i++) {
+			r.numbers[i] = i;
+		}
+		return r.serializeBytes();
+	}
+
+	static EchoRunnable post(PostServlet servlet, byte[] body, boolean contentLength, int[] error) throws Exception {
+		return (EchoRunnable) postRunnable(servlet, body, contentLength, error);
+	}
+
+	static SimpleRPCRunnable postRunnable(PostServlet servlet, byte[] body, boolean contentLength, int[] error) throws Exception {
+		StringWriter out = new StringWriter();
+		error[0] = 0;
+		servlet.post(request(body, contentLength), response(out, error));
+		if (error[0] != 0) {
+			return null;
+		}
+		SimpleRPCRunnable r = (SimpleRPCRunnable) SimpleSerializable.parseInstance(out.toString());
+		assertTrue(r.deserialize(out.toString()));
+		return r;
+	}
+
+	public void testPost() throws Exception {
+		PostServlet servlet = init(new PostServlet(), "100000");
+		int[] error = new int[1];
+		for (int i = 0; i < 2; i++) {
+			boolean contentLength = i == 0;
+			EchoRunnable r = post(servlet, requestBytes(5000), contentLength, error);
+			assertEquals(0, error[0]);
+			assertEquals("hello \u4e2d\u6587!5000,4999", r.text);
+		}
+	}
+
+	public void testPostLimit() throws Exception {
+		byte[] body = requestBytes(5000);
+		PostServlet servlet = init(new PostServlet(), String.valueOf(body.length - 1));
+		int[] error = new int[1];
+		assertNull(post(servlet, body, true, error));
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, error[0]);
+		assertNull(post(servlet, body, false, error));
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, error[0]);
+		servlet = init(new PostServlet(), String.valueOf(body.length));
+		assertNotNull(post(servlet, body, true, error));
+		assertNotNull(post(servlet, body, false, error));
+	}
+
+	public void testBadPost() throws Exception {
+		PostServlet servlet = init(new PostServlet(), "100000");
+		int[] error = new int[1];
+		assertNull(post(servlet, new byte[0], false, error));
+		assertEquals(HttpServletResponse.SC_NOT_FOUND, error[0]);
+		assertNull(post(servlet, "WLL202java.lang.Object#00000000$".getBytes(), true, error));
+		assertEquals(HttpServletResponse.SC_NOT_FOUND, error[0]);
+	}
+
+	/*
+	 * Browsers post serialized string in UTF-8, compact bytes and non-ASCII
+	 * characters are encoded into more than one byte.
+	 */
+	public void testPostString() throws Exception {
+		PostServlet servlet = init(new PostServlet(), "100000");
+		EchoRunnable r = new EchoRunnable();
+		r.text = "hello \u4e2d\u6587";
+		r.numbers = new int[] { 1, 2, 3 };
+		r.data = new byte[256];
+		for (int i = 0; i < r.data.length; i++) {
+			r.data[i] = (byte) i;
+		}
+		byte[] body = r.serialize().getBytes("UTF-8");
+		int[] error = new int[1];
+		for (int i = 0; i < 2; i++) {
+			EchoRunnable echo = post(servlet, body, i == 0, error);
+			assertEquals(0, error[0]);
+			assertEquals("hello \u4e2d\u6587!3,3,256,-1", echo.text);
+		}
+	}
+
+	public void testStringRequestOverridden() throws Exception {
+		StringPostServlet servlet = init(new StringPostServlet(), "100000");
+		int[] error = new int[1];
+		EchoRunnable r = post(servlet, requestBytes(10), true, error);
+		assertEquals(1, servlet.parsed);
+		assertEquals("hello \u4e2d\u6587!10,9", r.text);
+	}
+
+	static byte[] scoreBytes(int count, boolean tracking) {
+		ScoreRunnable r = new ScoreRunnable();
+		r.tracking = tracking;
+		r.samples = new int[count];
+		r.names = new String[count];
+		for (int i = 0; i < count; i++) {
+			r.samples[i] = i % 10;
+			r.names[i] = "name" + i;
+		}
+		return r.serializeBytes();
+	}
+
+	public void testDirtyTracking() throws Exception {
+		PostServlet servlet = init(new PostServlet(), "0");
+		int[] error = new int[1];
+		ScoreRunnable compared = (ScoreRunnable) postRunnable(servlet, scoreBytes(1000, false), true, error);
+		ScoreRunnable tracked = (ScoreRunnable) postRunnable(servlet, scoreBytes(1000, true), true, error);
+		assertEquals(4500, tracked.total);
+		assertEquals("1000 names", tracked.summary);
+		assertNull(tracked.samples);
+		assertNull(tracked.names);
+		assertEquals(compared.total, tracked.total);
+		assertEquals(compared.summary, tracked.summary);
+		assertNull(compared.samples);
+		assertNull(compared.names);
+
+		ScoreRunnable r = new ScoreRunnable();
+		assertFalse(r.isDirty("total"));
+		r.samples = new int[] { 1, 2 };
+		r.names = new String[0];
+		r.ajaxRun();
+		assertTrue(r.isDirty("total"));
+		assertTrue(r.isDirty("summary"));
+		assertFalse(r.isDirty("samples"));
+		assertFalse(r.isDirty("nonexistent"));
+		ScoreRunnable clone = (ScoreRunnable) r.clone();
+		r.clearDirty();
+		assertFalse(r.isDirty("total"));
+		assertTrue(clone.isDirty("total"));
+	}
+
+	static ScoreRunnable scoreRunnable(byte[] bytes) {
+		ScoreRunnable r = (ScoreRunnable) SimpleSerializable.parseInstance(bytes);
+		assertTrue(r.deserializeBytes(bytes));
+		return r;
+	}
+
+	/*
+	 * Dirty fields are the same as fields found by comparing with a clone,
+	 * and only dirty fields are serialized in response.
+	 */
+	public void testDirtyFields() throws Exception {
+		String[] fields = new String[] { "samples", "names", "total", "summary", "tracking" };
+		ScoreRunnable r = scoreRunnable(scoreBytes(100, false));
+		ScoreRunnable cloned = (ScoreRunnable) r.clone();
+		r.ajaxRun();
+		Set<String> diffs = SimpleRPCUtils.compareDiffs(r, cloned);
+		assertEquals(2, diffs.size());
+		for (int i = 0; i < fields.length; i++) {
+			assertEquals(fields[i], diffs.contains(fields[i]), r.isDirty(fields[i]));
+		}
+		r.clearDirty();
+		for (int i = 0; i < fields.length; i++) {
+			assertFalse(fields[i], r.isDirty(fields[i]));
+		}
+
+		PostServlet servlet = init(new PostServlet(), "0");
+		StringWriter out = new StringWriter();
+		int[] error = new int[1];
+		servlet.post(request(scoreBytes(100, true), true), response(out, error));
+		assertEquals(0, error[0]);
+		// fields not in response are left untouched
+		int[] samples = new int[0];
+		String[] names = new String[0];
+		ScoreRunnable response = new ScoreRunnable();
+		response.samples = samples;
+		response.names = names;
+		response.total = -1;
+		assertTrue(response.deserialize(out.toString()));
+		assertEquals(450, response.total);
+		assertEquals("100 names", response.summary);
+		assertSame(samples, response.samples);
+		assertSame(names, response.names);
+		assertFalse(response.tracking);
+	}
+
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.ISimpleCacheable;
+import net.sf.j2s.ajax.ISimplePipePriority;
+import net.sf.j2s.ajax.SimplePipeQueue;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Pipe data queue: piping order, sorting, cacheable merging and a multi-producer
+ * stress benchmark.
+ */
+public class SimplePipeQueueTest extends TestCase {
+
+	public static class PipeEvent extends SimpleSerializable {
+		public int producer;
+		public int index;
+	}
+
+	public static class PriorityEvent extends SimpleSerializable implements ISimplePipePriority {
+		public int priority;
+		public int index;
+		public int getPriority() {
+			return priority;
+		}
+	}
+
+	public static class CacheableEvent extends SimpleSerializable implements ISimpleCacheable {
+		public String id;
+		public int value;
+		private boolean cached;
+		public boolean isCached() {
+			return cached;
+		}
+		public void setCached(boolean cached) {
+			this.cached = cached;
+		}
+		public <T extends ISimpleCacheable> void synchronizeFrom(T another) {
+			value = ((CacheableEvent) another).value;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CacheableEvent && id.equals(((CacheableEvent) obj).id);
+		}
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+	}
+
+	PriorityEvent priorityEvent(int priority, int index) {
+		PriorityEvent e = new PriorityEvent();
+		e.priority = priority;
+		e.index = index;
+		return e;
+	}
+
+	CacheableEvent cacheableEvent(String id, int value) {
+		CacheableEvent e = new CacheableEvent();
+		e.id = id;
+		e.value = value;
+		return e;
+	}
+
+	public void testPipingOrder() {
+		SimplePipeQueue queue = new SimplePipeQueue();
+		queue.offer(priorityEvent(ISimplePipePriority.TRIVIAL, 0));
+		queue.offer(priorityEvent(ISimplePipePriority.NORMAL, 1));
+		queue.offer(new PipeEvent()); // IMPORTANT
+		queue.offer(priorityEvent(100, 3));
+		assertEquals(4, queue.size());
+		assertEquals(0, ((PriorityEvent) queue.get(0)).index);
+		assertEquals(0, ((PriorityEvent) queue.poll()).index);
+		assertEquals(1, ((PriorityEvent) queue.remove(0)).index);
+		assertTrue(queue.poll() instanceof PipeEvent);
+		assertEquals(3, ((PriorityEvent) queue.poll()).index);
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.size());
+	}
+
+	public void testSortByPriority() {
+		SimplePipeQueue queue = new SimplePipeQueue();
+		queue.offer(priorityEvent(ISimplePipePriority.TRIVIAL, 0));
+		queue.offer(priorityEvent(ISimplePipePriority.NORMAL, 1));
+		queue.offer(new PipeEvent()); // IMPORTANT
+		queue.offer(priorityEvent(ISimplePipePriority.TRIVIAL, 3));
+		queue.offer(priorityEvent(100, 4));
+		queue.offer(priorityEvent(ISimplePipePriority.NORMAL, 5));
+		queue.sortByPriority();
+		queue.offer(priorityEvent(100, 6)); // after sorting, in piping order
+		assertEquals(7, queue.size());
+		assertEquals(4, ((PriorityEvent) queue.poll()).index);
+		assertTrue(queue.poll() instanceof PipeEvent);
+		assertEquals(1, ((PriorityEvent) queue.poll()).index);
+		assertEquals(5, ((PriorityEvent) queue.poll()).index);
+		assertEquals(0, ((PriorityEvent) queue.poll()).index);
+		assertEquals(3, ((PriorityEvent) queue.poll()).index);
+		assertEquals(6, ((PriorityEvent) queue.poll()).index);
+		assertNull(queue.poll());
+	}
+
+	public void testBufferedIndex() {
+		SimplePipeQueue queue = new SimplePipeQueue();
+		queue.offer(new PipeEvent());
+		CacheableEvent e1 = cacheableEvent("a", 1);
+		queue.offer(e1); // position 1
+		queue.offer(new PipeEvent());
+		// position 1 is not before buffered index 1, so it is merged
+		assertFalse(queue.offer(cacheableEvent("a", 2), 1));
+		assertEquals(2, e1.value);
+		// position 1 is before buffered index 2, so it is piped again
+		CacheableEvent e2 = cacheableEvent("a", 3);
+		assertTrue(queue.offer(e2, 2));
+		assertEquals(2, e1.value);
+		assertEquals(4, queue.size());
+		queue.poll();
+		// e2 is at position 2 after polling head
+		assertFalse(queue.offer(cacheableEvent("a", 4), 2));
+		assertEquals(4, e2.value);
+		assertSame(e1, queue.poll());
+		queue.poll();
+		assertSame(e2, queue.poll());
+	}
+
+	public void testCacheableMerging() {
+		SimplePipeQueue queue = new SimplePipeQueue();
+		CacheableEvent e1 = cacheableEvent("a", 1);
+		assertTrue(queue.offer(e1));
+		assertTrue(e1.isCached());
+		assertFalse(queue.offer(e1)); // already queued
+		assertFalse(queue.offer(cacheableEvent("a", 2)));
+		assertEquals(2, e1.value);
+		assertTrue(queue.offer(cacheableEvent("b", 3)));
+		assertEquals(2, queue.size());
+		assertSame(e1, queue.poll());
+		assertFalse(e1.isCached());
+		CacheableEvent e2 = cacheableEvent("a", 4);
+		assertTrue(queue.offer(e2)); // e1 is sent, e2 is queued again
+		assertEquals(2, queue.size());
+		assertEquals("b", ((CacheableEvent) queue.poll()).id);
+		assertSame(e2, queue.poll());
+	}
+
+	/*
+	 * An object piped while an equal one is being polled is either merged
+	 * before the polled one is returned, or queued again, so the last update
+	 * of each object always reaches the consumer.
+	 */
+	public void testConcurrentPollAndMerge() throws InterruptedException {
+		final SimplePipeQueue queue = new SimplePipeQueue();
+		final int ids = 100;
+		final int updates = 2000;
+		final CountDownLatch done = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			public void run() {
+				for (int i = 1; i <= updates; i++) {
+					for (int j = 0; j < ids; j++) {
+						queue.offer(cacheableEvent("c" + j, i));
+					}
+				}
+				done.countDown();
+			}
+		}).start();
+		int[] last = new int[ids];
+		while (true) {
+			SimpleSerializable ss = queue.poll();
+			if (ss == null) {
+				if (done.getCount() == 0 && (ss = queue.poll()) == null) {
+					break;
+				}
+				if (ss == null) {
+					Thread.yield();
+					continue;
+				}
+			}
+			CacheableEvent e = (CacheableEvent) ss;
+			int j = Integer.parseInt(e.id.substring(1));
+			assertTrue(e.value >= last[j]);
+			last[j] = e.value;
+		}
+		for (int j = 0; j < ids; j++) {
+			assertEquals("c" + j, updates, last[j]);
+		}
+	}
+
+	/*
+	 * Producers pipe events, and one consumer drains events.
+	 */
+	static abstract class Piping {
+		abstract void pipeIn(SimpleSerializable ss);
+		abstract SimpleSerializable poll();
+	}
+
+	/*
+	 * The former way of piping: producers and consumer lock the same list,
+	 * and cacheable objects are looked up by List#indexOf.
+	 */
+	static class ListPiping extends Piping {
+		List<SimpleSerializable> list = new LinkedList<SimpleSerializable>();
+		void pipeIn(SimpleSerializable ss) {
+			synchronized (list) {
+				if (ss instanceof ISimpleCacheable) {
+					ISimpleCacheable c = (ISimpleCacheable) ss;
+					if (c.isCached()) {
+						return;
+					}
+					int idx = list.indexOf(ss);
+					if (idx != -1) {
+						((ISimpleCacheable) list.get(idx)).synchronizeFrom(c);
+						return;
+					}
+					c.setCached(true);
+				}
+				list.add(ss);
+			}
+		}
+		SimpleSerializable poll() {
+			synchronized (list) {
+				if (list.isEmpty()) {
+					return null;
+				}
+				SimpleSerializable ss = list.remove(0);
+				if (ss instanceof ISimpleCacheable) {
+					((ISimpleCacheable) ss).setCached(false);
+				}
+				return ss;
+			}
+		}
+	}
+
+	static class QueuePiping extends Piping {
+		SimplePipeQueue queue = new SimplePipeQueue();
+		void pipeIn(SimpleSerializable ss) {
+			queue.offer(ss);
+		}
+		SimpleSerializable poll() {
+			return queue.poll();
+		}
+	}
+
+	long stress(final Piping piping, final int producers, final int count) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(producers);
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < count; i++) {
+						PipeEvent e = new PipeEvent();
+						e.producer = producer;
+						e.index = i;
+						piping.pipeIn(e);
+						if (i % 10 == 0) {
+							piping.pipeIn(cacheableEvent("c" + (i % 500), i));
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		int[] next = new int[producers];
+		int received = 0;
+		int cacheables = 0;
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		while (true) {
+			SimpleSerializable ss = piping.poll();
+			if (ss == null) {
+				if (done.getCount() == 0 && (ss = piping.poll()) == null) {
+					break;
+				}
+				if (ss == null) {
+					Thread.yield();
+					continue;
+				}
+			}
+			if (ss instanceof CacheableEvent) {
+				cacheables++;
+				continue;
+			}
+			PipeEvent e = (PipeEvent) ss;
+			assertEquals(next[e.producer], e.index); // piping order is kept
+			next[e.producer]++;
+			received++;
+		}
+		long time = System.currentTimeMillis() - begin;
+		assertEquals(producers * count, received);
+		assertTrue(cacheables > 0 && cacheables <= producers * count / 10);
+		return time;
+	}
+
+	public void testMultiProducerStress() throws InterruptedException {
+		int producers = 8;
+		int count = 50000;
+		QueuePiping piping = new QueuePiping();
+		long queueTime = stress(piping, producers, count);
+		assertEquals(0, piping.queue.size());
+		assertTrue(piping.queue.isEmpty());
+		long listTime = stress(new ListPiping(), producers, count);
+		System.out.println(producers + " producers x " + count + " events: pipe queue "
+				+ queueTime + "ms, synchronized list " + listTime + "ms");
+	}
+
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.test.ajax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.j2s.ajax.SimpleFilter;
+import net.sf.j2s.ajax.SimpleSerializable;
+import net.sf.j2s.ajax.SimpleSerializableDecoder;
+
+/**
+ * Serializing into streams and decoding from fragmented bytes.
+ */
+public class StreamSerializeTest extends TestCase {
+
+	public static class StreamSerialize extends SimpleSerializable {
+		public String name;
+		public int[] values;
+		public byte[] data;
+		public StreamSerialize next;
+	}
+
+	StreamSerialize create(int id) {
+		StreamSerialize ss = new StreamSerialize();
+		ss.name = "stream-" + id;
+		ss.values = new int[id % 100];
+		for (int i = 0; i < ss.values.length; i++) {
+			ss.values[i] = i * id;
+		}
+		ss.data = new byte[] {1, 2, (byte) id};
+		if (id % 3 == 0) {
+			ss.next = new StreamSerialize();
+			ss.next.name = "next";
+		}
+		return ss;
+	}
+
+	public void testSerializeStream() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			StreamSerialize ss = create(i * 17);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ss.serializeBytes(baos);
+			assertTrue(Arrays.equals(ss.serializeBytes(), baos.toByteArray()));
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new StreamSerialize().serializeBytes(baos);
+		assertTrue(Arrays.equals(new StreamSerialize().serializeBytes(), baos.toByteArray()));
+	}
+
+	public void testSizeMatchesFields() throws IOException {
+		StreamSerialize ss = create(42);
+		// a filter which would give other fields if they were walked again
+		SimpleFilter filter = new SimpleFilter() {
+			int walks;
+			public boolean accept(String field) {
+				if ("name".equals(field)) {
+					walks++;
+				}
+				return !"name".equals(field) || walks % 2 == 1;
+			}
+			public boolean ignoreDefaultFields() {
+				return false;
+			}
+		};
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ss.serializeBytes(baos, filter, true);
+		byte[] bytes = baos.toByteArray();
+		int start = 0;
+		while (bytes[start] != '#') {
+			start++;
+		}
+		int size = Integer.parseInt(new String(bytes, start + 1, 8, "ISO-8859-1"));
+		assertEquals(bytes.length - start - 10, size);
+		StreamSerialize ds = new StreamSerialize();
+		assertTrue(ds.deserializeBytes(bytes));
+		assertEquals(ss.name, ds.name);
+		assertTrue(Arrays.equals(ss.values, ds.values));
+	}
+
+	public void testDecodeFragments() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		List<StreamSerialize> all = new ArrayList<StreamSerialize>();
+		for (int i = 0; i < 50; i++) {
+			StreamSerialize ss = create(i * 7);
+			all.add(ss);
+			ss.serializeBytes(baos);
+		}
+		byte[] bytes = baos.toByteArray();
+		for (int chunk = 1; chunk < 20; chunk += 3) {
+			SimpleSerializableDecoder decoder = new SimpleSerializableDecoder();
+			List<SimpleSerializable> decoded = new ArrayList<SimpleSerializable>();
+			for (int i = 0; i < bytes.length; i += chunk) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i));
+				decoded.addAll(decoder.decode(buffer));
+			}
+			assertFalse(decoder.hasPendingBytes());
+			assertEquals(all.size(), decoded.size());
+			for (int i = 0; i < all.size(); i++) {
+				assertTrue(decoded.get(i) instanceof StreamSerialize);
+				assertEquals(all.get(i).serialize(), decoded.get(i).serialize());
+			}
+		}
+	}
+
+	public void testDecodeInvalid() {
+		SimpleSerializableDecoder decoder = new SimpleSerializableDecoder();
+		try {
+			decoder.decode("WLX201".getBytes(), 0, 6);
+			fail("Invalid format should be detected");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.swt.widgets;
+
+import junit.framework.TestCase;
+
+/**
+ * Ordering and time slicing of RunQueue, run against a stand-in for
+ * the browser window: a clock that only moves when runnables work,
+ * and one host timer.
+ */
+public class RunQueueTest extends TestCase {
+
+	/* the window, which runs one host timer task at a time */
+	static class Window {
+		long clock;
+		Runnable timer;
+		long timerTime;
+		int timersSet, tasks;
+
+		void setTimeout (Runnable runnable, int delay) {
+			timer = runnable;
+			timerTime = clock + delay;
+			timersSet++;
+		}
+
+		void clearTimeout () {
+			timer = null;
+		}
+
+		/* runs the host timer, as the next task of the page */
+		boolean runTask () {
+			if (timer == null) return false;
+			Runnable runnable = timer;
+			timer = null;
+			clock = Math.max (clock, timerTime);
+			tasks++;
+			runnable.run ();
+			return true;
+		}
+
+		void runAll () {
+			while (runTask ()) {
+				assertTrue (tasks < 10000);
+			}
+		}
+	}
+
+	Window window;
+	RunQueue queue;
+	StringBuffer log;
+
+	protected void setUp () {
+		window = new Window ();
+		log = new StringBuffer ();
+		queue = new RunQueue () {
+			long now () {
+				return window.clock;
+			}
+			void schedule (int delay) {
+				final RunQueue queue = this;
+				window.setTimeout (new Runnable () {
+					public void run () {
+						queue.drain ();
+					}
+				}, delay);
+			}
+			void cancel () {
+				window.clearTimeout ();
+			}
+		};
+	}
+
+	/* a runnable which logs its name and takes the given milliseconds */
+	Runnable work (final String name, final int millis) {
+		return new Runnable () {
+			public void run () {
+				log.append (name);
+				window.clock += millis;
+			}
+		};
+	}
+
+	public void testAsyncOrder () {
+		queue.asyncExec (work ("a", 0));
+		queue.asyncExec (work ("b", 0));
+		queue.asyncExec (null);
+		queue.asyncExec (work ("c", 0));
+		assertEquals ("", log.toString ());
+		window.runAll ();
+		assertEquals ("abc", log.toString ());
+		assertEquals (1, window.timersSet);
+		assertEquals (1, window.tasks);
+	}
+
+	public void testBudget () {
+		for (int i = 0; i < 25; i++) {
+			queue.asyncExec (work (String.valueOf ((char) ('a' + i)), 1));
+		}
+		assertTrue (window.runTask ());
+		assertEquals (RunQueue.BUDGET, log.length ());
+		window.runAll ();
+		assertEquals ("abcdefghijklmnopqrstuvwxy", log.toString ());
+		assertEquals (3, window.tasks);
+	}
+
+	public void testRequeuedRunsInNextDrain () {
+		final int [] runs = new int [1];
+		queue.asyncExec (new Runnable () {
+			public void run () {
+				if (++runs [0] < 5) queue.asyncExec (this);
+			}
+		});
+		queue.asyncExec (work ("a", 0));
+		/* one run per task, each followed by a paint, not one spinning task */
+		assertTrue (window.runTask ());
+		assertEquals (1, runs [0]);
+		assertEquals ("a", log.toString ());
+		window.runAll ();
+		assertEquals (5, runs [0]);
+		assertEquals (5, window.tasks);
+	}
+
+	public void testTimerOrder () {
+		Runnable [] timers = new Runnable [5];
+		for (int i = 0; i < timers.length; i++) {
+			timers [i] = work (String.valueOf (i), 0);
+		}
+		queue.timerExec (50, timers [0]);
+		queue.timerExec (20, timers [1]);
+		queue.timerExec (20, timers [2]);
+		queue.timerExec (100, timers [3]);
+		queue.timerExec (30, timers [4]);
+		/* moved ahead of the others, and cancelled */
+		queue.timerExec (5, timers [3]);
+		queue.timerExec (-1, timers [4]);
+		window.runAll ();
+		/* the same time runs in the order of scheduling */
+		assertEquals ("3120", log.toString ());
+		assertEquals (50, window.clock);
+	}
+
+	public void testTimerScheduledByDrain () {
+		queue.timerExec (0, new Runnable () {
+			public void run () {
+				log.append ("a");
+				queue.timerExec (0, work ("b", 0));
+			}
+		});
+		assertTrue (window.runTask ());
+		assertEquals ("a", log.toString ());
+		window.runAll ();
+		assertEquals ("ab", log.toString ());
+		assertEquals (2, window.tasks);
+	}
+
+	public void testCancel () {
+		Runnable timer = work ("t", 0);
+		queue.timerExec (10, timer);
+		assertNotNull (window.timer);
+		queue.timerExec (-1, timer);
+		assertNull (window.timer);
+		queue.asyncExec (work ("a", 0));
+		queue.timerExec (10, timer);
+		queue.release ();
+		assertNull (window.timer);
+		window.runAll ();
+		assertEquals ("", log.toString ());
+	}
+
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.swt.widgets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.swt.internal.xhtml.Element;
+
+/**
+ * Windowing of VirtualRows, driven without a browser. Items are
+ * taken as cached once bound, as Table does when it sends SetData.
+ */
+public class VirtualRowsTest extends TestCase {
+
+	static final int ROW_HEIGHT = 18;
+
+	static final int VIEW_HEIGHT = 400;
+
+	/* rows in a 400px viewport, the partial ones included, and overscan */
+	static final int POOL = VIEW_HEIGHT / ROW_HEIGHT + 2 + VirtualRows.OVERSCAN * 2;
+
+	static class Rows extends VirtualRows {
+		int created;
+		boolean [] cached = new boolean [0];
+		List setData = new ArrayList();
+
+		Rows (int count) {
+			super (ROW_HEIGHT);
+			setCount (count);
+		}
+
+		void setCount (int count) {
+			super.setCount (count);
+			if (cached.length < count) {
+				boolean [] newCached = new boolean [count];
+				System.arraycopy (cached, 0, newCached, 0, cached.length);
+				cached = newCached;
+			}
+		}
+
+		Element createRow () {
+			created++;
+			return new Element ();
+		}
+
+		void bindRow (int slot, Element row, int index) {
+			if (index >= 0 && !cached [index]) {
+				cached [index] = true;
+				setData.add (new Integer (index));
+			}
+		}
+
+		void setSpacers (int above, int below) {
+			assertEquals (count * rowHeight, above + size * rowHeight + below);
+		}
+	}
+
+	/* asserts that SetData only fired for items in or next to the viewport */
+	static void assertInView (Rows rows, int scrollTop) {
+		/* at either end of the list, the window is shifted to stay full */
+		int first = scrollTop / ROW_HEIGHT - VirtualRows.OVERSCAN;
+		first = Math.max (0, Math.min (first, rows.count - POOL));
+		int last = first + POOL - 1;
+		assertTrue (last >= (scrollTop + VIEW_HEIGHT) / ROW_HEIGHT || last == rows.count - 1);
+		for (int i = 0; i < rows.setData.size(); i++) {
+			int index = ((Integer) rows.setData.get (i)).intValue ();
+			assertTrue ("item " + index + " at " + scrollTop, first <= index && index <= last);
+		}
+		rows.setData.clear ();
+	}
+
+	public void testPoolSize() {
+		Rows rows = new Rows (50000);
+		for (int y = 0; y < 50000 * ROW_HEIGHT; y += 37) {
+			rows.update (y, VIEW_HEIGHT);
+			assertTrue (rows.rows.length <= POOL);
+		}
+		rows.update (50000 * ROW_HEIGHT, VIEW_HEIGHT);
+		assertEquals (POOL, rows.created);
+		assertEquals (POOL, rows.rows.length);
+	}
+
+	public void testSetDataInView() {
+		Rows rows = new Rows (50000);
+		rows.update (0, VIEW_HEIGHT);
+		assertEquals (POOL, rows.setData.size ());
+		assertInView (rows, 0);
+		int[] jumps = { 25000 * ROW_HEIGHT, 25000 * ROW_HEIGHT + 5, 100 * ROW_HEIGHT, 50000 * ROW_HEIGHT };
+		for (int i = 0; i < jumps.length; i++) {
+			rows.update (jumps [i], VIEW_HEIGHT);
+			assertInView (rows, jumps [i]);
+		}
+		for (int y = 0; y < 2000 * ROW_HEIGHT; y += 7) {
+			rows.update (y, VIEW_HEIGHT);
+			assertInView (rows, y);
+		}
+		int count = 0;
+		for (int i = 0; i < rows.cached.length; i++) {
+			if (rows.cached [i]) count++;
+		}
+		assertTrue (count < 2100 + 3 * POOL);
+	}
+
+	public void testGrowCount() {
+		Rows rows = new Rows (1000);
+		rows.update (500 * ROW_HEIGHT, VIEW_HEIGHT);
+		int created = rows.created;
+		rows.setData.clear ();
+		rows.setCount (100000);
+		rows.update (500 * ROW_HEIGHT, VIEW_HEIGHT);
+		assertEquals (created, rows.created);
+		assertEquals (0, rows.setData.size ());
+		assertEquals (500, rows.getTopIndex ());
+	}
+
+	public void testShrinkCount() {
+		Rows rows = new Rows (1000);
+		rows.update (500 * ROW_HEIGHT, VIEW_HEIGHT);
+		rows.setCount (5);
+		rows.update (500 * ROW_HEIGHT, VIEW_HEIGHT);
+		assertEquals (5, rows.size);
+		assertEquals (0, rows.start);
+		assertEquals (4, rows.getTopIndex ());
+		assertNull (rows.getRow (5));
+		assertNotNull (rows.getRow (4));
+	}
+
+	public void testCells() {
+		assertNull (TableItem.getCell (null, 0));
+		String [] cells = TableItem.growCells (null, 2);
+		assertEquals (2, cells.length);
+		cells [1] = "red";
+		/* a column was added */
+		assertNull (TableItem.getCell (cells, 2));
+		String [] grown = TableItem.growCells (cells, 3);
+		assertEquals (3, grown.length);
+		assertEquals ("red", TableItem.getCell (grown, 1));
+		assertSame (grown, TableItem.growCells (grown, 2));
+	}
+
+}